@@ -0,0 +1,102 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.client.explorer.commands;
+
+import com.google.appinventor.shared.rpc.ServerLayout;
+import com.google.gwt.core.client.GWT;
+import com.google.gwt.http.client.Request;
+import com.google.gwt.http.client.RequestBuilder;
+import com.google.gwt.http.client.RequestCallback;
+import com.google.gwt.http.client.RequestException;
+import com.google.gwt.http.client.Response;
+import com.google.gwt.http.client.URL;
+import com.google.gwt.json.client.JSONObject;
+import com.google.gwt.json.client.JSONParser;
+import com.google.gwt.user.client.Command;
+import com.google.gwt.user.client.Timer;
+
+/**
+ * Waits for the progress of a build to change, so the commands that wait
+ * for a build only ask for the build result when there is news.
+ *
+ * The server holds the request until the build makes progress (see
+ * BuildStatusServlet). If it doesn't know how the build is doing, or
+ * the request fails, we fall back to waiting a fixed time.
+ *
+ */
+final class BuildStatusWaiter {
+
+  private BuildStatusWaiter() {} // not to be instantiated
+
+  /**
+   * Calls then once the progress of the latest build of a project differs
+   * from progress, or the build is done.
+   *
+   * @param projectId the project id
+   * @param target the build target
+   * @param progress the progress of the build we know of, in percent
+   * @param fallbackMillis how long to wait if the server can't tell us
+   * @param then what to do then
+   */
+  static void waitForProgress(long projectId, String target, int progress,
+      final int fallbackMillis, final Command then) {
+    String url = GWT.getModuleBaseURL() + ServerLayout.BUILD_STATUS_SERVLET
+        + "?projectId=" + projectId
+        + "&target=" + URL.encodeQueryString(target)
+        + "&progress=" + progress;
+    RequestBuilder builder = new RequestBuilder(RequestBuilder.GET, url);
+    try {
+      builder.sendRequest(null, new RequestCallback() {
+        @Override
+        public void onError(Request request, Throwable exception) {
+          waitFixed(fallbackMillis, then);
+        }
+
+        @Override
+        public void onResponseReceived(Request request, Response response) {
+          if (response.getStatusCode() == Response.SC_OK && isKnown(response.getText())) {
+            then.execute();
+          } else {
+            waitFixed(fallbackMillis, then);
+          }
+        }
+      });
+    } catch (RequestException e) {
+      waitFixed(fallbackMillis, then);
+    }
+  }
+
+  /**
+   * @return the progress in the output of an unfinished build result, or
+   *         -1 if there is none
+   */
+  static int parseProgress(String output) {
+    try {
+      return Integer.parseInt(output);
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  private static boolean isKnown(String text) {
+    try {
+      JSONObject status = JSONParser.parseStrict(text).isObject();
+      return status != null && status.containsKey("progress");
+    } catch (RuntimeException e) {
+      return false;
+    }
+  }
+
+  private static void waitFixed(int millis, final Command then) {
+    Timer timer = new Timer() {
+      @Override
+      public void run() {
+        then.execute();
+      }
+    };
+    timer.schedule(millis);
+  }
+}
@@ -16,7 +16,7 @@ import com.google.appinventor.shared.rpc.project.ProjectNode;
 import com.google.gwt.event.dom.client.ClickEvent;
 import com.google.gwt.event.dom.client.ClickHandler;
 import com.google.gwt.i18n.client.DateTimeFormat;
-import com.google.gwt.user.client.Timer;
+import com.google.gwt.user.client.Command;
 import com.google.gwt.user.client.ui.Button;
 import com.google.gwt.user.client.ui.DialogBox;
 import com.google.gwt.user.client.ui.HorizontalPanel;
@@ -89,14 +89,14 @@ public class ShowProgressBarCommand extends ChainableCommand {
         if (result.succeeded()) {
             minPB.hide();
         } else if (progressBarShow != 2 ) {
-          // Build isn't done yet
-          Timer timer = new Timer() {
-              @Override
-                public void run() {
-                execute(node); }
-            };
-          // TODO(user): Maybe do an exponential backoff here.
-          timer.schedule(WAIT_INTERVAL_MILLIS);
+          // Build isn't done yet, ask again once it made progress
+          BuildStatusWaiter.waitForProgress(node.getProjectId(), target, currentProgress,
+              WAIT_INTERVAL_MILLIS, new Command() {
+                @Override
+                public void execute() {
+                  ShowProgressBarCommand.this.execute(node);
+                }
+              });
         }
       }
       @Override
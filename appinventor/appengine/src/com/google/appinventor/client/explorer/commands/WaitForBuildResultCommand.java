@@ -23,7 +23,7 @@ import com.google.gwt.json.client.JSONObject;
 import com.google.gwt.json.client.JSONParser;
 import com.google.gwt.json.client.JSONString;
 import com.google.gwt.json.client.JSONValue;
-import com.google.gwt.user.client.Timer;
+import com.google.gwt.user.client.Command;
 
 import java.util.Date;
 
@@ -112,15 +112,15 @@ public class WaitForBuildResultCommand extends ChainableCommand {
           }
           executionFailedOrCanceled();
         } else {
-          // Build isn't done yet
-          Timer timer = new Timer() {
-            @Override
-            public void run() {
-              execute(node);
-            }
-          };
-          // TODO(user): Maybe do an exponential backoff here.
-          timer.schedule(WAIT_INTERVAL_MILLIS);
+          // Build isn't done yet, ask again once it made progress
+          BuildStatusWaiter.waitForProgress(node.getProjectId(), target,
+              BuildStatusWaiter.parseProgress(result.getOutput()), WAIT_INTERVAL_MILLIS,
+              new Command() {
+                @Override
+                public void execute() {
+                  WaitForBuildResultCommand.this.execute(node);
+                }
+              });
         }
       }
 
@@ -34,21 +34,44 @@ public final class ProjectManager {
    */
   private volatile boolean projectsLoaded = false;
 
+  /**
+   * How many project infos are requested at a time. The first page is
+   * shown while the rest are loading.
+   */
+  private static final int PROJECT_INFOS_PAGE_SIZE = 50;
+
   /**
    * Creates a new projects manager.
    */
   public ProjectManager() {
     projectsMap = new HashMap<Long, Project>();
     projectManagerEventListeners = new ArrayList<ProjectManagerEventListener>();
-    Ode.getInstance().getProjectService().getProjectInfos(
-        new OdeAsyncCallback<List<UserProject>>(
+    loadProjectInfos(0);
+  }
+
+  /*
+   * Loads the page of project infos after the given project, then the
+   * pages after it.
+   */
+  private void loadProjectInfos(final long afterProjectId) {
+    Ode.getInstance().getProjectService().getProjectInfosPage(afterProjectId,
+        PROJECT_INFOS_PAGE_SIZE, new OdeAsyncCallback<List<UserProject>>(
         MESSAGES.projectInformationRetrievalError()) {
       @Override
       public void onSuccess(List<UserProject> projectInfos) {
+        long lastProjectId = afterProjectId;
         for (UserProject projectInfo : projectInfos) {
-          addProject(projectInfo);
+          // Projects created while the list is loading are already added
+          if (!projectsMap.containsKey(projectInfo.getProjectId())) {
+            addProject(projectInfo);
+          }
+          lastProjectId = Math.max(lastProjectId, projectInfo.getProjectId());
+        }
+        if (projectInfos.size() < PROJECT_INFOS_PAGE_SIZE) {
+          fireProjectsLoaded();
+        } else {
+          loadProjectInfos(lastProjectId);
         }
-        fireProjectsLoaded();
       }
     });
   }
@@ -66,10 +66,6 @@ public class BuildOutputServlet extends OdeServlet {
       String[] uriComponents = uri.split("/");
       nonceValue = uriComponents[2];
 
-      storageIo.cleanupNonces(); // This removes expired Nonce objects
-                                 // (10 at a time so we don't spend too
-                                 // much time doing it)
-
       Nonce nonce = storageIo.getNoncebyValue(nonceValue);
       if (nonce == null) {
         resp.sendError(resp.SC_NOT_FOUND, "Invalid Link");
@@ -0,0 +1,183 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server;
+
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * The progress of the builds in progress, as pushed by the build server
+ * (see ReceiveBuildStatusServlet), so finding out how a build is doing
+ * doesn't mean asking the build server.
+ *
+ * There is one entry per (user, project, target), for the latest build
+ * of the project. It records which build it is about and events of
+ * earlier builds of the project are ignored. Entries are kept in
+ * memcache for a little longer than a build can take; a lost entry only
+ * means we fall back to asking the build server.
+ *
+ */
+public final class BuildStatusCache {
+
+  /**
+   * Where a build is at.
+   */
+  public static final class Status {
+    private final String buildId;
+    private final String stage;
+    private final int progress;
+
+    Status(String buildId, String stage, int progress) {
+      this.buildId = buildId;
+      this.stage = stage;
+      this.progress = progress;
+    }
+
+    public String getBuildId() {
+      return buildId;
+    }
+
+    /**
+     * @return the stage the build reached, {@link #STAGE_QUEUED} or
+     *         {@link #STAGE_DONE}
+     */
+    public String getStage() {
+      return stage;
+    }
+
+    /**
+     * @return how far along the build is, in percent
+     */
+    public int getProgress() {
+      return progress;
+    }
+
+    public boolean isDone() {
+      return STAGE_DONE.equals(stage);
+    }
+
+    String toJson() {
+      JSONObject json = new JSONObject();
+      json.put("build", buildId);
+      json.put("stage", stage);
+      json.put("progress", progress);
+      return json.toString();
+    }
+
+    static Status fromJson(String json) {
+      try {
+        JSONObject object = new JSONObject(json);
+        return new Status(object.getString("build"), object.getString("stage"),
+            object.getInt("progress"));
+      } catch (JSONException e) {
+        return null;
+      }
+    }
+  }
+
+  /** Stage of a build that the build server hasn't reported on yet. */
+  public static final String STAGE_QUEUED = "queued";
+
+  /** Stage of a build whose results were received. */
+  public static final String STAGE_DONE = "done";
+
+  private static final String KEY_PREFIX = "buildstatus:";
+
+  // Longer than any build takes
+  private static final int EXPIRATION_SECONDS = 15 * 60;
+
+  // How often await looks for a change
+  private static final long POLL_MILLIS = 500;
+
+  private final MemcacheService memcache = MemcacheServiceFactory.getMemcacheService();
+
+  /**
+   * Records that a build was started, replacing the status of the
+   * project's previous build.
+   */
+  public void buildStarted(String userId, long projectId, String target, String buildId) {
+    put(userId, projectId, target, new Status(buildId, STAGE_QUEUED, 0));
+  }
+
+  /**
+   * Records an event pushed by the build server.
+   *
+   * @return false if the event is about another build than the latest
+   *         build of the project, and was ignored
+   */
+  public boolean update(String userId, long projectId, String target, String buildId,
+      String stage, int progress) {
+    String key = key(userId, projectId, target);
+    for (int tries = 0; tries < 3; tries++) {
+      MemcacheService.IdentifiableValue current = memcache.getIdentifiable(key);
+      Status status = current == null ? null : Status.fromJson((String) current.getValue());
+      if (status == null || !status.getBuildId().equals(buildId)) {
+        return false;
+      }
+      if (status.isDone() || status.getProgress() > progress) {
+        return true;            // An event that was overtaken
+      }
+      Status updated = new Status(buildId, stage, progress);
+      if (memcache.putIfUntouched(key, current, updated.toJson(),
+          Expiration.byDeltaSeconds(EXPIRATION_SECONDS))) {
+        return true;
+      }
+    }
+    return true;                // Lost to concurrent events, which are newer
+  }
+
+  /**
+   * Records that the results of the project's latest build were received.
+   */
+  public void buildFinished(String userId, long projectId, String target) {
+    Status status = get(userId, projectId, target);
+    put(userId, projectId, target,
+        new Status(status == null ? "" : status.getBuildId(), STAGE_DONE, 100));
+  }
+
+  /**
+   * @return the status of the project's latest build, or null if we don't
+   *         know it
+   */
+  public Status get(String userId, long projectId, String target) {
+    String json = (String) memcache.get(key(userId, projectId, target));
+    return json == null ? null : Status.fromJson(json);
+  }
+
+  /**
+   * Waits for the status of the project's latest build to change.
+   *
+   * @param progress the progress the caller knows of
+   * @param timeoutMillis how long to wait at most
+   * @return the status once its progress differs from progress or it is
+   *         done, when the time is up, or as soon as we don't know it
+   */
+  public Status await(String userId, long projectId, String target, int progress,
+      long timeoutMillis) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + timeoutMillis;
+    while (true) {
+      Status status = get(userId, projectId, target);
+      if (status == null || status.isDone() || status.getProgress() != progress
+          || System.currentTimeMillis() + POLL_MILLIS > deadline) {
+        return status;
+      }
+      Thread.sleep(POLL_MILLIS);
+    }
+  }
+
+  private void put(String userId, long projectId, String target, Status status) {
+    memcache.put(key(userId, projectId, target), status.toJson(),
+        Expiration.byDeltaSeconds(EXPIRATION_SECONDS));
+  }
+
+  private static String key(String userId, long projectId, String target) {
+    return KEY_PREFIX + userId + ":" + projectId + ":" + target;
+  }
+}
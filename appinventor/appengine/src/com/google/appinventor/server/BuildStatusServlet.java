@@ -0,0 +1,76 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server;
+
+import java.io.IOException;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.json.JSONObject;
+
+/**
+ * Servlet the client long-polls for the progress of its builds.
+ *
+ * <p>A request waits until the progress of the latest build of the
+ * project differs from the progress the client knows of, or the build
+ * is done, and answers with the build's status as JSON:
+ * <code>{"stage": ..., "progress": ...}</code>. It answers with an empty
+ * object if the status of the build isn't known (the build server
+ * doesn't push its progress, or the status expired), in which case the
+ * client polls getBuildResult instead.
+ *
+ */
+public class BuildStatusServlet extends OdeServlet {
+
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(BuildStatusServlet.class.getName());
+
+  // Well within the deadline of a request
+  private static final long WAIT_MILLIS = 25 * 1000;
+
+  private final BuildStatusCache buildStatusCache = new BuildStatusCache();
+
+  @Override
+  public void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+    // URIs for buildstatus requests are structured as follows:
+    //   /<baseurl>/buildstatus?projectId=<projectId>&target=<target>&progress=<percent>
+    long projectId;
+    int progress;
+    try {
+      projectId = Long.parseLong(req.getParameter("projectId"));
+      String progressParameter = req.getParameter("progress");
+      progress = progressParameter == null ? -1 : Integer.parseInt(progressParameter);
+    } catch (NumberFormatException e) {
+      resp.sendError(HttpServletResponse.SC_BAD_REQUEST);
+      return;
+    }
+    String target = req.getParameter("target");
+    if (target == null) {
+      resp.sendError(HttpServletResponse.SC_BAD_REQUEST);
+      return;
+    }
+
+    BuildStatusCache.Status status;
+    try {
+      status = buildStatusCache.await(userInfoProvider.getUserId(), projectId, target, progress,
+          WAIT_MILLIS);
+    } catch (InterruptedException e) {
+      LOG.info("Interrupted while waiting for the status of a build of project " + projectId);
+      status = null;
+    }
+
+    JSONObject result = new JSONObject();
+    if (status != null) {
+      result.put("stage", status.getStage());
+      result.put("progress", status.getProgress());
+    }
+    resp.setContentType("application/json; charset=UTF-8");
+    resp.setHeader("Cache-Control", "no-cache");
+    resp.getWriter().write(result.toString());
+  }
+}
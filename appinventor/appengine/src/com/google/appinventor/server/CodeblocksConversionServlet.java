@@ -0,0 +1,54 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server;
+
+import com.google.appinventor.server.project.youngandroid.YoungAndroidProjectService;
+import com.google.appinventor.server.storage.StorageIoInstanceHolder;
+
+import java.io.IOException;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * CodeblocksConversionServlet -- Convert the codeblocks file of an old
+ * project to Blockly format.
+ *
+ * Opening an old project gives it an empty Blockly file and queues the
+ * conversion, so the project opens without waiting for it. Like the
+ * GcsCleanupServlet this is called from the task queue and is
+ * restricted to admin users, so normal people cannot call it directly.
+ *
+ */
+public class CodeblocksConversionServlet extends OdeServlet {
+  // Logging support
+  private static final Logger LOG =
+      Logger.getLogger(CodeblocksConversionServlet.class.getName());
+  private final YoungAndroidProjectService projectService =
+      new YoungAndroidProjectService(StorageIoInstanceHolder.INSTANCE);
+
+  @Override
+  public void doPost(HttpServletRequest req, HttpServletResponse resp)
+      throws IOException {
+    long projectId;
+    try {
+      projectId = Long.parseLong(req.getParameter("projectId"));
+    } catch (NumberFormatException e) {
+      // Don't have the task queue retry a task that can never succeed
+      LOG.warning("Bad projectId in codeblocks conversion request: "
+          + req.getParameter("projectId"));
+      return;
+    }
+    String userId = req.getParameter("userId");
+    String fileId = req.getParameter("fileId");
+    if (userId == null || fileId == null) {
+      LOG.warning("Incomplete codeblocks conversion request for project " + projectId);
+      return;
+    }
+    projectService.convertCodeblocksFile(userId, projectId, fileId);
+  }
+}
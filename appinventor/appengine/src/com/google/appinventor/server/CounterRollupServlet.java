@@ -0,0 +1,45 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server;
+
+import com.google.appinventor.server.storage.GalleryStorageIo;
+import com.google.appinventor.server.storage.GalleryStorageIoInstanceHolder;
+
+import java.io.IOException;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * CounterRollupServlet -- Fold the sharded like and download counters of
+ * a gallery app back into its GalleryAppData entity.
+ *
+ * Like the BlobUpgradeServlet this is called from the task queue (tasks
+ * are queued by ObjectifyGalleryStorageIo whenever an app is liked or
+ * downloaded) and is restricted to admin users, so normal people cannot
+ * call it directly.
+ *
+ */
+public class CounterRollupServlet extends OdeServlet {
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(CounterRollupServlet.class.getName());
+  private final GalleryStorageIo galleryStorageIo = GalleryStorageIoInstanceHolder.INSTANCE;
+
+  @Override
+  public void doPost(HttpServletRequest req, HttpServletResponse resp)
+      throws IOException {
+    long galleryId;
+    try {
+      galleryId = Long.parseLong(req.getParameter("galleryId"));
+    } catch (NumberFormatException e) {
+      // Don't have the task queue retry a task that can never succeed
+      LOG.warning("Bad galleryId in counter rollup request: " + req.getParameter("galleryId"));
+      return;
+    }
+    galleryStorageIo.rollupCounters(galleryId);
+  }
+}
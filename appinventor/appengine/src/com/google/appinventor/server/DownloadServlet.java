@@ -6,6 +6,9 @@
 
 package com.google.appinventor.server;
 
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
 import com.google.appinventor.common.utils.StringUtils;
 import com.google.appinventor.server.storage.StorageIo;
 import com.google.appinventor.server.storage.StorageIoInstanceHolder;
@@ -34,7 +37,7 @@ public class DownloadServlet extends OdeServlet {
    *    /<baseurl>/download/project-output/<projectId>/{<target>}
    *    /<baseurl>/download/project-source/<projectId>/{<title>}
    *    /<baseurl>/download/user-project-source/<projectIdOrName>/<userIdOrEmail>
-   *    /<baseurl>/download/all-projects-source
+   *    /<baseurl>/download/all-projects-source{?after=<projectId>|?resume=true}
    *    /<baseurl>/download/file/<projectId>/<file-path>
    *    /<baseurl>/download/userfile/<file-path>
    */
@@ -86,8 +89,20 @@ public class DownloadServlet extends OdeServlet {
   // Content type for response header (to avoid security vulnerabilities)
   private static final String CONTENT_TYPE = "text/html; charset=utf-8";
 
+  // Memcache key prefix of the continuation tokens of exports of all projects
+  private static final String EXPORT_TOKEN_PREFIX = "exportall:";
+
+  // How long an export of all projects that was cut short can be resumed
+  private static final int EXPORT_TOKEN_SECONDS = 24 * 60 * 60;
+
+  // App Engine buffers the whole response and fails it if it is over 32 MB,
+  // so there an export of all projects stops at this many bytes of projects
+  private static final long APP_ENGINE_EXPORT_MAX_BYTES = 24 * 1024 * 1024;
+
   private final FileExporter fileExporter = new FileExporterImpl();
 
+  private final MemcacheService memcache = MemcacheServiceFactory.getMemcacheService();
+
   @Override
   public void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
     // Set a default http header to avoid security vulnerabilities.
@@ -187,10 +202,10 @@ public class DownloadServlet extends OdeServlet {
         downloadableFile = zipFile.getRawFile();
 
       } else if (downloadKind.equals(ServerLayout.DOWNLOAD_ALL_PROJECTS_SOURCE)) {
-        // Download all project source files as a zip of zips.
-        ProjectSourceZip zipFile = fileExporter.exportAllProjectsSourceZip(
-            userId, "all-projects.zip");
-        downloadableFile = zipFile.getRawFile();
+        // Download all project source files as a zip of zips, written as
+        // the projects are read.
+        exportAllProjectsSource(req, resp, userId);
+        return;
 
       } else if (downloadKind.equals(ServerLayout.DOWNLOAD_FILE)) {
         // Download a specific file.
@@ -231,4 +246,64 @@ public class DownloadServlet extends OdeServlet {
     out.write(content);
     out.close();
   }
+
+  /*
+   * Streams all of the user's projects as a zip of zips. The id of the last
+   * project written is kept as the user's continuation token until the
+   * export completes: ?resume=true exports the projects that an export that
+   * was cut short didn't get to, ?after=<projectId> the projects after a
+   * given one.
+   *
+   * Streaming only keeps memory down on a self hosted server. App Engine
+   * buffers the whole response, so there each download stops once it has
+   * APP_ENGINE_EXPORT_MAX_BYTES of projects, and ?resume=true gets the rest.
+   */
+  private void exportAllProjectsSource(HttpServletRequest req, HttpServletResponse resp,
+      String userId) throws IOException {
+    final String tokenKey = EXPORT_TOKEN_PREFIX + userId;
+    long afterProjectId = 0;
+    if (req.getParameter("after") != null) {
+      try {
+        afterProjectId = Long.parseLong(req.getParameter("after"));
+      } catch (NumberFormatException e) {
+        resp.sendError(HttpServletResponse.SC_BAD_REQUEST,
+            "Not a project id: " + req.getParameter("after"));
+        return;
+      }
+    } else if ("true".equals(req.getParameter("resume"))) {
+      Long token = (Long) memcache.get(tokenKey);
+      if (token != null) {
+        afterProjectId = token;
+      }
+    }
+    String fileName = (afterProjectId == 0) ? "all-projects.zip"
+        : "all-projects-after-" + afterProjectId + ".zip";
+
+    // The length isn't known up front, the response is sent chunked
+    resp.setStatus(HttpServletResponse.SC_OK);
+    resp.setHeader("content-disposition", "attachment; filename=\"" + fileName + "\"");
+    resp.setContentType(StorageUtil.getContentTypeForFilePath(fileName));
+
+    long maxBytes = Server.isProductionServer() ? APP_ENGINE_EXPORT_MAX_BYTES : Long.MAX_VALUE;
+    final boolean[] stopped = { false };
+    ServletOutputStream out = resp.getOutputStream();
+    fileExporter.exportAllProjectsSourceZip(userId, afterProjectId, out, maxBytes,
+        new FileExporter.ExportListener() {
+          @Override
+          public void projectExported(long projectId) {
+            memcache.put(tokenKey, projectId,
+                Expiration.byDeltaSeconds(EXPORT_TOKEN_SECONDS));
+          }
+
+          @Override
+          public void exportStopped() {
+            stopped[0] = true;
+          }
+        });
+    // An export that stopped keeps its token, so it can be resumed
+    if (!stopped[0]) {
+      memcache.delete(tokenKey);
+    }
+    out.close();
+  }
 }
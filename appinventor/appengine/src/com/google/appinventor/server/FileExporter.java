@@ -10,6 +10,7 @@ import com.google.appinventor.shared.rpc.project.ProjectSourceZip;
 import com.google.appinventor.shared.rpc.project.RawFile;
 
 import java.io.IOException;
+import java.io.OutputStream;
 
 import javax.annotation.Nullable;
 
@@ -19,6 +20,28 @@ import javax.annotation.Nullable;
  */
 public interface FileExporter {
 
+  /**
+   * Told about the progress of a streamed export of all of a user's
+   * projects.
+   */
+  interface ExportListener {
+    /**
+     * Called once a project was written to the output, or skipped because
+     * it can't be exported. If the export is cut short, exporting the
+     * projects after this one completes it.
+     *
+     * @param projectId the id of the project
+     */
+    void projectExported(long projectId);
+
+    /**
+     * Called if the export stopped before the last project because the
+     * zip reached its size limit. Exporting the projects after the last
+     * one passed to projectExported completes it.
+     */
+    void exportStopped();
+  }
+
   public static final String REMIX_INFORMATION_FILE_PATH = "youngandroidproject/remix_history";
 
   /**
@@ -69,6 +92,28 @@ public interface FileExporter {
    */
   ProjectSourceZip exportAllProjectsSourceZip(String userId, String zipName) throws IOException;
 
+  /**
+   * Exports the user's projects' source files as a zip of zips, writing
+   * the zip to output as the projects are read. Projects are exported in
+   * project id order, so an export that was cut short can be completed by
+   * exporting the projects after the last one that was exported.
+   *
+   * @param userId the userId
+   * @param afterProjectId only projects with a larger id are exported, 0
+   *        for all projects
+   * @param output where to write the zip, which is not closed
+   * @param maxBytes the export stops before a project that would take the
+   *        projects in the zip over this many bytes. The first project is
+   *        always written.
+   * @param listener told about each project that was written, or null
+   * @return the number of projects that were exported
+   * @throws IllegalArgumentException if download request cannot be fulfilled
+   *         (no projects)
+   * @throws IOException if the zip cannot be written
+   */
+  int exportAllProjectsSourceZip(String userId, long afterProjectId, OutputStream output,
+      long maxBytes, @Nullable ExportListener listener) throws IOException;
+
   /**
    * Exports a specific project file.
    *
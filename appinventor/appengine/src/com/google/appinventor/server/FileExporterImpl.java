@@ -6,8 +6,8 @@
 
 package com.google.appinventor.server;
 
+import com.google.appengine.api.ThreadManager;
 import com.google.common.base.Strings;
-import com.google.appinventor.server.storage.ObjectifyStorageIo;
 import com.google.appinventor.server.storage.StorageIo;
 import com.google.appinventor.server.storage.StorageIoInstanceHolder;
 import com.google.appinventor.shared.rpc.project.ProjectSourceZip;
@@ -16,8 +16,22 @@ import com.google.appinventor.shared.storage.StorageUtil;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 
@@ -29,6 +43,12 @@ import javax.annotation.Nullable;
  */
 public final class FileExporterImpl implements FileExporter {
 
+  private static final Logger LOG = Logger.getLogger(FileExporterImpl.class.getName());
+
+  // How many projects a streamed export reads ahead of the one it writes.
+  // Bounds the memory an export takes to this many exported projects.
+  private static final int PREFETCH_WINDOW = 3;
+
   private final StorageIo storageIo = StorageIoInstanceHolder.INSTANCE;
 
   @Override
@@ -67,12 +87,8 @@ public final class FileExporterImpl implements FileExporter {
     boolean fatalError,
     boolean forGallery) throws IOException {
     // Download project source files as a zip.
-    if (storageIo instanceof ObjectifyStorageIo) {
-      return ((ObjectifyStorageIo)storageIo).exportProjectSourceZip(userId, projectId,
-        includeProjectHistory, includeAndroidKeystore, zipName, includeYail, includeScreenShots, forGallery, fatalError);
-    } else {
-      throw new IllegalArgumentException("Objectify only");
-    }
+    return storageIo.exportProjectSourceZip(userId, projectId, includeProjectHistory,
+      includeAndroidKeystore, zipName, includeYail, includeScreenShots, forGallery, fatalError);
   }
 
   @Override
@@ -98,19 +114,8 @@ public final class FileExporterImpl implements FileExporter {
         byte[] data = projectSourceZip.getContent();
         String name = projectSourceZip.getFileName();
 
-        // If necessary, rename duplicate projects
-        while (true) {
-          try {
-            out.putNextEntry(new ZipEntry(name));
-            break;
-          } catch (IOException e) {
-            name = "duplicate-" + name;
-          }
-        }
+        putProject(out, name, data);
         metadata += projectSourceZip.getMetadata() + "\n";
-
-        out.write(data, 0, data.length);
-        out.closeEntry();
         count++;
       } catch (IllegalArgumentException e) {
         System.err.println("No files found for userid: " + userId +
@@ -126,16 +131,8 @@ public final class FileExporterImpl implements FileExporter {
       throw new IllegalArgumentException("No files to download");
     }
 
-    List<String> userFiles = storageIo.getUserFiles(userId);
-    if (userFiles.contains(StorageUtil.ANDROID_KEYSTORE_FILENAME)) {
-      byte[] androidKeystoreBytes =
-          storageIo.downloadRawUserFile(userId, StorageUtil.ANDROID_KEYSTORE_FILENAME);
-      if (androidKeystoreBytes.length > 0) {
-        out.putNextEntry(new ZipEntry(StorageUtil.ANDROID_KEYSTORE_FILENAME));
-        out.write(androidKeystoreBytes, 0, androidKeystoreBytes.length);
-        out.closeEntry();
-        count++;
-      }
+    if (putAndroidKeystore(userId, out)) {
+      count++;
     }
 
     out.close();
@@ -147,6 +144,83 @@ public final class FileExporterImpl implements FileExporter {
     return projectSourceZip;
   }
 
+  @Override
+  public int exportAllProjectsSourceZip(final String userId, long afterProjectId,
+      OutputStream output, long maxBytes, @Nullable ExportListener listener)
+      throws IOException {
+    List<Long> projectIds = new ArrayList<Long>(storageIo.getProjects(userId));
+    if (projectIds.size() == 0) {
+      throw new IllegalArgumentException("No projects to download");
+    }
+    Collections.sort(projectIds);
+    Iterator<Long> toRead = projectIds.iterator();
+    while (toRead.hasNext()) {
+      if (toRead.next() <= afterProjectId) {
+        toRead.remove();
+      }
+    }
+    toRead = projectIds.iterator();
+
+    // Reading a project takes a few datastore and GCS round trips, so the
+    // next projects are read while the current one is written.
+    ExecutorService prefetcher = newPrefetcher();
+    Deque<Future<ProjectSourceZip>> window = new ArrayDeque<Future<ProjectSourceZip>>();
+    ZipOutputStream out = new ZipOutputStream(output);
+    long start = System.currentTimeMillis();
+    long bytes = 0;
+    int count = 0;
+    try {
+      for (Long projectId : projectIds) {
+        while (window.size() < PREFETCH_WINDOW && toRead.hasNext()) {
+          window.addLast(prefetch(prefetcher, userId, toRead.next()));
+        }
+        ProjectSourceZip projectSourceZip;
+        try {
+          projectSourceZip = window.removeFirst().get();
+        } catch (InterruptedException e) {
+          throw new InterruptedIOException("Export interrupted");
+        } catch (ExecutionException e) {
+          if (e.getCause() instanceof IllegalArgumentException
+              || e.getCause() instanceof IOException) {
+            LOG.log(Level.WARNING, "Unable to export project " + projectId
+                + " of user " + userId, e.getCause());
+            if (listener != null) {
+              listener.projectExported(projectId);
+            }
+            continue;
+          }
+          throw new RuntimeException(e.getCause());
+        }
+        byte[] data = projectSourceZip.getContent();
+        if (count > 0 && bytes + data.length > maxBytes) {
+          if (listener != null) {
+            listener.exportStopped();
+          }
+          break;
+        }
+        putProject(out, projectSourceZip.getFileName(), data);
+        // Make sure the project is on its way before telling the listener
+        out.flush();
+        bytes += data.length;
+        count++;
+        if (listener != null) {
+          listener.projectExported(projectId);
+        }
+      }
+      putAndroidKeystore(userId, out);
+      out.finish();
+    } finally {
+      if (prefetcher != null) {
+        prefetcher.shutdownNow();
+      }
+    }
+
+    long millis = Math.max(System.currentTimeMillis() - start, 1);
+    LOG.info("Exported " + count + " projects of user " + userId + ", " + bytes
+        + " bytes in " + millis + " ms (" + (bytes * 1000 / 1024 / millis) + " KB/s)");
+    return count;
+  }
+
   @Override
   public RawFile exportFile(String userId, long projectId, String filePath) throws IOException {
     // Download a specific project file.
@@ -172,6 +246,84 @@ public final class FileExporterImpl implements FileExporter {
     }
   }
 
+  /*
+   * Adds an exported project to a zip of projects, renaming it if the zip
+   * already has a project of the same name.
+   */
+  private static void putProject(ZipOutputStream out, String name, byte[] data)
+      throws IOException {
+    while (true) {
+      try {
+        out.putNextEntry(new ZipEntry(name));
+        break;
+      } catch (IOException e) {
+        name = "duplicate-" + name;
+      }
+    }
+    out.write(data, 0, data.length);
+    out.closeEntry();
+  }
+
+  /*
+   * Adds the user's android.keystore, if any, to a zip of projects.
+   */
+  private boolean putAndroidKeystore(String userId, ZipOutputStream out) throws IOException {
+    List<String> userFiles = storageIo.getUserFiles(userId);
+    if (userFiles.contains(StorageUtil.ANDROID_KEYSTORE_FILENAME)) {
+      byte[] androidKeystoreBytes =
+          storageIo.downloadRawUserFile(userId, StorageUtil.ANDROID_KEYSTORE_FILENAME);
+      if (androidKeystoreBytes.length > 0) {
+        out.putNextEntry(new ZipEntry(StorageUtil.ANDROID_KEYSTORE_FILENAME));
+        out.write(androidKeystoreBytes, 0, androidKeystoreBytes.length);
+        out.closeEntry();
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /*
+   * Starts reading a project for a streamed export, in the background if
+   * there is a prefetcher.
+   */
+  private Future<ProjectSourceZip> prefetch(@Nullable ExecutorService prefetcher,
+      final String userId, final long projectId) {
+    Callable<ProjectSourceZip> read = new Callable<ProjectSourceZip>() {
+      @Override
+      public ProjectSourceZip call() throws IOException {
+        // Note: We never include Yail files when exporting all source projects
+        // even for Admins. If you are an admin and want to debug a project, download
+        // it explicitly.
+        return exportProjectSourceZip(userId, projectId, false, false, null, false, false,
+            false, false);
+      }
+    };
+    if (prefetcher != null) {
+      try {
+        return prefetcher.submit(read);
+      } catch (RuntimeException e) {
+        // Unable to start a thread, read it here
+      }
+    }
+    FutureTask<ProjectSourceZip> task = new FutureTask<ProjectSourceZip>(read);
+    task.run();
+    return task;
+  }
+
+  /*
+   * Returns the executor that reads projects ahead for a streamed export,
+   * or null if this request can't start threads.
+   */
+  private static ExecutorService newPrefetcher() {
+    try {
+      return Executors.newFixedThreadPool(PREFETCH_WINDOW,
+          ThreadManager.currentRequestThreadFactory());
+    } catch (RuntimeException e) {
+      LOG.log(Level.INFO, "Unable to read projects ahead, reading them in turn", e);
+      return null;
+    }
+  }
+
   /*
    * Filters a list of file names, removing those that don't start with the given prefix.
    */
@@ -9,11 +9,11 @@ package com.google.appinventor.server;
 import com.google.appinventor.common.utils.StringUtils;
 import com.google.appinventor.server.flags.Flag;
 import com.google.appinventor.server.project.youngandroid.YoungAndroidProjectService;
+import com.google.appinventor.server.storage.ProjectImport;
 import com.google.appinventor.server.storage.StorageIo;
 import com.google.appinventor.server.storage.StorageIoInstanceHolder;
 import com.google.appinventor.shared.rpc.UploadResponse;
 import com.google.appinventor.shared.rpc.project.Project;
-import com.google.appinventor.shared.rpc.project.RawFile;
 import com.google.appinventor.shared.rpc.project.TextFile;
 import com.google.appinventor.shared.rpc.project.UserProject;
 import com.google.appinventor.shared.rpc.project.youngandroid.YoungAndroidProjectNode;
@@ -49,6 +49,9 @@ public final class FileImporterImpl implements FileImporter {
   // Maximum size of an uploaded asset, in megabytes.
   private static final Flag<Float> maxAssetSizeMegs = Flag.createFlag("max.asset.size.megs", 9f);
 
+  // Most content of an imported project that waits to be stored, in megabytes.
+  private static final Flag<Integer> importBufferMegs = Flag.createFlag("import.buffer.megs", 16);
+
   private static final Logger LOG = Logger.getLogger(FileImporterImpl.class.getName());
 
   private final StorageIo storageIo = StorageIoInstanceHolder.INSTANCE;
@@ -77,81 +80,107 @@ public final class FileImporterImpl implements FileImporter {
         storageIo.getUser(userId).getUserEmail(), projectName);
     String srcDirectory = YoungAndroidProjectService.getSourceDirectory(qualifiedFormName);
 
-    ZipInputStream zin = new ZipInputStream(uploadedFileStream);
-    boolean isProjectArchive = false;  // have we found at least one project properties file?
+    // The files are stored as they come out of the zip, see ProjectImport.
+    // Only the project is created at the end, once all of them are stored.
+    long started = System.currentTimeMillis();
+    long storingMillis = 0;       // time spent handing files to the import
+    long bytes = 0;
+    int files = 0;
+    long maxBufferedBytes = importBufferMegs.get() * 1024L * 1024L;
+    ProjectImport projectImport = storageIo.beginProjectImport(userId, maxBufferedBytes);
+    boolean committed = false;
     try {
-      // Extract files
-      while (true) {
-        ZipEntry entry;
-        try {
-          entry = zin.getNextEntry();
-          if (entry == null) {
-            break;
+      ZipInputStream zin = new ZipInputStream(uploadedFileStream);
+      boolean isProjectArchive = false;  // have we found at least one project properties file?
+      try {
+        // Extract files
+        while (true) {
+          ZipEntry entry;
+          try {
+            entry = zin.getNextEntry();
+            if (entry == null) {
+              break;
+            }
+          } catch (ZipException e) {
+            // The uploaded file is not a valid zip file
+            LOG.log(Level.SEVERE, "Invalid Project Archive Format", e);
+            throw new FileImporterException(UploadResponse.Status.NOT_PROJECT_ARCHIVE);
           }
-        } catch (ZipException e) {
-          // The uploaded file is not a valid zip file
-          LOG.log(Level.SEVERE, "Invalid Project Archive Format", e);
-          throw new FileImporterException(UploadResponse.Status.NOT_PROJECT_ARCHIVE);
-        }
 
-        if (!entry.isDirectory()) {
-          String fileName = entry.getName();
-
-          if (fileName.equals(YoungAndroidProjectService.PROJECT_PROPERTIES_FILE_NAME)) {
-            // The content for the youngandroidproject/project.properties file must be regenerated
-            // so that it contains the correct entries for "main" and "name", which are dependent on
-            // the projectName and qualifiedFormName.
-            String content = YoungAndroidProjectService.getProjectPropertiesFileContents(
-              projectName, qualifiedFormName, null, null, null, null, null, null, null);
-            project.addTextFile(new TextFile(fileName, content));
-            isProjectArchive = true;
-
-          } else if (fileName.equals(FileExporter.REMIX_INFORMATION_FILE_PATH) ||
-              fileName.equals(StorageUtil.ANDROID_KEYSTORE_FILENAME)) {
-            // If the remix information file is present, we ignore it. In the past, a remix
-            // information file was saved in the zip when project source was downloaded and
-            // retrieved from the zip when it was uploaded. However, we no longer do that because
-            // we don't have a way to verify that the contents of the remix information file is
-            // accurate during the upload.
-            // If a keystore file is present we ignore that too for now, since
-            // we don't have per-project keystores. The only way to get such a
-            // source zip at the moment is using the admin functionality to
-            // download another user's project source.
-            continue;
-
-          } else {
-
-            if (fileName.startsWith(YoungAndroidProjectService.SRC_FOLDER)) {
-              // For files within the src folder, we need to update the directory that we put files
-              // in. Adjust the fileName so that it corresponds to this project's package.
-              fileName = srcDirectory + '/' + StorageUtil.basename(fileName);
+          if (!entry.isDirectory()) {
+            String fileName = entry.getName();
+
+            if (fileName.equals(YoungAndroidProjectService.PROJECT_PROPERTIES_FILE_NAME)) {
+              // The content for the youngandroidproject/project.properties file must be
+              // regenerated so that it contains the correct entries for "main" and "name",
+              // which are dependent on the projectName and qualifiedFormName.
+              String content = YoungAndroidProjectService.getProjectPropertiesFileContents(
+                projectName, qualifiedFormName, null, null, null, null, null, null, null);
+              project.addTextFile(new TextFile(fileName, content));
+              isProjectArchive = true;
+
+            } else if (fileName.equals(FileExporter.REMIX_INFORMATION_FILE_PATH) ||
+                fileName.equals(StorageUtil.ANDROID_KEYSTORE_FILENAME)) {
+              // If the remix information file is present, we ignore it. In the past, a remix
+              // information file was saved in the zip when project source was downloaded and
+              // retrieved from the zip when it was uploaded. However, we no longer do that
+              // because we don't have a way to verify that the contents of the remix
+              // information file is accurate during the upload.
+              // If a keystore file is present we ignore that too for now, since
+              // we don't have per-project keystores. The only way to get such a
+              // source zip at the moment is using the admin functionality to
+              // download another user's project source.
+              continue;
+
+            } else {
+
+              if (fileName.startsWith(YoungAndroidProjectService.SRC_FOLDER)) {
+                // For files within the src folder, we need to update the directory that we
+                // put files in. Adjust the fileName so that it corresponds to this project's
+                // package.
+                fileName = srcDirectory + '/' + StorageUtil.basename(fileName);
+              }
+
+              // Get the file content from the ZipEntry and hand it over
+              byte[] content = ByteStreams.toByteArray(zin);
+              long start = System.currentTimeMillis();
+              projectImport.addFile(fileName, content);
+              storingMillis += System.currentTimeMillis() - start;
+              bytes += content.length;
+              files++;
             }
-
-            // Get the file content from the ZipEntry.
-            ByteArrayOutputStream contentStream = new ByteArrayOutputStream();
-            ByteStreams.copy(zin, contentStream);
-
-            project.addRawFile(new RawFile(fileName, contentStream.toByteArray()));
           }
         }
+      } finally {
+        zin.close();
       }
-    } finally {
-      zin.close();
-    }
 
-    if (!isProjectArchive) {
-      // The uploaded file seems to be a valid zip file, but it doesn't contain the project
-      // properties file.
-      throw new FileImporterException(UploadResponse.Status.NOT_PROJECT_ARCHIVE);
-    }
+      if (!isProjectArchive) {
+        // The uploaded file seems to be a valid zip file, but it doesn't contain the project
+        // properties file.
+        throw new FileImporterException(UploadResponse.Status.NOT_PROJECT_ARCHIVE);
+      }
 
-    // Set project history if provided
-    if (projectHistory != null) {
-      project.setProjectHistory(projectHistory);
+      // Set project history if provided
+      if (projectHistory != null) {
+        project.setProjectHistory(projectHistory);
+      }
+      String settings = YoungAndroidProjectService.getProjectSettings(null, null, null, null, null, null, null);
+      long read = System.currentTimeMillis();
+      long projectId = projectImport.commit(project, settings);
+      committed = true;
+      long finished = System.currentTimeMillis();
+      long millis = Math.max(finished - started, 1);
+      LOG.info("Imported project " + projectId + ": " + files + " files, " + bytes / 1024
+          + " KB in " + millis + " ms (" + (bytes * 1000 / 1024 / millis) + " KB/s); reading "
+          + (read - started - storingMillis) + " ms, storing " + storingMillis
+          + " ms, committing " + (finished - read) + " ms");
+      return storageIo.getUserProject(userId, projectId);
+    } finally {
+      if (!committed) {
+        projectImport.abort();
+      }
     }
-    String settings = YoungAndroidProjectService.getProjectSettings(null, null, null, null, null, null, null);
-    long projectId = storageIo.createProject(userId, project, settings);
-    return storageIo.getUserProject(userId, projectId);
   }
 
   @VisibleForTesting
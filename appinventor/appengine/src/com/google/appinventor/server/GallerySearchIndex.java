@@ -1,55 +1,74 @@
 // -*- mode: java; c-basic-offset: 2; -*-
 // Copyright 2009-2011 Google, All Rights reserved
-// Copyright 2011-2012 MIT, All rights reserved
+// Copyright 2011-2017 MIT, All rights reserved
 // Released under the Apache License, Version 2.0
 // http://www.apache.org/licenses/LICENSE-2.0
 
 package com.google.appinventor.server;
 
-import com.google.appengine.api.search.Cursor;
-import com.google.appengine.api.search.DeleteException;
-import com.google.appengine.api.search.Document;
-import com.google.appengine.api.search.Field;
-import com.google.appengine.api.search.Index;
-import com.google.appengine.api.search.IndexSpec;
-import com.google.appengine.api.search.PutException;
-import com.google.appengine.api.search.Query;
-import com.google.appengine.api.search.QueryOptions;
-import com.google.appengine.api.search.Results;
-import com.google.appengine.api.search.ScoredDocument;
-import com.google.appengine.api.search.SearchException;
-import com.google.appengine.api.search.SearchServiceFactory;
-import com.google.appengine.api.search.StatusCode;
 import com.google.appinventor.server.flags.Flag;
+import com.google.appinventor.server.search.AppEngineSearchBackend;
+import com.google.appinventor.server.search.GallerySearchBackend;
+import com.google.appinventor.server.search.InvertedIndexSearchBackend;
 import com.google.appinventor.server.storage.GalleryStorageIo;
 import com.google.appinventor.server.storage.GalleryStorageIoInstanceHolder;
 import com.google.appinventor.shared.rpc.project.GalleryApp;
 import com.google.appinventor.shared.rpc.project.GalleryAppListResult;
 import com.googlecode.objectify.NotFoundException;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-// see sample at https://developers.google.com/appengine/docs/java/search/
-
+/**
+ * Search index of the gallery apps.
+ *
+ * The index itself lives in a {@link GallerySearchBackend}, selected with
+ * the gallery.search.backend flag: "appengine" (the default) uses the App
+ * Engine Search API, "local" an in-memory inverted index that is
+ * persisted to the file named by the gallery.search.snapshot flag (if
+ * any).
+ */
 public class GallerySearchIndex {
 
   private static final Logger LOG = Logger.getLogger(GallerySearchIndex.class.getName());
-  private static String GALLERYINDEX="GalleryIndex";
   private final transient GalleryStorageIo galleryStorageIo =
       GalleryStorageIoInstanceHolder.INSTANCE;
   private static volatile GallerySearchIndex  instance= null;
-  private static final int SEARCH_RETRY_MAX = 3;
-  private final int NUMBER_FOUND_ACCURACY = 100;
   private static final boolean DEBUG = Flag.createFlag("appinventor.debugging", false).get();
+  private static final String SEARCH_BACKEND =
+      Flag.createFlag("gallery.search.backend", "appengine").get();
+  private static final String SEARCH_SNAPSHOT =
+      Flag.createFlag("gallery.search.snapshot", "").get();
+
+  // Page size used when rebuilding the local index from the gallery
+  private static final int REINDEX_BATCH_SIZE = 100;
+
+  private final GallerySearchBackend backend;
 
   /**
    * The default constructor of GallerySearchIndex
    */
   private GallerySearchIndex () {
-
+    if ("local".equals(SEARCH_BACKEND)) {
+      InvertedIndexSearchBackend local = new InvertedIndexSearchBackend(
+          SEARCH_SNAPSHOT.isEmpty() ? null : new File(SEARCH_SNAPSHOT));
+      backend = local;
+      if (local.size() == 0) {
+        // Nothing was persisted, index what is in the gallery now, and
+        // write the snapshot once when we are done
+        local.beginBulkUpdate();
+        try {
+          reindexAll();
+        } finally {
+          local.endBulkUpdate();
+        }
+      }
+    } else {
+      backend = new AppEngineSearchBackend();
+    }
   }
 
   /**
@@ -58,7 +77,9 @@ public class GallerySearchIndex {
   public static GallerySearchIndex getInstance () {
     if (instance == null) {
       synchronized (GallerySearchIndex.class) {
-        instance = new GallerySearchIndex();
+        if (instance == null) {
+          instance = new GallerySearchIndex();
+        }
       }
     }
     return instance;
@@ -72,21 +93,7 @@ public class GallerySearchIndex {
     // take the title, description, and the user name and index it
     // need to build up a string with all meta data
     String indexWords = app.getTitle()+" "+app.getDescription() + " " + app.getDeveloperName();
-    // now create the doc
-    Document doc = Document.newBuilder()
-      .setId(String.valueOf(app.getGalleryAppId()))
-      .addField(Field.newBuilder().setName("content").setText(indexWords))
-      .build();
-
-    Index index = getIndex();
-
-    try {
-      index.put(doc);
-    } catch (PutException e) {
-      if (StatusCode.TRANSIENT_ERROR.equals(e.getOperationResult().getCode())) {
-          // retry putting the document
-      }
-    }
+    backend.put(app.getGalleryAppId(), indexWords);
   }
 
   /**
@@ -94,13 +101,7 @@ public class GallerySearchIndex {
    * @param galleryId gallery id
    */
   public void unIndexApp(long galleryId) {
-    Index index = getIndex();
-    try {
-      index.delete(String.valueOf(galleryId));
-    } catch (DeleteException e) {
-      LOG.info("error deleting index entry");
-    }
-
+    backend.delete(galleryId);
   }
 
   /**
@@ -112,85 +113,42 @@ public class GallerySearchIndex {
    * @return GalleryAppListResult gallery applist result
    */
   public GalleryAppListResult find (String searchWords, int start, int count) {
-    //TODO page sliced has not implemented yet
     final List<GalleryApp> apps = new ArrayList<GalleryApp>();
-    final Result<Integer> size = new Result<Integer>();
-    Query query = Query.newBuilder()
-            .setOptions(QueryOptions.newBuilder()
-                    .setOffset(start)
-                    .setLimit(count)
-                    .setNumberFoundAccuracy(NUMBER_FOUND_ACCURACY)
-                    // for deployed apps, uncomment the line below to demo snippeting.
-                    // This will not work on the dev_appserver.
-                    // setFieldsToSnippet("content").
-                    .build())
-            .build(searchWords);
-
-    Results<ScoredDocument> results = null;
-    int attempts = 0;
-    boolean retry = true;
-    while (retry){
-      try {
-        if (DEBUG) {
-          LOG.info("Sending query " + query);
-        }
-        results = getIndex().search(query);
-        // search successful
-        retry = false;
-      } catch (SearchException e) {
-        if (StatusCode.TRANSIENT_ERROR.equals(e.getOperationResult().getCode())) {
-          attempts++;
-          LOG.info("Query failed on attempt:" + attempts);
-          // No more attempts, stop retrying
-          if (attempts >= SEARCH_RETRY_MAX) {
-            retry = false;
-          }
-        } else {
-          //Not a transient error, Do Not Retry
-          retry = false;
-          LOG.log(Level.SEVERE, "SEARCH EXCEPTION: " + e.getMessage());
-        }
-      }
+    GallerySearchBackend.Hits hits = backend.search(searchWords, start, count);
+    if (hits == null) {
+      // the search was not successful, the backend has logged why
+      return new GalleryAppListResult(apps, 0, searchWords);
     }
-
-    if (results != null){
-      // Iterate over the documents in the results
-      for (ScoredDocument document : results) {
-        if (DEBUG) {
-          LOG.info("Find:" + document.getId());
-        }
+    for (long galleryId : hits.getGalleryIds()) {
+      if (DEBUG) {
+        LOG.info("Find:" + galleryId);
       }
-
-      // Iterate over the documents in the results
-      for (ScoredDocument document : results) {
-        try{
-          GalleryApp app = galleryStorageIo.getGalleryApp(Long.parseLong(document.getId()));
-          apps.add(app);
-        }catch(NotFoundException e){
-          LOG.log(Level.SEVERE, "Didn't Find GalleryAppData.id: " + document.getId());
-          unIndexApp(Long.parseLong(document.getId()));
-        }
+      try{
+        GalleryApp app = galleryStorageIo.getGalleryApp(galleryId);
+        apps.add(app);
+      }catch(NotFoundException e){
+        LOG.log(Level.SEVERE, "Didn't Find GalleryAppData.id: " + galleryId);
+        unIndexApp(galleryId);
       }
-      size.t = (int) results.getNumberFound();
-    } else {
-      // the search was not successful in the try and catch
-      size.t = 0;
-      LOG.info("Search failed after " + attempts + " attempts");
     }
-    return new GalleryAppListResult(apps, size.t, searchWords);
+    return new GalleryAppListResult(apps, hits.getNumberFound(), searchWords);
   }
 
   /**
-   * @return the search index
+   * Indexes every app in the gallery.
    */
-  private Index getIndex() {
-    IndexSpec indexSpec = IndexSpec.newBuilder().setName(GALLERYINDEX).build();
-    Index index = SearchServiceFactory.getSearchService().getIndex(indexSpec);
-    return index;
-  }
-  // Create a final object of this class to hold a modifiable result value that
-  // can be used in a method of an inner class.
-  private class Result<T> {
-    T t;
+  private void reindexAll() {
+    int start = 0;
+    while (true) {
+      List<GalleryApp> batch =
+          galleryStorageIo.getRecentGalleryApps(start, REINDEX_BATCH_SIZE).getApps();
+      for (GalleryApp app : batch) {
+        indexApp(app);
+      }
+      if (batch.size() < REINDEX_BATCH_SIZE) {
+        break;
+      }
+      start += batch.size();
+    }
   }
 }
@@ -0,0 +1,57 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server;
+
+import com.google.appinventor.server.storage.ForwardingStorageIo;
+import com.google.appinventor.server.storage.ObjectifyStorageIo;
+import com.google.appinventor.server.storage.StorageIo;
+import com.google.appinventor.server.storage.StorageIoInstanceHolder;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * GcsCleanupServlet -- Delete the GCS files of a project file that were
+ * replaced by a newer version (or were written by a save that failed).
+ *
+ * Like the BlobUpgradeServlet this is called from the task queue (tasks
+ * are queued by ObjectifyStorageIo when a file is saved) and is
+ * restricted to admin users, so normal people cannot call it directly.
+ *
+ */
+public class GcsCleanupServlet extends OdeServlet {
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(GcsCleanupServlet.class.getName());
+  private final StorageIo storageIo = StorageIoInstanceHolder.INSTANCE;
+
+  @Override
+  public void doPost(HttpServletRequest req, HttpServletResponse resp)
+      throws IOException {
+    long projectId;
+    try {
+      projectId = Long.parseLong(req.getParameter("projectId"));
+    } catch (NumberFormatException e) {
+      // Don't have the task queue retry a task that can never succeed
+      LOG.warning("Bad projectId in GCS cleanup request: " + req.getParameter("projectId"));
+      return;
+    }
+    String fileName = req.getParameter("fileName");
+    String[] gcsNames = req.getParameterValues("gcsName");
+    if (fileName == null || gcsNames == null) {
+      LOG.warning("Incomplete GCS cleanup request for project " + projectId);
+      return;
+    }
+    StorageIo backend = ForwardingStorageIo.unwrap(storageIo);
+    if (backend instanceof ObjectifyStorageIo) {
+      ((ObjectifyStorageIo) backend).deleteUnusedGcsFiles(projectId, fileName,
+          Arrays.asList(gcsNames));
+    }
+  }
+}
@@ -182,7 +182,9 @@ public class LoginServlet extends HttpServlet {
         return;
       }
       PWData data = storageIo.findPWData(uid);
-      if (data == null) {
+      // Links expire after 24 hours. The daily maintenance deletes them
+      // some time after that.
+      if (data == null || data.timestamp.getTime() + 24*3600*1000L < System.currentTimeMillis()) {
         fail(req, resp, "Invalid Set Password Link");
         return;
       }
@@ -202,7 +204,6 @@ public class LoginServlet extends HttpServlet {
       out.println("<p></p>");
       out.println("<input type=Submit value=\"" + bundle.getString("setpassword") + "\" style=\"font-size: 300%;\">\n");
       out.println("</form>\n");
-      storageIo.cleanuppwdata();
       return;
     } else if (page.equals("linksent")) {
       out = setCookieOutput(userInfo, resp);
@@ -302,7 +303,6 @@ public class LoginServlet extends HttpServlet {
       String link = trimPage(req) + pwData.id + "/setpw";
       sendmail(email, link, locale);
       resp.sendRedirect("/login/linksent/");
-      storageIo.cleanuppwdata();
       return;
     } else if (page.equals("setpw")) {
       if (userInfo == null || userInfo.getUserId().equals("")) {
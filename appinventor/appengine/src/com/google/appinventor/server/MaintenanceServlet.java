@@ -0,0 +1,99 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server;
+
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.appinventor.server.storage.MaintenanceBatch;
+import com.google.appinventor.server.storage.MaintenanceJob;
+import com.google.appinventor.server.storage.StorageIo;
+import com.google.appinventor.server.storage.StorageIoInstanceHolder;
+
+import java.io.IOException;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * MaintenanceServlet -- Delete expired and orphaned data (see
+ * MaintenanceJob) in the background.
+ *
+ * Cron (see cron.xml) gets this servlet once a day, which queues a task
+ * for each job. A task runs one batch of its job and queues the next
+ * batch, passing on where the batch stopped and the totals so far, until
+ * the job is done. Like the GcsCleanupServlet this is restricted to
+ * admin users, so normal people cannot call it directly.
+ *
+ */
+public class MaintenanceServlet extends OdeServlet {
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(MaintenanceServlet.class.getName());
+
+  private static final String MAINTENANCE_QUEUE = "maintenance";
+  private static final String MAINTENANCE_URL = "/tasks/maintenance";
+
+  private final StorageIo storageIo = StorageIoInstanceHolder.INSTANCE;
+
+  @Override
+  public void doGet(HttpServletRequest req, HttpServletResponse resp)
+      throws IOException {
+    long started = System.currentTimeMillis();
+    for (MaintenanceJob job : MaintenanceJob.values()) {
+      queueBatch(job, null, 0, 0, 0, started);
+    }
+  }
+
+  @Override
+  public void doPost(HttpServletRequest req, HttpServletResponse resp)
+      throws IOException {
+    MaintenanceJob job;
+    int batches;
+    long scanned;
+    long deleted;
+    long started;
+    try {
+      job = MaintenanceJob.valueOf(req.getParameter("job"));
+      batches = Integer.parseInt(req.getParameter("batches"));
+      scanned = Long.parseLong(req.getParameter("scanned"));
+      deleted = Long.parseLong(req.getParameter("deleted"));
+      started = Long.parseLong(req.getParameter("started"));
+    } catch (RuntimeException e) {
+      // Don't have the task queue retry a task that can never succeed
+      LOG.warning("Bad maintenance request: " + req.getQueryString());
+      return;
+    }
+    String cursor = req.getParameter("cursor");
+
+    MaintenanceBatch batch = storageIo.runMaintenance(job, cursor);
+    batches++;
+    scanned += batch.getScanned();
+    deleted += batch.getDeleted();
+    if (batch.isDone()) {
+      LOG.info("Maintenance " + job + " done: deleted " + deleted + " of " + scanned
+          + " scanned in " + batches + " batches, "
+          + (System.currentTimeMillis() - started) + " ms");
+    } else {
+      LOG.info("Maintenance " + job + " batch " + batches + ": deleted " + batch.getDeleted()
+          + " of " + batch.getScanned() + " scanned, " + deleted + " deleted so far");
+      queueBatch(job, batch.getCursor(), batches, scanned, deleted, started);
+    }
+  }
+
+  private static void queueBatch(MaintenanceJob job, String cursor, int batches,
+      long scanned, long deleted, long started) {
+    TaskOptions task = TaskOptions.Builder.withUrl(MAINTENANCE_URL)
+        .param("job", job.name())
+        .param("batches", Integer.toString(batches))
+        .param("scanned", Long.toString(scanned))
+        .param("deleted", Long.toString(deleted))
+        .param("started", Long.toString(started));
+    if (cursor != null) {
+      task.param("cursor", cursor);
+    }
+    QueueFactory.getQueue(MAINTENANCE_QUEUE).add(task);
+  }
+}
@@ -41,6 +41,8 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -245,6 +247,32 @@ public class ProjectServiceImpl extends OdeRemoteServiceServlet implements Proje
     return makeUserProjects(userId, projectIds);
   }
 
+  /**
+   * Returns a page of the list of project infos, in the order of the
+   * project IDs.
+   *
+   * @param afterProjectId the ID of the last project of the previous page,
+   *                       or 0 for the first page
+   * @param count the most project infos to return
+   * @return list of project infos found by the backend
+   */
+  @Override
+  public List<UserProject> getProjectInfosPage(long afterProjectId, int count) {
+    String userId = userInfoProvider.getUserId();
+    List<Long> projectIds = storageIo.getProjects(userId);
+    Collections.sort(projectIds);
+    List<Long> page = new ArrayList<Long>();
+    for (long projectId : projectIds) {
+      if (page.size() >= count) {
+        break;
+      }
+      if (projectId > afterProjectId) {
+        page.add(projectId);
+      }
+    }
+    return makeUserProjects(userId, page);
+  }
+
   /**
    * Returns the root node for the given project.
    * @param projectId  project ID as received by {@link #getProjects()}
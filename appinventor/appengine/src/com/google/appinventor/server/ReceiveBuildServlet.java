@@ -38,6 +38,7 @@ public class ReceiveBuildServlet extends OdeServlet {
 
   private final OdeAuthFilter odeFilter = new OdeAuthFilter();
   private final transient StorageIo storageIo = StorageIoInstanceHolder.INSTANCE;
+  private final BuildStatusCache buildStatusCache = new BuildStatusCache();
 
   @Override
   public void doPost(HttpServletRequest req, HttpServletResponse resp) throws IOException {
@@ -81,6 +82,9 @@ public class ReceiveBuildServlet extends OdeServlet {
           storageIo.uploadRawFileForce(projectId, filePath, userId, fileBytes);
         }
       }
+      // Wake up the clients waiting for the build (see BuildStatusServlet)
+      String target = buildFileDirPath.substring(buildFileDirPath.indexOf('/') + 1);
+      buildStatusCache.buildFinished(userId, projectId, target);
     } finally {
       odeFilter.removeUser();
     }
@@ -0,0 +1,74 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server;
+
+import com.google.appinventor.server.encryption.EncryptionException;
+import com.google.appinventor.server.project.utils.Security;
+
+import java.io.IOException;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Servlet for receiving the progress of a build from a Build Server, as
+ * the build goes. The progress is kept in the {@link BuildStatusCache}.
+ *
+ * <p>Like the {@link ReceiveBuildServlet} this does not require login,
+ * the URL contains the encrypted user and project ID instead.
+ *
+ */
+public class ReceiveBuildStatusServlet extends OdeServlet {
+
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(ReceiveBuildStatusServlet.class.getName());
+
+  // Constants for accessing split URI
+  private static final int USER_PROJECT_INDEX = 3;
+  private static final int BUILD_ID_INDEX = 4;
+  // Since the target may contain slashes, it must be the last component in the URI.
+  private static final int TARGET_INDEX = 5;
+  private static final int SPLIT_LIMIT = 6;
+
+  private final BuildStatusCache buildStatusCache = new BuildStatusCache();
+
+  @Override
+  public void doPost(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+    // URIs for receivebuildstatus requests are structured as follows:
+    //   /<baseurl>/receivebuildstatus/encryptedUserAndProjectId/buildId/target
+    //     ?stage=<stage>&progress=<percent>
+    String uriComponents[] = req.getRequestURI().split("/", SPLIT_LIMIT);
+    if (uriComponents.length < SPLIT_LIMIT) {
+      resp.sendError(HttpServletResponse.SC_BAD_REQUEST);
+      return;
+    }
+
+    String userId;
+    long projectId;
+    try {
+      userId = Security.decryptUserId(uriComponents[USER_PROJECT_INDEX]);
+      projectId = Security.decryptProjectId(uriComponents[USER_PROJECT_INDEX]);
+    } catch (EncryptionException e) {
+      throw CrashReport.createAndLogError(LOG, req, null, e);
+    }
+
+    String stage = req.getParameter("stage");
+    int progress;
+    try {
+      progress = Integer.parseInt(req.getParameter("progress"));
+    } catch (NumberFormatException e) {
+      resp.sendError(HttpServletResponse.SC_BAD_REQUEST);
+      return;
+    }
+    if (stage == null) {
+      resp.sendError(HttpServletResponse.SC_BAD_REQUEST);
+      return;
+    }
+    buildStatusCache.update(userId, projectId, uriComponents[TARGET_INDEX],
+        uriComponents[BUILD_ID_INDEX], stage, progress);
+  }
+}
@@ -0,0 +1,43 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server;
+
+import com.google.appinventor.server.storage.StorageIo;
+import com.google.appinventor.server.storage.StorageIoInstanceHolder;
+import com.google.appinventor.server.storage.StorageStats;
+
+import java.io.IOException;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * StorageStatsServlet -- Report what the storage calls of this instance
+ * cost, as JSON (see StorageStats.report). The calls themselves are only
+ * measured if the storage.instrument flag is set.
+ *
+ * <p>With <code>?reset=true</code> the statistics are cleared once they
+ * are reported. Like the other admin pages this is restricted to admin
+ * users in web.xml. Each instance keeps its own statistics, so on App
+ * Engine this reports on whichever instance serves the request.
+ *
+ */
+public class StorageStatsServlet extends OdeServlet {
+
+  private final StorageIo storageIo = StorageIoInstanceHolder.INSTANCE;
+
+  @Override
+  public void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+    String report = StorageStats.report(storageIo).toString();
+    StorageStats stats = StorageStats.of(storageIo);
+    if (stats != null && "true".equals(req.getParameter("reset"))) {
+      stats.reset();
+    }
+    resp.setContentType("application/json; charset=UTF-8");
+    resp.setHeader("Cache-Control", "no-cache");
+    resp.getWriter().write(report);
+  }
+}
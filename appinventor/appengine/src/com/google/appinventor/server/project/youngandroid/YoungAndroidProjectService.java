@@ -6,11 +6,14 @@
 
 package com.google.appinventor.server.project.youngandroid;
 
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskOptions;
 import com.google.appengine.api.utils.SystemProperty;
 import com.google.apphosting.api.ApiProxy;
 import com.google.appinventor.common.utils.StringUtils;
 import com.google.appinventor.common.version.GitBuildId;
 import com.google.appinventor.components.common.YaVersion;
+import com.google.appinventor.server.BuildStatusCache;
 import com.google.appinventor.server.CrashReport;
 import com.google.appinventor.server.FileExporter;
 import com.google.appinventor.server.FileExporterImpl;
@@ -20,6 +23,7 @@ import com.google.appinventor.server.flags.Flag;
 import com.google.appinventor.server.project.CommonProjectService;
 import com.google.appinventor.server.project.utils.Security;
 import com.google.appinventor.server.properties.json.ServerJsonParser;
+import com.google.appinventor.server.storage.ProjectManifest;
 import com.google.appinventor.server.storage.StorageIo;
 import com.google.appinventor.shared.properties.json.JSONParser;
 import com.google.appinventor.shared.rpc.RpcResult;
@@ -29,7 +33,6 @@ import com.google.appinventor.shared.rpc.project.Project;
 import com.google.appinventor.shared.rpc.project.ProjectNode;
 import com.google.appinventor.shared.rpc.project.ProjectRootNode;
 import com.google.appinventor.shared.rpc.project.ProjectSourceZip;
-import com.google.appinventor.shared.rpc.project.RawFile;
 import com.google.appinventor.shared.rpc.project.TextFile;
 import com.google.appinventor.shared.rpc.project.youngandroid.NewYoungAndroidProjectParameters;
 import com.google.appinventor.shared.rpc.project.youngandroid.YoungAndroidAssetNode;
@@ -70,6 +73,8 @@ import java.text.DecimalFormat;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.regex.Pattern;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
@@ -80,7 +85,6 @@ import java.util.logging.Logger;
  */
 public final class YoungAndroidProjectService extends CommonProjectService {
 
-  private static int currentProgress = 0;
   private static final Logger LOG = Logger.getLogger(YoungAndroidProjectService.class.getName());
 
   // The value of this flag can be changed in appengine-web.xml
@@ -111,6 +115,14 @@ public final class YoungAndroidProjectService extends CommonProjectService {
   // Build folder path
   private static final String BUILD_FOLDER = "build";
 
+  // Task queue that converts codeblocks files (see queue.xml), and the
+  // URL of its servlet
+  private static final String CODEBLOCKS_CONVERSION_QUEUE = "codeblocksconversion";
+  private static final String CODEBLOCKS_CONVERSION_URL = "/tasks/convertcodeblocks";
+
+  // A block in the XML of a Blockly workspace
+  private static final Pattern BLOCKLY_BLOCK = Pattern.compile("<block[\\s>]");
+
   public static final String PROJECT_KEYSTORE_LOCATION = "android.keystore";
 
   // host[:port] to use for connecting to the build server
@@ -121,6 +133,8 @@ public final class YoungAndroidProjectService extends CommonProjectService {
       Flag.createFlag("appengine.host", "");
   private static final boolean DEBUG = Flag.createFlag("appinventor.debugging", false).get();
 
+  private final BuildStatusCache buildStatusCache = new BuildStatusCache();
+
   public YoungAndroidProjectService(StorageIo storageIo) {
     super(YoungAndroidProjectNode.YOUNG_ANDROID_PROJECT_TYPE, storageIo);
   }
@@ -359,6 +373,8 @@ public final class YoungAndroidProjectService extends CommonProjectService {
     Project newProject = new Project(newName);
     newProject.setProjectType(YoungAndroidProjectNode.YOUNG_ANDROID_PROJECT_TYPE);
     newProject.setProjectHistory(oldProjectHistory);
+    // Files of the old project that are copied unchanged, by their name in the new project
+    Map<String, String> copiedFiles = Maps.newLinkedHashMap();
 
     // Get the old project's source files and add them to new project, modifying where necessary.
     for (String oldSourceFileName : storageIo.getProjectSourceFiles(userId, oldProjectId)) {
@@ -389,25 +405,25 @@ public final class YoungAndroidProjectService extends CommonProjectService {
         newProject.addTextFile(new TextFile(newSourceFileName, newContents));
       } else {
         // If we get here, we know that the contents of the file can just be copied from the old
-        // project. Since it might be a binary file, we copy it as a raw file (that works for both
-        // text and binary files).
-        byte[] contents = storageIo.downloadRawFile(userId, oldProjectId, oldSourceFileName);
-        newProject.addRawFile(new RawFile(newSourceFileName, contents));
+        // project. The storage makes the copy, without reading the content if it can.
+        copiedFiles.put(newSourceFileName, oldSourceFileName);
       }
     }
 
     // Create the new project and return the new project's id.
-    return storageIo.createProject(userId, newProject, getProjectSettings(icon, vcode, vname,
-        useslocation, aname, sizing, showListsAsJson));
+    return storageIo.copyProject(userId, oldProjectId, newProject, getProjectSettings(icon, vcode,
+        vname, useslocation, aname, sizing, showListsAsJson), copiedFiles);
   }
 
   @Override
   public ProjectRootNode getRootNode(String userId, long projectId) {
     // Create root, assets, and source nodes (they are mocked nodes as they don't really
     // have to exist like this on the file system)
+    // The project's manifest has everything we need, in one (usually
+    // cached) read
+    ProjectManifest manifest = storageIo.getProjectManifest(userId, projectId);
     ProjectRootNode rootNode =
-        new YoungAndroidProjectNode(storageIo.getProjectName(userId, projectId),
-                                    projectId);
+        new YoungAndroidProjectNode(manifest.getProjectName(), projectId);
     ProjectNode assetsNode = new YoungAndroidAssetsFolder(ASSETS_FOLDER);
     ProjectNode sourcesNode = new YoungAndroidSourceFolderNode(SRC_FOLDER);
     ProjectNode compsNode = new YoungAndroidComponentsFolder(EXTERNAL_COMPS_FOLDER);
@@ -420,7 +436,7 @@ public final class YoungAndroidProjectService extends CommonProjectService {
     Map<String, ProjectNode> packagesMap = Maps.newHashMap();
 
     // Retrieve project information
-    List<String> sourceFiles = storageIo.getProjectSourceFiles(userId, projectId);
+    List<String> sourceFiles = manifest.getSourceFiles();
     for (String fileId : sourceFiles) {
       if (fileId.startsWith(ASSETS_FOLDER + '/')) {
         if (fileId.startsWith(EXTERNAL_COMPS_FOLDER + '/')) {
@@ -441,13 +457,13 @@ public final class YoungAndroidProjectService extends CommonProjectService {
               fileId.substring(0, fileId.lastIndexOf(CODEBLOCKS_SOURCE_EXTENSION))
               + BLOCKLY_SOURCE_EXTENSION;
           if (!sourceFiles.contains(blocklyFileName)) {
-            // This is an old project that hasn't been converted yet. Convert
-            // the blocks file to Blockly format and name. Leave the old
-            // codeblocks file around for now (for debugging) but don't send it to the client.
-            String blocklyFileContents = convertCodeblocksToBlockly(userId, projectId, fileId);
+            // This is an old project that hasn't been converted yet. Give
+            // it an (empty) Blockly file right away and convert the blocks
+            // file into it in the background, so opening the project doesn't
+            // wait for the conversion. Leave the old codeblocks file around
+            // for now (for debugging) but don't send it to the client.
             storageIo.addSourceFilesToProject(userId, projectId, false, blocklyFileName);
-            storageIo.uploadFileForce(projectId, blocklyFileName, userId, blocklyFileContents,
-                StorageUtil.DEFAULT_CHARSET);
+            queueCodeblocksConversion(userId, projectId, fileId);
             sourceNode = new YoungAndroidBlocksNode(blocklyFileName);
           }
         } else if (fileId.endsWith(YAIL_FILE_EXTENSION)) {
@@ -469,6 +485,54 @@ public final class YoungAndroidProjectService extends CommonProjectService {
     return rootNode;
   }
 
+  /*
+   * Queues the conversion of a codeblocks file, see convertCodeblocksFile.
+   * If the task can't be queued (there is no task queue when running
+   * outside of App Engine) the file is converted right away.
+   */
+  private void queueCodeblocksConversion(String userId, long projectId, String codeblocksFileId) {
+    try {
+      QueueFactory.getQueue(CODEBLOCKS_CONVERSION_QUEUE).add(
+          TaskOptions.Builder.withUrl(CODEBLOCKS_CONVERSION_URL)
+          .param("userId", userId)
+          .param("projectId", Long.toString(projectId))
+          .param("fileId", codeblocksFileId));
+    } catch (RuntimeException e) {
+      LOG.log(Level.WARNING, "Unable to queue the conversion of " + codeblocksFileId
+          + " in project " + projectId + ", converting it now", e);
+      convertCodeblocksFile(userId, projectId, codeblocksFileId);
+    }
+  }
+
+  /**
+   * Converts a codeblocks (.blk) file of an old project to Blockly format,
+   * into the project's Blockly (.bky) file. Called from the task queue
+   * (see CodeblocksConversionServlet) after the project was first opened.
+   * By then the blocks editor has usually saved its (empty) workspace into
+   * the Blockly file, so the file is converted into as long as it has no
+   * blocks. A Blockly file with blocks has been edited by the user
+   * meanwhile and is left alone.
+   *
+   * @param userId the user id
+   * @param projectId project ID
+   * @param codeblocksFileId the file id of the codeblocks file
+   */
+  public void convertCodeblocksFile(String userId, long projectId, String codeblocksFileId) {
+    String blocklyFileName =
+        codeblocksFileId.substring(0, codeblocksFileId.lastIndexOf(CODEBLOCKS_SOURCE_EXTENSION))
+        + BLOCKLY_SOURCE_EXTENSION;
+    String blocklyFileContents = convertCodeblocksToBlockly(userId, projectId, codeblocksFileId);
+    if (blocklyFileContents.isEmpty()) {
+      return;
+    }
+    if (BLOCKLY_BLOCK.matcher(storageIo.downloadFile(userId, projectId, blocklyFileName,
+        StorageUtil.DEFAULT_CHARSET)).find()) {
+      return;
+    }
+    storageIo.uploadFileForce(projectId, blocklyFileName, userId, blocklyFileContents,
+        StorageUtil.DEFAULT_CHARSET);
+  }
+
   /*
    * Convert the contents of the codeblocks file named codeblocksFileId
    * to blockly format and return the blockly contents.
@@ -566,6 +630,11 @@ public final class YoungAndroidProjectService extends CommonProjectService {
 
     storageIo.storeNonce(nonce, userId, projectId);
 
+    // The build server pushes the progress of the build, tagged with this
+    // id, see ReceiveBuildStatusServlet
+    String buildId = Long.toString(System.currentTimeMillis(), 36);
+    buildStatusCache.buildStarted(userId, projectId, target, buildId);
+
     // Delete the existing build output files, if any, so that future attempts to get it won't get
     // old versions.
     List<String> buildOutputFiles = storageIo.getProjectOutputFiles(userId, projectId);
@@ -579,7 +648,9 @@ public final class YoungAndroidProjectService extends CommonProjectService {
           user.getUserEmail(),
           userId,
           projectId,
-          outputFileDir));
+          outputFileDir,
+          buildId,
+          target));
       HttpURLConnection connection = (HttpURLConnection) buildServerUrl.openConnection();
       connection.setDoOutput(true);
       connection.setRequestMethod("POST");
@@ -681,8 +752,11 @@ public final class YoungAndroidProjectService extends CommonProjectService {
   // Note that this is a function rather than just a constant because we assume it will get
   // a little more complicated when we want to get the URL from an App Engine config file or
   // command line argument.
+  // buildId and target are only needed to have the build server push the
+  // progress of the build, they are null otherwise.
   private String getBuildServerUrlStr(String userName, String userId,
-                                      long projectId, String fileName)
+                                      long projectId, String fileName,
+                                      String buildId, String target)
       throws UnsupportedEncodingException, EncryptionException {
     return "http://" + buildServerHost.get() + "/buildserver/build-all-from-zip-async"
            + "?uname=" + URLEncoder.encode(userName, "UTF-8")
@@ -695,7 +769,15 @@ public final class YoungAndroidProjectService extends CommonProjectService {
                                + ServerLayout.RECEIVE_BUILD_SERVLET + "/"
                                + Security.encryptUserAndProjectId(userId, projectId)
                                + "/" + fileName,
-                               "UTF-8");
+                               "UTF-8")
+           + (buildId != null
+               ? "&status="
+                 + URLEncoder.encode("http://" + getCurrentHost() + ServerLayout.ODE_BASEURL_NOAUTH
+                                     + ServerLayout.RECEIVE_BUILD_STATUS_SERVLET + "/"
+                                     + Security.encryptUserAndProjectId(userId, projectId)
+                                     + "/" + buildId + "/" + target,
+                                     "UTF-8")
+               : "");
   }
 
   private String getCurrentHost() {
@@ -739,50 +821,61 @@ public final class YoungAndroidProjectService extends CommonProjectService {
    *            0:  Build is done and was successful
    *            1:  Build is done and was unsuccessful
    *            2:  Yail generation failed
-   *           -1:  Build is not yet done.
+   *           -1:  Build is not yet done. RpcResult.output is the progress
+   *                of the build, in percent.
    */
   @Override
   public RpcResult getBuildResult(User user, long projectId, String target) {
     String userId = user.getUserId();
     String buildOutputFileName = BUILD_FOLDER + '/' + target + '/' + "build.out";
     List<String> outputFiles = storageIo.getProjectOutputFiles(userId, projectId);
-    updateCurrentProgress(user, projectId, target);
-    RpcResult buildResult = new RpcResult(-1, ""+currentProgress, ""); // Build not finished
     for (String outputFile : outputFiles) {
       if (buildOutputFileName.equals(outputFile)) {
         String outputStr = storageIo.downloadFile(userId, projectId, outputFile, "UTF-8");
         try {
           JSONObject buildResultJsonObj = new JSONObject(outputStr);
-          buildResult = new RpcResult(buildResultJsonObj.getInt("result"),
-                                      buildResultJsonObj.getString("output"),
-                                      buildResultJsonObj.getString("error"),
-                                      outputStr);
+          return new RpcResult(buildResultJsonObj.getInt("result"),
+                               buildResultJsonObj.getString("output"),
+                               buildResultJsonObj.getString("error"),
+                               outputStr);
         } catch (JSONException e) {
-          buildResult = new RpcResult(1, "", "");
+          return new RpcResult(1, "", "");
         }
-        break;
       }
     }
-    return buildResult;
+    // Build not finished. Build servers push the progress of their builds,
+    // we only ask a build server that hasn't pushed anything for this build
+    // (yet).
+    int progress;
+    BuildStatusCache.Status status = buildStatusCache.get(userId, projectId, target);
+    if (status != null && !BuildStatusCache.STAGE_QUEUED.equals(status.getStage())) {
+      progress = status.getProgress();
+    } else {
+      progress = getBuildServerProgress(user, projectId, target);
+    }
+    return new RpcResult(-1, "" + progress, "");
   }
 
   /**
-   * Check if there are any build progress available for the given user's project
+   * Asks the build server how far along the build of the given user's
+   * project is. This is the fallback for build servers that don't push
+   * the progress of their builds.
    *
    * @param user the User that owns the {@code projectId}.
    * @param projectId  project id to be built
    * @param target  build target (optional, implementation dependent)
+   * @return the progress of the build in percent, 0 if the build server
+   *         can't tell
    */
-  public void updateCurrentProgress(User user, long projectId, String target) {
+  private int getBuildServerProgress(User user, long projectId, String target) {
+    int progress = 0;
     try {
       String userId = user.getUserId();
-      String projectName = storageIo.getProjectName(userId, projectId);
       String outputFileDir = BUILD_FOLDER + '/' + target;
       URL buildServerUrl = null;
-      ProjectSourceZip zipFile = null;
 
       buildServerUrl = new URL(getBuildServerUrlStr(user.getUserEmail(),
-        userId, projectId, outputFileDir));
+        userId, projectId, outputFileDir, null, null));
       HttpURLConnection connection = (HttpURLConnection) buildServerUrl.openConnection();
       connection.setDoOutput(true);
       connection.setRequestMethod("POST");
@@ -795,7 +888,7 @@ public final class YoungAndroidProjectService extends CommonProjectService {
               if (DEBUG) {
                 LOG.info("The current progress is " + content + "%.");
               }
-              currentProgress = Integer.parseInt(content);
+              progress = Integer.parseInt(content);
             }
           } catch (IOException e) {
             // No content. That's ok.
@@ -810,6 +903,7 @@ public final class YoungAndroidProjectService extends CommonProjectService {
       } catch (RuntimeException e) {
         // that's ok, nothing to do
       }
+    return progress;
   }
 
   // Nicely format floating number using only two decimal places
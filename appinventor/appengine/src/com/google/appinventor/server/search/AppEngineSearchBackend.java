@@ -0,0 +1,129 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2009-2011 Google, All Rights reserved
+// Copyright 2011-2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server.search;
+
+import com.google.appengine.api.search.DeleteException;
+import com.google.appengine.api.search.Document;
+import com.google.appengine.api.search.Field;
+import com.google.appengine.api.search.Index;
+import com.google.appengine.api.search.IndexSpec;
+import com.google.appengine.api.search.PutException;
+import com.google.appengine.api.search.Query;
+import com.google.appengine.api.search.QueryOptions;
+import com.google.appengine.api.search.Results;
+import com.google.appengine.api.search.ScoredDocument;
+import com.google.appengine.api.search.SearchException;
+import com.google.appengine.api.search.SearchServiceFactory;
+import com.google.appengine.api.search.StatusCode;
+import com.google.appinventor.server.flags.Flag;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+// see sample at https://developers.google.com/appengine/docs/java/search/
+
+/**
+ * Gallery search backed by the App Engine Search API.
+ *
+ */
+public class AppEngineSearchBackend implements GallerySearchBackend {
+
+  private static final Logger LOG = Logger.getLogger(AppEngineSearchBackend.class.getName());
+  private static final String GALLERYINDEX = "GalleryIndex";
+  private static final int SEARCH_RETRY_MAX = 3;
+  private static final int NUMBER_FOUND_ACCURACY = 100;
+  private static final boolean DEBUG = Flag.createFlag("appinventor.debugging", false).get();
+
+  @Override
+  public void put(long galleryId, String text) {
+    Document doc = Document.newBuilder()
+      .setId(String.valueOf(galleryId))
+      .addField(Field.newBuilder().setName("content").setText(text))
+      .build();
+
+    try {
+      getIndex().put(doc);
+    } catch (PutException e) {
+      if (StatusCode.TRANSIENT_ERROR.equals(e.getOperationResult().getCode())) {
+          // retry putting the document
+      }
+    }
+  }
+
+  @Override
+  public void delete(long galleryId) {
+    try {
+      getIndex().delete(String.valueOf(galleryId));
+    } catch (DeleteException e) {
+      LOG.info("error deleting index entry");
+    }
+  }
+
+  @Override
+  public Hits search(String searchWords, int start, int count) {
+    Query query = Query.newBuilder()
+            .setOptions(QueryOptions.newBuilder()
+                    .setOffset(start)
+                    .setLimit(count)
+                    .setNumberFoundAccuracy(NUMBER_FOUND_ACCURACY)
+                    // for deployed apps, uncomment the line below to demo snippeting.
+                    // This will not work on the dev_appserver.
+                    // setFieldsToSnippet("content").
+                    .build())
+            .build(searchWords);
+
+    Results<ScoredDocument> results = null;
+    int attempts = 0;
+    boolean retry = true;
+    while (retry){
+      try {
+        if (DEBUG) {
+          LOG.info("Sending query " + query);
+        }
+        results = getIndex().search(query);
+        // search successful
+        retry = false;
+      } catch (SearchException e) {
+        if (StatusCode.TRANSIENT_ERROR.equals(e.getOperationResult().getCode())) {
+          attempts++;
+          LOG.info("Query failed on attempt:" + attempts);
+          // No more attempts, stop retrying
+          if (attempts >= SEARCH_RETRY_MAX) {
+            retry = false;
+          }
+        } else {
+          //Not a transient error, Do Not Retry
+          retry = false;
+          LOG.log(Level.SEVERE, "SEARCH EXCEPTION: " + e.getMessage());
+        }
+      }
+    }
+
+    if (results == null) {
+      LOG.info("Search failed after " + attempts + " attempts");
+      return null;
+    }
+    List<Long> galleryIds = new ArrayList<Long>();
+    for (ScoredDocument document : results) {
+      if (DEBUG) {
+        LOG.info("Find:" + document.getId());
+      }
+      galleryIds.add(Long.parseLong(document.getId()));
+    }
+    return new Hits(galleryIds, (int) results.getNumberFound());
+  }
+
+  /**
+   * @return the search index
+   */
+  private Index getIndex() {
+    IndexSpec indexSpec = IndexSpec.newBuilder().setName(GALLERYINDEX).build();
+    return SearchServiceFactory.getSearchService().getIndex(indexSpec);
+  }
+}
@@ -0,0 +1,69 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server.search;
+
+import java.util.List;
+
+/**
+ * Interface of a full text index over gallery apps, used by
+ * {@link com.google.appinventor.server.GallerySearchIndex}.
+ *
+ * A document is identified by the gallery id of the app it describes,
+ * and its text is whatever the caller chooses to index (currently the
+ * title, description and developer name).
+ *
+ */
+public interface GallerySearchBackend {
+
+  /**
+   * The result of a search: one page of matching gallery ids, best match
+   * first, and the total number of matches.
+   */
+  final class Hits {
+    private final List<Long> galleryIds;
+    private final int numberFound;
+
+    public Hits(List<Long> galleryIds, int numberFound) {
+      this.galleryIds = galleryIds;
+      this.numberFound = numberFound;
+    }
+
+    public List<Long> getGalleryIds() {
+      return galleryIds;
+    }
+
+    public int getNumberFound() {
+      return numberFound;
+    }
+  }
+
+  /**
+   * Adds a document to the index, replacing any previous document with
+   * the same gallery id.
+   *
+   * @param galleryId gallery id of the app
+   * @param text the text to index
+   */
+  void put(long galleryId, String text);
+
+  /**
+   * Removes a document from the index. Does nothing if there is no such
+   * document.
+   *
+   * @param galleryId gallery id of the app
+   */
+  void delete(long galleryId);
+
+  /**
+   * Searches the index.
+   *
+   * @param searchWords the words to look for
+   * @param start index of the first hit to return
+   * @param count maximum number of hits to return
+   * @return the matching gallery ids, or null if the search failed
+   */
+  Hits search(String searchWords, int start, int count);
+}
@@ -0,0 +1,428 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server.search;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Gallery search served from an in-memory inverted index.
+ *
+ * This backend does not depend on any App Engine service, so it can be
+ * used by self-hosted installations and to load test gallery search
+ * offline.
+ *
+ * <ul>
+ * <li>Text is split into lower case runs of letters and digits.</li>
+ * <li>Every word of a query has to match (as with the Search API). A
+ *     query word matches an indexed word equal to it, or, with a lower
+ *     weight, one that it is a prefix of ("cam" finds "camera").</li>
+ * <li>Matches are ranked with Okapi BM25.</li>
+ * <li>If a snapshot file is given, the index is loaded from it at startup
+ *     and written back to it after every change, so a restart doesn't
+ *     lose any. Apps are only indexed when they are published or
+ *     updated, which is rare enough for that to be cheap. Changes made
+ *     in bulk (see {@link #beginBulkUpdate}) are written once, at the
+ *     end.</li>
+ * </ul>
+ *
+ */
+public class InvertedIndexSearchBackend implements GallerySearchBackend {
+
+  private static final Logger LOG = Logger.getLogger(InvertedIndexSearchBackend.class.getName());
+
+  // BM25 parameters, the usual defaults
+  private static final double K1 = 1.2;
+  private static final double B = 0.75;
+
+  // Weight of a prefix match relative to a match of the whole word
+  private static final double PREFIX_WEIGHT = 0.5;
+
+  private static final int SNAPSHOT_MAGIC = 0x41494958; // "AIIX"
+  private static final int SNAPSHOT_VERSION = 1;
+
+  // term -> (galleryId -> number of times the term occurs in the document).
+  // Sorted, so all the terms starting with a prefix are a sub map.
+  private final TreeMap<String, Map<Long, Integer>> postings =
+      new TreeMap<String, Map<Long, Integer>>();
+
+  // galleryId -> the terms of the document, in order
+  private final Map<Long, String[]> documents = new HashMap<Long, String[]>();
+
+  // Sum of the lengths (in terms) of all documents
+  private long totalLength = 0;
+
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+  private final File snapshotFile;
+
+  // Held while the snapshot file is written
+  private final Object snapshotLock = new Object();
+
+  // Number of bulk updates in progress, the snapshot isn't written while
+  // there are any
+  private final AtomicInteger bulkUpdates = new AtomicInteger();
+
+  /**
+   * Creates an empty index that is not persisted.
+   */
+  public InvertedIndexSearchBackend() {
+    this(null);
+  }
+
+  /**
+   * Creates an index persisted to snapshotFile, loading the snapshot if
+   * the file exists.
+   *
+   * @param snapshotFile the snapshot file, or null for no persistence
+   */
+  public InvertedIndexSearchBackend(File snapshotFile) {
+    this.snapshotFile = snapshotFile;
+    if (snapshotFile != null && snapshotFile.exists()) {
+      try {
+        InputStream in = new FileInputStream(snapshotFile);
+        try {
+          loadSnapshot(in);
+        } finally {
+          in.close();
+        }
+      } catch (IOException e) {
+        LOG.log(Level.WARNING, "Unable to load search index snapshot " + snapshotFile, e);
+      }
+    }
+  }
+
+  @Override
+  public void put(long galleryId, String text) {
+    String[] terms = tokenize(text).toArray(new String[0]);
+    lock.writeLock().lock();
+    try {
+      removeDocument(galleryId);
+      addDocument(galleryId, terms);
+    } finally {
+      lock.writeLock().unlock();
+    }
+    changed();
+  }
+
+  @Override
+  public void delete(long galleryId) {
+    boolean removed;
+    lock.writeLock().lock();
+    try {
+      removed = removeDocument(galleryId);
+    } finally {
+      lock.writeLock().unlock();
+    }
+    if (removed) {
+      changed();
+    }
+  }
+
+  @Override
+  public Hits search(String searchWords, int start, int count) {
+    // Duplicate query words would only count the same matches twice
+    Set<String> queryTerms = new LinkedHashSet<String>(tokenize(searchWords));
+    if (queryTerms.isEmpty()) {
+      return new Hits(new ArrayList<Long>(), 0);
+    }
+    final Map<Long, Double> scores;
+    lock.readLock().lock();
+    try {
+      scores = score(queryTerms);
+    } finally {
+      lock.readLock().unlock();
+    }
+
+    List<Long> matches = new ArrayList<Long>(scores.keySet());
+    Collections.sort(matches, new Comparator<Long>() {
+      @Override
+      public int compare(Long a, Long b) {
+        int result = Double.compare(scores.get(b), scores.get(a));
+        if (result == 0) {
+          // Newer apps (larger ids) first among equals, and a stable order
+          result = b.compareTo(a);
+        }
+        return result;
+      }
+    });
+    int from = Math.min(Math.max(start, 0), matches.size());
+    int to = Math.min(from + Math.max(count, 0), matches.size());
+    return new Hits(new ArrayList<Long>(matches.subList(from, to)), matches.size());
+  }
+
+  /**
+   * @return the number of documents in the index
+   */
+  public int size() {
+    lock.readLock().lock();
+    try {
+      return documents.size();
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Starts a bulk update, such as indexing all the gallery apps. Until the
+   * matching {@link #endBulkUpdate}, changes are not written to the
+   * snapshot file one by one.
+   */
+  public void beginBulkUpdate() {
+    bulkUpdates.incrementAndGet();
+  }
+
+  /**
+   * Ends a bulk update started with {@link #beginBulkUpdate}, writing the
+   * snapshot if it was the last one.
+   */
+  public void endBulkUpdate() {
+    if (bulkUpdates.decrementAndGet() == 0) {
+      changed();
+    }
+  }
+
+  /**
+   * Writes the index to the snapshot file (if there is one).
+   *
+   * @throws IOException if the snapshot cannot be written
+   */
+  public void saveSnapshot() throws IOException {
+    if (snapshotFile == null) {
+      return;
+    }
+    synchronized (snapshotLock) {
+      // Write to a temporary file first so a crash can't leave us with half
+      // a snapshot
+      File temp = new File(snapshotFile.getPath() + ".tmp");
+      OutputStream out = new FileOutputStream(temp);
+      try {
+        saveSnapshot(out);
+      } finally {
+        out.close();
+      }
+      if (!temp.renameTo(snapshotFile)) {
+        // renameTo won't replace an existing file on some platforms
+        if (!snapshotFile.delete() || !temp.renameTo(snapshotFile)) {
+          throw new IOException("Unable to replace search index snapshot " + snapshotFile);
+        }
+      }
+    }
+  }
+
+  /**
+   * Writes the documents of the index to out. The postings are not
+   * written, they are rebuilt when the snapshot is loaded.
+   *
+   * @param out the stream to write to
+   * @throws IOException if writing fails
+   */
+  public void saveSnapshot(OutputStream out) throws IOException {
+    DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out));
+    lock.readLock().lock();
+    try {
+      data.writeInt(SNAPSHOT_MAGIC);
+      data.writeInt(SNAPSHOT_VERSION);
+      data.writeInt(documents.size());
+      for (Map.Entry<Long, String[]> document : documents.entrySet()) {
+        data.writeLong(document.getKey());
+        data.writeInt(document.getValue().length);
+        for (String term : document.getValue()) {
+          data.writeUTF(term);
+        }
+      }
+    } finally {
+      lock.readLock().unlock();
+    }
+    data.flush();
+  }
+
+  /**
+   * Replaces the contents of the index with a snapshot written by
+   * {@link #saveSnapshot(OutputStream)}.
+   *
+   * @param in the stream to read from
+   * @throws IOException if the snapshot cannot be read
+   */
+  public void loadSnapshot(InputStream in) throws IOException {
+    DataInputStream data = new DataInputStream(new BufferedInputStream(in));
+    if (data.readInt() != SNAPSHOT_MAGIC || data.readInt() != SNAPSHOT_VERSION) {
+      throw new IOException("Not a search index snapshot");
+    }
+    int numDocuments = data.readInt();
+    Map<Long, String[]> loaded = new HashMap<Long, String[]>(numDocuments * 2);
+    for (int i = 0; i < numDocuments; i++) {
+      long galleryId = data.readLong();
+      String[] terms = new String[data.readInt()];
+      for (int j = 0; j < terms.length; j++) {
+        terms[j] = data.readUTF();
+      }
+      loaded.put(galleryId, terms);
+    }
+    lock.writeLock().lock();
+    try {
+      postings.clear();
+      documents.clear();
+      totalLength = 0;
+      for (Map.Entry<Long, String[]> document : loaded.entrySet()) {
+        addDocument(document.getKey(), document.getValue());
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Splits text into lower case terms made of letters and digits.
+   *
+   * @param text the text, may be null
+   * @return the terms, in order
+   */
+  @VisibleForTesting
+  static List<String> tokenize(String text) {
+    List<String> terms = new ArrayList<String>();
+    if (text == null) {
+      return terms;
+    }
+    String lower = text.toLowerCase(Locale.ENGLISH);
+    int start = -1;
+    for (int i = 0; i < lower.length(); i++) {
+      if (Character.isLetterOrDigit(lower.charAt(i))) {
+        if (start < 0) {
+          start = i;
+        }
+      } else if (start >= 0) {
+        terms.add(lower.substring(start, i));
+        start = -1;
+      }
+    }
+    if (start >= 0) {
+      terms.add(lower.substring(start));
+    }
+    return terms;
+  }
+
+  // Must be called with the read lock held
+  private Map<Long, Double> score(Set<String> queryTerms) {
+    Map<Long, Double> scores = null;
+    double averageLength = documents.isEmpty() ? 0 : (double) totalLength / documents.size();
+    for (String queryTerm : queryTerms) {
+      // Best score of this query word in each document it matches
+      Map<Long, Double> termScores = new HashMap<Long, Double>();
+      for (Map.Entry<String, Map<Long, Integer>> entry :
+             postings.subMap(queryTerm, true, queryTerm + Character.MAX_VALUE, false).entrySet()) {
+        double weight = entry.getKey().equals(queryTerm) ? 1.0 : PREFIX_WEIGHT;
+        Map<Long, Integer> posting = entry.getValue();
+        double idf = idf(posting.size());
+        for (Map.Entry<Long, Integer> hit : posting.entrySet()) {
+          Long galleryId = hit.getKey();
+          if (scores != null && !scores.containsKey(galleryId)) {
+            continue;           // Already ruled out by an earlier query word
+          }
+          int length = documents.get(galleryId).length;
+          double tf = hit.getValue();
+          double score = weight * idf * (tf * (K1 + 1))
+              / (tf + K1 * (1 - B + B * length / averageLength));
+          Double previous = termScores.get(galleryId);
+          if (previous == null || previous < score) {
+            termScores.put(galleryId, score);
+          }
+        }
+      }
+      if (scores == null) {
+        scores = termScores;
+      } else {
+        // Every query word has to match
+        Map<Long, Double> combined = new HashMap<Long, Double>();
+        for (Map.Entry<Long, Double> termScore : termScores.entrySet()) {
+          combined.put(termScore.getKey(), scores.get(termScore.getKey()) + termScore.getValue());
+        }
+        scores = combined;
+      }
+      if (scores.isEmpty()) {
+        break;
+      }
+    }
+    return scores;
+  }
+
+  private double idf(int documentFrequency) {
+    int n = documents.size();
+    return Math.log(1 + (n - documentFrequency + 0.5) / (documentFrequency + 0.5));
+  }
+
+  // Must be called with the write lock held
+  private void addDocument(long galleryId, String[] terms) {
+    documents.put(galleryId, terms);
+    totalLength += terms.length;
+    for (String term : terms) {
+      Map<Long, Integer> posting = postings.get(term);
+      if (posting == null) {
+        posting = new HashMap<Long, Integer>();
+        postings.put(term, posting);
+      }
+      Integer frequency = posting.get(galleryId);
+      posting.put(galleryId, frequency == null ? 1 : frequency + 1);
+    }
+  }
+
+  // Must be called with the write lock held
+  private boolean removeDocument(long galleryId) {
+    String[] terms = documents.remove(galleryId);
+    if (terms == null) {
+      return false;
+    }
+    totalLength -= terms.length;
+    for (String term : terms) {
+      Map<Long, Integer> posting = postings.get(term);
+      if (posting != null) {
+        posting.remove(galleryId);
+        if (posting.isEmpty()) {
+          postings.remove(term);
+        }
+      }
+    }
+    return true;
+  }
+
+  // Must be called without the write lock held, so searches can go on
+  // while the snapshot is written
+  private void changed() {
+    if (bulkUpdates.get() > 0) {
+      return;                   // endBulkUpdate writes it
+    }
+    try {
+      saveSnapshot();
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Unable to save search index snapshot " + snapshotFile, e);
+    }
+  }
+}
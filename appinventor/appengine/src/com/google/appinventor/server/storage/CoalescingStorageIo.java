@@ -0,0 +1,443 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server.storage;
+
+import com.google.appinventor.server.CrashReport;
+import com.google.appinventor.shared.rpc.BlocksTruncatedException;
+import com.google.appinventor.shared.rpc.project.Project;
+import com.google.appinventor.shared.rpc.project.ProjectSourceZip;
+import com.google.common.annotations.VisibleForTesting;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.Nullable;
+
+/**
+ * A StorageIo that coalesces rapid saves of the same blocks (.bky) or
+ * form (.scm) file into one write to the underlying StorageIo.
+ *
+ * While someone is editing, the client saves the file every few
+ * seconds. The first save of a file is written through. Saves that
+ * arrive within the coalescing window after that are buffered here, and
+ * only the newest one is written when the window closes, so a burst of
+ * autosaves costs one datastore (and GCS) write per window instead of
+ * one per save.
+ *
+ * Buffered content is served to the owner by downloadFile and
+ * downloadRawFile (read your writes), and is written before the
+ * project is exported (which is also how builds and the gallery read
+ * projects) or copied. Deleting a file or project drops its buffered content.
+ * A buffered save that can't be written is tried again a few times, then
+ * dropped (and logged). No save is held back longer than
+ * {@link #MAX_FLUSH_DELAY} before it is written (or tried again).
+ *
+ * The buffer lives in memory and is written by a background thread, so
+ * this is only for servers that run a single instance which may run
+ * background threads: a self hosted server, or App Engine with manual
+ * scaling. See StorageIoInstanceHolder.
+ */
+public class CoalescingStorageIo extends ForwardingStorageIo {
+
+  private static final Logger LOG = Logger.getLogger(CoalescingStorageIo.class.getName());
+
+  // How often we forget about files that haven't been saved lately
+  private static final long SWEEP_INTERVAL = 60*1000; // 1 minute in milliseconds
+
+  // The longest we hold back a save, whatever the window, including while
+  // we retry a failed write
+  @VisibleForTesting
+  static final long MAX_FLUSH_DELAY = 30*1000; // 30 seconds in milliseconds
+
+  // How many times we try to write a buffered save before we give up on it
+  @VisibleForTesting
+  static final int MAX_FLUSH_ATTEMPTS = 3;
+
+  // A project file we have recently written, and the save we are holding
+  // back for it (if any). Guarded by its own lock.
+  private static final class PendingFile {
+    final long projectId;
+    final String fileName;
+    String userId;              // Who last wrote the file through us
+    byte[] content;             // Content to write when the window closes, or null
+    long lastWrite;             // When we last wrote the file
+    long modTime;               // The modification date that write returned
+    int failures;               // Failed attempts to write content
+
+    PendingFile(long projectId, String fileName) {
+      this.projectId = projectId;
+      this.fileName = fileName;
+    }
+  }
+
+  private final long window;
+  private final ScheduledThreadPoolExecutor flusher;
+  private final ConcurrentMap<String, PendingFile> files =
+      new ConcurrentHashMap<String, PendingFile>();
+
+  private final AtomicLong saveCount = new AtomicLong();
+  private final AtomicLong writeCount = new AtomicLong();
+  private final AtomicLong coalescedCount = new AtomicLong();
+
+  /**
+   * Creates a CoalescingStorageIo and starts its flusher thread.
+   *
+   * @param delegate the StorageIo that stores the files
+   * @param window the coalescing window in milliseconds, this should be
+   *        well under a minute, the granularity of project modification
+   *        dates. A longer window is cut to {@link #MAX_FLUSH_DELAY}.
+   * @param threadFactory makes the flusher thread
+   * @throws RuntimeException if the thread can't be started
+   */
+  public CoalescingStorageIo(StorageIo delegate, long window, ThreadFactory threadFactory) {
+    super(delegate);
+    if (window > MAX_FLUSH_DELAY) {
+      LOG.warning("Coalescing window of " + window + " ms is too long, using "
+          + MAX_FLUSH_DELAY + " ms");
+      window = MAX_FLUSH_DELAY;
+    }
+    this.window = window;
+    this.flusher = new ScheduledThreadPoolExecutor(1, threadFactory);
+    flusher.prestartAllCoreThreads();
+    flusher.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        sweep();
+      }
+    }, SWEEP_INTERVAL, SWEEP_INTERVAL, TimeUnit.MILLISECONDS);
+  }
+
+  @Override
+  public long uploadFile(long projectId, String fileId, String userId, String content,
+      String encoding) throws BlocksTruncatedException {
+    return save(projectId, fileId, userId, false, encode(projectId, fileId, content, encoding));
+  }
+
+  @Override
+  public long uploadFileForce(long projectId, String fileId, String userId, String content,
+      String encoding) {
+    return uploadRawFileForce(projectId, fileId, userId,
+        encode(projectId, fileId, content, encoding));
+  }
+
+  @Override
+  public long uploadRawFile(long projectId, String fileId, String userId, boolean force,
+      byte[] content) throws BlocksTruncatedException {
+    return save(projectId, fileId, userId, force, content);
+  }
+
+  @Override
+  public long uploadRawFileForce(long projectId, String fileId, String userId, byte[] content) {
+    try {
+      return save(projectId, fileId, userId, true, content);
+    } catch (BlocksTruncatedException e) {
+      // Won't get here, exception isn't thrown when force is true
+      return 0;
+    }
+  }
+
+  @Override
+  public String downloadFile(String userId, long projectId, String fileId, String encoding) {
+    byte[] content = getBufferedContent(userId, projectId, fileId);
+    if (content == null) {
+      return super.downloadFile(userId, projectId, fileId, encoding);
+    }
+    try {
+      return new String(content, encoding);
+    } catch (UnsupportedEncodingException e) {
+      throw CrashReport.createAndLogError(LOG, null, "Unsupported file content encoding, "
+          + collectProjectErrorInfo(userId, projectId, fileId), e);
+    }
+  }
+
+  @Override
+  public byte[] downloadRawFile(String userId, long projectId, String fileId) {
+    byte[] content = getBufferedContent(userId, projectId, fileId);
+    return content == null ? super.downloadRawFile(userId, projectId, fileId) : content;
+  }
+
+  @Override
+  public ProjectSourceZip exportProjectSourceZip(String userId, long projectId,
+      boolean includeProjectHistory, boolean includeAndroidKeystore, @Nullable String zipName,
+      boolean includeYail, boolean includeScreenShots, boolean forGallery,
+      boolean fatalError) throws IOException {
+    flushProject(projectId);
+    return super.exportProjectSourceZip(userId, projectId, includeProjectHistory,
+        includeAndroidKeystore, zipName, includeYail, includeScreenShots, forGallery, fatalError);
+  }
+
+  @Override
+  public long copyProject(String userId, long oldProjectId, Project project,
+      String projectSettings, Map<String, String> copiedFiles) {
+    flushProject(oldProjectId);
+    return super.copyProject(userId, oldProjectId, project, projectSettings, copiedFiles);
+  }
+
+  @Override
+  public long deleteFile(String userId, long projectId, String fileId) {
+    forget(projectId, fileId);
+    return super.deleteFile(userId, projectId, fileId);
+  }
+
+  @Override
+  public void removeSourceFilesFromProject(String userId, long projectId, boolean changeModDate,
+      String... fileIds) {
+    for (String fileId : fileIds) {
+      forget(projectId, fileId);
+    }
+    super.removeSourceFilesFromProject(userId, projectId, changeModDate, fileIds);
+  }
+
+  @Override
+  public void deleteProject(String userId, long projectId) {
+    for (PendingFile file : projectFiles(projectId)) {
+      forget(file.projectId, file.fileName);
+    }
+    super.deleteProject(userId, projectId);
+  }
+
+  /**
+   * Writes all the buffered saves. Called when the server shuts down.
+   */
+  public void flushAll() {
+    for (PendingFile file : files.values()) {
+      flush(file);
+    }
+  }
+
+  /**
+   * @return the number of file saves we have been asked to do
+   */
+  public long getSaveCount() {
+    return saveCount.get();
+  }
+
+  /**
+   * @return the number of writes we have passed on to the underlying
+   *         StorageIo (for files that are coalesced)
+   */
+  public long getWriteCount() {
+    return writeCount.get();
+  }
+
+  /**
+   * @return the number of saves that were replaced by a newer save
+   *         before they were written
+   */
+  public long getCoalescedCount() {
+    return coalescedCount.get();
+  }
+
+  // Saves are coalesced for the files the client autosaves
+  @VisibleForTesting
+  static boolean isCoalesced(String fileName) {
+    return fileName.endsWith(".bky") || fileName.endsWith(".scm");
+  }
+
+  private long save(long projectId, String fileName, String userId, boolean force,
+      byte[] content) throws BlocksTruncatedException {
+    saveCount.incrementAndGet();
+    if (!isCoalesced(fileName)) {
+      return super.uploadRawFile(projectId, fileName, userId, force, content);
+    }
+    PendingFile file = getPendingFile(projectId, fileName);
+    synchronized (file) {
+      long now = System.currentTimeMillis();
+      // Only the underlying StorageIo can tell whether a small blocks file
+      // truncates the stored one, so those saves are always written.
+      boolean mayTruncate = !force && content.length < 125 && fileName.endsWith(".bky");
+      if (!mayTruncate && userId.equals(file.userId) && now - file.lastWrite < window) {
+        if (file.content == null) {
+          flusher.schedule(new Flush(file), file.lastWrite + window - now, TimeUnit.MILLISECONDS);
+        } else {
+          coalescedCount.incrementAndGet();
+        }
+        file.content = content;
+        return file.modTime;
+      }
+      if (mayTruncate && file.content != null) {
+        // The check has to be against the newest content
+        flushLocked(file);
+      }
+      if (file.content != null) {
+        coalescedCount.incrementAndGet();
+        file.content = null;
+      }
+      return write(file, userId, force, content);
+    }
+  }
+
+  // Must be called holding the lock on file
+  private long write(PendingFile file, String userId, boolean force, byte[] content)
+      throws BlocksTruncatedException {
+    long modTime = super.uploadRawFile(file.projectId, file.fileName, userId, force, content);
+    writeCount.incrementAndGet();
+    file.failures = 0;
+    file.userId = userId;
+    file.lastWrite = System.currentTimeMillis();
+    file.modTime = modTime;
+    return modTime;
+  }
+
+  private class Flush implements Runnable {
+    private final PendingFile file;
+
+    Flush(PendingFile file) {
+      this.file = file;
+    }
+
+    @Override
+    public void run() {
+      flush(file);
+    }
+  }
+
+  private void flush(PendingFile file) {
+    synchronized (file) {
+      flushLocked(file);
+    }
+  }
+
+  // Must be called holding the lock on file
+  private void flushLocked(PendingFile file) {
+    if (file.content == null) {
+      return;
+    }
+    byte[] content = file.content;
+    file.content = null;
+    try {
+      // Saves that might truncate the blocks are never buffered
+      write(file, file.userId, true, content);
+    } catch (BlocksTruncatedException e) {
+      // Won't get here, exception isn't thrown when force is true
+    } catch (RuntimeException e) {
+      String info = collectProjectErrorInfo(file.userId, file.projectId, file.fileName);
+      file.failures++;
+      if (isPermanent(e) || file.failures >= MAX_FLUSH_ATTEMPTS) {
+        LOG.log(Level.SEVERE, "Dropping buffered save of " + info + " after "
+            + file.failures + " attempts", e);
+        file.failures = 0;
+        return;
+      }
+      // Keep the content and try again later, backing off
+      LOG.log(Level.WARNING, "Unable to write buffered save of " + info + ", will retry", e);
+      file.content = content;
+      flusher.schedule(new Flush(file), Math.min(window << file.failures, MAX_FLUSH_DELAY),
+          TimeUnit.MILLISECONDS);
+    }
+  }
+
+  // Whether retrying a failed write can't help: the project or file is
+  // gone, or belongs to someone else. The StorageIos report those with
+  // these exceptions, possibly wrapped by CrashReport.
+  private static boolean isPermanent(Throwable e) {
+    for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+      if (cause instanceof UnauthorizedAccessException
+          || cause instanceof IllegalStateException
+          || cause instanceof IllegalArgumentException) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private void flushProject(long projectId) {
+    for (PendingFile file : projectFiles(projectId)) {
+      flush(file);
+    }
+  }
+
+  // Drops the buffered save of a file that is being deleted
+  private void forget(long projectId, String fileName) {
+    PendingFile file = files.remove(key(projectId, fileName));
+    if (file != null) {
+      synchronized (file) {
+        file.content = null;
+      }
+    }
+  }
+
+  // Forgets the files that have been written and not saved for a while
+  private void sweep() {
+    long cutoff = System.currentTimeMillis() - window;
+    for (Iterator<PendingFile> it = files.values().iterator(); it.hasNext(); ) {
+      PendingFile file = it.next();
+      synchronized (file) {
+        if (file.content == null && file.lastWrite < cutoff) {
+          it.remove();
+        }
+      }
+    }
+    if (LOG.isLoggable(Level.FINE)) {
+      LOG.fine("Coalesced " + coalescedCount.get() + " of " + saveCount.get() + " saves");
+    }
+  }
+
+  private byte[] getBufferedContent(String userId, long projectId, String fileName) {
+    PendingFile file = files.get(key(projectId, fileName));
+    if (file != null) {
+      synchronized (file) {
+        if (file.content != null && file.userId.equals(userId)) {
+          return file.content;
+        }
+      }
+    }
+    return null;
+  }
+
+  private PendingFile getPendingFile(long projectId, String fileName) {
+    String key = key(projectId, fileName);
+    PendingFile file = files.get(key);
+    if (file == null) {
+      PendingFile newFile = new PendingFile(projectId, fileName);
+      file = files.putIfAbsent(key, newFile);
+      if (file == null) {
+        file = newFile;
+      }
+    }
+    return file;
+  }
+
+  private List<PendingFile> projectFiles(long projectId) {
+    List<PendingFile> result = new ArrayList<PendingFile>();
+    for (PendingFile file : files.values()) {
+      if (file.projectId == projectId) {
+        result.add(file);
+      }
+    }
+    return result;
+  }
+
+  private static String key(long projectId, String fileName) {
+    return projectId + "/" + fileName;
+  }
+
+  private static byte[] encode(long projectId, String fileName, String content, String encoding) {
+    try {
+      return content.getBytes(encoding);
+    } catch (UnsupportedEncodingException e) {
+      throw CrashReport.createAndLogError(LOG, null, "Unsupported file content encoding,"
+          + collectProjectErrorInfo(null, projectId, fileName), e);
+    }
+  }
+
+  private static String collectProjectErrorInfo(final String userId, final long projectId,
+      final String fileName) {
+    return "user=" + userId + ", project=" + projectId + ", file=" + fileName;
+  }
+}
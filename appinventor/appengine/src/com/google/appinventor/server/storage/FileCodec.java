@@ -0,0 +1,180 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server.storage;
+
+import com.google.common.io.ByteStreams;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Compresses the content of project source files for storage.
+ *
+ * The blocks (.bky, .blk), form (.scm) and YAIL files of a project are
+ * verbose XML, JSON and Scheme and shrink to a fraction of their size
+ * when gzipped. The codec a file was stored with is recorded with it
+ * (FileData.compression), so files stored before compression was
+ * introduced, and files that are stored as is, keep being read the
+ * same way.
+ *
+ * The sizes and time spent are counted for the whole server.
+ */
+final class FileCodec {
+
+  /** Codec name of gzip compressed content. */
+  static final String GZIP = "gzip";
+
+  // Smaller files aren't worth compressing
+  private static final int MIN_SIZE = 256;
+
+  // The first two bytes of every gzip stream
+  private static final int GZIP_MAGIC_0 = 0x1f;
+  private static final int GZIP_MAGIC_1 = 0x8b;
+
+  private static final AtomicLong encodedFiles = new AtomicLong();
+  private static final AtomicLong rawBytes = new AtomicLong();
+  private static final AtomicLong storedBytes = new AtomicLong();
+  private static final AtomicLong encodeNanos = new AtomicLong();
+  private static final AtomicLong decodedFiles = new AtomicLong();
+  private static final AtomicLong decodeNanos = new AtomicLong();
+
+  /**
+   * Content as it is stored: the bytes and the codec that produced them.
+   */
+  static final class Encoded {
+    final String codec;         // null if the bytes are the content as is
+    final byte[] bytes;
+
+    private Encoded(String codec, byte[] bytes) {
+      this.codec = codec;
+      this.bytes = bytes;
+    }
+  }
+
+  private FileCodec() {} // not to be instantiated
+
+  /**
+   * @return whether files with fileName are compressed (if they are big
+   *         enough)
+   */
+  static boolean isCompressed(String fileName) {
+    return fileName.endsWith(".bky") || fileName.endsWith(".scm")
+        || fileName.endsWith(".blk") || fileName.endsWith(".yail");
+  }
+
+  /**
+   * Encodes the content of a file for storage. Content that doesn't get
+   * smaller is stored as is.
+   */
+  static Encoded encode(String fileName, byte[] content) {
+    if (!isCompressed(fileName) || content.length < MIN_SIZE) {
+      return new Encoded(null, content);
+    }
+    long start = System.nanoTime();
+    byte[] compressed;
+    try {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream(content.length / 4);
+      GZIPOutputStream out = new GZIPOutputStream(bytes);
+      out.write(content);
+      out.close();
+      compressed = bytes.toByteArray();
+    } catch (IOException e) {
+      // Can't happen, we are writing to memory
+      throw new IllegalStateException(e);
+    }
+    encodeNanos.addAndGet(System.nanoTime() - start);
+    encodedFiles.incrementAndGet();
+    rawBytes.addAndGet(content.length);
+    if (compressed.length >= content.length) {
+      storedBytes.addAndGet(content.length);
+      return new Encoded(null, content);
+    }
+    storedBytes.addAndGet(compressed.length);
+    return new Encoded(GZIP, compressed);
+  }
+
+  /**
+   * Decodes stored content.
+   *
+   * @param codec the codec the content was stored with, or null
+   * @param stored the stored bytes
+   * @return the content
+   * @throws IllegalStateException if the stored bytes are corrupt
+   */
+  static byte[] decode(String codec, byte[] stored) {
+    // Anything that doesn't look like gzip was stored (or served to us) as
+    // is, this includes the empty content of a file whose GCS object went
+    // missing.
+    if (!GZIP.equals(codec) || stored.length < 2
+        || (stored[0] & 0xff) != GZIP_MAGIC_0 || (stored[1] & 0xff) != GZIP_MAGIC_1) {
+      return stored;
+    }
+    long start = System.nanoTime();
+    try {
+      return ByteStreams.toByteArray(new GZIPInputStream(new ByteArrayInputStream(stored)));
+    } catch (IOException e) {
+      throw new IllegalStateException("Corrupt " + codec + " content", e);
+    } finally {
+      decodeNanos.addAndGet(System.nanoTime() - start);
+      decodedFiles.incrementAndGet();
+    }
+  }
+
+  /**
+   * @return the number of files that were considered for compression
+   */
+  static long getEncodedFiles() {
+    return encodedFiles.get();
+  }
+
+  /**
+   * @return the size of the content of those files, in bytes
+   */
+  static long getRawBytes() {
+    return rawBytes.get();
+  }
+
+  /**
+   * @return the size they were stored at, in bytes
+   */
+  static long getStoredBytes() {
+    return storedBytes.get();
+  }
+
+  /**
+   * @return the stored size of the files as a fraction of their size (1
+   *         if no files were compressed)
+   */
+  static double getCompressionRatio() {
+    long raw = rawBytes.get();
+    return raw == 0 ? 1 : (double) storedBytes.get() / raw;
+  }
+
+  /**
+   * @return the time spent compressing, in nanoseconds
+   */
+  static long getEncodeNanos() {
+    return encodeNanos.get();
+  }
+
+  /**
+   * @return the number of files that were decompressed
+   */
+  static long getDecodedFiles() {
+    return decodedFiles.get();
+  }
+
+  /**
+   * @return the time spent decompressing, in nanoseconds
+   */
+  static long getDecodeNanos() {
+    return decodeNanos.get();
+  }
+}
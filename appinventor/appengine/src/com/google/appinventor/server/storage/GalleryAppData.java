@@ -32,6 +32,10 @@ public class GalleryAppData {
   @Indexed public int numDownloads;
   @Indexed public int unreadLikes;
   @Indexed public int unreadDownloads;
+  // The part of the sharded like/download counters (see ShardedCounter)
+  // that has already been folded into numLikes/numDownloads
+  long rolledUpLikes;
+  long rolledUpDownloads;
   long projectId;
   int status;
   long lastEmailNotificationTimeStamp;
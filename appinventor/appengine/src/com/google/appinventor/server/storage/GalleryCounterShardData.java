@@ -0,0 +1,28 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server.storage;
+
+import javax.persistence.Id;
+
+import com.googlecode.objectify.annotation.Unindexed;
+
+/**
+ * One shard of a {@link ShardedCounter}. Each shard is its own entity
+ * group so that concurrent increments of the same gallery app counter
+ * land on different entities and do not collide.
+ *
+ * The key name is built from the counter name, the gallery id and the
+ * shard number (see {@link ShardedCounter#shardKey}), so all the shards
+ * of a counter can be fetched with one batch get and no query.
+ *
+ */
+@Unindexed
+public class GalleryCounterShardData {
+  @Id String id;
+  String counterName;  // e.g. "likes" or "downloads"
+  long galleryId;      // the gallery app this shard counts for
+  long count;          // running (net) total of this shard, never reset
+}
@@ -200,6 +200,13 @@ public interface GalleryStorageIo {
    */
   void salvageGalleryApp(long galleryId);
 
+  /**
+   * fold the pending like and download counts of an app into the
+   * stored totals the gallery sorts on
+   * @param galleryId id of gallery app
+   */
+  void rollupCounters(long galleryId);
+
   /**
    * save AttributionId
    * @param galleryId id of gallery app that was like
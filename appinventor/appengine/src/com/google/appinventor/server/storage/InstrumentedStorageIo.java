@@ -0,0 +1,895 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server.storage;
+
+import com.google.appinventor.shared.rpc.AdminInterfaceException;
+import com.google.appinventor.shared.rpc.BlocksTruncatedException;
+import com.google.appinventor.shared.rpc.Motd;
+import com.google.appinventor.shared.rpc.Nonce;
+import com.google.appinventor.shared.rpc.admin.AdminUser;
+import com.google.appinventor.shared.rpc.project.Project;
+import com.google.appinventor.shared.rpc.project.ProjectSourceZip;
+import com.google.appinventor.shared.rpc.project.UserProject;
+import com.google.appinventor.shared.rpc.user.SplashConfig;
+import com.google.appinventor.shared.rpc.user.User;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import javax.annotation.Nullable;
+
+/**
+ * A StorageIo that measures every call it passes on: how long it took,
+ * whether it failed, the content it was given or returned, and the
+ * datastore retries, memcache lookups and GCS bytes it took (see
+ * {@link StorageStats}). The statistics are served as JSON to admins by
+ * StorageStatsServlet.
+ *
+ * StorageIoInstanceHolder puts one on top of the StorageIo if
+ * storage.instrument is set.
+ */
+public final class InstrumentedStorageIo extends ForwardingStorageIo {
+
+  private final StorageStats stats = new StorageStats();
+
+  public InstrumentedStorageIo(StorageIo delegate) {
+    super(delegate);
+  }
+
+  /**
+   * @return the statistics of the calls so far
+   */
+  public StorageStats getStats() {
+    return stats;
+  }
+
+  @Override
+  public User getUser(String userId) {
+    StorageStats.Call call = stats.begin("getUser", userId, 0);
+    try {
+      return call.done(super.getUser(userId));
+    } finally {
+      stats.end(call);
+    }
+  }
+
+  @Override
+  public User getUser(String userId, String email) {
+    StorageStats.Call call = stats.begin("getUser", userId, 0);
+    try {
+      return call.done(super.getUser(userId, email));
+    } finally {
+      stats.end(call);
+    }
+  }
+
+  @Override
+  public User getUserFromEmail(String email) {
+    StorageStats.Call call = stats.begin("getUserFromEmail", null, 0);
+    try {
+      return call.done(super.getUserFromEmail(email));
+    } finally {
+      stats.end(call);
+    }
+  }
+
+  @Override
+  public void setUserEmail(String userId, String email) {
+    StorageStats.Call call = stats.begin("setUserEmail", userId, 0);
+    try {
+      super.setUserEmail(userId, email);
+      call.done();
+    } finally {
+      stats.end(call);
+    }
+  }
+
+  @Override
+  public void setTosAccepted(String userId) {
+    StorageStats.Call call = stats.begin("setTosAccepted", userId, 0);
+    try {
+      super.setTosAccepted(userId);
+      call.done();
+    } finally {
+      stats.end(call);
+    }
+  }
+
+  @Override
+  public void setUserSessionId(String userId, String sessionId) {
+    StorageStats.Call call = stats.begin("setUserSessionId", userId, 0);
+    try {
+      super.setUserSessionId(userId, sessionId);
+      call.done();
+    } finally {
+      stats.end(call);
+    }
+  }
+
+  @Override
+  public void setUserPassword(String userId, String password) {
+    StorageStats.Call call = stats.begin("setUserPassword", userId, 0);
+    try {
+      super.setUserPassword(userId, password);
+      call.done();
+    } finally {
+      stats.end(call);
+    }
+  }
+
+  @Override
+  public String loadSettings(String userId) {
+    StorageStats.Call call = stats.begin("loadSettings", userId, 0);
+    try {
+      return call.done(super.loadSettings(userId));
+    } finally {
+      stats.end(call);
+    }
+  }
+
+  @Override
+  public void setUserName(String userId, String name) {
+    StorageStats.Call call = stats.begin("setUserName", userId, 0);
+    try {
+      super.setUserName(userId, name);
+      call.done();
+    } finally {
+      stats.end(call);
+    }
+  }
+
+  @Override
+  public String getUserName(String userId) {
+    StorageStats.Call call = stats.begin("getUserName", userId, 0);
+    try {
+      return call.done(super.getUserName(userId));
+    } finally {
+      stats.end(call);
+    }
+  }
+
+  @Override
+  public String getUserLink(String userId) {
+    StorageStats.Call call = stats.begin("getUserLink", userId, 0);
+    try {
+      return call.done(super.getUserLink(userId));
+    } finally {
+      stats.end(call);
+    }
+  }
+
+  @Override
+  public void setUserLink(String userId, String link) {
+    StorageStats.Call call = stats.begin("setUserLink", userId, 0);
+    try {
+      super.setUserLink(userId, link);
+      call.done();
+    } finally {
+      stats.end(call);
+    }
+  }
+
+  @Override
+  public int getUserEmailFrequency(String userId) {
+    StorageStats.Call call = stats.begin("getUserEmailFrequency", userId, 0);
+    try {
+      return call.done(super.getUserEmailFrequency(userId));
+    } finally {
+      stats.end(call);
+    }
+  }
+
+  @Override
+  public void setUserEmailFrequency(String userId, int emailFrequency) {
+    StorageStats.Call call = stats.begin("setUserEmailFrequency", userId, 0);
+    try {
+      super.setUserEmailFrequency(userId, emailFrequency);
+      call.done();
+    } finally {
+      stats.end(call);
+    }
+  }
+
+  @Override
+  public void storeSettings(String userId, String settings) {
+    StorageStats.Call call = stats.begin("storeSettings", userId, 0);
+    try {
+      super.storeSettings(userId, settings);
+      call.done();
+    } finally {
+      stats.end(call);
+    }
+  }
+
+  @Override
+  public long createProject(String userId, Project project, String projectSettings) {
+    StorageStats.Call call = stats.begin("createProject", userId, 0);
+    try {
+      return call.done(super.createProject(userId, project, projectSettings));
+    } finally {
+      stats.end(call);
+    }
+  }
+
+  @Override
+  public long copyProject(String userId, long oldProjectId, Project project,
+      String projectSettings, Map<String, String> copiedFiles) {
+    StorageStats.Call call = stats.begin("copyProject", userId, oldProjectId);
+    try {
+      return call.done(super.copyProject(userId, oldProjectId, project, projectSettings,
+          copiedFiles));
+    } finally {
+      stats.end(call);
+    }
+  }
+
+  @Override
+  public ProjectImport beginProjectImport(final String userId, long maxBufferedBytes) {
+    StorageStats.Call call = stats.begin("beginProjectImport", userId, 0);
+    final ProjectImport projectImport;
+    try {
+      projectImport = call.done(super.beginProjectImport(userId, maxBufferedBytes));
+    } finally {
+      stats.end(call);
+    }
+    // The work of an import is done by its files and its commit
+    return new ProjectImport() {
+      @Override
+      public void addFile(String fileName, byte[] content) throws IOException {
+        StorageStats.Call call = stats.begin("projectImport.addFile", userId, 0);
+        call.addBytes(content);
+        try {
+          projectImport.addFile(fileName, content);
+          call.done();
+        } finally {
+          stats.end(call);
+        }
+      }
+
+      @Override
+      public long commit(Project project, String projectSettings) throws IOException {
+        StorageStats.Call call = stats.begin("projectImport.commit", userId, 0);
+        try {
+          return call.done(projectImport.commit(project, projectSettings));
+        } finally {
+          stats.end(call);
+        }
+      }
+
+      @Override
+      public void abort() {
+        StorageStats.Call call = stats.begin("projectImport.abort", userId, 0);
+        try {
+          projectImport.abort();
+          call.done();
+        } finally {
+          stats.end(call);
+        }
+      }
+    };
+  }
+
+  @Override
+  public void deleteProject(String userId, long projectId) {
+    StorageStats.Call call = stats.begin("deleteProject", userId, projectId);
+    try {
+      super.deleteProject(userId, projectId);
+      call.done();
+    } finally {
+      stats.end(call);
+    }
+  }
+
+  @Override
+  public List<Long> getProjects(String userId) {
+    StorageStats.Call call = stats.begin("getProjects", userId, 0);
+    try {
+      return call.done(super.getProjects(userId));
+    } finally {
+      stats.end(call);
+    }
+  }
+
+  @Override
+  public void setProjectGalleryId(String userId, long projectId, long galleryId) {
+    StorageStats.Call call = stats.begin("setProjectGalleryId", userId, projectId);
+    try {
+      super.setProjectGalleryId(userId, projectId, galleryId);
+      call.done();
+    } finally {
+      stats.end(call);
+    }
+  }
+
+  @Override
+  public void setProjectAttributionId(String userId, long projectId, long attributionId) {
+    StorageStats.Call call = stats.begin("setProjectAttributionId", userId, projectId);
+    try {
+      super.setProjectAttributionId(userId, projectId, attributionId);
+      call.done();
+    } finally {
+      stats.end(call);
+    }
+  }
+
+  @Override
+  public String loadProjectSettings(String userId, long projectId) {
+    StorageStats.Call call = stats.begin("loadProjectSettings", userId, projectId);
+    try {
+      return call.done(super.loadProjectSettings(userId, projectId));
+    } finally {
+      stats.end(call);
+    }
+  }
+
+  @Override
+  public void storeProjectSettings(String userId, long projectId, String settings) {
+    StorageStats.Call call = stats.begin("storeProjectSettings", userId, projectId);
+    try {
+      super.storeProjectSettings(userId, projectId, settings);
+      call.done();
+    } finally {
+      stats.end(call);
+    }
+  }
+
+  @Override
+  public String getProjectType(String userId, long projectId) {
+    StorageStats.Call call = stats.begin("getProjectType", userId, projectId);
+    try {
+      return call.done(super.getProjectType(userId, projectId));
+    } finally {
+      stats.end(call);
+    }
+  }
+
+  @Override
+  public UserProject getUserProject(String userId, long projectId) {
+    StorageStats.Call call = stats.begin("getUserProject", userId, projectId);
+    try {
+      return call.done(super.getUserProject(userId, projectId));
+    } finally {
+      stats.end(call);
+    }
+  }
+
+  @Override
+  public List<UserProject> getUserProjects(String userId, List<Long> projectIds) {
+    StorageStats.Call call = stats.begin("getUserProjects", userId, 0);
+    try {
+      return call.done(super.getUserProjects(userId, projectIds));
+    } finally {
+      stats.end(call);
+    }
+  }
+
+  @Override
+  public String getProjectName(String userId, long projectId) {
+    StorageStats.Call call = stats.begin("getProjectName", userId, projectId);
+    try {
+      return call.done(super.getProjectName(userId, projectId));
+    } finally {
+      stats.end(call);
+    }
+  }
+
+  @Override
+  public long getProjectDateModified(String userId, long projectId) {
+    StorageStats.Call call = stats.begin("getProjectDateModified", userId, projectId);
+    try {
+      return call.done(super.getProjectDateModified(userId, projectId));
+    } finally {
+      stats.end(call);
+    }
+  }
+
+  @Override
+  public String getProjectHistory(String userId, long projectId) {
+    StorageStats.Call call = stats.begin("getProjectHistory", userId, projectId);
+    try {
+      return call.done(super.getProjectHistory(userId, projectId));
+    } finally {
+      stats.end(call);
+    }
+  }
+
+  @Override
+  public long getProjectDateCreated(String userId, long projectId) {
+    StorageStats.Call call = stats.begin("getProjectDateCreated", userId, projectId);
+    try {
+      return call.done(super.getProjectDateCreated(userId, projectId));
+    } finally {
+      stats.end(call);
+    }
+  }
+
+  @Override
+  public void addFilesToUser(String userId, String... fileIds) {
+    StorageStats.Call call = stats.begin("addFilesToUser", userId, 0);
+    try {
+      super.addFilesToUser(userId, fileIds);
+      call.done();
+    } finally {
+      stats.end(call);
+    }
+  }
+
+  @Override
+  public List<String> getUserFiles(String userId) {
+    StorageStats.Call call = stats.begin("getUserFiles", userId, 0);
+    try {
+      return call.done(super.getUserFiles(userId));
+    } finally {
+      stats.end(call);
+    }
+  }
+
+  @Override
+  public void uploadUserFile(String userId, String fileId, String content, String encoding) {
+    StorageStats.Call call = stats.begin("uploadUserFile", userId, 0);
+    call.addBytes(content);
+    try {
+      super.uploadUserFile(userId, fileId, content, encoding);
+      call.done();
+    } finally {
+      stats.end(call);
+    }
+  }
+
+  @Override
+  public void uploadRawUserFile(String userId, String fileName, byte[] content) {
+    StorageStats.Call call = stats.begin("uploadRawUserFile", userId, 0);
+    call.addBytes(content);
+    try {
+      super.uploadRawUserFile(userId, fileName, content);
+      call.done();
+    } finally {
+      stats.end(call);
+    }
+  }
+
+  @Override
+  public String downloadUserFile(String userId, String fileId, String encoding) {
+    StorageStats.Call call = stats.begin("downloadUserFile", userId, 0);
+    try {
+      return call.done(super.downloadUserFile(userId, fileId, encoding));
+    } finally {
+      stats.end(call);
+    }
+  }
+
+  @Override
+  public byte[] downloadRawUserFile(String userId, String fileName) {
+    StorageStats.Call call = stats.begin("downloadRawUserFile", userId, 0);
+    try {
+      return call.done(super.downloadRawUserFile(userId, fileName));
+    } finally {
+      stats.end(call);
+    }
+  }
+
+  @Override
+  public void deleteUserFile(String userId, String fileId) {
+    StorageStats.Call call = stats.begin("deleteUserFile", userId, 0);
+    try {
+      super.deleteUserFile(userId, fileId);
+      call.done();
+    } finally {
+      stats.end(call);
+    }
+  }
+
+  @Override
+  public int getMaxJobSizeBytes() {
+    StorageStats.Call call = stats.begin("getMaxJobSizeBytes", null, 0);
+    try {
+      return call.done(super.getMaxJobSizeBytes());
+    } finally {
+      stats.end(call);
+    }
+  }
+
+  @Override
+  public void addSourceFilesToProject(String userId, long projectId, boolean changeModDate,
+      String... fileIds) {
+    StorageStats.Call call = stats.begin("addSourceFilesToProject", userId, projectId);
+    try {
+      super.addSourceFilesToProject(userId, projectId, changeModDate, fileIds);
+      call.done();
+    } finally {
+      stats.end(call);
+    }
+  }
+
+  @Override
+  public void addOutputFilesToProject(String userId, long projectId, String... fileIds) {
+    StorageStats.Call call = stats.begin("addOutputFilesToProject", userId, projectId);
+    try {
+      super.addOutputFilesToProject(userId, projectId, fileIds);
+      call.done();
+    } finally {
+      stats.end(call);
+    }
+  }
+
+  @Override
+  public void removeSourceFilesFromProject(String userId, long projectId, boolean changeModDate,
+      String... fileIds) {
+    StorageStats.Call call = stats.begin("removeSourceFilesFromProject", userId, projectId);
+    try {
+      super.removeSourceFilesFromProject(userId, projectId, changeModDate, fileIds);
+      call.done();
+    } finally {
+      stats.end(call);
+    }
+  }
+
+  @Override
+  public void removeOutputFilesFromProject(String userId, long projectId, String... fileIds) {
+    StorageStats.Call call = stats.begin("removeOutputFilesFromProject", userId, projectId);
+    try {
+      super.removeOutputFilesFromProject(userId, projectId, fileIds);
+      call.done();
+    } finally {
+      stats.end(call);
+    }
+  }
+
+  @Override
+  public List<String> getProjectSourceFiles(String userId, long projectId) {
+    StorageStats.Call call = stats.begin("getProjectSourceFiles", userId, projectId);
+    try {
+      return call.done(super.getProjectSourceFiles(userId, projectId));
+    } finally {
+      stats.end(call);
+    }
+  }
+
+  @Override
+  public List<String> getProjectOutputFiles(String userId, long projectId) {
+    StorageStats.Call call = stats.begin("getProjectOutputFiles", userId, projectId);
+    try {
+      return call.done(super.getProjectOutputFiles(userId, projectId));
+    } finally {
+      stats.end(call);
+    }
+  }
+
+  @Override
+  public ProjectManifest getProjectManifest(String userId, long projectId) {
+    StorageStats.Call call = stats.begin("getProjectManifest", userId, projectId);
+    try {
+      return call.done(super.getProjectManifest(userId, projectId));
+    } finally {
+      stats.end(call);
+    }
+  }
+
+  @Override
+  public long getProjectGalleryId(String userId, long projectId) {
+    StorageStats.Call call = stats.begin("getProjectGalleryId", userId, projectId);
+    try {
+      return call.done(super.getProjectGalleryId(userId, projectId));
+    } finally {
+      stats.end(call);
+    }
+  }
+
+  @Override
+  public long getProjectAttributionId(long projectId) {
+    StorageStats.Call call = stats.begin("getProjectAttributionId", null, projectId);
+    try {
+      return call.done(super.getProjectAttributionId(projectId));
+    } finally {
+      stats.end(call);
+    }
+  }
+
+  @Override
+  public long uploadFile(long projectId, String fileId, String userId, String content,
+      String encoding) throws BlocksTruncatedException {
+    StorageStats.Call call = stats.begin("uploadFile", userId, projectId);
+    call.addBytes(content);
+    try {
+      return call.done(super.uploadFile(projectId, fileId, userId, content, encoding));
+    } finally {
+      stats.end(call);
+    }
+  }
+
+  @Override
+  public long uploadFileForce(long projectId, String fileId, String userId, String content,
+      String encoding) {
+    StorageStats.Call call = stats.begin("uploadFileForce", userId, projectId);
+    call.addBytes(content);
+    try {
+      return call.done(super.uploadFileForce(projectId, fileId, userId, content, encoding));
+    } finally {
+      stats.end(call);
+    }
+  }
+
+  @Override
+  public long uploadRawFile(long projectId, String fileId, String userId, boolean force,
+      byte[] content) throws BlocksTruncatedException {
+    StorageStats.Call call = stats.begin("uploadRawFile", userId, projectId);
+    call.addBytes(content);
+    try {
+      return call.done(super.uploadRawFile(projectId, fileId, userId, force, content));
+    } finally {
+      stats.end(call);
+    }
+  }
+
+  @Override
+  public long uploadRawFileForce(long projectId, String fileId, String userId, byte[] content) {
+    StorageStats.Call call = stats.begin("uploadRawFileForce", userId, projectId);
+    call.addBytes(content);
+    try {
+      return call.done(super.uploadRawFileForce(projectId, fileId, userId, content));
+    } finally {
+      stats.end(call);
+    }
+  }
+
+  @Override
+  public long deleteFile(String userId, long projectId, String fileId) {
+    StorageStats.Call call = stats.begin("deleteFile", userId, projectId);
+    try {
+      return call.done(super.deleteFile(userId, projectId, fileId));
+    } finally {
+      stats.end(call);
+    }
+  }
+
+  @Override
+  public String downloadFile(String userId, long projectId, String fileId, String encoding) {
+    StorageStats.Call call = stats.begin("downloadFile", userId, projectId);
+    try {
+      return call.done(super.downloadFile(userId, projectId, fileId, encoding));
+    } finally {
+      stats.end(call);
+    }
+  }
+
+  @Override
+  public void recordCorruption(String userId, long projectId, String fileId, String message) {
+    StorageStats.Call call = stats.begin("recordCorruption", userId, projectId);
+    try {
+      super.recordCorruption(userId, projectId, fileId, message);
+      call.done();
+    } finally {
+      stats.end(call);
+    }
+  }
+
+  @Override
+  public byte[] downloadRawFile(String userId, long projectId, String fileId) {
+    StorageStats.Call call = stats.begin("downloadRawFile", userId, projectId);
+    try {
+      return call.done(super.downloadRawFile(userId, projectId, fileId));
+    } finally {
+      stats.end(call);
+    }
+  }
+
+  @Override
+  public String uploadTempFile(byte[] content) throws IOException {
+    StorageStats.Call call = stats.begin("uploadTempFile", null, 0);
+    call.addBytes(content);
+    try {
+      return call.done(super.uploadTempFile(content));
+    } finally {
+      stats.end(call);
+    }
+  }
+
+  @Override
+  public InputStream openTempFile(String fileName) throws IOException {
+    StorageStats.Call call = stats.begin("openTempFile", null, 0);
+    try {
+      return call.done(super.openTempFile(fileName));
+    } finally {
+      stats.end(call);
+    }
+  }
+
+  @Override
+  public void deleteTempFile(String fileName) throws IOException {
+    StorageStats.Call call = stats.begin("deleteTempFile", null, 0);
+    try {
+      super.deleteTempFile(fileName);
+      call.done();
+    } finally {
+      stats.end(call);
+    }
+  }
+
+  @Override
+  public Motd getCurrentMotd() {
+    StorageStats.Call call = stats.begin("getCurrentMotd", null, 0);
+    try {
+      return call.done(super.getCurrentMotd());
+    } finally {
+      stats.end(call);
+    }
+  }
+
+  @Override
+  public ProjectSourceZip exportProjectSourceZip(String userId, long projectId,
+      boolean includeProjectHistory, boolean includeAndroidKeystore, @Nullable String zipName,
+      boolean includeYail, boolean includeScreenShots, boolean forGallery,
+      boolean fatalError) throws IOException {
+    StorageStats.Call call = stats.begin("exportProjectSourceZip", userId, projectId);
+    try {
+      return call.done(super.exportProjectSourceZip(userId, projectId, includeProjectHistory,
+          includeAndroidKeystore, zipName, includeYail, includeScreenShots, forGallery,
+          fatalError));
+    } finally {
+      stats.end(call);
+    }
+  }
+
+  @Override
+  public String findUserByEmail(String email) throws NoSuchElementException {
+    StorageStats.Call call = stats.begin("findUserByEmail", null, 0);
+    try {
+      return call.done(super.findUserByEmail(email));
+    } finally {
+      stats.end(call);
+    }
+  }
+
+  @Override
+  public String findIpAddressByKey(String key) {
+    StorageStats.Call call = stats.begin("findIpAddressByKey", null, 0);
+    try {
+      return call.done(super.findIpAddressByKey(key));
+    } finally {
+      stats.end(call);
+    }
+  }
+
+  @Override
+  public void storeIpAddressByKey(String key, String ipAddress) {
+    StorageStats.Call call = stats.begin("storeIpAddressByKey", null, 0);
+    try {
+      super.storeIpAddressByKey(key, ipAddress);
+      call.done();
+    } finally {
+      stats.end(call);
+    }
+  }
+
+  @Override
+  public boolean checkWhiteList(String email) {
+    StorageStats.Call call = stats.begin("checkWhiteList", null, 0);
+    try {
+      return call.done(super.checkWhiteList(email));
+    } finally {
+      stats.end(call);
+    }
+  }
+
+  @Override
+  public void storeFeedback(String notes, String foundIn, String faultData, String comments,
+      String datestamp, String email, String projectId) {
+    StorageStats.Call call = stats.begin("storeFeedback", null, 0);
+    try {
+      super.storeFeedback(notes, foundIn, faultData, comments, datestamp, email, projectId);
+      call.done();
+    } finally {
+      stats.end(call);
+    }
+  }
+
+  @Override
+  public Nonce getNoncebyValue(String nonceValue) {
+    StorageStats.Call call = stats.begin("getNoncebyValue", null, 0);
+    try {
+      return call.done(super.getNoncebyValue(nonceValue));
+    } finally {
+      stats.end(call);
+    }
+  }
+
+  @Override
+  public void storeNonce(String nonceValue, String userId, long projectId) {
+    StorageStats.Call call = stats.begin("storeNonce", userId, projectId);
+    try {
+      super.storeNonce(nonceValue, userId, projectId);
+      call.done();
+    } finally {
+      stats.end(call);
+    }
+  }
+
+  @Override
+  public void checkUpgrade(String userId) {
+    StorageStats.Call call = stats.begin("checkUpgrade", userId, 0);
+    try {
+      super.checkUpgrade(userId);
+      call.done();
+    } finally {
+      stats.end(call);
+    }
+  }
+
+  @Override
+  public void doUpgrade(String userId) {
+    StorageStats.Call call = stats.begin("doUpgrade", userId, 0);
+    try {
+      super.doUpgrade(userId);
+      call.done();
+    } finally {
+      stats.end(call);
+    }
+  }
+
+  @Override
+  public SplashConfig getSplashConfig() {
+    StorageStats.Call call = stats.begin("getSplashConfig", null, 0);
+    try {
+      return call.done(super.getSplashConfig());
+    } finally {
+      stats.end(call);
+    }
+  }
+
+  @Override
+  public StoredData.PWData createPWData(String email) {
+    StorageStats.Call call = stats.begin("createPWData", null, 0);
+    try {
+      return call.done(super.createPWData(email));
+    } finally {
+      stats.end(call);
+    }
+  }
+
+  @Override
+  public StoredData.PWData findPWData(String uid) {
+    StorageStats.Call call = stats.begin("findPWData", null, 0);
+    try {
+      return call.done(super.findPWData(uid));
+    } finally {
+      stats.end(call);
+    }
+  }
+
+  @Override
+  public MaintenanceBatch runMaintenance(MaintenanceJob job, @Nullable String cursor) {
+    StorageStats.Call call = stats.begin("runMaintenance", null, 0);
+    try {
+      return call.done(super.runMaintenance(job, cursor));
+    } finally {
+      stats.end(call);
+    }
+  }
+
+  @Override
+  public List<AdminUser> searchUsers(String partialEmail) {
+    StorageStats.Call call = stats.begin("searchUsers", null, 0);
+    try {
+      return call.done(super.searchUsers(partialEmail));
+    } finally {
+      stats.end(call);
+    }
+  }
+
+  @Override
+  public void storeUser(AdminUser user) throws AdminInterfaceException {
+    StorageStats.Call call = stats.begin("storeUser", null, 0);
+    try {
+      super.storeUser(user);
+      call.done();
+    } finally {
+      stats.end(call);
+    }
+  }
+}
@@ -0,0 +1,132 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server.storage;
+
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Content addressed blob storage in a local directory, used by
+ * {@link LocalStorageIo} to hold file contents.
+ *
+ * A blob is named by the SHA-1 hash of its content, so storing the same
+ * content twice (an unchanged file saved again, the same asset in many
+ * projects, a backup of a file that didn't change) costs nothing, and a
+ * blob never changes once it is written. That lets file contents be
+ * written before, and outside of, the (short) update of the file record
+ * that points at them.
+ */
+final class LocalBlobStore {
+
+  private final File directory;
+  private final File tempDirectory;
+
+  LocalBlobStore(File directory) throws IOException {
+    this.directory = directory;
+    this.tempDirectory = new File(directory, "tmp");
+    if (!tempDirectory.isDirectory() && !tempDirectory.mkdirs()) {
+      throw new IOException("Unable to create " + tempDirectory);
+    }
+  }
+
+  /**
+   * Stores content (if it isn't already stored).
+   *
+   * @return the hash naming the blob
+   * @throws IOException if the blob can't be written
+   */
+  String put(byte[] content) throws IOException {
+    String hash = hash(content);
+    File file = blobFile(hash);
+    if (file.exists()) {
+      // Tell retainOnly that the blob is in use again
+      file.setLastModified(System.currentTimeMillis());
+    } else {
+      // Write to a temporary file and rename so nobody sees half a blob
+      File temp = new File(tempDirectory, UUID.randomUUID().toString());
+      Files.write(content, temp);
+      File parent = file.getParentFile();
+      if (!parent.isDirectory() && !parent.mkdirs() && !parent.isDirectory()) {
+        throw new IOException("Unable to create " + parent);
+      }
+      if (!temp.renameTo(file)) {
+        // Lost a race with another writer of the same content
+        temp.delete();
+        if (!file.exists()) {
+          throw new IOException("Unable to store blob " + hash);
+        }
+      }
+    }
+    return hash;
+  }
+
+  /**
+   * @return the content of a blob
+   * @throws FileNotFoundException if there is no such blob
+   * @throws IOException if it can't be read
+   */
+  byte[] get(String hash) throws IOException {
+    File file = blobFile(hash);
+    if (!file.exists()) {
+      throw new FileNotFoundException("No blob " + hash);
+    }
+    return Files.toByteArray(file);
+  }
+
+  /**
+   * Deletes the blobs not named in live that were last stored before
+   * cutoff. Blobs stored after cutoff are kept because the records
+   * pointing at them may not have been committed yet.
+   *
+   * @return the number of blobs deleted
+   */
+  int retainOnly(Set<String> live, long cutoff) {
+    int deleted = 0;
+    File[] buckets = directory.listFiles();
+    if (buckets == null) {
+      return 0;
+    }
+    for (File bucket : buckets) {
+      if (!bucket.isDirectory() || bucket.equals(tempDirectory)) {
+        continue;
+      }
+      File[] blobs = bucket.listFiles();
+      if (blobs == null) {
+        continue;
+      }
+      for (File blob : blobs) {
+        if (!live.contains(bucket.getName() + blob.getName())
+            && blob.lastModified() < cutoff && blob.delete()) {
+          deleted++;
+        }
+      }
+    }
+    return deleted;
+  }
+
+  /**
+   * A file outside of the content addressed area, for the temporary files
+   * of {@link StorageIo#uploadTempFile}.
+   */
+  File tempFile(String name) {
+    return new File(tempDirectory, name);
+  }
+
+  static String hash(byte[] content) {
+    return Hashing.sha1().hashBytes(content).toString();
+  }
+
+  // Spread the blobs over 256 directories
+  private File blobFile(String hash) {
+    return new File(new File(directory, hash.substring(0, 2)), hash.substring(2));
+  }
+}
@@ -0,0 +1,508 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server.storage;
+
+import com.google.common.base.Charsets;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * A small embedded key-value store used by {@link LocalStorageIo}.
+ *
+ * Keys and values are strings. The whole store is kept in memory in a
+ * sorted map, so keys sharing a prefix (say all the files of a project)
+ * can be scanned, and every committed batch is appended to a log file
+ * which is replayed when the store is opened.
+ *
+ * The log is compacted (rewritten with just the latest value of each key)
+ * when it is opened, and when less than half of it is still live.
+ *
+ * Writes are made in batches. A batch is applied atomically and gets the
+ * next sequence number. Each key keeps the versions that an open
+ * {@link Snapshot} may still need, so a snapshot sees the store exactly
+ * as it was when the snapshot was taken, no matter what is written while
+ * it is being read (multi-version concurrency control). Reads without a
+ * snapshot see the latest committed value of each key.
+ */
+final class LocalKeyValueStore implements Closeable {
+
+  private static final Logger LOG = Logger.getLogger(LocalKeyValueStore.class.getName());
+
+  private static final String LOG_FILE_NAME = "store.log";
+
+  // Don't bother compacting a log smaller than this (in characters of
+  // keys and values)
+  private static final long MIN_COMPACTION_SIZE = 1 << 20;
+
+  // Bytes of a log record besides its body (see writeRecord)
+  private static final int RECORD_OVERHEAD = 8 + 4 + 8;
+
+  // One committed value of a key; value is null if the key was deleted.
+  // Versions are immutable, newest first.
+  private static final class Version {
+    final long sequence;
+    final String value;
+    final Version older;
+
+    Version(long sequence, String value, Version older) {
+      this.sequence = sequence;
+      this.value = value;
+      this.older = older;
+    }
+  }
+
+  /**
+   * A set of writes that are committed together.
+   */
+  static final class Batch {
+    private final Map<String, String> writes = new LinkedHashMap<String, String>();
+
+    Batch put(String key, String value) {
+      if (value == null) {
+        throw new IllegalArgumentException("null value for " + key);
+      }
+      writes.put(key, value);
+      return this;
+    }
+
+    Batch delete(String key) {
+      writes.put(key, null);
+      return this;
+    }
+
+    boolean isEmpty() {
+      return writes.isEmpty();
+    }
+  }
+
+  /**
+   * A consistent, read only view of the store at one point in time.
+   * Snapshots must be closed, old versions of keys are kept around
+   * until no open snapshot can see them.
+   */
+  final class Snapshot implements Closeable {
+    private final long sequence;
+    private boolean closed = false;
+
+    private Snapshot(long sequence) {
+      this.sequence = sequence;
+    }
+
+    String get(String key) {
+      return valueAt(data.get(key), sequence);
+    }
+
+    SortedMap<String, String> scan(String prefix) {
+      SortedMap<String, String> result = new TreeMap<String, String>();
+      for (Map.Entry<String, Version> entry : prefixMap(prefix).entrySet()) {
+        String value = valueAt(entry.getValue(), sequence);
+        if (value != null) {
+          result.put(entry.getKey(), value);
+        }
+      }
+      return result;
+    }
+
+    @Override
+    public void close() {
+      synchronized (commitLock) {
+        if (!closed) {
+          closed = true;
+          Integer count = openSnapshots.get(sequence);
+          if (count == 1) {
+            openSnapshots.remove(sequence);
+          } else {
+            openSnapshots.put(sequence, count - 1);
+          }
+        }
+      }
+    }
+  }
+
+  private final ConcurrentSkipListMap<String, Version> data =
+      new ConcurrentSkipListMap<String, Version>();
+
+  // Guards writes to the log and the data map, and openSnapshots
+  private final Object commitLock = new Object();
+
+  // Sequence number of the last committed batch
+  private volatile long lastSequence = 0;
+
+  // Sequence number of each open snapshot -> how many are open at it
+  private final TreeMap<Long, Integer> openSnapshots = new TreeMap<Long, Integer>();
+
+  private final File logFile;
+  private final boolean syncWrites;
+  private FileOutputStream logFileStream;
+  private DataOutputStream log;
+
+  // Characters of the keys and values in the log, and in the latest value
+  // of each key. Their ratio tells us when to compact.
+  private long logSize = 0;
+  private long liveSize = 0;
+
+  /**
+   * Opens the store in directory, creating it if needed.
+   *
+   * @param directory where the log file is kept
+   * @param syncWrites whether to force every batch to disk before
+   *        returning from {@link #write}
+   * @throws IOException if the log can't be read or written
+   */
+  LocalKeyValueStore(File directory, boolean syncWrites) throws IOException {
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Unable to create " + directory);
+    }
+    this.logFile = new File(directory, LOG_FILE_NAME);
+    this.syncWrites = syncWrites;
+    if (logFile.exists()) {
+      replay();
+    }
+    // Start out with a log holding just the live values
+    compact();
+  }
+
+  /**
+   * @return the latest committed value of key, or null if there is none
+   */
+  String get(String key) {
+    Version version = data.get(key);
+    return version == null ? null : version.value;
+  }
+
+  /**
+   * @return the latest committed values of keys (keys without a value are
+   *         left out)
+   */
+  Map<String, String> getAll(Collection<String> keys) {
+    Map<String, String> result = new LinkedHashMap<String, String>();
+    for (String key : keys) {
+      String value = get(key);
+      if (value != null) {
+        result.put(key, value);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * @return the latest committed values of all the keys starting with
+   *         prefix, in key order
+   */
+  SortedMap<String, String> scan(String prefix) {
+    SortedMap<String, String> result = new TreeMap<String, String>();
+    for (Map.Entry<String, Version> entry : prefixMap(prefix).entrySet()) {
+      String value = entry.getValue().value;
+      if (value != null) {
+        result.put(entry.getKey(), value);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Takes a snapshot of the store. The caller must close it.
+   */
+  Snapshot snapshot() {
+    synchronized (commitLock) {
+      long sequence = lastSequence;
+      Integer count = openSnapshots.get(sequence);
+      openSnapshots.put(sequence, count == null ? 1 : count + 1);
+      return new Snapshot(sequence);
+    }
+  }
+
+  /**
+   * Commits a batch. The batch is in the log before any of its writes can
+   * be seen.
+   *
+   * @throws IOException if the batch can't be written to the log, in which
+   *         case none of it is applied
+   */
+  void write(Batch batch) throws IOException {
+    if (batch.isEmpty()) {
+      return;
+    }
+    synchronized (commitLock) {
+      long sequence = lastSequence + 1;
+      appendToLog(sequence, batch.writes);
+      // Versions at or before the oldest open snapshot are only needed up
+      // to the newest of them
+      long horizon = openSnapshots.isEmpty() ? sequence : openSnapshots.firstKey();
+      for (Map.Entry<String, String> write : batch.writes.entrySet()) {
+        Version current = data.get(write.getKey());
+        if (current != null && current.value != null) {
+          liveSize -= size(write.getKey(), current.value);
+        }
+        if (write.getValue() != null) {
+          liveSize += size(write.getKey(), write.getValue());
+        }
+        logSize += size(write.getKey(), write.getValue());
+        Version older = prune(current, horizon);
+        if (write.getValue() == null && older == null) {
+          data.remove(write.getKey());
+        } else {
+          data.put(write.getKey(), new Version(sequence, write.getValue(), older));
+        }
+      }
+      lastSequence = sequence;
+      if (logSize > MIN_COMPACTION_SIZE && liveSize < logSize / 2) {
+        try {
+          compact();
+        } catch (IOException e) {
+          // The batch is committed, we'll try again on the next write
+          LOG.log(Level.WARNING, "Unable to compact " + logFile, e);
+        }
+      }
+    }
+  }
+
+  /**
+   * Rewrites the log so it only holds the latest value of each key.
+   *
+   * @throws IOException if the new log can't be written
+   */
+  void compact() throws IOException {
+    synchronized (commitLock) {
+      File temp = new File(logFile.getPath() + ".tmp");
+      FileOutputStream tempStream = new FileOutputStream(temp);
+      DataOutputStream tempLog = new DataOutputStream(new BufferedOutputStream(tempStream));
+      long size = 0;
+      try {
+        Map<String, String> live = new LinkedHashMap<String, String>();
+        for (Map.Entry<String, Version> entry : data.entrySet()) {
+          if (entry.getValue().value != null) {
+            live.put(entry.getKey(), entry.getValue().value);
+            size += size(entry.getKey(), entry.getValue().value);
+          }
+        }
+        writeRecord(tempLog, lastSequence, live);
+        tempLog.flush();
+        tempStream.getFD().sync();
+      } finally {
+        tempLog.close();
+      }
+      closeLog();
+      if (!temp.renameTo(logFile)) {
+        if (!logFile.delete() || !temp.renameTo(logFile)) {
+          throw new IOException("Unable to replace " + logFile);
+        }
+      }
+      openLog();
+      logSize = size;
+      liveSize = size;
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    synchronized (commitLock) {
+      closeLog();
+    }
+  }
+
+  private SortedMap<String, Version> prefixMap(String prefix) {
+    return data.subMap(prefix, prefix + Character.MAX_VALUE);
+  }
+
+  private static long size(String key, String value) {
+    return key.length() + (value == null ? 0 : value.length());
+  }
+
+  private static String valueAt(Version version, long sequence) {
+    while (version != null && version.sequence > sequence) {
+      version = version.older;
+    }
+    return version == null ? null : version.value;
+  }
+
+  // Drops the versions no snapshot can see. The newest version at or
+  // before the horizon is the last one we need.
+  private static Version prune(Version version, long horizon) {
+    if (version == null) {
+      return null;
+    }
+    if (version.sequence <= horizon) {
+      return version.value == null ? null : new Version(version.sequence, version.value, null);
+    }
+    return new Version(version.sequence, version.value, prune(version.older, horizon));
+  }
+
+  private void openLog() throws IOException {
+    logFileStream = new FileOutputStream(logFile, true);
+    log = new DataOutputStream(new BufferedOutputStream(logFileStream));
+  }
+
+  private void closeLog() throws IOException {
+    if (log != null) {
+      log.close();
+      log = null;
+      logFileStream = null;
+    }
+  }
+
+  private void appendToLog(long sequence, Map<String, String> writes) throws IOException {
+    if (log == null) {
+      throw new IOException("Store is closed");
+    }
+    // Every record is flushed, so this is where the last good one ends
+    long goodLength = logFileStream.getChannel().position();
+    try {
+      writeRecord(log, sequence, writes);
+      log.flush();
+      if (syncWrites) {
+        logFileStream.getFD().sync();
+      }
+    } catch (IOException e) {
+      truncateLog(goodLength);
+      throw e;
+    }
+  }
+
+  // Drops the part of a record that made it to the log before a write
+  // failed. Otherwise the records appended after it could not be replayed.
+  // If that fails too, the store is closed rather than left appending
+  // after a broken record.
+  private void truncateLog(long length) {
+    try {
+      log.close();
+    } catch (IOException e) {
+      // We're dropping whatever it still held anyway
+    }
+    log = null;
+    logFileStream = null;
+    try {
+      RandomAccessFile file = new RandomAccessFile(logFile, "rw");
+      try {
+        file.setLength(length);
+      } finally {
+        file.close();
+      }
+      openLog();
+    } catch (IOException e) {
+      LOG.log(Level.SEVERE, "Unable to truncate " + logFile + ", closing the store", e);
+    }
+  }
+
+  // A log record is: sequence, length of the body, body, CRC32 of the body.
+  // The checksum lets us ignore a record that was only partly written when
+  // the server died.
+  private static void writeRecord(DataOutputStream out, long sequence, Map<String, String> writes)
+      throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream body = new DataOutputStream(bytes);
+    body.writeInt(writes.size());
+    for (Map.Entry<String, String> write : writes.entrySet()) {
+      writeString(body, write.getKey());
+      writeString(body, write.getValue());
+    }
+    body.flush();
+    byte[] record = bytes.toByteArray();
+    CRC32 crc = new CRC32();
+    crc.update(record);
+    out.writeLong(sequence);
+    out.writeInt(record.length);
+    out.write(record);
+    out.writeLong(crc.getValue());
+  }
+
+  // A record that was cut short or is corrupt is expected at the end of
+  // the log, if the server died while writing it, and is ignored. Anywhere
+  // else it means the log is damaged, and rather than lose the records
+  // after it we refuse to open the store.
+  private void replay() throws IOException {
+    long remaining = logFile.length();
+    DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(logFile)));
+    try {
+      while (remaining > 0) {
+        long sequence;
+        byte[] record;
+        try {
+          sequence = in.readLong();
+          int length = in.readInt();
+          // The length itself may be garbage
+          if (length < 0 || length > remaining - RECORD_OVERHEAD) {
+            LOG.warning("Ignoring a partly written record at the end of " + logFile);
+            break;
+          }
+          record = new byte[length];
+          in.readFully(record);
+          CRC32 crc = new CRC32();
+          crc.update(record);
+          if (crc.getValue() != in.readLong()) {
+            if (remaining > length + RECORD_OVERHEAD) {
+              throw new IOException("Corrupt record " + sequence + " in " + logFile);
+            }
+            LOG.warning("Ignoring corrupt record " + sequence + " at the end of " + logFile);
+            break;
+          }
+          remaining -= length + RECORD_OVERHEAD;
+        } catch (EOFException e) {
+          LOG.warning("Ignoring a partly written record at the end of " + logFile);
+          break;
+        }
+        DataInputStream body = new DataInputStream(new ByteArrayInputStream(record));
+        int count = body.readInt();
+        for (int i = 0; i < count; i++) {
+          String key = readString(body);
+          String value = readString(body);
+          if (value == null) {
+            data.remove(key);
+          } else {
+            data.put(key, new Version(sequence, value, null));
+          }
+        }
+        lastSequence = sequence;
+      }
+    } catch (IOException e) {
+      LOG.log(Level.SEVERE, "Error reading " + logFile, e);
+      throw e;
+    } finally {
+      in.close();
+    }
+  }
+
+  private static void writeString(DataOutputStream out, String s) throws IOException {
+    if (s == null) {
+      out.writeInt(-1);
+    } else {
+      byte[] bytes = s.getBytes(Charsets.UTF_8);
+      out.writeInt(bytes.length);
+      out.write(bytes);
+    }
+  }
+
+  private static String readString(DataInputStream in) throws IOException {
+    int length = in.readInt();
+    if (length < 0) {
+      return null;
+    }
+    byte[] bytes = new byte[length];
+    in.readFully(bytes);
+    return new String(bytes, Charsets.UTF_8);
+  }
+}
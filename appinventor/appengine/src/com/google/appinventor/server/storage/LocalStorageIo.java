@@ -0,0 +1,1554 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server.storage;
+
+import com.google.appinventor.server.CrashReport;
+import com.google.appinventor.server.FileExporter;
+import com.google.appinventor.server.flags.Flag;
+import com.google.appinventor.server.storage.StoredData.FileData;
+import com.google.appinventor.server.storage.StoredData.PWData;
+import com.google.appinventor.shared.rpc.AdminInterfaceException;
+import com.google.appinventor.shared.rpc.BlocksTruncatedException;
+import com.google.appinventor.shared.rpc.Motd;
+import com.google.appinventor.shared.rpc.Nonce;
+import com.google.appinventor.shared.rpc.admin.AdminUser;
+import com.google.appinventor.shared.rpc.project.Project;
+import com.google.appinventor.shared.rpc.project.ProjectSourceZip;
+import com.google.appinventor.shared.rpc.project.RawFile;
+import com.google.appinventor.shared.rpc.project.TextFile;
+import com.google.appinventor.shared.rpc.project.UserProject;
+import com.google.appinventor.shared.rpc.project.youngandroid.YoungAndroidProjectNode;
+import com.google.appinventor.shared.rpc.user.SplashConfig;
+import com.google.appinventor.shared.rpc.user.User;
+import com.google.appinventor.shared.storage.StorageUtil;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Strings;
+import com.google.common.util.concurrent.Striped;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.logging.Logger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import javax.annotation.Nullable;
+
+import org.json.JSONObject;
+
+/**
+ * Implements the StorageIo interface on the local disk, for App Inventor
+ * servers that don't run on App Engine.
+ *
+ * Records (users, projects, files, ...) are JSON objects kept in a
+ * {@link LocalKeyValueStore}; file contents are kept in a content
+ * addressed {@link LocalBlobStore}. Where {@link ObjectifyStorageIo} uses
+ * an entity group transaction (retried on contention), we take a lock on
+ * the project (or user) for the read-modify-write of its records and
+ * commit the changes as one batch. Contents are written to the blob store
+ * before the lock is taken, so a slow disk doesn't hold up other writers
+ * of the same project, and exports read a snapshot of the store without
+ * taking any lock at all.
+ *
+ * Selected with the storage.backend flag (see StorageIoInstanceHolder).
+ */
+public class LocalStorageIo implements StorageIo {
+  static final Flag<Boolean> requireTos = Flag.createFlag("require.tos", false);
+
+  private static final Logger LOG = Logger.getLogger(LocalStorageIo.class.getName());
+
+  private static final boolean SYNC_WRITES = Flag.createFlag("storage.local.sync", false).get();
+
+  private static final long MOTD_ID = 1;
+
+  private static final long TWENTYFOURHOURS = 24*3600*1000; // 24 hours in milliseconds
+
+  // Blobs written in the last hour are never garbage collected, the
+  // records pointing at them may not be committed yet
+  private static final long BLOB_GRACE_PERIOD = 3600*1000;
+
+  private static final String TEMP_PREFIX = "__TEMP__/";
+
+  private static final int LOCK_STRIPES = 256;
+
+  // Most entries one batch of a maintenance job looks at
+  private static final int MAINTENANCE_BATCH = 500;
+
+  // Record keys
+  private static final String USER = "user/";
+  private static final String USER_EMAIL = "useremail/";
+  private static final String USER_PROJECT = "userproject/";
+  private static final String USER_FILE = "userfile/";
+  private static final String PROJECT = "project/";
+  private static final String PROJECT_FILE = "file/";
+  private static final String BACKUP = "backup/";
+  private static final String NONCE = "nonce/";
+  private static final String RENDEZVOUS = "rendezvous/";
+  private static final String WHITELIST = "whitelist/";
+  private static final String FEEDBACK = "feedback/";
+  private static final String CORRUPTION = "corruption/";
+  private static final String PWDATA = "pwdata/";
+  private static final String MOTD = "motd";
+  private static final String SPLASH = "splash";
+
+  private final LocalKeyValueStore store;
+  private final LocalBlobStore blobs;
+  private final Striped<Lock> locks = Striped.lock(LOCK_STRIPES);
+  private final AtomicLong lastProjectId;
+
+  // A change to one record, made while holding the lock that covers it
+  private interface Update {
+    void apply(JSONObject record);
+  }
+
+  /**
+   * Opens (or creates) the storage kept in directory.
+   *
+   * @param directory the data directory
+   * @throws IOException if the storage can't be opened
+   */
+  public LocalStorageIo(File directory) throws IOException {
+    store = new LocalKeyValueStore(new File(directory, "store"), SYNC_WRITES);
+    blobs = new LocalBlobStore(new File(directory, "blobs"));
+    long last = 0;
+    for (String key : store.scan(PROJECT).keySet()) {
+      last = Math.max(last, Long.parseLong(key.substring(PROJECT.length())));
+    }
+    lastProjectId = new AtomicLong(last);
+    initMotd();
+    collectGarbage();
+  }
+
+  @Override
+  public User getUser(String userId) {
+    return getUser(userId, null);
+  }
+
+  @Override
+  public User getUser(final String userId, final String email) {
+    Lock lock = userLock(userId);
+    lock.lock();
+    try {
+      LocalKeyValueStore.Batch batch = new LocalKeyValueStore.Batch();
+      String id = userId;
+      JSONObject userData = read(userKey(userId));
+      if (userData == null) {
+        LOG.info("Did not find userId " + userId);
+        if (email != null) {    // Attempt to find them by email
+          String foundId = store.get(emailKey(email));
+          if (foundId != null) {
+            userData = read(userKey(foundId));
+          }
+          if (userData != null) {
+            LOG.info("Found based on email, userData.id = " + foundId);
+            id = foundId;
+          }
+        }
+        if (userData == null) { // No joy, create it.
+          userData = createUser(batch, userId, email);
+        }
+      } else if (email != null && !email.equals(userData.optString("email"))) {
+        setEmail(batch, userId, userData, email);
+        batch.put(userKey(userId), userData.toString());
+      }
+      if (userData.optInt("emailFrequency") == 0) {
+        userData.put("emailFrequency", User.DEFAULT_EMAIL_NOTIFICATION_FREQUENCY);
+        batch.put(userKey(id), userData.toString());
+      }
+      commit(batch, collectUserErrorInfo(userId));
+      return makeUser(id, userData);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public User getUserFromEmail(String email) {
+    LOG.info("getUserFromEmail: email = " + email);
+    String userId = store.get(emailKey(email));
+    JSONObject userData = userId == null ? null : read(userKey(userId));
+    if (userData == null) {
+      userId = UUID.randomUUID().toString();
+      LocalKeyValueStore.Batch batch = new LocalKeyValueStore.Batch();
+      userData = createUser(batch, userId, email);
+      commit(batch, collectUserErrorInfo(userId));
+    }
+    User retUser = new User(userId, email, userData.optString("name", null),
+        userData.optString("link", null), 0, userData.optBoolean("tosAccepted"), false,
+        userData.optInt("type"), userData.optString("sessionid", null));
+    retUser.setPassword(userData.optString("password", null));
+    return retUser;
+  }
+
+  private JSONObject createUser(LocalKeyValueStore.Batch batch, String userId, String email) {
+    JSONObject userData = new JSONObject();
+    userData.put("tosAccepted", false);
+    userData.put("settings", "");
+    userData.put("name", User.getDefaultName(email));
+    userData.put("type", User.USER);
+    userData.put("link", "");
+    userData.put("emailFrequency", User.DEFAULT_EMAIL_NOTIFICATION_FREQUENCY);
+    setEmail(batch, userId, userData, email == null ? "" : email);
+    batch.put(userKey(userId), userData.toString());
+    return userData;
+  }
+
+  // Sets the email address of a user and keeps the email index up to date
+  private void setEmail(LocalKeyValueStore.Batch batch, String userId, JSONObject userData,
+      String email) {
+    String oldEmail = userData.optString("email", null);
+    if (!Strings.isNullOrEmpty(oldEmail) && userId.equals(store.get(emailKey(oldEmail)))) {
+      batch.delete(emailKey(oldEmail));
+    }
+    userData.put("email", email);
+    userData.put("emaillower", email.toLowerCase());
+    if (!email.isEmpty()) {
+      batch.put(emailKey(email), userId);
+    }
+  }
+
+  private User makeUser(String userId, JSONObject userData) {
+    User user = new User(userId, userData.optString("email"), userData.optString("name", null),
+        userData.optString("link", null), userData.optInt("emailFrequency"),
+        userData.optBoolean("tosAccepted") || !requireTos.get(),
+        userData.optBoolean("isAdmin"), userData.optInt("type"),
+        userData.optString("sessionid", null));
+    user.setPassword(userData.optString("password", null));
+    return user;
+  }
+
+  @Override
+  public void setTosAccepted(final String userId) {
+    updateUser(userId, new Update() {
+      @Override
+      public void apply(JSONObject userData) {
+        userData.put("tosAccepted", true);
+      }
+    });
+  }
+
+  @Override
+  public void setUserEmail(final String userId, String inputemail) {
+    final String email = inputemail.toLowerCase();
+    Lock lock = userLock(userId);
+    lock.lock();
+    try {
+      JSONObject userData = read(userKey(userId));
+      if (userData != null) {
+        LocalKeyValueStore.Batch batch = new LocalKeyValueStore.Batch();
+        setEmail(batch, userId, userData, email);
+        batch.put(userKey(userId), userData.toString());
+        commit(batch, collectUserErrorInfo(userId));
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public void setUserName(final String userId, final String name) {
+    updateUser(userId, new Update() {
+      @Override
+      public void apply(JSONObject userData) {
+        userData.put("name", name);
+      }
+    });
+  }
+
+  @Override
+  public void setUserLink(final String userId, final String link) {
+    updateUser(userId, new Update() {
+      @Override
+      public void apply(JSONObject userData) {
+        userData.put("link", link);
+      }
+    });
+  }
+
+  @Override
+  public void setUserEmailFrequency(final String userId, final int emailFrequency) {
+    updateUser(userId, new Update() {
+      @Override
+      public void apply(JSONObject userData) {
+        userData.put("emailFrequency", emailFrequency);
+      }
+    });
+  }
+
+  @Override
+  public void setUserSessionId(final String userId, final String sessionId) {
+    updateUser(userId, new Update() {
+      @Override
+      public void apply(JSONObject userData) {
+        userData.put("sessionid", sessionId);
+      }
+    });
+  }
+
+  @Override
+  public void setUserPassword(final String userId, final String password) {
+    updateUser(userId, new Update() {
+      @Override
+      public void apply(JSONObject userData) {
+        userData.put("password", password);
+      }
+    });
+  }
+
+  @Override
+  public String loadSettings(final String userId) {
+    JSONObject userData = read(userKey(userId));
+    return userData == null ? "" : userData.optString("settings");
+  }
+
+  @Override
+  public String getUserName(final String userId) {
+    JSONObject userData = read(userKey(userId));
+    return userData == null ? "unknown" : userData.optString("name", null);
+  }
+
+  @Override
+  public String getUserLink(final String userId) {
+    JSONObject userData = read(userKey(userId));
+    return userData == null ? "unknown" : userData.optString("link", null);
+  }
+
+  @Override
+  public int getUserEmailFrequency(final String userId) {
+    JSONObject userData = read(userKey(userId));
+    return userData == null ? User.DEFAULT_EMAIL_NOTIFICATION_FREQUENCY
+        : userData.optInt("emailFrequency");
+  }
+
+  @Override
+  public void storeSettings(final String userId, final String settings) {
+    updateUser(userId, new Update() {
+      @Override
+      public void apply(JSONObject userData) {
+        userData.put("settings", settings);
+        userData.put("visited", System.currentTimeMillis()); // This person was active now
+      }
+    });
+  }
+
+  private void updateUser(String userId, Update update) {
+    Lock lock = userLock(userId);
+    lock.lock();
+    try {
+      JSONObject userData = read(userKey(userId));
+      if (userData != null) {
+        update.apply(userData);
+        commit(new LocalKeyValueStore.Batch().put(userKey(userId), userData.toString()),
+            collectUserErrorInfo(userId));
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public long createProject(final String userId, final Project project,
+      final String projectSettings) {
+    return createProject(userId, project, projectSettings,
+        Collections.<String, JSONObject>emptyMap());
+  }
+
+  @Override
+  public long copyProject(final String userId, final long oldProjectId, final Project project,
+      final String projectSettings, final Map<String, String> copiedFiles) {
+    // Blobs are named by their content and never change, so a copy of a
+    // file is a new record naming the same blob. Blobs are only collected
+    // when the store is opened, so the blob can't go away under us.
+    Map<String, JSONObject> copies = new LinkedHashMap<String, JSONObject>();
+    for (Map.Entry<String, String> entry : copiedFiles.entrySet()) {
+      JSONObject fd = read(projectFileKey(oldProjectId, entry.getValue()));
+      if (fd == null) {
+        throw CrashReport.createAndLogError(LOG, null,
+            collectProjectErrorInfo(userId, oldProjectId, entry.getValue()),
+            new FileNotFoundException("No data for " + entry.getValue()));
+      }
+      checkOwner(fd, userId, oldProjectId);
+      JSONObject copy = new JSONObject();
+      copy.put("role", FileData.RoleEnum.SOURCE.name());
+      copy.put("userId", userId);
+      if (fd.has("blob")) {
+        copy.put("blob", fd.getString("blob"));
+        copy.put("size", fd.getLong("size"));
+      }
+      copies.put(entry.getKey(), copy);
+    }
+    return createProject(userId, project, projectSettings, copies);
+  }
+
+  @Override
+  public ProjectImport beginProjectImport(final String userId, long maxBufferedBytes) {
+    // Each file goes to the blob store as it is added, nothing is kept in
+    // memory. Blobs of an import that is never committed are collected
+    // the next time the store is opened.
+    return new ProjectImport() {
+      private final Map<String, JSONObject> files = new LinkedHashMap<String, JSONObject>();
+
+      @Override
+      public void addFile(String fileName, byte[] content) throws IOException {
+        files.put(fileName, makeFileRecord(FileData.RoleEnum.SOURCE, userId, content));
+      }
+
+      @Override
+      public long commit(Project project, String projectSettings) {
+        return createProject(userId, project, projectSettings, files);
+      }
+
+      @Override
+      public void abort() {
+      }
+    };
+  }
+
+  private long createProject(String userId, Project project, String projectSettings,
+      Map<String, JSONObject> copies) {
+    long projectId = lastProjectId.incrementAndGet();
+    long date = System.currentTimeMillis();
+    JSONObject pd = new JSONObject();
+    pd.put("name", project.getProjectName());
+    pd.put("type", project.getProjectType());
+    pd.put("settings", projectSettings);
+    pd.put("history", project.getProjectHistory());
+    pd.put("dateCreated", date);
+    pd.put("dateModified", date);
+    pd.put("galleryId", UserProject.NOTPUBLISHED);
+    pd.put("attributionId", UserProject.FROMSCRATCH);
+
+    // Nobody else knows about the project yet, so there is nothing to
+    // lock. The project, its files and the user's link to it are committed
+    // together, so either all of them exist or none do.
+    LocalKeyValueStore.Batch batch = new LocalKeyValueStore.Batch();
+    batch.put(projectKey(projectId), pd.toString());
+    String fileName = null;
+    try {
+      for (TextFile file : project.getSourceFiles()) {
+        fileName = file.getFileName();
+        batch.put(projectFileKey(projectId, fileName), makeFileRecord(FileData.RoleEnum.SOURCE,
+            userId, file.getContent().getBytes(StorageUtil.DEFAULT_CHARSET)).toString());
+      }
+      for (RawFile file : project.getRawSourceFiles()) {
+        fileName = file.getFileName();
+        batch.put(projectFileKey(projectId, fileName), makeFileRecord(FileData.RoleEnum.SOURCE,
+            userId, file.getContent()).toString());
+      }
+    } catch (IOException e) {
+      throw CrashReport.createAndLogError(LOG, null,
+          collectProjectErrorInfo(userId, projectId, fileName), e);
+    }
+    for (Map.Entry<String, JSONObject> copy : copies.entrySet()) {
+      batch.put(projectFileKey(projectId, copy.getKey()), copy.getValue().toString());
+    }
+    JSONObject upd = new JSONObject();
+    upd.put("settings", projectSettings);
+    upd.put("state", StoredData.UserProjectData.StateEnum.OPEN.name());
+    batch.put(userProjectKey(userId, projectId), upd.toString());
+    commit(batch, collectUserProjectErrorInfo(userId, projectId));
+    return projectId;
+  }
+
+  // Stores content in the blob store and returns a new file record pointing at it
+  private JSONObject makeFileRecord(FileData.RoleEnum role, String userId, byte[] content)
+      throws IOException {
+    JSONObject fd = new JSONObject();
+    fd.put("role", role.name());
+    fd.put("userId", userId);
+    fd.put("blob", blobs.put(content));
+    fd.put("size", content.length);
+    return fd;
+  }
+
+  @Override
+  public void deleteProject(final String userId, final long projectId) {
+    Lock lock = projectLock(projectId);
+    lock.lock();
+    try {
+      LocalKeyValueStore.Batch batch = new LocalKeyValueStore.Batch();
+      batch.delete(userProjectKey(userId, projectId));
+      for (String key : store.scan(projectFilePrefix(projectId)).keySet()) {
+        batch.delete(key);
+      }
+      for (String key : store.scan(BACKUP + projectId + "/").keySet()) {
+        batch.delete(key);
+      }
+      batch.delete(projectKey(projectId));
+      commit(batch, collectUserProjectErrorInfo(userId, projectId));
+    } finally {
+      lock.unlock();
+    }
+    // The file contents may be shared with other files, they are removed
+    // by collectGarbage once nothing points at them.
+  }
+
+  @Override
+  public void setProjectGalleryId(final String userId, final long projectId,
+      final long galleryId) {
+    updateProject(projectId, new Update() {
+      @Override
+      public void apply(JSONObject pd) {
+        pd.put("galleryId", galleryId);
+      }
+    });
+  }
+
+  @Override
+  public void setProjectAttributionId(final String userId, final long projectId,
+      final long attributionId) {
+    updateProject(projectId, new Update() {
+      @Override
+      public void apply(JSONObject pd) {
+        pd.put("attributionId", attributionId);
+      }
+    });
+  }
+
+  @Override
+  public List<Long> getProjects(final String userId) {
+    List<Long> projects = new ArrayList<Long>();
+    String prefix = userProjectPrefix(userId);
+    for (String key : store.scan(prefix).keySet()) {
+      projects.add(Long.parseLong(key.substring(prefix.length())));
+    }
+    return projects;
+  }
+
+  @Override
+  public String loadProjectSettings(final String userId, final long projectId) {
+    JSONObject pd = read(projectKey(projectId));
+    return pd == null ? "" : pd.optString("settings", null);
+  }
+
+  @Override
+  public void storeProjectSettings(final String userId, final long projectId,
+      final String settings) {
+    updateProject(projectId, new Update() {
+      @Override
+      public void apply(JSONObject pd) {
+        pd.put("settings", settings);
+      }
+    });
+  }
+
+  @Override
+  public String getProjectType(final String userId, final long projectId) {
+    // We only have one project type, no need to ask about it
+    return YoungAndroidProjectNode.YOUNG_ANDROID_PROJECT_TYPE;
+  }
+
+  @Override
+  public UserProject getUserProject(final String userId, final long projectId) {
+    JSONObject pd = read(projectKey(projectId));
+    return pd == null ? null : makeUserProject(projectId, pd);
+  }
+
+  @Override
+  public List<UserProject> getUserProjects(final String userId, final List<Long> projectIds) {
+    List<String> keys = new ArrayList<String>(projectIds.size());
+    for (long projectId : projectIds) {
+      keys.add(projectKey(projectId));
+    }
+    List<UserProject> uProjects = new ArrayList<UserProject>(projectIds.size());
+    for (Map.Entry<String, String> entry : store.getAll(keys).entrySet()) {
+      long projectId = Long.parseLong(entry.getKey().substring(PROJECT.length()));
+      UserProject project = makeUserProject(projectId, parse(entry.getValue()));
+      // The file records are in memory, summing their sizes is cheap
+      project.setSize(getProjectManifest(userId, projectId).getSourceSize());
+      uProjects.add(project);
+    }
+    return uProjects;
+  }
+
+  private static UserProject makeUserProject(long projectId, JSONObject pd) {
+    return new UserProject(projectId, pd.optString("name", null), pd.optString("type", null),
+        pd.optLong("dateCreated"), pd.optLong("dateModified"), pd.optLong("galleryId"),
+        pd.optLong("attributionId"));
+  }
+
+  @Override
+  public String getProjectName(final String userId, final long projectId) {
+    JSONObject pd = read(projectKey(projectId));
+    return pd == null ? "" : pd.optString("name", null);
+  }
+
+  @Override
+  public long getProjectDateModified(final String userId, final long projectId) {
+    JSONObject pd = read(projectKey(projectId));
+    return pd == null ? UserProject.NOTPUBLISHED : pd.optLong("dateModified");
+  }
+
+  @Override
+  public String getProjectHistory(final String userId, final long projectId) {
+    JSONObject pd = read(projectKey(projectId));
+    return pd == null ? "" : pd.optString("history", null);
+  }
+
+  @Override
+  public long getProjectDateCreated(final String userId, final long projectId) {
+    JSONObject pd = read(projectKey(projectId));
+    return pd == null ? UserProject.NOTPUBLISHED : pd.optLong("dateCreated");
+  }
+
+  @Override
+  public long getProjectGalleryId(String userId, final long projectId) {
+    JSONObject pd = read(projectKey(projectId));
+    return pd == null ? UserProject.NOTPUBLISHED : pd.optLong("galleryId");
+  }
+
+  @Override
+  public long getProjectAttributionId(final long projectId) {
+    JSONObject pd = read(projectKey(projectId));
+    return pd == null ? UserProject.FROMSCRATCH : pd.optLong("attributionId");
+  }
+
+  private void updateProject(long projectId, Update update) {
+    Lock lock = projectLock(projectId);
+    lock.lock();
+    try {
+      JSONObject pd = read(projectKey(projectId));
+      if (pd != null) {
+        update.apply(pd);
+        commit(new LocalKeyValueStore.Batch().put(projectKey(projectId), pd.toString()),
+            collectUserProjectErrorInfo(null, projectId));
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public void addFilesToUser(final String userId, final String... fileNames) {
+    Lock lock = userLock(userId);
+    lock.lock();
+    try {
+      LocalKeyValueStore.Batch batch = new LocalKeyValueStore.Batch();
+      for (String fileName : fileNames) {
+        if (store.get(userFileKey(userId, fileName)) == null) {
+          batch.put(userFileKey(userId, fileName), new JSONObject().toString());
+        }
+      }
+      commit(batch, collectUserErrorInfo(userId, fileNames[0]));
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public List<String> getUserFiles(final String userId) {
+    List<String> fileList = new ArrayList<String>();
+    String prefix = userFilePrefix(userId);
+    for (String key : store.scan(prefix).keySet()) {
+      fileList.add(key.substring(prefix.length()));
+    }
+    return fileList;
+  }
+
+  @Override
+  public void uploadUserFile(final String userId, final String fileName,
+      final String content, final String encoding) {
+    byte[] bytes;
+    try {
+      bytes = content.getBytes(encoding);
+    } catch (UnsupportedEncodingException e) {
+      throw CrashReport.createAndLogError(LOG, null, "Unsupported file content encoding, "
+          + collectUserErrorInfo(userId, fileName), e);
+    }
+    uploadRawUserFile(userId, fileName, bytes);
+  }
+
+  @Override
+  public void uploadRawUserFile(final String userId, final String fileName,
+      final byte[] content) {
+    final String blob = putBlob(content, collectUserErrorInfo(userId, fileName));
+    Lock lock = userLock(userId);
+    lock.lock();
+    try {
+      // We expect the file to have been added with addFilesToUser
+      JSONObject ufd = read(userFileKey(userId, fileName));
+      Preconditions.checkState(ufd != null);
+      ufd.put("blob", blob);
+      commit(new LocalKeyValueStore.Batch().put(userFileKey(userId, fileName), ufd.toString()),
+          collectUserErrorInfo(userId, fileName));
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public String downloadUserFile(final String userId, final String fileName,
+      final String encoding) {
+    try {
+      return new String(downloadRawUserFile(userId, fileName), encoding);
+    } catch (UnsupportedEncodingException e) {
+      throw CrashReport.createAndLogError(LOG, null, "Unsupported file content encoding, " +
+          collectUserErrorInfo(userId, fileName), e);
+    }
+  }
+
+  @Override
+  public byte[] downloadRawUserFile(final String userId, final String fileName) {
+    JSONObject ufd = read(userFileKey(userId, fileName));
+    if (ufd == null) {
+      throw CrashReport.createAndLogError(LOG, null, collectUserErrorInfo(userId, fileName),
+          new FileNotFoundException(fileName));
+    }
+    return getBlob(ufd, collectUserErrorInfo(userId, fileName));
+  }
+
+  @Override
+  public void deleteUserFile(final String userId, final String fileName) {
+    commit(new LocalKeyValueStore.Batch().delete(userFileKey(userId, fileName)),
+        collectUserErrorInfo(userId, fileName));
+  }
+
+  @Override
+  public int getMaxJobSizeBytes() {
+    return 5 * 1024 * 1024;
+  }
+
+  @Override
+  public void addSourceFilesToProject(final String userId, final long projectId,
+      final boolean changeModDate, final String... fileNames) {
+    addFilesToProject(projectId, FileData.RoleEnum.SOURCE, changeModDate, userId, fileNames);
+  }
+
+  @Override
+  public void addOutputFilesToProject(final String userId, final long projectId,
+      final String... fileNames) {
+    addFilesToProject(projectId, FileData.RoleEnum.TARGET, false, userId, fileNames);
+  }
+
+  private void addFilesToProject(long projectId, FileData.RoleEnum role,
+      boolean changeModDate, String userId, String... fileNames) {
+    Lock lock = projectLock(projectId);
+    lock.lock();
+    try {
+      LocalKeyValueStore.Batch batch = new LocalKeyValueStore.Batch();
+      for (String fileName : fileNames) {
+        JSONObject fd = read(projectFileKey(projectId, fileName));
+        if (fd == null) {
+          fd = new JSONObject();
+          fd.put("role", role.name());
+          fd.put("userId", userId);
+          batch.put(projectFileKey(projectId, fileName), fd.toString());
+        } else {
+          checkRole(fd, role, projectId, fileName);
+        }
+      }
+      if (changeModDate) {
+        updateProjectModDate(batch, projectId);
+      }
+      commit(batch, collectProjectErrorInfo(userId, projectId, fileNames[0]));
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public void removeSourceFilesFromProject(final String userId, final long projectId,
+      final boolean changeModDate, final String... fileNames) {
+    removeFilesFromProject(userId, projectId, FileData.RoleEnum.SOURCE, changeModDate, fileNames);
+  }
+
+  @Override
+  public void removeOutputFilesFromProject(final String userId, final long projectId,
+      final String... fileNames) {
+    removeFilesFromProject(userId, projectId, FileData.RoleEnum.TARGET, false, fileNames);
+  }
+
+  private void removeFilesFromProject(String userId, long projectId,
+      FileData.RoleEnum role, boolean changeModDate, String... fileNames) {
+    Lock lock = projectLock(projectId);
+    lock.lock();
+    try {
+      LocalKeyValueStore.Batch batch = new LocalKeyValueStore.Batch();
+      for (String fileName : fileNames) {
+        JSONObject fd = read(projectFileKey(projectId, fileName));
+        if (fd != null) {
+          checkRole(fd, role, projectId, fileName);
+          batch.delete(projectFileKey(projectId, fileName));
+        }
+      }
+      if (changeModDate) {
+        updateProjectModDate(batch, projectId);
+      }
+      commit(batch, collectProjectErrorInfo(userId, projectId, fileNames[0]));
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private static void checkRole(JSONObject fd, FileData.RoleEnum role, long projectId,
+      String fileName) {
+    if (!role.name().equals(fd.optString("role"))) {
+      throw CrashReport.createAndLogError(LOG, null,
+          collectProjectErrorInfo(null, projectId, fileName),
+          new IllegalStateException("File role change is not supported"));
+    }
+  }
+
+  @Override
+  public List<String> getProjectSourceFiles(final String userId, final long projectId) {
+    return getProjectFiles(projectId, FileData.RoleEnum.SOURCE);
+  }
+
+  @Override
+  public List<String> getProjectOutputFiles(final String userId, final long projectId) {
+    return getProjectFiles(projectId, FileData.RoleEnum.TARGET);
+  }
+
+  @Override
+  public ProjectManifest getProjectManifest(final String userId, final long projectId) {
+    // The file records are the manifest, all in memory and in one range of
+    // keys, so there is nothing to maintain separately. Blobs are named by
+    // the SHA-1 hash of their content, which is the checksum.
+    LocalKeyValueStore.Snapshot snapshot = store.snapshot();
+    try {
+      String pd = snapshot.get(projectKey(projectId));
+      ProjectManifest manifest =
+          new ProjectManifest(pd == null ? "" : parse(pd).optString("name", null));
+      String prefix = projectFilePrefix(projectId);
+      for (Map.Entry<String, String> entry : snapshot.scan(prefix).entrySet()) {
+        JSONObject fd = parse(entry.getValue());
+        String role = fd.optString("role");
+        if (role.equals(FileData.RoleEnum.SOURCE.name())
+            || role.equals(FileData.RoleEnum.TARGET.name())) {
+          manifest.put(new ProjectManifest.FileEntry(entry.getKey().substring(prefix.length()),
+              role.equals(FileData.RoleEnum.SOURCE.name()), fd.optLong("size"),
+              fd.optString("blob", null), fd.optLong("modified")));
+        }
+      }
+      return manifest;
+    } finally {
+      snapshot.close();
+    }
+  }
+
+  private List<String> getProjectFiles(long projectId, FileData.RoleEnum role) {
+    String prefix = projectFilePrefix(projectId);
+    List<String> fileList = new ArrayList<String>();
+    for (Map.Entry<String, String> entry : store.scan(prefix).entrySet()) {
+      if (role.name().equals(parse(entry.getValue()).optString("role"))) {
+        fileList.add(entry.getKey().substring(prefix.length()));
+      }
+    }
+    return fileList;
+  }
+
+  @Override
+  public long uploadFile(final long projectId, final String fileName, final String userId,
+      final String content, final String encoding) throws BlocksTruncatedException {
+    try {
+      return uploadRawFile(projectId, fileName, userId, false, content.getBytes(encoding));
+    } catch (UnsupportedEncodingException e) {
+      throw CrashReport.createAndLogError(LOG, null, "Unsupported file content encoding,"
+          + collectProjectErrorInfo(null, projectId, fileName), e);
+    }
+  }
+
+  @Override
+  public long uploadFileForce(final long projectId, final String fileName, final String userId,
+      final String content, final String encoding) {
+    try {
+      return uploadRawFileForce(projectId, fileName, userId, content.getBytes(encoding));
+    } catch (UnsupportedEncodingException e) {
+      throw CrashReport.createAndLogError(LOG, null, "Unsupported file content encoding,"
+          + collectProjectErrorInfo(null, projectId, fileName), e);
+    }
+  }
+
+  @Override
+  public long uploadRawFileForce(final long projectId, final String fileName, final String userId,
+      final byte[] content) {
+    try {
+      return uploadRawFile(projectId, fileName, userId, true, content);
+    } catch (BlocksTruncatedException e) {
+      // Won't get here, exception isn't thrown when force is true
+      return 0;
+    }
+  }
+
+  @Override
+  public long uploadRawFile(final long projectId, final String fileName, final String userId,
+      final boolean force, final byte[] content) throws BlocksTruncatedException {
+    // Store the content before taking the project lock. Blobs are content
+    // addressed, so if the update below fails we have at worst stored
+    // something nobody points at (and collectGarbage will remove it).
+    String blob = putBlob(content, collectProjectErrorInfo(userId, projectId, fileName));
+    long now = System.currentTimeMillis();
+    Lock lock = projectLock(projectId);
+    lock.lock();
+    try {
+      LocalKeyValueStore.Batch batch = new LocalKeyValueStore.Batch();
+      JSONObject fd = read(projectFileKey(projectId, fileName));
+
+      // <Screen>.yail files are missing when user converts AI1 project to AI2
+      // instead of blowing up, just create a <Screen>.yail file
+      if (fd == null && (fileName.endsWith(".yail") || (fileName.endsWith(".png")))) {
+        fd = new JSONObject();
+        fd.put("role", FileData.RoleEnum.SOURCE.name());
+        fd.put("userId", userId);
+      }
+
+      Preconditions.checkState(fd != null);
+      checkOwner(fd, userId, projectId);
+
+      if ((content.length < 125) && (fileName.endsWith(".bky"))) { // Likely this is an empty blocks workspace
+        // force is true if we *really* want to save it! Otherwise, see if we
+        // had previous content and throw an exception if so
+        if (!force && fd.optInt("size") > 120) {
+          throw new BlocksTruncatedException();
+        }
+      }
+
+      fd.put("blob", blob);
+      fd.put("size", content.length);
+      fd.put("modified", now);
+      if (isBackedUp(fileName) && (fd.optLong("lastBackup") + TWENTYFOURHOURS) < now) {
+        // The backup just points at the same blob
+        batch.put(BACKUP + projectId + "/" + fileName + "/" + formattedTime(), blob);
+        fd.put("lastBackup", now);
+      }
+      // Old file not marked with ownership, mark it now
+      if (Strings.isNullOrEmpty(fd.optString("userId", null))) {
+        fd.put("userId", userId);
+      }
+      batch.put(projectFileKey(projectId, fileName), fd.toString());
+      long modTime = updateProjectModDate(batch, projectId);
+      commit(batch, collectProjectErrorInfo(userId, projectId, fileName));
+      return modTime;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  // Same files as ObjectifyStorageIo keeps daily backups of
+  private static boolean isBackedUp(String fileName) {
+    return fileName.contains("src/") && (fileName.endsWith(".blk") // AI1 Blocks Files
+        || fileName.endsWith(".bky")                               // Blockly files
+        || fileName.endsWith(".scm"));                             // Form Definitions
+  }
+
+  // Must be called holding the project lock
+  private long updateProjectModDate(LocalKeyValueStore.Batch batch, long projectId) {
+    long modDate = System.currentTimeMillis();
+    JSONObject pd = read(projectKey(projectId));
+    if (pd == null) {
+      throw CrashReport.createAndLogError(LOG, null, null,
+          new IllegalArgumentException("project " + projectId + " doesn't exist"));
+    }
+    // Only update dateModified if it is more then a minute in the future,
+    // as ObjectifyStorageIo does.
+    if (modDate > (pd.optLong("dateModified") + 1000*60)) {
+      pd.put("dateModified", modDate);
+      batch.put(projectKey(projectId), pd.toString());
+      return modDate;
+    }
+    return pd.optLong("dateModified");
+  }
+
+  @Override
+  public long deleteFile(final String userId, final long projectId, final String fileName) {
+    Lock lock = projectLock(projectId);
+    lock.lock();
+    try {
+      LocalKeyValueStore.Batch batch = new LocalKeyValueStore.Batch();
+      JSONObject fd = read(projectFileKey(projectId, fileName));
+      if (fd != null) {
+        checkOwner(fd, userId, projectId);
+      }
+      batch.delete(projectFileKey(projectId, fileName));
+      long modTime = updateProjectModDate(batch, projectId);
+      commit(batch, collectProjectErrorInfo(userId, projectId, fileName));
+      return modTime;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public String downloadFile(final String userId, final long projectId, final String fileName,
+      final String encoding) {
+    try {
+      return new String(downloadRawFile(userId, projectId, fileName), encoding);
+    } catch (UnsupportedEncodingException e) {
+      throw CrashReport.createAndLogError(LOG, null, "Unsupported file content encoding, "
+          + collectProjectErrorInfo(userId, projectId, fileName), e);
+    }
+  }
+
+  @Override
+  public void recordCorruption(String userId, long projectId, String fileId, String message) {
+    JSONObject data = new JSONObject();
+    data.put("timestamp", System.currentTimeMillis());
+    data.put("userId", userId);
+    data.put("projectId", projectId);
+    data.put("fileId", fileId);
+    data.put("message", message);
+    commit(new LocalKeyValueStore.Batch().put(CORRUPTION + UUID.randomUUID(), data.toString()),
+        collectProjectErrorInfo(userId, projectId, fileId));
+  }
+
+  @Override
+  public byte[] downloadRawFile(final String userId, final long projectId, final String fileName) {
+    JSONObject fd = read(projectFileKey(projectId, fileName));
+    if (fd == null) {
+      throw CrashReport.createAndLogError(LOG, null,
+          collectProjectErrorInfo(userId, projectId, fileName),
+          new FileNotFoundException("No data for " + fileName));
+    }
+    checkOwner(fd, userId, projectId);
+    return getBlob(fd, collectProjectErrorInfo(userId, projectId, fileName));
+  }
+
+  private static void checkOwner(JSONObject fd, String userId, long projectId) {
+    String owner = fd.optString("userId", null);
+    if (!Strings.isNullOrEmpty(owner) && !owner.equals(userId)) {
+      throw CrashReport.createAndLogError(LOG, null,
+          collectUserProjectErrorInfo(userId, projectId),
+          new UnauthorizedAccessException(userId, projectId, null));
+    }
+  }
+
+  /**
+   *  Exports project files as a zip archive
+   * @param userId a user Id (the request is made on behalf of this user)
+   * @param projectId  project ID
+   * @param includeProjectHistory  whether or not to include the project history
+   * @param includeAndroidKeystore  whether or not to include the Android keystore
+   * @param zipName  the name of the zip file, if a specific one is desired
+   * @param includeYail include any yail files in the project
+   * @param includeScreenShots include any screen shots stored with the project
+   * @param fatalError Signal a fatal error if a file is not found
+   * @param forGallery flag to indicate we are exporting for the gallery
+   * @return  project with the content as requested by params.
+   */
+  @Override
+  public ProjectSourceZip exportProjectSourceZip(final String userId, final long projectId,
+    final boolean includeProjectHistory,
+    final boolean includeAndroidKeystore,
+    @Nullable String zipName,
+    final boolean includeYail,
+    final boolean includeScreenShots,
+    final boolean forGallery,
+    final boolean fatalError) throws IOException {
+    int fileCount = 0;
+    String projectName = null;
+    ByteArrayOutputStream zipFile = new ByteArrayOutputStream();
+    ZipOutputStream out = new ZipOutputStream(zipFile);
+    out.setComment("Built with MIT App Inventor");
+
+    // Read everything from one snapshot, so we export the project as it was
+    // at one point in time even if it is being saved while we read it.
+    LocalKeyValueStore.Snapshot snapshot = store.snapshot();
+    try {
+      String prefix = projectFilePrefix(projectId);
+      boolean foundFiles = false;
+      for (Map.Entry<String, String> entry : snapshot.scan(prefix).entrySet()) {
+        String fileName = entry.getKey().substring(prefix.length());
+        JSONObject fd = parse(entry.getValue());
+        if (fileName.startsWith("assets/external_comps") && forGallery) {
+          throw new IOException("FATAL Error, external component in gallery app");
+        }
+        if (!FileData.RoleEnum.SOURCE.name().equals(fd.optString("role"))) {
+          continue;
+        }
+        if (fileName.equals(FileExporter.REMIX_INFORMATION_FILE_PATH)) {
+          // Skip legacy remix history files that were previous stored with the project
+          continue;
+        }
+        if (fileName.startsWith("screenshots") && !includeScreenShots) {
+          // Only include screenshots if asked...
+          continue;
+        }
+        if (fileName.endsWith(".yail") && !includeYail) {
+          // Don't include YAIL files when exporting projects (see
+          // ObjectifyStorageIo.exportProjectSourceZip)
+          continue;
+        }
+        byte[] data = getBlob(fd, collectProjectErrorInfo(userId, projectId, fileName));
+        out.putNextEntry(new ZipEntry(fileName));
+        out.write(data, 0, data.length);
+        out.closeEntry();
+        fileCount++;
+        foundFiles = true;
+      }
+      if (foundFiles) {
+        JSONObject pd = parse(snapshot.get(projectKey(projectId)));
+        projectName = pd.optString("name", null);
+        String history = pd.optString("history", null);
+        if (includeProjectHistory && !Strings.isNullOrEmpty(history)) {
+          byte[] data = history.getBytes(StorageUtil.DEFAULT_CHARSET);
+          out.putNextEntry(new ZipEntry(FileExporter.REMIX_INFORMATION_FILE_PATH));
+          out.write(data, 0, data.length);
+          out.closeEntry();
+          fileCount++;
+        }
+      }
+
+      if (fileCount == 0) {
+        // can't close out since will get a ZipException due to the lack of files
+        throw new IllegalArgumentException("No files to download");
+      }
+
+      if (includeAndroidKeystore) {
+        String keystore = snapshot.get(userFileKey(userId, StorageUtil.ANDROID_KEYSTORE_FILENAME));
+        if (keystore != null) {
+          byte[] data = getBlob(parse(keystore),
+              collectUserErrorInfo(userId, StorageUtil.ANDROID_KEYSTORE_FILENAME));
+          if (data.length > 0) {
+            out.putNextEntry(new ZipEntry(StorageUtil.ANDROID_KEYSTORE_FILENAME));
+            out.write(data, 0, data.length);
+            out.closeEntry();
+            fileCount++;
+          }
+        }
+      }
+    } finally {
+      snapshot.close();
+    }
+    out.close();
+
+    if (zipName == null) {
+      zipName = projectName + ".aia";
+    }
+    ProjectSourceZip projectSourceZip =
+        new ProjectSourceZip(zipName, zipFile.toByteArray(), fileCount);
+    projectSourceZip.setMetadata(projectName);
+    return projectSourceZip;
+  }
+
+  @Override
+  public Motd getCurrentMotd() {
+    JSONObject motdData = read(MOTD);
+    if (motdData != null) { // it shouldn't be!
+      return new Motd(MOTD_ID, motdData.optString("caption", null),
+          motdData.optString("content", null));
+    } else {
+      return new Motd(MOTD_ID, "Oops, no message of the day!", null);
+    }
+  }
+
+  // Find a user by email address. This version does *not* create a new user
+  // if the user does not exist
+  @Override
+  public String findUserByEmail(String inputemail) throws NoSuchElementException {
+    String userId = store.get(emailKey(inputemail));
+    if (userId == null) {
+      throw new NoSuchElementException("Couldn't find a user with email " + inputemail);
+    }
+    return userId;
+  }
+
+  @Override
+  public String findIpAddressByKey(final String key) {
+    JSONObject data = read(RENDEZVOUS + key);
+    return data == null ? null : data.optString("ipAddress", null);
+  }
+
+  @Override
+  public void storeIpAddressByKey(final String key, final String ipAddress) {
+    JSONObject data = new JSONObject();
+    data.put("ipAddress", ipAddress);
+    data.put("used", System.currentTimeMillis()); // So we can cleanup old entries
+    commit(new LocalKeyValueStore.Batch().put(RENDEZVOUS + key, data.toString()), null);
+  }
+
+  @Override
+  public boolean checkWhiteList(String email) {
+    return store.get(WHITELIST + email.toLowerCase()) != null;
+  }
+
+  @Override
+  public void storeFeedback(final String notes, final String foundIn, final String faultData,
+    final String comments, final String datestamp, final String email, final String projectId) {
+    JSONObject data = new JSONObject();
+    data.put("notes", notes);
+    data.put("foundIn", foundIn);
+    data.put("faultData", faultData);
+    data.put("comments", comments);
+    data.put("datestamp", datestamp);
+    data.put("email", email);
+    data.put("projectId", projectId);
+    commit(new LocalKeyValueStore.Batch().put(FEEDBACK + UUID.randomUUID(), data.toString()),
+        null);
+  }
+
+  private void initMotd() {
+    if (store.get(MOTD) == null) {
+      JSONObject firstMotd = new JSONObject();
+      firstMotd.put("caption", "Hello!");
+      firstMotd.put("content", "Welcome to the experimental App Inventor system from MIT. " +
+          "This is still a prototype.  It would be a good idea to frequently back up " +
+          "your projects to local storage.");
+      commit(new LocalKeyValueStore.Batch().put(MOTD, firstMotd.toString()), "Initing MOTD");
+    }
+  }
+
+  // Nonce Management Routines.
+  // The Nonce is used to map to userId and ProjectId and is used
+  // for non-authenticated access to a built APK file.
+
+  @Override
+  public void storeNonce(final String nonceValue, final String userId, final long projectId) {
+    JSONObject data = new JSONObject();
+    data.put("userId", userId);
+    data.put("projectId", projectId);
+    data.put("timestamp", System.currentTimeMillis());
+    commit(new LocalKeyValueStore.Batch().put(NONCE + nonceValue, data.toString()), null);
+  }
+
+  @Override
+  public Nonce getNoncebyValue(String nonceValue) {
+    JSONObject data = read(NONCE + nonceValue);
+    if (data == null) {
+      return null;
+    }
+    return new Nonce(nonceValue, data.optString("userId", null), data.optLong("projectId"),
+        new Date(data.optLong("timestamp")));
+  }
+
+  @Override
+  public void checkUpgrade(String userId) {
+    // Nothing to upgrade, files are never in Blobstore or GCS
+  }
+
+  @Override
+  public void doUpgrade(String userId) {
+    // Nothing to upgrade, files are never in Blobstore or GCS
+  }
+
+  @Override
+  public SplashConfig getSplashConfig() {
+    JSONObject sd = read(SPLASH);
+    if (sd == null) {           // If we don't have Splash Data, create it
+      sd = new JSONObject();
+      sd.put("version", 0);
+      sd.put("content", "<b>Welcome to MIT App Inventor</b>");
+      sd.put("width", 350);
+      sd.put("height", 100);
+      commit(new LocalKeyValueStore.Batch().put(SPLASH, sd.toString()), null);
+    }
+    return new SplashConfig(sd.optInt("version"), sd.optInt("width"), sd.optInt("height"),
+        sd.optString("content", null));
+  }
+
+  @Override
+  public PWData createPWData(final String email) {
+    PWData pwData = new PWData();
+    pwData.id = UUID.randomUUID().toString();
+    pwData.email = email;
+    pwData.timestamp = new Date();
+    JSONObject data = new JSONObject();
+    data.put("email", email);
+    data.put("timestamp", pwData.timestamp.getTime());
+    commit(new LocalKeyValueStore.Batch().put(PWDATA + pwData.id, data.toString()), null);
+    return pwData;
+  }
+
+  @Override
+  public PWData findPWData(final String uid) {
+    JSONObject data = read(PWDATA + uid);
+    if (data == null) {
+      return null;
+    }
+    PWData pwData = new PWData();
+    pwData.id = uid;
+    pwData.email = data.optString("email", null);
+    pwData.timestamp = new Date(data.optLong("timestamp"));
+    return pwData;
+  }
+
+  // Same retention as ObjectifyStorageIo: nonces are kept for 3 hours,
+  // password tokens and rendezvous keys for 24 hours.
+  @Override
+  public MaintenanceBatch runMaintenance(MaintenanceJob job, @Nullable String cursor) {
+    switch (job) {
+      case NONCES:
+        return deleteOlderThan(NONCE, "timestamp", 3600*3*1000L, cursor);
+      case PASSWORD_TOKENS:
+        return deleteOlderThan(PWDATA, "timestamp", 3600*24*1000L, cursor);
+      case RENDEZVOUS:
+        return deleteOlderThan(RENDEZVOUS, "used", 3600*24*1000L, cursor);
+      default:
+        // Files are never in GCS, and a local server keeps its build outputs
+        return new MaintenanceBatch(0, 0, null);
+    }
+  }
+
+  // Deletes the expired entries among the next MAINTENANCE_BATCH entries
+  // after the cursor (an entry key)
+  private MaintenanceBatch deleteOlderThan(String prefix, String timestampField, long age,
+      @Nullable String cursor) {
+    long cutoff = System.currentTimeMillis() - age;
+    SortedMap<String, String> entries = store.scan(prefix);
+    if (cursor != null) {
+      entries = entries.tailMap(cursor + "\0");
+    }
+    LocalKeyValueStore.Batch batch = new LocalKeyValueStore.Batch();
+    int scanned = 0;
+    int deleted = 0;
+    String last = null;
+    for (Map.Entry<String, String> entry : entries.entrySet()) {
+      if (scanned == MAINTENANCE_BATCH) {
+        break;
+      }
+      scanned++;
+      last = entry.getKey();
+      if (parse(entry.getValue()).optLong(timestampField) < cutoff) {
+        batch.delete(entry.getKey());
+        deleted++;
+      }
+    }
+    commit(batch, null);
+    return new MaintenanceBatch(scanned, deleted, (scanned < MAINTENANCE_BATCH) ? null : last);
+  }
+
+  // The routines below are part of the user admin interface. Called from AdminInfoServiceImpl
+
+  @Override
+  public List<AdminUser> searchUsers(final String partialEmail) {
+    List<AdminUser> retval = new ArrayList<AdminUser>();
+    String from = emailKey(partialEmail);
+    for (Map.Entry<String, String> entry : store.scan(USER_EMAIL).entrySet()) {
+      if (entry.getKey().compareTo(from) < 0) {
+        continue;
+      }
+      JSONObject user = read(userKey(entry.getValue()));
+      if (user == null) {
+        continue;
+      }
+      boolean isModerator = (user.optInt("type") == User.MODERATOR);
+      Date visited = user.has("visited") ? new Date(user.optLong("visited")) : null;
+      retval.add(new AdminUser(entry.getValue(), user.optString("name", null),
+          user.optString("email", null), user.optBoolean("tosAccepted"),
+          user.optBoolean("isAdmin"), isModerator, visited));
+      if (retval.size() > 20) {
+        break;
+      }
+    }
+    return retval;
+  }
+
+  @Override
+  public void storeUser(final AdminUser user) throws AdminInterfaceException {
+    String userId = user.getId();
+    if (userId == null) {
+      userId = UUID.randomUUID().toString();
+    }
+    Lock lock = userLock(userId);
+    lock.lock();
+    try {
+      LocalKeyValueStore.Batch batch = new LocalKeyValueStore.Batch();
+      JSONObject userData = read(userKey(userId));
+      if (userData == null) {   // New User
+        if (store.get(emailKey(user.getEmail())) != null) {
+          throw new AdminInterfaceException("User Already exists = " + user.getEmail());
+        }
+        userData = createUser(batch, userId, user.getEmail());
+      } else {
+        setEmail(batch, userId, userData, user.getEmail());
+      }
+      String password = user.getPassword();
+      if (password != null && !password.equals("")) {
+        userData.put("password", password);
+      }
+      userData.put("isAdmin", user.getIsAdmin());
+      userData.put("type", user.getIsModerator() ? User.MODERATOR : User.USER);
+      batch.put(userKey(userId), userData.toString());
+      commit(batch, collectUserErrorInfo(userId));
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public String uploadTempFile(byte[] content) throws IOException {
+    String uuid = UUID.randomUUID().toString();
+    com.google.common.io.Files.write(content, blobs.tempFile(uuid));
+    return TEMP_PREFIX + uuid;
+  }
+
+  @Override
+  public InputStream openTempFile(String fileName) throws IOException {
+    return new FileInputStream(tempFile(fileName));
+  }
+
+  @Override
+  public void deleteTempFile(String fileName) throws IOException {
+    File file = tempFile(fileName);
+    if (file.exists() && !file.delete()) {
+      throw new IOException("Unable to delete " + fileName);
+    }
+  }
+
+  private File tempFile(String fileName) {
+    if (!fileName.startsWith(TEMP_PREFIX) || fileName.indexOf('/', TEMP_PREFIX.length()) >= 0
+        || fileName.contains("..")) {
+      throw new RuntimeException("deleteTempFile (" + fileName + ") Invalid File Name");
+    }
+    return blobs.tempFile(fileName.substring(TEMP_PREFIX.length()));
+  }
+
+  /**
+   * Deletes the blobs that no file, user file or backup points at any
+   * more (and that are older than an hour).
+   *
+   * @return the number of blobs deleted
+   */
+  public int collectGarbage() {
+    long cutoff = System.currentTimeMillis() - BLOB_GRACE_PERIOD;
+    Set<String> live = new HashSet<String>();
+    LocalKeyValueStore.Snapshot snapshot = store.snapshot();
+    try {
+      for (String prefix : new String[] { PROJECT_FILE, USER_FILE }) {
+        for (String record : snapshot.scan(prefix).values()) {
+          String blob = parse(record).optString("blob", null);
+          if (blob != null) {
+            live.add(blob);
+          }
+        }
+      }
+      live.addAll(snapshot.scan(BACKUP).values());
+    } finally {
+      snapshot.close();
+    }
+    int deleted = blobs.retainOnly(live, cutoff);
+    if (deleted > 0) {
+      LOG.info("Deleted " + deleted + " unused blobs");
+    }
+    return deleted;
+  }
+
+  @VisibleForTesting
+  void close() throws IOException {
+    store.close();
+  }
+
+  private String putBlob(byte[] content, String errorInfo) {
+    try {
+      return blobs.put(content);
+    } catch (IOException e) {
+      throw CrashReport.createAndLogError(LOG, null, errorInfo, e);
+    }
+  }
+
+  private byte[] getBlob(JSONObject record, String errorInfo) {
+    String blob = record.optString("blob", null);
+    if (blob == null) {         // Added but never uploaded
+      return new byte[0];
+    }
+    try {
+      return blobs.get(blob);
+    } catch (IOException e) {
+      throw CrashReport.createAndLogError(LOG, null, errorInfo, e);
+    }
+  }
+
+  private JSONObject read(String key) {
+    String value = store.get(key);
+    return value == null ? null : parse(value);
+  }
+
+  private static JSONObject parse(String value) {
+    return new JSONObject(value);
+  }
+
+  private void commit(LocalKeyValueStore.Batch batch, String errorInfo) {
+    try {
+      store.write(batch);
+    } catch (IOException e) {
+      throw CrashReport.createAndLogError(LOG, null, errorInfo, e);
+    }
+  }
+
+  private Lock userLock(String userId) {
+    return locks.get(userKey(userId));
+  }
+
+  private Lock projectLock(long projectId) {
+    return locks.get(projectKey(projectId));
+  }
+
+  private static String userKey(String userId) {
+    return USER + userId;
+  }
+
+  private static String emailKey(String email) {
+    return USER_EMAIL + email.toLowerCase();
+  }
+
+  private static String userProjectPrefix(String userId) {
+    return USER_PROJECT + userId + "/";
+  }
+
+  private static String userProjectKey(String userId, long projectId) {
+    return userProjectPrefix(userId) + projectId;
+  }
+
+  private static String userFilePrefix(String userId) {
+    return USER_FILE + userId + "/";
+  }
+
+  private static String userFileKey(String userId, String fileName) {
+    return userFilePrefix(userId) + fileName;
+  }
+
+  private static String projectKey(long projectId) {
+    return PROJECT + projectId;
+  }
+
+  private static String projectFilePrefix(long projectId) {
+    return PROJECT_FILE + projectId + "/";
+  }
+
+  private static String projectFileKey(long projectId, String fileName) {
+    return projectFilePrefix(projectId) + fileName;
+  }
+
+  private static String collectUserErrorInfo(final String userId) {
+    return collectUserErrorInfo(userId, CrashReport.NOT_AVAILABLE);
+  }
+
+  private static String collectUserErrorInfo(final String userId, String fileName) {
+    return "user=" + userId + ", file=" + fileName;
+  }
+
+  private static String collectProjectErrorInfo(final String userId, final long projectId,
+      final String fileName) {
+    return "user=" + userId + ", project=" + projectId + ", file=" + fileName;
+  }
+
+  private static String collectUserProjectErrorInfo(final String userId, final long projectId) {
+    return "user=" + userId + ", project=" + projectId;
+  }
+
+  // Return time in ISO_8660 format
+  private static String formattedTime() {
+    java.text.SimpleDateFormat formatter = new java.text.SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZ");
+    return formatter.format(new java.util.Date());
+  }
+}
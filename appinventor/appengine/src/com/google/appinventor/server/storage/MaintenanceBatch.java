@@ -0,0 +1,46 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server.storage;
+
+/**
+ * What one batch of a maintenance job did, and where the next batch of
+ * the job starts.
+ */
+public final class MaintenanceBatch {
+  private final int scanned;
+  private final int deleted;
+  private final String cursor;
+
+  /**
+   * @param scanned how many items the batch looked at
+   * @param deleted how many of them it deleted
+   * @param cursor where the next batch starts, or null if the job is done
+   */
+  public MaintenanceBatch(int scanned, int deleted, String cursor) {
+    this.scanned = scanned;
+    this.deleted = deleted;
+    this.cursor = cursor;
+  }
+
+  public int getScanned() {
+    return scanned;
+  }
+
+  public int getDeleted() {
+    return deleted;
+  }
+
+  /**
+   * @return where the next batch starts, or null if the job is done
+   */
+  public String getCursor() {
+    return cursor;
+  }
+
+  public boolean isDone() {
+    return cursor == null;
+  }
+}
@@ -0,0 +1,27 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server.storage;
+
+/**
+ * The kinds of garbage the scheduled maintenance deletes (see
+ * StorageIo.runMaintenance and MaintenanceServlet).
+ */
+public enum MaintenanceJob {
+  /** Nonces of QR code downloads, 3 hours after they were made. */
+  NONCES,
+
+  /** Password set/reset tokens, 24 hours after they were mailed out. */
+  PASSWORD_TOKENS,
+
+  /** Rendezvous keys stored while memcache was down, a day after they were last used. */
+  RENDEZVOUS,
+
+  /** GCS backups of the files of projects that were deleted. */
+  GCS_BACKUPS,
+
+  /** Build outputs of projects that weren't changed for a while. */
+  BUILD_OUTPUTS
+}
@@ -10,9 +10,13 @@ import java.util.ArrayList;
 import java.util.ConcurrentModificationException;
 import java.util.List;
 import java.util.TreeMap;
+import java.util.concurrent.locks.Lock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskAlreadyExistsException;
+import com.google.appengine.api.taskqueue.TaskOptions;
 import com.google.appinventor.server.CrashReport;
 import com.google.appinventor.server.GalleryEmail;
 import com.google.appinventor.server.GallerySearchIndex;
@@ -49,16 +53,34 @@ public class ObjectifyGalleryStorageIo implements  GalleryStorageIo {
 
   private static final String DEFAULT_ENCODING = "UTF-8";
 
-  // TODO(user): need a way to modify this. Also, what is really a good value?
-  private static final int MAX_JOB_RETRIES = 10;
   private static final long TWENTYFOURHOURS = 24*3600*1000; // 24 hours in milliseconds
 
+  // Sharded counters are folded back into GalleryAppData by a task on this
+  // queue, at most once per ROLLUP_INTERVAL for each app.
+  private static final String ROLLUP_QUEUE = "counterrollup";
+  private static final String ROLLUP_URL = "/tasks/rollupcounters";
+  private static final long ROLLUP_INTERVAL = 60*1000; // one minute in milliseconds
+
   // Use this class to define the work of a job that can be retried. The
   // "datastore" argument to run() is the Objectify object for this job
   // (created with ObjectifyService.beginTransaction()). Note that all operations
   // on "datastore" should be for objects in the same entity group.
   @VisibleForTesting
   abstract class JobRetryHelper {
+    private final String entityGroup;
+
+    JobRetryHelper() {
+      this(null);
+    }
+
+    /**
+     * @param entityGroup the entity group the job writes to, so jobs that
+     *        keep colliding on it take turns (see RetryPolicy)
+     */
+    JobRetryHelper(Key<?> entityGroup) {
+      this.entityGroup = (entityGroup == null) ? null : entityGroup.getString();
+    }
+
     public abstract void run(Objectify datastore) throws ObjectifyException;
     /**
      * Called before retrying the job. Note that the underlying datastore
@@ -87,8 +109,14 @@ public class ObjectifyGalleryStorageIo implements  GalleryStorageIo {
     ObjectifyService.register(GalleryAppAttributionData.class);
     ObjectifyService.register(GalleryAppReportData.class);
     ObjectifyService.register(GalleryModerationActionData.class);
+    ObjectifyService.register(GalleryCounterShardData.class);
   }
 
+  // Likes and downloads are counted on shards so that a popular app
+  // doesn't turn every click into a write of its GalleryAppData entity
+  private final ShardedCounter likesCounter = new ShardedCounter("likes");
+  private final ShardedCounter downloadsCounter = new ShardedCounter("downloads");
+
   // we'll need to talk to the StorageIo to get developer names, so...
   private final transient StorageIo storageIo =
       StorageIoInstanceHolder.INSTANCE;
@@ -402,22 +430,14 @@ public class ObjectifyGalleryStorageIo implements  GalleryStorageIo {
    */
   @Override
   public void incrementDownloads(final long galleryId) {
-
+    // numDownloads and unreadDownloads are brought up to date when the
+    // counter is rolled up, see rollupCounters()
     try {
-      runJobWithRetries(new JobRetryHelper() {
-        @Override
-        public void run(Objectify datastore) {
-          GalleryAppData galleryAppData = datastore.find(galleryKey(galleryId));
-          if (galleryAppData != null) {
-            galleryAppData.numDownloads = galleryAppData.numDownloads + 1;
-            galleryAppData.unreadDownloads = galleryAppData.unreadDownloads + 1;
-            datastore.put(galleryAppData);
-          }
-        }
-      });
+      downloadsCounter.increment(galleryId, 1);
     } catch (ObjectifyException e) {
        throw CrashReport.createAndLogError(LOG, null, "error in galleryStorageIo", e);
     }
+    scheduleCounterRollup(galleryId);
   }
 
   /**
@@ -433,7 +453,7 @@ public class ObjectifyGalleryStorageIo implements  GalleryStorageIo {
       final String userId) {
 
     try {
-      runJobWithRetries(new JobRetryHelper() {
+      runJobWithRetries(new JobRetryHelper(galleryKey(galleryId)) {
         @Override
         public void run(Objectify datastore) {
           GalleryAppData galleryAppData = datastore.find(galleryKey(galleryId));
@@ -541,7 +561,7 @@ public class ObjectifyGalleryStorageIo implements  GalleryStorageIo {
   public long addComment(final long galleryId, final String userId, final String comment) {
     final Result<Long> theDate = new Result<Long>();
     try {
-      runJobWithRetries(new JobRetryHelper() {
+      runJobWithRetries(new JobRetryHelper(galleryKey(galleryId)) {
         @Override
         public void run(Objectify datastore) {
           GalleryCommentData commentData = new GalleryCommentData();
@@ -604,21 +624,20 @@ public class ObjectifyGalleryStorageIo implements  GalleryStorageIo {
    */
   @Override
   public int increaseLikes(final long galleryId,final String userId) {
-    final Result<Integer> numLikes = new Result<Integer>();
+    final Result<Boolean> added = new Result<Boolean>();
+    added.t = false;
     try {
-      runJobWithRetries(new JobRetryHelper() {
+      runJobWithRetries(new JobRetryHelper(galleryKey(galleryId)) {
         @Override
         public void run(Objectify datastore) {
-          GalleryAppData galleryAppData = datastore.find(galleryKey(galleryId));
-          if (galleryAppData != null) {
-            Key<GalleryAppData> galleryKey = galleryKey(galleryId);
-
+          added.t = false;
+          Key<GalleryAppData> galleryKey = galleryKey(galleryId);
+          if (datastore.find(galleryKey) != null) {
             // Make sure it isn't already liked (people have subverted the client
             // based checks!)
-            for (GalleryAppLikeData likeData : datastore.query(GalleryAppLikeData.class).ancestor(galleryKey)) {
-              if(likeData.userId.equals(userId)){
-                return;         // We're done, already liked.
-              }
+            if (datastore.query(GalleryAppLikeData.class).ancestor(galleryKey)
+                .filter("userId", userId).count() > 0) {
+              return;         // We're done, already liked.
             }
 
             // Forge the like data entry
@@ -626,21 +645,20 @@ public class ObjectifyGalleryStorageIo implements  GalleryStorageIo {
             likeData.galleryKey = galleryKey;
             likeData.userId = userId;
             datastore.put(likeData);
-
-            // Retrieve the current number of likes
-            numLikes.t = datastore.query(GalleryAppLikeData.class).ancestor(galleryKey).count();
-
-            // Increase app's like/unread like count
-            galleryAppData.numLikes = galleryAppData.numLikes + 1;
-            galleryAppData.unreadLikes = galleryAppData.unreadLikes + 1;
-            datastore.put(galleryAppData);
+            added.t = true;
           }
         }
       });
+      // Count the like outside of the job, so it doesn't contend with the
+      // other likes of this app (numLikes/unreadLikes get updated on rollup)
+      if (added.t) {
+        scheduleCounterRollup(galleryId);
+        incrementLikes(galleryId, 1);
+      }
     } catch (ObjectifyException e) {
        throw CrashReport.createAndLogError(LOG, null, "error in galleryStorageIo.increaseLike", e);
     }
-    return numLikes.t;
+    return getNumLikes(galleryId);
   }
 
   /**
@@ -652,41 +670,46 @@ public class ObjectifyGalleryStorageIo implements  GalleryStorageIo {
    */
   @Override
   public int decreaseLikes(final long galleryId, final String userId) {
-    final Result<Integer> numLikes = new Result<Integer>();
+    final Result<Integer> removed = new Result<Integer>();
+    removed.t = 0;
     try {
-      runJobWithRetries(new JobRetryHelper() {
+      runJobWithRetries(new JobRetryHelper(galleryKey(galleryId)) {
         @Override
         public void run(Objectify datastore) {
-          GalleryAppData galleryAppData = datastore.find(galleryKey(galleryId));
-          if (galleryAppData != null) {
-            Key<GalleryAppData> galleryKey = galleryKey(galleryId);
-            for (GalleryAppLikeData likeData : datastore.query(GalleryAppLikeData.class).ancestor(galleryKey)) {
-              if(likeData.userId.equals(userId)){
-                datastore.delete(likeData);
-                // break;
-                // We don't break because there might be more then one likeData object for this
-                // person
-              }
-            }
-            numLikes.t = datastore.query(GalleryAppLikeData.class).ancestor(galleryKey).count();
-
-            // Increase app's like/unread like count
-            if(galleryAppData.numLikes > 0){
-              galleryAppData.numLikes = galleryAppData.numLikes - 1;
-            }
-
-            if (galleryAppData.unreadLikes > 0) {
-              galleryAppData.unreadLikes = galleryAppData.unreadLikes - 1;
-              datastore.put(galleryAppData);
-            }
+          removed.t = 0;
+          Key<GalleryAppData> galleryKey = galleryKey(galleryId);
+          for (GalleryAppLikeData likeData : datastore.query(GalleryAppLikeData.class)
+                 .ancestor(galleryKey).filter("userId", userId)) {
+            datastore.delete(likeData);
+            removed.t++;
+            // We don't break because there might be more then one likeData object for this
+            // person
           }
         }
       });
+      if (removed.t > 0) {
+        scheduleCounterRollup(galleryId);
+        incrementLikes(galleryId, -removed.t);
+      }
     } catch (ObjectifyException e) {
       throw CrashReport.createAndLogError(LOG, null,
           "error in galleryStorageIo.decreaseLike", e);
     }
-    return numLikes.t;
+    return getNumLikes(galleryId);
+  }
+
+  /**
+   * Counts likes that were added (or removed) on the like shards. The like
+   * rows are already committed, so a failure here is not the user's
+   * problem: the rollup recounts the likes from the rows.
+   */
+  private void incrementLikes(long galleryId, long delta) {
+    try {
+      likesCounter.increment(galleryId, delta);
+    } catch (ObjectifyException e) {
+      LOG.log(Level.WARNING, "Unable to count like of gallery app " + galleryId
+          + ", leaving it to the rollup", e);
+    }
   }
 
   /**
@@ -697,22 +720,12 @@ public class ObjectifyGalleryStorageIo implements  GalleryStorageIo {
    * @return the num of like
    */
   public int getNumLikes(final long galleryId) {
-    final Result<Integer> num = new Result<Integer>();
-    try {
-      runJobWithRetries(new JobRetryHelper() {
-        @Override
-        public void run(Objectify datastore) {
-          Key<GalleryAppData> galleryKey = galleryKey(galleryId);
-          //num.t = datastore.query(GalleryAppLikeData.class).ancestor(galleryKey).count();
-          GalleryAppData galleryAppData = datastore.find(galleryKey);
-          num.t = galleryAppData.numLikes;
-        }
-      });
-    } catch (ObjectifyException e) {
-      throw CrashReport.createAndLogError(LOG, null,
-          "error in galleryStorageIo.getNumLike", e);
+    // No transaction needed, the likes themselves live on the counter shards
+    GalleryAppData galleryAppData = ObjectifyService.begin().find(galleryKey(galleryId));
+    if (galleryAppData == null) {
+      return 0;
     }
-    return num.t;
+    return currentLikes(galleryAppData);
   }
 
   /**
@@ -756,7 +769,7 @@ public class ObjectifyGalleryStorageIo implements  GalleryStorageIo {
   @Override
   public void salvageGalleryApp(final long galleryId) {
     try {
-      runJobWithRetries(new JobRetryHelper() {
+      runJobWithRetries(new JobRetryHelper(galleryKey(galleryId)) {
         @Override
         public void run(Objectify datastore) {
           int num = 0;
@@ -781,6 +794,9 @@ public class ObjectifyGalleryStorageIo implements  GalleryStorageIo {
           num = datastore.query(GalleryAppLikeData.class).ancestor(galleryKey).count();
           GalleryAppData galleryAppData = datastore.find(galleryKey);
           galleryAppData.numLikes = num;
+          // The recount includes everything on the like shards, so consider
+          // them rolled up.
+          galleryAppData.rolledUpLikes = likesCounter.sumShards(galleryId);
           datastore.put(galleryAppData);
           LOG.info("salvage on gallerId:" + galleryId + ", total likes:" + galleryAppData.numLikes);
         }
@@ -1302,7 +1318,7 @@ public class ObjectifyGalleryStorageIo implements  GalleryStorageIo {
     User developer = storageIo.getUser(appData.userId);
     galleryApp.setDeveloperName(developer.getUserName());
     galleryApp.setDeveloperId(appData.userId);
-    galleryApp.setDownloads(appData.numDownloads);
+    galleryApp.setDownloads(currentDownloads(appData));
     galleryApp.setUnreadDownloads(appData.unreadDownloads);
     galleryApp.setUnreadLikes(appData.unreadLikes);
     galleryApp.setCreationDate(appData.dateCreated);
@@ -1311,7 +1327,94 @@ public class ObjectifyGalleryStorageIo implements  GalleryStorageIo {
     galleryApp.setMoreInfo(appData.moreInfo);
     galleryApp.setCredit(appData.credit);
 
-    galleryApp.setLikes(getNumLikes(appData.id));
+    galleryApp.setLikes(currentLikes(appData));
+  }
+
+  /**
+   * Returns the number of likes of an app, including the likes that
+   * haven't been rolled up into appData.numLikes yet.
+   */
+  private int currentLikes(GalleryAppData appData) {
+    return (int) (appData.numLikes + likesCounter.getShardTotal(appData.id)
+        - appData.rolledUpLikes);
+  }
+
+  /**
+   * Returns the number of downloads of an app, including the downloads
+   * that haven't been rolled up into appData.numDownloads yet.
+   */
+  private int currentDownloads(GalleryAppData appData) {
+    return (int) (appData.numDownloads + downloadsCounter.getShardTotal(appData.id)
+        - appData.rolledUpDownloads);
+  }
+
+  /**
+   * Folds the like and download counter shards of an app into its
+   * GalleryAppData, so the indexed numLikes and numDownloads (which the
+   * gallery sorts on) catch up, and so do the unread counts used for the
+   * app stats email.
+   *
+   * The shards are read outside of the job: they are in other entity
+   * groups. If a like or download comes in meanwhile it is simply picked
+   * up by the next rollup.
+   *
+   * The likes are recounted from the like rows, which are in the app's
+   * entity group, so a like whose shard increment failed after its row was
+   * stored is still counted.
+   *
+   * @param galleryId the gallery app
+   */
+  @Override
+  public void rollupCounters(final long galleryId) {
+    final long likes = likesCounter.sumShards(galleryId);
+    final long downloads = downloadsCounter.sumShards(galleryId);
+    try {
+      runJobWithRetries(new JobRetryHelper(galleryKey(galleryId)) {
+        @Override
+        public void run(Objectify datastore) {
+          GalleryAppData appData = datastore.find(galleryKey(galleryId));
+          if (appData == null) {
+            return;
+          }
+          long newLikes = datastore.query(GalleryAppLikeData.class)
+              .ancestor(galleryKey(galleryId)).count() - appData.numLikes;
+          long newDownloads = downloads - appData.rolledUpDownloads;
+          if (newLikes == 0 && newDownloads == 0 && likes == appData.rolledUpLikes) {
+            return;             // Nothing to do
+          }
+          appData.numLikes += newLikes;
+          appData.unreadLikes = (int) Math.max(0, appData.unreadLikes + newLikes);
+          appData.rolledUpLikes = likes;
+          appData.numDownloads += newDownloads;
+          appData.unreadDownloads = (int) Math.max(0, appData.unreadDownloads + newDownloads);
+          appData.rolledUpDownloads = downloads;
+          datastore.put(appData);
+        }
+      });
+    } catch (ObjectifyException e) {
+      throw CrashReport.createAndLogError(LOG, null,
+          "error in galleryStorageIo.rollupCounters", e);
+    }
+  }
+
+  /**
+   * Queues a task to roll up the counters of a gallery app. The task is
+   * named after the app and the current interval so that a burst of likes
+   * or downloads results in a single rollup.
+   */
+  private void scheduleCounterRollup(long galleryId) {
+    long interval = System.currentTimeMillis() / ROLLUP_INTERVAL;
+    try {
+      QueueFactory.getQueue(ROLLUP_QUEUE).add(TaskOptions.Builder.withUrl(ROLLUP_URL)
+          .param("galleryId", Long.toString(galleryId))
+          .taskName("rollup-" + galleryId + "-" + interval)
+          .countdownMillis(ROLLUP_INTERVAL));
+    } catch (TaskAlreadyExistsException e) {
+      // A rollup of this app is already pending, we're done
+    } catch (RuntimeException e) {
+      // Not fatal, the next like or download will try again
+      LOG.log(Level.WARNING, "Unable to schedule counter rollup for gallery app " + galleryId, e);
+    }
   }
 
   private static String collectGalleryAppErrorInfo(final String galleryAppId) {
@@ -1421,40 +1524,58 @@ public class ObjectifyGalleryStorageIo implements  GalleryStorageIo {
    * Call job.run() in a transaction and commit the transaction if no exceptions
    * occur. If we get a {@link java.util.ConcurrentModificationException}
    * or {@link com.google.appinventor.server.storage.ObjectifyException}
-   * we will retry the job (at most {@code MAX_JOB_RETRIES times}).
+   * we will retry the job (at most {@code RetryPolicy.DATASTORE.getMaxRetries()}
+   * times), waiting a little longer before each retry. Jobs that name their
+   * entity group take turns while it is contended (see {@link RetryPolicy}).
    * Any other exception will cause the job to fail immediately.
    * @param job
    * @throws ObjectifyException
    */
   @VisibleForTesting
   void runJobWithRetries(JobRetryHelper job) throws ObjectifyException {
-    int tries = 0;
-    while (tries <= MAX_JOB_RETRIES) {
-      Objectify datastore = ObjectifyService.beginTransaction();
-      try {
-        job.run(datastore);
-        datastore.getTxn().commit();
-        break;
-      } catch (ConcurrentModificationException ex) {
-        job.onNonFatalError();
-        LOG.log(Level.WARNING, "Optimistic concurrency failure", ex);
-      } catch (ObjectifyException oe) {
-        // maybe this should be a fatal error? I think the only thing
-        // that creates this exception (other than this method) is uploadToBlobstore
-        job.onNonFatalError();
-      } finally {
-        if (datastore.getTxn().isActive()) {
-          try {
-            datastore.getTxn().rollback();
-          } catch (RuntimeException e) {
-            LOG.log(Level.WARNING, "Transaction rollback failed", e);
+    String operation = RetryPolicy.operationOf(job);
+    Lock turn = RetryPolicy.DATASTORE.admit(operation, job.entityGroup);
+    try {
+      int tries = 0;
+      while (true) {
+        boolean collided = false;
+        Objectify datastore = ObjectifyService.beginTransaction();
+        try {
+          job.run(datastore);
+          datastore.getTxn().commit();
+          return;
+        } catch (ConcurrentModificationException ex) {
+          job.onNonFatalError();
+          collided = true;
+          LOG.log(Level.WARNING, "Optimistic concurrency failure", ex);
+        } catch (ObjectifyException oe) {
+          // maybe this should be a fatal error? I think the only thing
+          // that creates this exception (other than this method) is uploadToBlobstore
+          job.onNonFatalError();
+        } finally {
+          if (datastore.getTxn().isActive()) {
+            try {
+              datastore.getTxn().rollback();
+            } catch (RuntimeException e) {
+              LOG.log(Level.WARNING, "Transaction rollback failed", e);
+            }
           }
         }
+        tries++;
+        if (tries > RetryPolicy.DATASTORE.getMaxRetries()) {
+          break;
+        }
+        RetryPolicy.DATASTORE.retried(operation, collided ? job.entityGroup : null);
+        if (!RetryPolicy.DATASTORE.backOff(tries)) {
+          break;
+        }
       }
-      tries++;
-    }
-    if (tries > MAX_JOB_RETRIES) {
+      RetryPolicy.DATASTORE.gaveUp(operation);
       throw new ObjectifyException("Couldn't commit job after max retries.");
+    } finally {
+      if (turn != null) {
+        turn.unlock();
+      }
     }
   }
 
@@ -1477,8 +1598,8 @@ public class ObjectifyGalleryStorageIo implements  GalleryStorageIo {
           if(currentTime - galleryAppData.lastEmailNotificationTimeStamp > TWENTYFOURHOURS){
             if(galleryAppData.unreadDownloads + galleryAppData.unreadLikes >= user.getUserEmailFrequency()){
               String title = prepareAppStatsEmailTitle(galleryAppData.title);
-              String body = prepareAppStatsEmailBody(galleryAppData.title, galleryAppData.numDownloads,
-                  getNumLikes(galleryId), currentHost, galleryId);
+              String body = prepareAppStatsEmailBody(galleryAppData.title,
+                  currentDownloads(galleryAppData), currentLikes(galleryAppData), currentHost, galleryId);
               boolean success = new GalleryEmail().sendEmail(adminEmail, user.getUserEmail(), title, body);
               if(success){
                 send.t = true;
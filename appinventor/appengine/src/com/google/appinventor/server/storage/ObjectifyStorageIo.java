@@ -6,12 +6,16 @@
 
 package com.google.appinventor.server.storage;
 
+import com.google.appengine.api.ThreadManager;
 import com.google.appengine.api.appidentity.AppIdentityService;
 import com.google.appengine.api.appidentity.AppIdentityServiceFactory;
 import com.google.appengine.api.appidentity.AppIdentityServiceFailureException;
 import com.google.appengine.api.blobstore.BlobKey;
 import com.google.appengine.api.blobstore.BlobstoreInputStream;
 import com.google.appengine.api.blobstore.BlobstoreServiceFactory;
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.QueryResultIterator;
+import com.google.appengine.api.datastore.TransactionOptions;
 import com.google.appengine.api.memcache.ErrorHandlers;
 import com.google.appengine.api.memcache.MemcacheService;
 import com.google.appengine.api.memcache.MemcacheServiceFactory;
@@ -23,14 +27,17 @@ import com.google.appengine.api.taskqueue.TaskOptions;
 import com.google.apphosting.api.ApiProxy;
 import com.google.appinventor.server.CrashReport;
 import com.google.appinventor.server.FileExporter;
-import com.google.appinventor.server.Server;
 import com.google.appinventor.server.flags.Flag;
 import com.google.appinventor.server.storage.StoredData.CorruptionRecord;
+import com.google.appinventor.server.storage.StoredData.DeletedProjectData;
 import com.google.appinventor.server.storage.StoredData.FeedbackData;
 import com.google.appinventor.server.storage.StoredData.FileData;
+import com.google.appinventor.server.storage.StoredData.GcsRefData;
 import com.google.appinventor.server.storage.StoredData.MotdData;
 import com.google.appinventor.server.storage.StoredData.NonceData;
 import com.google.appinventor.server.storage.StoredData.ProjectData;
+import com.google.appinventor.server.storage.StoredData.ProjectManifestData;
+import com.google.appinventor.server.storage.StoredData.ProjectSummaryData;
 import com.google.appinventor.server.storage.StoredData.PWData;
 import com.google.appinventor.server.storage.StoredData.SplashData;
 import com.google.appinventor.server.storage.StoredData.UserData;
@@ -56,11 +63,13 @@ import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Strings;
 import com.google.common.collect.Lists;
+import com.google.common.hash.Hashing;
 import com.google.common.io.ByteSource;
 import com.google.common.io.ByteStreams;
 
 import com.googlecode.objectify.Key;
 import com.googlecode.objectify.Objectify;
+import com.googlecode.objectify.ObjectifyOpts;
 import com.googlecode.objectify.ObjectifyService;
 import com.googlecode.objectify.Query;
 
@@ -74,17 +83,25 @@ import com.google.appengine.tools.cloudstorage.GcsInputChannel;
 import com.google.appengine.tools.cloudstorage.GcsOutputChannel;
 import com.google.appengine.tools.cloudstorage.GcsService;
 import com.google.appengine.tools.cloudstorage.GcsServiceFactory;
+import com.google.appengine.tools.cloudstorage.ListItem;
+import com.google.appengine.tools.cloudstorage.ListOptions;
+import com.google.appengine.tools.cloudstorage.ListResult;
 import com.google.appengine.tools.cloudstorage.RetryParams;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.nio.channels.Channels;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.ConcurrentModificationException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
@@ -94,6 +111,13 @@ import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 import java.util.Date;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.Lock;
 
 import javax.annotation.Nullable;
 
@@ -127,6 +151,28 @@ public class ObjectifyStorageIo implements  StorageIo {
 
   private static final long TWENTYFOURHOURS = 24*3600*1000; // 24 hours in milliseconds
 
+  // GCS files that are no longer used are deleted by a task on this queue
+  private static final String GCS_CLEANUP_QUEUE = "gcscleanup";
+  private static final String GCS_CLEANUP_URL = "/tasks/gcscleanup";
+  private static final long GCS_CLEANUP_DELAY = 60*1000; // 1 minute in milliseconds
+
+  // How many files a project import (see GcsProjectImport) writes to GCS
+  // at the same time
+  private static final int MAX_PARALLEL_GCS_WRITES = 8;
+
+  // Most entities one batch of a maintenance job looks at, which is as
+  // many as one datastore call can delete
+  private static final int MAINTENANCE_BATCH = 500;
+
+  // Most projects one batch of the GCS backup and build output maintenance
+  // looks at; each takes a few datastore or GCS calls of its own
+  private static final int MAINTENANCE_PROJECT_BATCH = 50;
+
+  // Build outputs of projects that weren't changed for this many days are
+  // deleted by the maintenance
+  private final int buildOutputDays =
+      Flag.createFlag("maintenance.build.output.days", 30).get();
+
   private final boolean useGcs = Flag.createFlag("use.gcs", true).get();
 
   private final boolean conversionEnabled = false; // We are converting GCS <=> Blobstore
@@ -153,7 +199,21 @@ public class ObjectifyStorageIo implements  StorageIo {
 
   @VisibleForTesting
   abstract class JobRetryHelper {
+    private final String entityGroup;
     private IOException exception = null;
+
+    JobRetryHelper() {
+      this(null);
+    }
+
+    /**
+     * @param entityGroup the entity group the job writes to, so jobs that
+     *        keep colliding on it take turns (see RetryPolicy)
+     */
+    JobRetryHelper(Key<?> entityGroup) {
+      this.entityGroup = (entityGroup == null) ? null : entityGroup.getString();
+    }
+
     public abstract void run(Objectify datastore) throws ObjectifyException, IOException;
     /*
      * Called before retrying the job. Note that the underlying datastore
@@ -169,6 +229,13 @@ public class ObjectifyStorageIo implements  StorageIo {
     public IOException getIOException() {
       return exception;
     }
+    /*
+     * Whether the job's transaction spans more than one entity group
+     * (it may touch up to 25). Default is a single entity group.
+     */
+    public boolean isCrossGroup() {
+      return false;
+    }
   }
 
   // Create a final object of this class to hold a modifiable result value that
@@ -183,6 +250,10 @@ public class ObjectifyStorageIo implements  StorageIo {
     ObjectifyService.register(ProjectData.class);
     ObjectifyService.register(UserProjectData.class);
     ObjectifyService.register(FileData.class);
+    ObjectifyService.register(ProjectManifestData.class);
+    ObjectifyService.register(ProjectSummaryData.class);
+    ObjectifyService.register(GcsRefData.class);
+    ObjectifyService.register(DeletedProjectData.class);
     ObjectifyService.register(UserFileData.class);
     ObjectifyService.register(MotdData.class);
     ObjectifyService.register(RendezvousData.class);
@@ -247,6 +318,7 @@ public class ObjectifyStorageIo implements  StorageIo {
   public User getUser(final String userId, final String email) {
     String cachekey = User.usercachekey + "|" + userId;
     User tuser = (User) memcache.get(cachekey);
+    StorageStats.recordMemcache(tuser != null);
     if (tuser != null && tuser.getUserTosAccepted() && ((email == null) || (tuser.getUserEmail().equals(email)))) {
       if (tuser.getUserName()==null) {
         setUserName(userId,tuser.getDefaultName());
@@ -628,125 +700,398 @@ public class ObjectifyStorageIo implements  StorageIo {
   @Override
   public long createProject(final String userId, final Project project,
       final String projectSettings) {
-    final Result<Long> projectId = new Result<Long>();
-    final List<FileData> addedFiles = new ArrayList<FileData>();
+    validateGCS();
+    return createProject(userId, project, projectSettings,
+        Collections.<String, byte[]>emptyMap(), Collections.<String, FileData>emptyMap(),
+        Collections.<String, ProjectManifest.FileEntry>emptyMap());
+  }
 
-    try {
-      // first job is on the project entity, creating the ProjectData object
-      // and the associated files.
-      runJobWithRetries(new JobRetryHelper() {
+  @Override
+  public long copyProject(final String userId, final long oldProjectId, final Project project,
+      final String projectSettings, final Map<String, String> copiedFiles) {
+    validateGCS();
+    // The copies of files kept in the datastore get the content of the
+    // old files, the copies of files in GCS point at the same GCS file
+    // (which is then reference counted, see GcsRefData). Only files
+    // still in the Blobstore are read and written again.
+    Map<String, FileData> copies = new LinkedHashMap<String, FileData>();
+    List<String> sharedGcsFiles = new ArrayList<String>();
+    Map<String, byte[]> blobstoreFiles = new LinkedHashMap<String, byte[]>();
+    // The copies have the size and checksum of the files they are copies of
+    ProjectManifest oldManifest = getProjectManifest(userId, oldProjectId);
+    Map<String, ProjectManifest.FileEntry> copiedEntries =
+        new HashMap<String, ProjectManifest.FileEntry>();
+    boolean created = false;
+    try {
+      for (Map.Entry<String, String> entry : copiedFiles.entrySet()) {
+        String oldFileName = entry.getValue();
+        FileData fd = findAndAcquireGcsFile(projectFileKey(projectKey(oldProjectId),
+            oldFileName));
+        if (fd != null && isTrue(fd.isGCS)) {
+          sharedGcsFiles.add(fd.gcsName);
+        }
+        if (fd == null) {
+          throw CrashReport.createAndLogError(LOG, null,
+              collectProjectErrorInfo(userId, oldProjectId, oldFileName),
+              new FileNotFoundException("No data for " + oldFileName));
+        }
+        if (fd.userId != null && !fd.userId.equals("") && !fd.userId.equals(userId)) {
+          throw CrashReport.createAndLogError(LOG, null,
+              collectUserProjectErrorInfo(userId, oldProjectId),
+              new UnauthorizedAccessException(userId, oldProjectId, null));
+        }
+        if (fd.isBlob) {
+          blobstoreFiles.put(entry.getKey(), downloadRawFile(userId, oldProjectId, oldFileName));
+          continue;
+        }
+        FileData copy = new FileData();
+        copy.isGCS = fd.isGCS;
+        copy.gcsName = fd.gcsName;
+        copy.content = fd.content;
+        copy.compression = fd.compression;
+        copies.put(entry.getKey(), copy);
+        ProjectManifest.FileEntry oldEntry = oldManifest.getFile(oldFileName);
+        if (oldEntry != null) {
+          copiedEntries.put(entry.getKey(), new ProjectManifest.FileEntry(entry.getKey(), true,
+              oldEntry.getSize(), oldEntry.getChecksum(), oldEntry.getModified()));
+        }
+      }
+      long projectId = createProject(userId, project, projectSettings, blobstoreFiles, copies,
+          copiedEntries);
+      created = true;
+      return projectId;
+    } finally {
+      if (!created) {
+        for (String gcsName : sharedGcsFiles) {
+          releaseGcsFile(gcsName);
+        }
+      }
+    }
+  }
+
+  @Override
+  public ProjectImport beginProjectImport(String userId, long maxBufferedBytes) {
+    validateGCS();
+    return new GcsProjectImport(userId, maxBufferedBytes);
+  }
+
+  /*
+   * Creates a project with the files of project, the files in
+   * copiedContents and the copies of files in copies (FileData objects
+   * that only have their content filled in). copiedEntries has the
+   * manifest entries of the copies, where they are known.
+   */
+  private long createProject(final String userId, final Project project,
+      final String projectSettings, Map<String, byte[]> copiedContents,
+      final Map<String, FileData> copies,
+      final Map<String, ProjectManifest.FileEntry> copiedEntries) {
+    GcsProjectImport projectImport = new GcsProjectImport(userId, Long.MAX_VALUE);
+    try {
+      for (Map.Entry<String, byte[]> entry : copiedContents.entrySet()) {
+        projectImport.addFile(entry.getKey(), entry.getValue());
+      }
+      return projectImport.commit(project, projectSettings, copies, copiedEntries);
+    } catch (IOException e) {
+      throw CrashReport.createAndLogError(LOG, null,
+          collectUserProjectErrorInfo(userId, projectImport.projectId), e);
+    }
+  }
+
+  /*
+   * A project being created. The files that go to GCS are written to
+   * staged GCS files as they are added, by up to MAX_PARALLEL_GCS_WRITES
+   * threads, and the content of the files that go to the datastore is
+   * kept until the commit. The commit waits for the GCS writes and then
+   * creates the project and its files in one job on the project's entity
+   * group, so the project is only seen once all its content is stored.
+   *
+   * The project id is allocated up front, to name the staged files.
+   */
+  private class GcsProjectImport implements ProjectImport {
+    private final String userId;
+    private final long maxBufferedBytes;
+    private final long projectId = ObjectifyService.factory().allocateId(ProjectData.class);
+
+    // The files that go to the datastore, and the codecs of the ones that go to GCS
+    private final Map<String, FileCodec.Encoded> inlineFiles =
+        new LinkedHashMap<String, FileCodec.Encoded>();
+    private final Map<String, String> gcsCodecs = new HashMap<String, String>();
+    private final Map<String, Integer> sizes = new LinkedHashMap<String, Integer>();
+    private final Map<String, String> checksums = new HashMap<String, String>();
+
+    // The staged GCS file of each file, and every GCS file written
+    private final Map<String, String> stagedFiles = new ConcurrentHashMap<String, String>();
+    private final List<String> writtenFiles = Collections.synchronizedList(new ArrayList<String>());
+    private final List<Future<Void>> writes = new ArrayList<Future<Void>>();
+    private ExecutorService executor;
+    private boolean finished;
+
+    // Guarded by this
+    private long bufferedBytes;
+    private IOException failure;
+
+    GcsProjectImport(String userId, long maxBufferedBytes) {
+      this.userId = userId;
+      this.maxBufferedBytes = maxBufferedBytes;
+    }
+
+    @Override
+    public void addFile(final String fileName, byte[] content) throws IOException {
+      Preconditions.checkState(!finished, "Import is finished");
+      checksums.put(fileName, Hashing.sha1().hashBytes(content).toString());
+      sizes.put(fileName, content.length);
+      final FileCodec.Encoded encoded = FileCodec.encode(fileName, content);
+      if (!useGCSforFile(fileName, encoded.bytes.length)) {
+        inlineFiles.put(fileName, encoded);
+        gcsCodecs.remove(fileName);
+        return;
+      }
+      inlineFiles.remove(fileName);
+      gcsCodecs.put(fileName, encoded.codec);
+      final int length = encoded.bytes.length;
+      reserve(length);
+      StorageStats.recordGcsBytes(length);
+      Callable<Void> write = new Callable<Void>() {
         @Override
-        public void run(Objectify datastore) throws ObjectifyException {
-          long date = System.currentTimeMillis();
-          ProjectData pd = new ProjectData();
-          pd.id = null;  // let Objectify auto-generate the project id
-          pd.dateCreated = date;
-          pd.dateModified = date;
-          pd.history = project.getProjectHistory();
-          pd.name = project.getProjectName();
-          pd.settings = projectSettings;
-          pd.type = project.getProjectType();
-          pd.galleryId = UserProject.NOTPUBLISHED;
-          pd.attributionId = UserProject.FROMSCRATCH;
-          datastore.put(pd); // put the project in the db so that it gets assigned an id
-
-          assert pd.id != null;
-          projectId.t = pd.id;
-          // After the job commits projectId.t should end up with the last value
-          // we've gotten for pd.id (i.e. the one that committed if there
-          // was no error).
-          // Note that while we cannot expect to read back a value that we've
-          // written in this job, reading the assigned id from pd should work.
-
-          Key<ProjectData> projectKey = projectKey(projectId.t);
-          for (TextFile file : project.getSourceFiles()) {
-            try {
+        public Void call() throws IOException {
+          IOException error = null;
+          try {
+            String gcsName = stageGcsFile(projectId, fileName, encoded);
+            writtenFiles.add(gcsName);
+            stagedFiles.put(fileName, gcsName);
+            return null;
+          } catch (IOException e) {
+            error = e;
+            throw e;
+          } finally {
+            release(length, error);
+          }
+        }
+      };
+      Future<Void> future = submit(write);
+      if (future != null) {
+        writes.add(future);
+      } else {
+        write.call();           // No background threads here
+      }
+    }
+
+    @Override
+    public long commit(Project project, String projectSettings) throws IOException {
+      return commit(project, projectSettings, Collections.<String, FileData>emptyMap(),
+          Collections.<String, ProjectManifest.FileEntry>emptyMap());
+    }
+
+    long commit(final Project project, final String projectSettings,
+        final Map<String, FileData> copies,
+        final Map<String, ProjectManifest.FileEntry> copiedEntries) throws IOException {
+      try {
+        for (TextFile file : project.getSourceFiles()) {
+          addFile(file.getFileName(), file.getContent().getBytes(DEFAULT_ENCODING));
+        }
+        for (RawFile file : project.getRawSourceFiles()) {
+          addFile(file.getFileName(), file.getContent());
+        }
+        awaitWrites();
+      } catch (IOException e) {
+        abort();
+        throw e;
+      }
+      finished = true;
+      // Files that were added more than once were staged more than once
+      List<String> unused = new ArrayList<String>(writtenFiles);
+      unused.removeAll(stagedFiles.values());
+      deleteStagedFiles(unused);
+
+      final List<FileData> addedFiles = new ArrayList<FileData>();
+      try {
+        // first job is on the project entity, creating the ProjectData object
+        // and the associated files.
+        runJobWithRetries(new JobRetryHelper() {
+          @Override
+          public void run(Objectify datastore) throws ObjectifyException {
+            long date = System.currentTimeMillis();
+            ProjectData pd = new ProjectData();
+            pd.id = projectId;
+            pd.dateCreated = date;
+            pd.dateModified = date;
+            pd.history = project.getProjectHistory();
+            pd.name = project.getProjectName();
+            pd.settings = projectSettings;
+            pd.type = project.getProjectType();
+            pd.galleryId = UserProject.NOTPUBLISHED;
+            pd.attributionId = UserProject.FROMSCRATCH;
+            datastore.put(pd);
+
+            Key<ProjectData> projectKey = projectKey(projectId);
+            addedFiles.clear();   // in case this is a retry
+            for (Map.Entry<String, FileCodec.Encoded> entry : inlineFiles.entrySet()) {
               addedFiles.add(createRawFile(projectKey, FileData.RoleEnum.SOURCE, userId,
-                  file.getFileName(), file.getContent().getBytes(DEFAULT_ENCODING)));
-            } catch (IOException e) { // GCS throws this
-              throw CrashReport.createAndLogError(LOG, null,
-                collectProjectErrorInfo(userId, projectId.t, file.getFileName()), e);
+                  entry.getKey(), entry.getValue().codec, entry.getValue().bytes, null));
             }
-          }
-          for (RawFile file : project.getRawSourceFiles()) {
-            try {
-              addedFiles.add(createRawFile(projectKey, FileData.RoleEnum.SOURCE, userId, file.getFileName(),
-                  file.getContent()));
-            } catch (IOException e) {
-              throw CrashReport.createAndLogError(LOG, null,
-                collectProjectErrorInfo(userId, projectId.t, file.getFileName()), e);
+            for (Map.Entry<String, String> entry : gcsCodecs.entrySet()) {
+              addedFiles.add(createRawFile(projectKey, FileData.RoleEnum.SOURCE, userId,
+                  entry.getKey(), entry.getValue(), null, stagedFiles.get(entry.getKey())));
+            }
+            for (Map.Entry<String, FileData> entry : copies.entrySet()) {
+              FileData file = entry.getValue();
+              file.fileName = entry.getKey();
+              file.projectKey = projectKey;
+              file.role = FileData.RoleEnum.SOURCE;
+              file.userId = userId;
+              addedFiles.add(file);
+            }
+            datastore.put(addedFiles);  // batch put
+
+            ProjectManifest manifest = new ProjectManifest(pd.name);
+            for (Map.Entry<String, Integer> entry : sizes.entrySet()) {
+              manifest.put(new ProjectManifest.FileEntry(entry.getKey(), true,
+                  entry.getValue(), checksums.get(entry.getKey()), date));
             }
+            for (String fileName : copies.keySet()) {
+              ProjectManifest.FileEntry entry = copiedEntries.get(fileName);
+              manifest.put(entry != null ? entry
+                  : new ProjectManifest.FileEntry(fileName, true, -1, null, date));
+            }
+            storeManifest(datastore, projectId, manifest);
+            storeSummary(datastore, projectId, pd, manifest);
           }
-          datastore.put(addedFiles);  // batch put
-        }
 
-        @Override
-        public void onNonFatalError() {
+          @Override
+          public void onNonFatalError() {
+          }
+
+        }, true);   // The GCS content is already written, so this job only touches
+                    // the project's entity group (on the dev server too, where the
+                    // fake GCS is kept in the datastore)
+
+        // second job is on the user entity
+        runJobWithRetries(new JobRetryHelper() {
+          @Override
+          public void run(Objectify datastore) {
+            UserProjectData upd = new UserProjectData();
+            upd.projectId = projectId;
+            upd.settings = projectSettings;
+            upd.state = UserProjectData.StateEnum.OPEN;
+            upd.userKey = userKey(userId);
+            datastore.put(upd);
+          }
+        }, true);
+      } catch (ObjectifyException e) {
+        deleteStagedFiles(stagedFiles.values());
+        throw CrashReport.createAndLogError(LOG, null,
+            collectUserProjectErrorInfo(userId, projectId), e);
+      }
+      return projectId;
+    }
+
+    @Override
+    public void abort() {
+      if (finished) {
+        return;
+      }
+      finished = true;
+      try {
+        awaitWrites();
+      } catch (IOException e) {
+        // The files that were written are deleted all the same
+      }
+      deleteStagedFiles(writtenFiles);
+    }
+
+    // Waits while the content being written takes up the buffer
+    private synchronized void reserve(int length) throws IOException {
+      try {
+        while (failure == null && bufferedBytes > 0 && bufferedBytes + length > maxBufferedBytes) {
+          wait();
         }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted while importing project " + projectId);
+      }
+      if (failure != null) {
+        throw failure;
+      }
+      bufferedBytes += length;
+    }
 
-      }, Server.isProductionServer()); // Only use a transaction on the production server
-                                       // The App Engine dev server simulates the Google Cloud
-                                       // Store using the datastore. If we use a transaction
-                                       // here we wind up covering more then one entity group
-                                       // (Our access to FileData and Fake-GCS access to its own
-                                       // datastore kind to simulate GCS) which is an error.
-                                       // We can use a transaction in production between the
-                                       // production implementation of GCS does not touch the
-                                       // datastore
+    private synchronized void release(int length, IOException error) {
+      bufferedBytes -= length;
+      if (error != null && failure == null) {
+        failure = error;
+      }
+      notifyAll();
+    }
 
-      // second job is on the user entity
-      runJobWithRetries(new JobRetryHelper() {
-        @Override
-        public void run(Objectify datastore) {
-          UserProjectData upd = new UserProjectData();
-          upd.projectId = projectId.t;
-          upd.settings = projectSettings;
-          upd.state = UserProjectData.StateEnum.OPEN;
-          upd.userKey = userKey(userId);
-          datastore.put(upd);
+    // Runs a write in the background, returns null if we can't
+    private Future<Void> submit(Callable<Void> write) {
+      try {
+        if (executor == null) {
+          executor = Executors.newFixedThreadPool(MAX_PARALLEL_GCS_WRITES,
+              ThreadManager.currentRequestThreadFactory());
         }
-      }, true);
-    } catch (ObjectifyException e) {
-      for (FileData addedFile : addedFiles) {
-        if (isTrue(addedFile.isGCS)) {  // Do something
-          if (addedFile.gcsName != null) {
-            try {
-              gcsService.delete(new GcsFilename(GCS_BUCKET_NAME, addedFile.gcsName));
-            } catch (IOException ee) {
-              LOG.log(Level.WARNING, "Unable to delete " + addedFile.gcsName +
-                " from GCS while aborting project creation.", ee);
+        return executor.submit(write);
+      } catch (RuntimeException e) {
+        return null;
+      }
+    }
+
+    private void awaitWrites() throws IOException {
+      IOException error = null;
+      try {
+        for (Future<Void> write : writes) {
+          try {
+            write.get();
+          } catch (ExecutionException e) {
+            error = (e.getCause() instanceof IOException) ? (IOException) e.getCause()
+                : new IOException(e.getCause());
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            error = new InterruptedIOException("Interrupted while importing project "
+                + projectId);
           }
         }
+      } finally {
+        writes.clear();
+        if (executor != null) {
+          executor.shutdown();
+          executor = null;
+        }
       }
-      // clear addedFiles in case we end up here more than once
-      addedFiles.clear();
-      throw CrashReport.createAndLogError(LOG, null,
-          collectUserProjectErrorInfo(userId, projectId.t), e);
+      if (error != null) {
+        throw error;
+      }
+    }
+
+    private void deleteStagedFiles(Collection<String> gcsNames) {
+      for (String gcsName : new ArrayList<String>(gcsNames)) {
+        try {
+          gcsService.delete(new GcsFilename(GCS_BUCKET_NAME, gcsName));
+        } catch (IOException e) {
+          LOG.log(Level.WARNING, "Unable to delete " + gcsName +
+            " from GCS while aborting project creation.", e);
+        }
       }
     }
-    return projectId.t;
   }
 
   /*
    *  Creates and returns a new FileData object with the specified fields.
    *  Does not check for the existence of the object and does not update
-   *  the database.
+   *  the database. If stagedGcsName is not null the content (encoded with
+   *  codec) has already been written to that GCS file.
    */
   private FileData createRawFile(Key<ProjectData> projectKey, FileData.RoleEnum role,
-    String userId, String fileName, byte[] content) throws ObjectifyException, IOException {
-    validateGCS();
+    String userId, String fileName, String codec, byte[] content, String stagedGcsName) {
     FileData file = new FileData();
     file.fileName = fileName;
     file.projectKey = projectKey;
     file.role = role;
     file.userId = userId;
-    if (useGCSforFile(fileName, content.length)) {
+    file.compression = codec;
+    if (stagedGcsName != null) {
       file.isGCS = true;
-      file.gcsName = makeGCSfileName(fileName, projectKey.getId());
-      GcsOutputChannel outputChannel =
-        gcsService.createOrReplace(new GcsFilename(GCS_BUCKET_NAME, file.gcsName), GcsFileOptions.getDefaultInstance());
-      outputChannel.write(ByteBuffer.wrap(content));
-      outputChannel.close();
+      file.gcsName = stagedGcsName;
     } else {
       file.content = content;
     }
@@ -785,6 +1130,8 @@ public class ObjectifyStorageIo implements  StorageIo {
             }
           }
           datastore.delete(fdq);
+          datastore.delete(manifestKey(projectId));
+          datastore.delete(summaryKey(projectId));
           // finally, delete the ProjectData object
           datastore.delete(projectKey);
         }
@@ -793,13 +1140,16 @@ public class ObjectifyStorageIo implements  StorageIo {
       for (String blobKeyString: blobKeys) {
         deleteBlobstoreFile(blobKeyString);
       }
-      // Now delete the gcs files
+      // Now delete the gcs files (that no other project shares)
       for (String gcsName: gcsPaths) {
-        try {
-          gcsService.delete(new GcsFilename(GCS_BUCKET_NAME, gcsName));
-        } catch (IOException e) {
-          LOG.log(Level.WARNING, "Unable to delete " + gcsName + " from GCS while deleting project", e);
-        }
+        releaseGcsFile(gcsName);
+      }
+      // and remember the project, so the GCS_BACKUPS maintenance job
+      // deletes its backups
+      if (useGcs) {
+        DeletedProjectData deleted = new DeletedProjectData();
+        deleted.id = projectId;
+        ObjectifyService.begin().put(deleted);
       }
     } catch (ObjectifyException e) {
       throw CrashReport.createAndLogError(LOG, null,
@@ -811,13 +1161,14 @@ public class ObjectifyStorageIo implements  StorageIo {
   @Override
   public void setProjectGalleryId(final String userId, final long projectId,final long galleryId) {
     try {
-      runJobWithRetries(new JobRetryHelper() {
+      runJobWithRetries(new JobRetryHelper(projectKey(projectId)) {
         @Override
         public void run(Objectify datastore) {
           ProjectData projectData = datastore.find(projectKey(projectId));
           if (projectData != null) {
             projectData.galleryId = galleryId;
             datastore.put(projectData);
+            storeSummary(datastore, projectId, projectData, null);
           }
         }
       }, true);
@@ -828,13 +1179,14 @@ public class ObjectifyStorageIo implements  StorageIo {
   @Override
   public void setProjectAttributionId(final String userId, final long projectId,final long attributionId) {
     try {
-      runJobWithRetries(new JobRetryHelper() {
+      runJobWithRetries(new JobRetryHelper(projectKey(projectId)) {
         @Override
         public void run(Objectify datastore) {
           ProjectData projectData = datastore.find(projectKey(projectId));
           if (projectData != null) {
             projectData.attributionId = attributionId;
             datastore.put(projectData);
+            storeSummary(datastore, projectId, projectData, null);
           }
         }
       }, true);
@@ -851,8 +1203,10 @@ public class ObjectifyStorageIo implements  StorageIo {
         @Override
         public void run(Objectify datastore) {
           Key<UserData> userKey = userKey(userId);
-          for (UserProjectData upd : datastore.query(UserProjectData.class).ancestor(userKey)) {
-            projects.add(upd.projectId);
+          // The ids are the keys, there is no need to load the entities
+          for (Key<UserProjectData> key
+                   : datastore.query(UserProjectData.class).ancestor(userKey).fetchKeys()) {
+            projects.add(key.getId());
           }
         }
       }, false);
@@ -957,39 +1311,71 @@ public class ObjectifyStorageIo implements  StorageIo {
     }
   }
 
+  /*
+   * The projects are listed from their summaries, fetched with one batch
+   * get, rather than from their ProjectData with its settings and history.
+   * Projects that don't have a summary yet are listed from their
+   * ProjectData, and get one. That summary is written outside of a
+   * transaction, so a concurrent change to the project may be missed until
+   * the project changes again.
+   */
   @Override
   public List<UserProject> getUserProjects(final String userId, final List<Long> projectIds) {
-    final Result<Map<Long,ProjectData>> projectDatas = new Result<Map<Long,ProjectData>>();
+    final Map<Long, ProjectSummaryData> summaries = new HashMap<Long, ProjectSummaryData>();
     try {
       runJobWithRetries(new JobRetryHelper() {
         @Override
         public void run(Objectify datastore) {
-          Map<Long,ProjectData> pd = datastore.get(ProjectData.class, projectIds);
-          if (pd != null) {
-            projectDatas.t = pd;
-          } else {
-            projectDatas.t = null;
+          summaries.clear();
+          List<Key<ProjectSummaryData>> keys =
+              new ArrayList<Key<ProjectSummaryData>>(projectIds.size());
+          for (long projectId : projectIds) {
+            keys.add(summaryKey(projectId));
+          }
+          for (ProjectSummaryData summary : datastore.get(keys).values()) {
+            summaries.put(summary.projectKey.getId(), summary);
+          }
+          List<Long> missing = new ArrayList<Long>();
+          List<Key<ProjectManifestData>> manifestKeys = new ArrayList<Key<ProjectManifestData>>();
+          for (long projectId : projectIds) {
+            if (!summaries.containsKey(projectId)) {
+              missing.add(projectId);
+              manifestKeys.add(manifestKey(projectId));
+            }
+          }
+          if (missing.isEmpty()) {
+            return;
           }
+          Map<Long, ProjectData> projects = datastore.get(ProjectData.class, missing);
+          Map<Key<ProjectManifestData>, ProjectManifestData> manifests =
+              datastore.get(manifestKeys);
+          List<ProjectSummaryData> added = new ArrayList<ProjectSummaryData>();
+          for (ProjectData pd : projects.values()) {
+            ProjectManifestData md = manifests.get(manifestKey(pd.id));
+            ProjectSummaryData summary = makeSummary(pd,
+                md == null ? -1 : ProjectManifest.fromJson(md.manifest).getSourceSize());
+            summaries.put(pd.id, summary);
+            added.add(summary);
+          }
+          datastore.put(added);  // batch put
         }
       }, false);
     } catch (ObjectifyException e) {
       throw CrashReport.createAndLogError(LOG, null,
         collectUserErrorInfo(userId), e);
     }
-    if (projectDatas.t == null) {
-      throw new RuntimeException("getUserProjects wants to return null, userId = " + userId);
-      // Note we directly throw a RuntimeException instead of calling CrashReport
-      // because we don't have an explicitly caught exception to hand it.
-    } else {
-      List<UserProject> uProjects = Lists.newArrayListWithExpectedSize(projectDatas.t.size());
-      for (ProjectData projectData : projectDatas.t.values()) {
-        uProjects.add(new UserProject(projectData.id, projectData.name,
-            projectData.type, projectData.dateCreated,
-            projectData.dateModified, projectData.galleryId,
-            projectData.attributionId));
+    List<UserProject> uProjects = Lists.newArrayListWithExpectedSize(summaries.size());
+    for (long projectId : projectIds) {
+      ProjectSummaryData summary = summaries.get(projectId);
+      if (summary != null) {
+        UserProject project = new UserProject(projectId, summary.name, summary.type,
+            summary.dateCreated, summary.dateModified, summary.galleryId,
+            summary.attributionId);
+        project.setSize(summary.size);
+        uProjects.add(project);
       }
-      return uProjects;
     }
+    return uProjects;
   }
 
   @Override
@@ -1129,7 +1515,7 @@ public class ObjectifyStorageIo implements  StorageIo {
   @Override
   public void addFilesToUser(final String userId, final String... fileNames) {
     try {
-      runJobWithRetries(new JobRetryHelper() {
+      runJobWithRetries(new JobRetryHelper(userKey(userId)) {
         @Override
         public void run(Objectify datastore) {
           Key<UserData> userKey = userKey(userId);
@@ -1190,7 +1576,7 @@ public class ObjectifyStorageIo implements  StorageIo {
   public void uploadUserFile(final String userId, final String fileName,
       final String content, final String encoding) {
     try {
-      runJobWithRetries(new JobRetryHelper() {
+      runJobWithRetries(new JobRetryHelper(userKey(userId)) {
         @Override
         public void run(Objectify datastore) {
           byte[] bytes;
@@ -1213,7 +1599,7 @@ public class ObjectifyStorageIo implements  StorageIo {
   public void uploadRawUserFile(final String userId, final String fileName,
       final byte[] content) {
     try {
-      runJobWithRetries(new JobRetryHelper() {
+      runJobWithRetries(new JobRetryHelper(userKey(userId)) {
         @Override
         public void run(Objectify datastore) {
           addUserFileContents(datastore, userId, fileName, content);
@@ -1282,7 +1668,7 @@ public class ObjectifyStorageIo implements  StorageIo {
   @Override
   public void deleteUserFile(final String userId, final String fileName) {
     try {
-      runJobWithRetries(new JobRetryHelper() {
+      runJobWithRetries(new JobRetryHelper(userKey(userId)) {
         @Override
         public void run(Objectify datastore) {
           Key<UserFileData> ufdKey = userFileKey(userKey(userId), fileName);
@@ -1306,7 +1692,7 @@ public class ObjectifyStorageIo implements  StorageIo {
   public void addSourceFilesToProject(final String userId, final long projectId,
     final boolean changeModDate, final String... fileNames) {
     try {
-      runJobWithRetries(new JobRetryHelper() {
+      runJobWithRetries(new JobRetryHelper(projectKey(projectId)) {
         @Override
         public void run(Objectify datastore) {
           addFilesToProject(datastore, projectId, FileData.RoleEnum.SOURCE, changeModDate, userId, fileNames);
@@ -1322,7 +1708,7 @@ public class ObjectifyStorageIo implements  StorageIo {
   public void addOutputFilesToProject(final String userId, final long projectId,
     final String... fileNames) {
     try {
-      runJobWithRetries(new JobRetryHelper() {
+      runJobWithRetries(new JobRetryHelper(projectKey(projectId)) {
         @Override
         public void run(Objectify datastore) {
           addFilesToProject(datastore, projectId, FileData.RoleEnum.TARGET, false, userId, fileNames);
@@ -1346,8 +1732,20 @@ public class ObjectifyStorageIo implements  StorageIo {
       }
     }
     datastore.put(addedFiles); // batch put
+    ProjectManifest manifest = null;
+    if (!addedFiles.isEmpty()) {
+      manifest = loadManifest(datastore, projectId);
+      long now = System.currentTimeMillis();
+      for (FileData fd : addedFiles) {
+        manifest.put(new ProjectManifest.FileEntry(fd.fileName,
+            role == FileData.RoleEnum.SOURCE, 0, null, now));
+      }
+      storeManifest(datastore, projectId, manifest);
+    }
     if (changeModDate) {
-      updateProjectModDate(datastore, projectId, false);
+      updateProjectModDate(datastore, projectId, false, manifest);
+    } else if (manifest != null) {
+      storeSummary(datastore, projectId, null, manifest);
     }
   }
 
@@ -1372,7 +1770,7 @@ public class ObjectifyStorageIo implements  StorageIo {
   public void removeSourceFilesFromProject(final String userId, final long projectId,
       final boolean changeModDate, final String... fileNames) {
     try {
-      runJobWithRetries(new JobRetryHelper() {
+      runJobWithRetries(new JobRetryHelper(projectKey(projectId)) {
         @Override
         public void run(Objectify datastore) {
           removeFilesFromProject(datastore, projectId, FileData.RoleEnum.SOURCE, changeModDate, fileNames);
@@ -1388,7 +1786,7 @@ public class ObjectifyStorageIo implements  StorageIo {
   public void removeOutputFilesFromProject(final String userId, final long projectId,
       final String... fileNames) {
     try {
-      runJobWithRetries(new JobRetryHelper() {
+      runJobWithRetries(new JobRetryHelper(projectKey(projectId)) {
         @Override
         public void run(Objectify datastore) {
           removeFilesFromProject(datastore, projectId, FileData.RoleEnum.TARGET, false, fileNames);
@@ -1419,8 +1817,18 @@ public class ObjectifyStorageIo implements  StorageIo {
       }
     }
     datastore.delete(filesToRemove);  // batch delete
+    ProjectManifest manifest = null;
+    if (!filesToRemove.isEmpty()) {
+      manifest = loadManifest(datastore, projectId);
+      for (Key<FileData> key : filesToRemove) {
+        manifest.remove(key.getName());
+      }
+      storeManifest(datastore, projectId, manifest);
+    }
     if (changeModDate) {
-      updateProjectModDate(datastore, projectId, false);
+      updateProjectModDate(datastore, projectId, false, manifest);
+    } else if (manifest != null) {
+      storeSummary(datastore, projectId, null, manifest);
     }
   }
 
@@ -1458,6 +1866,142 @@ public class ObjectifyStorageIo implements  StorageIo {
     return result.t;
   }
 
+  @Override
+  public ProjectManifest getProjectManifest(final String userId, final long projectId) {
+    // The manifest is cached, so opening a project usually doesn't touch
+    // the datastore at all
+    ProjectManifestData md = ObjectifyService.begin().find(manifestKey(projectId));
+    if (md != null) {
+      return ProjectManifest.fromJson(md.manifest);
+    }
+    final Result<ProjectManifest> result = new Result<ProjectManifest>();
+    try {
+      runJobWithRetries(new JobRetryHelper() {
+        @Override
+        public void run(Objectify datastore) {
+          if (datastore.find(projectKey(projectId)) == null) {
+            // No such project (any more), so nothing to keep a manifest for
+            result.t = new ProjectManifest("");
+            return;
+          }
+          result.t = loadManifest(datastore, projectId);
+          storeManifest(datastore, projectId, result.t);
+          storeSummary(datastore, projectId, null, result.t);
+        }
+      }, true);
+    } catch (ObjectifyException e) {
+      throw CrashReport.createAndLogError(LOG, null,
+          collectUserProjectErrorInfo(userId, projectId), e);
+    }
+    return result.t;
+  }
+
+  /*
+   * Returns the manifest of a project. Projects created before manifests
+   * were kept get one built from their files: the content of files in the
+   * datastore is at hand, the size and checksum of files in GCS or the
+   * Blobstore are left unknown until they are next saved.
+   */
+  private ProjectManifest loadManifest(Objectify datastore, long projectId) {
+    ProjectManifestData md = datastore.find(manifestKey(projectId));
+    if (md != null) {
+      return ProjectManifest.fromJson(md.manifest);
+    }
+    Key<ProjectData> projectKey = projectKey(projectId);
+    ProjectData pd = datastore.find(projectKey);
+    ProjectManifest manifest = new ProjectManifest(pd == null ? "" : pd.name);
+    for (FileData fd : datastore.query(FileData.class).ancestor(projectKey)) {
+      if (fd.role == FileData.RoleEnum.TEMPORARY) {
+        continue;
+      }
+      long size = -1;
+      String checksum = null;
+      if (!fd.isBlob && !isTrue(fd.isGCS) && fd.content != null) {
+        byte[] content = FileCodec.decode(fd.compression, fd.content);
+        size = content.length;
+        checksum = Hashing.sha1().hashBytes(content).toString();
+      }
+      manifest.put(new ProjectManifest.FileEntry(fd.fileName,
+          fd.role == FileData.RoleEnum.SOURCE, size, checksum, 0));
+    }
+    return manifest;
+  }
+
+  private void storeManifest(Objectify datastore, long projectId, ProjectManifest manifest) {
+    ProjectManifestData md = new ProjectManifestData();
+    md.id = ProjectManifestData.MANIFEST_ID;
+    md.projectKey = projectKey(projectId);
+    md.manifest = manifest.toJson();
+    datastore.put(md);
+  }
+
+  /*
+   * Brings the summary of a project up to date in the caller's job, with
+   * the ProjectData and the manifest the job stored, either of which may
+   * be null if the job didn't change it. Reads in a transaction don't see
+   * the transaction's own writes, so these are passed in rather than
+   * read back, and a job calls this once, after storing both.
+   */
+  private void storeSummary(Objectify datastore, long projectId, @Nullable ProjectData pd,
+      @Nullable ProjectManifest manifest) {
+    ProjectSummaryData summary = datastore.find(summaryKey(projectId));
+    if (summary == null) {
+      if (pd == null) {
+        pd = datastore.find(projectKey(projectId));
+        if (pd == null) {
+          return;
+        }
+      }
+      if (manifest == null) {
+        ProjectManifestData md = datastore.find(manifestKey(projectId));
+        if (md != null) {
+          manifest = ProjectManifest.fromJson(md.manifest);
+        }
+      }
+      datastore.put(makeSummary(pd, manifest == null ? -1 : manifest.getSourceSize()));
+    } else if (pd != null) {
+      datastore.put(makeSummary(pd, manifest == null ? summary.size : manifest.getSourceSize()));
+    } else if (manifest != null && manifest.getSourceSize() != summary.size) {
+      summary.size = manifest.getSourceSize();
+      datastore.put(summary);
+    }
+  }
+
+  private ProjectSummaryData makeSummary(ProjectData pd, long size) {
+    ProjectSummaryData summary = new ProjectSummaryData();
+    summary.id = ProjectSummaryData.SUMMARY_ID;
+    summary.projectKey = projectKey(pd.id);
+    summary.name = pd.name;
+    summary.type = pd.type;
+    summary.dateCreated = pd.dateCreated;
+    summary.dateModified = pd.dateModified;
+    summary.galleryId = pd.galleryId;
+    summary.attributionId = pd.attributionId;
+    summary.size = size;
+    return summary;
+  }
+
+  /*
+   * Records the new size and checksum of a saved file in the project's
+   * manifest, in the caller's job. Saves that don't change the content
+   * (autosaves mostly) don't write the manifest.
+   *
+   * Returns the stored manifest, for storeSummary, or null if it didn't
+   * change.
+   */
+  private ProjectManifest recordSave(Objectify datastore, long projectId, String fileName,
+      long size, String checksum) {
+    ProjectManifest manifest = loadManifest(datastore, projectId);
+    ProjectManifest.FileEntry entry = manifest.getFile(fileName);
+    if (entry != null && checksum.equals(entry.getChecksum())) {
+      return null;
+    }
+    manifest.put(new ProjectManifest.FileEntry(fileName,
+        entry == null || entry.isSource(), size, checksum, System.currentTimeMillis()));
+    storeManifest(datastore, projectId, manifest);
+    return manifest;
+  }
+
   private List<String> getProjectFiles(Objectify datastore, long projectId,
                                        FileData.RoleEnum role) {
     Key<ProjectData> projectKey = projectKey(projectId);
@@ -1493,6 +2037,16 @@ public class ObjectifyStorageIo implements  StorageIo {
   }
 
   private long updateProjectModDate(Objectify datastore, long projectId, boolean doingConversion) {
+    return updateProjectModDate(datastore, projectId, doingConversion, null);
+  }
+
+  /*
+   * Like updateProjectModDate above, for jobs that also stored the
+   * project's manifest: the project's summary is brought up to date with
+   * both.
+   */
+  private long updateProjectModDate(Objectify datastore, long projectId, boolean doingConversion,
+      @Nullable ProjectManifest manifest) {
     long modDate = System.currentTimeMillis();
     ProjectData pd = datastore.find(projectKey(projectId));
     if (pd != null) {
@@ -1503,9 +2057,13 @@ public class ObjectifyStorageIo implements  StorageIo {
       if ((modDate > (pd.dateModified + 1000*60)) && !doingConversion) {
         pd.dateModified = modDate;
         datastore.put(pd);
+        storeSummary(datastore, projectId, pd, manifest);
       } else {
         // return the (old) dateModified
         modDate = pd.dateModified;
+        if (manifest != null) {
+          storeSummary(datastore, projectId, null, manifest);
+        }
       }
       return modDate;
     } else {
@@ -1535,28 +2093,51 @@ public class ObjectifyStorageIo implements  StorageIo {
       final boolean force, final byte[] content, final boolean doingConversion) throws BlocksTruncatedException {
     validateGCS();
     final Result<Long> modTime = new Result<Long>();
-    final boolean useGCS = useGCSforFile(fileName, content.length);
+    // Text sources are stored compressed, and it is the stored size that
+    // decides whether a file fits in the datastore
+    final FileCodec.Encoded encoded = FileCodec.encode(fileName, content);
+    // For the manifest, which is updated in the same job as the file
+    final String checksum = Hashing.sha1().hashBytes(content).toString();
+    final boolean useGCS = useGCSforFile(fileName, encoded.bytes.length);
     final Result<String> oldBlobstoreKey = new Result<String>();
+    final Result<String> oldGcsName = new Result<String>();
+    final Result<Boolean> backupRecorded = new Result<Boolean>();
     final boolean considerBackup = (useGcs?((fileName.contains("src/") && fileName.endsWith(".blk")) // AI1 Blocks Files
         || (fileName.contains("src/") && fileName.endsWith(".bky")) // Blockly files
         || (fileName.contains("src/") && fileName.endsWith(".scm"))) // Form Definitions
       :false);
 
+    // Write the content (and backup) to GCS before the job, so a slow GCS
+    // write doesn't hold up the job and a retried job doesn't write it
+    // again. The job then only has to point the FileData at the new file.
+    final String stagedName;
+    final StagedBackup backup;
     try {
-      runJobWithRetries(new JobRetryHelper() {
+      if (useGCS) {
+        StorageStats.recordGcsBytes(encoded.bytes.length);
+        stagedName = stageGcsFile(projectId, fileName, encoded);
+      } else {
+        stagedName = null;
+      }
+      backup = (considerBackup && !doingConversion)
+        ? stageBackup(projectId, fileName, content, stagedName) : null;
+    } catch (IOException e) {
+      throw CrashReport.createAndLogError(LOG, null,
+        collectProjectErrorInfo(userId, projectId, fileName), e);
+    }
+
+    final Result<FileData> saved = new Result<FileData>();
+    boolean committed = false;
+    try {
+      runJobWithRetries(new JobRetryHelper(projectKey(projectId)) {
         FileData fd;
 
         @Override
         public void run(Objectify datastore) throws ObjectifyException {
-          Key<FileData> key = projectFileKey(projectKey(projectId), fileName);
-          fd = (FileData) memcache.get(key.getString());
-          if (fd == null) {
-            fd = datastore.find(projectFileKey(projectKey(projectId), fileName));
-          } else {
-            if (DEBUG) {
-              LOG.log(Level.INFO, "Fetched " + key.getString() + " from memcache.");
-            }
-          }
+          // Read fd in the transaction (not from memcache), so that of two
+          // saves of the same file one fails to commit and is retried, and
+          // neither loses track of the GCS file the other replaced.
+          fd = datastore.find(projectFileKey(projectKey(projectId), fileName));
 
           // <Screen>.yail files are missing when user converts AI1 project to AI2
           // instead of blowing up, just create a <Screen>.yail file
@@ -1585,63 +2166,45 @@ public class ObjectifyStorageIo implements  StorageIo {
             // mark the old blobstore blob for deletion
            oldBlobstoreKey.t = fd.blobKey;
           }
+          // The GCS file we are replacing (if any) is deleted once we are
+          // done. If an earlier try of this job got as far as storing fd we
+          // find our own staged file here, and keep the name we got then.
+          if (isTrue(fd.isGCS) && fd.gcsName != null && !fd.gcsName.equals(stagedName)) {
+            oldGcsName.t = fd.gcsName;
+          }
+          fd.compression = encoded.codec;
           if (useGCS) {
             fd.isGCS = true;
-            fd.gcsName = makeGCSfileName(fileName, projectId);
-            try {
-              GcsOutputChannel outputChannel =
-                gcsService.createOrReplace(new GcsFilename(GCS_BUCKET_NAME, fd.gcsName), GcsFileOptions.getDefaultInstance());
-              outputChannel.write(ByteBuffer.wrap(content));
-              outputChannel.close();
-            } catch (IOException e) {
-              throw CrashReport.createAndLogError(LOG, null,
-                collectProjectErrorInfo(userId, projectId, fileName), e);
-            }
+            fd.gcsName = stagedName;
             // If the content was previously stored in the datastore, clear it out.
             fd.content = null;
             fd.isBlob = false;  // in case we are converting from a blob
             fd.blobstorePath = null;
           } else {
-            if (isTrue(fd.isGCS)) {     // Was a GCS file, must have gotten smaller
-              try {             // and is now stored in the data store
-                gcsService.delete(new GcsFilename(GCS_BUCKET_NAME, fd.gcsName));
-              } catch (IOException e) {
-                throw CrashReport.createAndLogError(LOG, null,
-                  collectProjectErrorInfo(userId, projectId, fileName), e);
-              }
-              fd.isGCS = false;
-              fd.gcsName = null;
-            }
-            // Note, Don't have to do anything if the file was in the
-            // Blobstore and shrank because the code above (3 lines
-            // into the function) already handles removing the old
-            // contents from the Blobstore.
+            // Note, Don't have to do anything if the file was in GCS
+            // or the Blobstore and shrank, the old contents are removed
+            // once the job is done.
+            fd.isGCS = false;
+            fd.gcsName = null;
             fd.isBlob = false;
             fd.blobstorePath = null;
-            fd.content = content;
+            fd.content = encoded.bytes;
           }
-          if (considerBackup && !doingConversion) {
-            if ((fd.lastBackup + TWENTYFOURHOURS) < System.currentTimeMillis()) {
-              try {
-                String gcsName = makeGCSfileName(fileName + "." + formattedTime() + ".backup", projectId);
-                GcsOutputChannel outputChannel =
-                    gcsService.createOrReplace((new GcsFilename(GCS_BUCKET_NAME, gcsName)), GcsFileOptions.getDefaultInstance());
-                outputChannel.write(ByteBuffer.wrap(content));
-                outputChannel.close();
-                fd.lastBackup = System.currentTimeMillis();
-              } catch (IOException e) {
-                throw CrashReport.createAndLogError(LOG, null,
-                    collectProjectErrorInfo(userId, projectId, fileName + "(backup)"), e);
-              }
-            }
+          backupRecorded.t = false;
+          if (backup != null && (fd.lastBackup + TWENTYFOURHOURS) < System.currentTimeMillis()) {
+            fd.lastBackup = System.currentTimeMillis();
+            fd.lastBackupHash = backup.hash;
+            backupRecorded.t = true;
           }
           // Old file not marked with ownership, mark it now
           if (fd.userId == null || fd.userId.equals("")) {
             fd.userId = userId;
           }
           datastore.put(fd);
-          memcache.put(key.getString(), fd); // Store the updated data in memcache
-          modTime.t = updateProjectModDate(datastore, projectId, doingConversion);
+          saved.t = fd;
+          ProjectManifest manifest =
+              recordSave(datastore, projectId, fileName, content.length, checksum);
+          modTime.t = updateProjectModDate(datastore, projectId, doingConversion, manifest);
         }
 
         @Override
@@ -1650,8 +2213,11 @@ public class ObjectifyStorageIo implements  StorageIo {
             oldBlobstoreKey.t = fd.blobKey;
           }
         }
-      }, false);        // Use transaction for blobstore, otherwise we don't need one
-                               // and without one the caching code comes into play.
+      }, true);  // The FileData, project, manifest and summary are one entity group
+      committed = true;
+      // Only cache what was committed, memcache must never point at a
+      // staged file that is deleted because its save failed
+      memcache.put(projectFileKey(projectKey(projectId), fileName).getString(), saved.t);
 
       // It would have been convenient to delete the old blobstore file within the run() method
       // above but that caused an exception where the app engine datastore claimed to be doing
@@ -1666,10 +2232,218 @@ public class ObjectifyStorageIo implements  StorageIo {
       }
       throw CrashReport.createAndLogError(LOG, null,
           collectProjectErrorInfo(userId, projectId, fileName), e);
+    } finally {
+      // Clean up the GCS files nobody points at any more: the replaced
+      // file if we succeeded, the staged one if we didn't, and a backup
+      // that another save beat us to recording.
+      List<String> unused = new ArrayList<String>();
+      if (committed) {
+        if (oldGcsName.t != null) {
+          unused.add(oldGcsName.t);
+        }
+      } else if (stagedName != null) {
+        unused.add(stagedName);
+      }
+      if (backup != null && !(committed && isTrue(backupRecorded.t))) {
+        unused.add(backup.gcsName);
+      }
+      if (!unused.isEmpty()) {
+        scheduleGcsCleanup(projectId, fileName, unused);
+      }
     }
     return modTime.t;
   }
 
+  // A backup copy of a file written to GCS by stageBackup
+  private static class StagedBackup {
+    final String gcsName;
+    final String hash;
+
+    StagedBackup(String gcsName, String hash) {
+      this.gcsName = gcsName;
+      this.hash = hash;
+    }
+  }
+
+  /*
+   * Writes a backup of a file to GCS, if it is due: the last backup is
+   * more than a day old and had different content. Returns null if no
+   * backup is needed. Whether the backup is still due is checked again
+   * (and recorded in the FileData) by the job that saves the file.
+   *
+   * If the content has already been staged in GCS the backup is a copy
+   * made by GCS, so we don't upload the content twice.
+   */
+  private StagedBackup stageBackup(long projectId, String fileName, byte[] content,
+      String stagedName) throws IOException {
+    Key<FileData> key = projectFileKey(projectKey(projectId), fileName);
+    FileData fd = (FileData) memcache.get(key.getString());
+    StorageStats.recordMemcache(fd != null);
+    if (fd == null) {
+      fd = ObjectifyService.begin().find(key);
+    }
+    if (fd == null || (fd.lastBackup + TWENTYFOURHOURS) >= System.currentTimeMillis()) {
+      return null;
+    }
+    String hash = Hashing.sha1().hashBytes(content).toString();
+    if (hash.equals(fd.lastBackupHash)) {
+      return null;              // Unchanged since the last backup
+    }
+    String gcsName = makeGCSfileName(fileName + "." + formattedTime() + ".backup", projectId);
+    if (stagedName != null) {
+      gcsService.copy(new GcsFilename(GCS_BUCKET_NAME, stagedName),
+          new GcsFilename(GCS_BUCKET_NAME, gcsName));
+    } else {
+      gcsService.createOrReplace(new GcsFilename(GCS_BUCKET_NAME, gcsName),
+          GcsFileOptions.getDefaultInstance(), ByteBuffer.wrap(content));
+      StorageStats.recordGcsBytes(content.length);
+    }
+    return new StagedBackup(gcsName, hash);
+  }
+
+  /*
+   * Writes a file of a project to a new, uniquely named, GCS file and
+   * returns its name.
+   *
+   * Because every write goes to a new GCS file, nothing can see a file
+   * until a FileData pointing at it is stored, and the file it replaces
+   * stays readable until it is cleaned up (see scheduleGcsCleanup).
+   */
+  private String stageGcsFile(long projectId, String fileName, FileCodec.Encoded content)
+      throws IOException {
+    String gcsName = makeStagedGCSfileName(fileName, projectId);
+    gcsService.createOrReplace(new GcsFilename(GCS_BUCKET_NAME, gcsName),
+        gcsFileOptions(content), ByteBuffer.wrap(content.bytes));
+    return gcsName;
+  }
+
+  // Compressed GCS files are marked as such, for anyone looking at them
+  // (or at their backups) from outside App Inventor
+  private static GcsFileOptions gcsFileOptions(FileCodec.Encoded content) {
+    if (content.codec == null) {
+      return GcsFileOptions.getDefaultInstance();
+    }
+    return new GcsFileOptions.Builder().addUserMetadata("codec", content.codec).build();
+  }
+
+  /*
+   * Queues a task to delete GCS files of a project file that no FileData
+   * points at any more. The task runs a minute later, so requests that
+   * read a FileData just before it changed can still read the old file.
+   * If the task can't be queued we clean up right away.
+   */
+  private void scheduleGcsCleanup(long projectId, String fileName, List<String> gcsNames) {
+    try {
+      TaskOptions task = TaskOptions.Builder.withUrl(GCS_CLEANUP_URL)
+          .param("projectId", Long.toString(projectId))
+          .param("fileName", fileName)
+          .countdownMillis(GCS_CLEANUP_DELAY);
+      for (String gcsName : gcsNames) {
+        task.param("gcsName", gcsName);
+      }
+      QueueFactory.getQueue(GCS_CLEANUP_QUEUE).add(task);
+    } catch (RuntimeException e) {
+      LOG.log(Level.WARNING, "Unable to queue GCS cleanup for project " + projectId, e);
+      deleteUnusedGcsFiles(projectId, fileName, gcsNames);
+    }
+  }
+
+  /**
+   * Deletes GCS files that belonged to a project file, unless the file's
+   * FileData (still or again) points at them. Called from the task queue
+   * by GcsCleanupServlet.
+   *
+   * @param projectId the project id
+   * @param fileName the name of the file in the project
+   * @param gcsNames the GCS files to delete
+   */
+  public void deleteUnusedGcsFiles(long projectId, String fileName, List<String> gcsNames) {
+    FileData fd = ObjectifyService.begin().find(projectFileKey(projectKey(projectId), fileName));
+    for (String gcsName : gcsNames) {
+      if (fd != null && gcsName.equals(fd.gcsName)) {
+        continue;
+      }
+      releaseGcsFile(gcsName);
+    }
+  }
+
+  /*
+   * Reads a file and, if its content is in GCS, adds a reference to the GCS
+   * file for a copy that is going to point at it. Both happen in one
+   * transaction, so whoever replaces or deletes the file afterwards
+   * releases its reference after we took ours, and the GCS file stays.
+   *
+   * Returns the file, or null if there is no such file.
+   */
+  private FileData findAndAcquireGcsFile(final Key<FileData> fileKey) {
+    final Result<FileData> result = new Result<FileData>();
+    try {
+      runJobWithRetries(new JobRetryHelper() {
+        @Override
+        public void run(Objectify datastore) {
+          FileData fd = datastore.find(fileKey);
+          result.t = fd;
+          if (fd == null || !isTrue(fd.isGCS)) {
+            return;
+          }
+          GcsRefData ref = datastore.find(gcsRefKey(fd.gcsName));
+          if (ref == null) {
+            ref = new GcsRefData();
+            ref.gcsName = fd.gcsName;
+            ref.refs = 1;       // The FileData that has it now
+          }
+          ref.refs++;
+          datastore.put(ref);
+        }
+
+        @Override
+        public boolean isCrossGroup() {
+          return true;          // The file's project and the GcsRefData
+        }
+      }, true);
+    } catch (ObjectifyException e) {
+      throw CrashReport.createAndLogError(LOG, null, "Unable to share " + fileKey.getName(), e);
+    }
+    return result.t;
+  }
+
+  /*
+   * Drops a reference to a GCS file that a FileData no longer points at,
+   * and deletes the file if that was the last reference. If the count
+   * can't be updated the file is left alone: better to leak it than to
+   * lose a file that is still in use.
+   */
+  private void releaseGcsFile(final String gcsName) {
+    final Result<Boolean> unused = new Result<Boolean>();
+    try {
+      runJobWithRetries(new JobRetryHelper() {
+        @Override
+        public void run(Objectify datastore) {
+          GcsRefData ref = datastore.find(gcsRefKey(gcsName));
+          unused.t = ref == null;
+          if (ref == null) {
+            return;
+          } else if (ref.refs > 2) {
+            ref.refs--;
+            datastore.put(ref);
+          } else {
+            datastore.delete(ref);  // Back to just one FileData
+          }
+        }
+      }, true);
+    } catch (ObjectifyException e) {
+      LOG.log(Level.WARNING, "Unable to release " + gcsName, e);
+      return;
+    }
+    if (unused.t) {
+      try {
+        gcsService.delete(new GcsFilename(GCS_BUCKET_NAME, gcsName));
+      } catch (IOException e) {
+        LOG.log(Level.WARNING, "Unable to delete " + gcsName + " from GCS.", e);
+      }
+    }
+  }
+
   protected void deleteBlobstoreFile(String blobKeyString) {
     // It would be nice if there were an AppEngineFile.delete() method but alas there isn't, so we
     // have to get the BlobKey and delete via the BlobstoreService.
@@ -1704,6 +2478,11 @@ public class ObjectifyStorageIo implements  StorageIo {
     return (projectId + "/" + fileName);
   }
 
+  // Make a unique GCS file name for a new version of a file
+  String makeStagedGCSfileName(String fileName, long projectId) {
+    return makeGCSfileName(fileName, projectId) + "." + UUID.randomUUID();
+  }
+
   @Override
   public long deleteFile(final String userId, final long projectId, final String fileName) {
     validateGCS();
@@ -1711,12 +2490,13 @@ public class ObjectifyStorageIo implements  StorageIo {
     final Result<String> oldBlobKeyString = new Result<String>();
     final Result<String> oldgcsName = new Result<String>();
     try {
-      runJobWithRetries(new JobRetryHelper() {
+      runJobWithRetries(new JobRetryHelper(projectKey(projectId)) {
         @Override
         public void run(Objectify datastore) {
           Key<FileData> fileKey = projectFileKey(projectKey(projectId), fileName);
           memcache.delete(fileKey.getString());
           FileData fileData = datastore.find(fileKey);
+          ProjectManifest manifest = null;
           if (fileData != null) {
             if (fileData.userId != null && !fileData.userId.equals("")) {
               if (!fileData.userId.equals(userId)) {
@@ -1729,9 +2509,12 @@ public class ObjectifyStorageIo implements  StorageIo {
             if (isTrue(fileData.isGCS)) {
               oldgcsName.t = fileData.gcsName;
             }
+            manifest = loadManifest(datastore, projectId);
+            manifest.remove(fileName);
+            storeManifest(datastore, projectId, manifest);
           }
           datastore.delete(fileKey);
-          modTime.t = updateProjectModDate(datastore, projectId, false);
+          modTime.t = updateProjectModDate(datastore, projectId, false, manifest);
         }
       }, true);
     } catch (ObjectifyException e) {
@@ -1742,11 +2525,7 @@ public class ObjectifyStorageIo implements  StorageIo {
       deleteBlobstoreFile(oldBlobKeyString.t);
     }
     if (oldgcsName.t != null) {
-      try {
-        gcsService.delete(new GcsFilename(GCS_BUCKET_NAME, oldgcsName.t));
-      } catch (IOException e) {
-        LOG.log(Level.WARNING, "Unable to delete " + oldgcsName + " from GCS.", e);
-      }
+      releaseGcsFile(oldgcsName.t);
     }
     return (modTime.t == null) ? 0 : modTime.t;
   }
@@ -1798,6 +2577,7 @@ public class ObjectifyStorageIo implements  StorageIo {
         public void run(Objectify datastore) {
           Key<FileData> fileKey = projectFileKey(projectKey(projectId), fileName);
           fd.t = (FileData) memcache.get(fileKey.getString());
+          StorageStats.recordMemcache(fd.t != null);
           if (fd.t == null) {
             fd.t = datastore.find(fileKey);
           }
@@ -1829,6 +2609,7 @@ public class ObjectifyStorageIo implements  StorageIo {
             ByteBuffer resultBuffer;
             try {
               fileSize = (int) gcsService.getMetadata(gcsFileName).getLength();
+              StorageStats.recordGcsBytes(fileSize);
               resultBuffer = ByteBuffer.allocate(fileSize);
               GcsInputChannel readChannel = gcsService.openReadChannel(gcsFileName, 0);
               try {
@@ -1841,7 +2622,7 @@ public class ObjectifyStorageIo implements  StorageIo {
                   }
                 }
                 recovered = true;
-                result.t = resultBuffer.array();
+                result.t = FileCodec.decode(fileData.compression, resultBuffer.array());
                 // Should we downgrade to the blobstore (for debugging)?
                 // Note: We only run if we have at least 5 seconds of runtime left in the request
                 long timeRemaining = ApiProxy.getCurrentEnvironment().getRemainingMillis();
@@ -1919,7 +2700,7 @@ public class ObjectifyStorageIo implements  StorageIo {
         if (fileData.content == null) {
           result.t = new byte[0];
         } else {
-          result.t = fileData.content;
+          result.t = FileCodec.decode(fileData.compression, fileData.content);
         }
       }
     } else {
@@ -2061,6 +2842,7 @@ public class ObjectifyStorageIo implements  StorageIo {
               ByteBuffer resultBuffer;
               try {
                 fileSize = (int) gcsService.getMetadata(gcsFileName).getLength();
+                StorageStats.recordGcsBytes(fileSize);
                 resultBuffer = ByteBuffer.allocate(fileSize);
                 GcsInputChannel readChannel = gcsService.openReadChannel(gcsFileName, 0);
                 try {
@@ -2112,6 +2894,7 @@ public class ObjectifyStorageIo implements  StorageIo {
         if (data == null) {     // This happens if file creation is interrupted
           data = new byte[0];
         }
+        data = FileCodec.decode(fd.compression, data);
         out.putNextEntry(new ZipEntry(fileName));
         out.write(data, 0, data.length);
         out.closeEntry();
@@ -2359,30 +3142,6 @@ public class ObjectifyStorageIo implements  StorageIo {
     }
   }
 
-  // Cleanup expired nonces which are older then 3 hours. Normal Nonce lifetime
-  // is 2 hours. So for one hour they persist and return "link expired" instead of
-  // "link not found" (after the object itself is removed).
-  //
-  // Note: We only process up to 10 here to limit the amount of processing time
-  // we spend here. If we remove up to 10 for each call, we should keep ahead
-  // of the growing garbage.
-  //
-  // Also note that we are not running in a transaction, there is no need
-  public void cleanupNonces() {
-    Objectify datastore = ObjectifyService.begin();
-    // We do not use runJobWithRetries because if we fail here, we will be
-    // called again the next time someone attempts to download a built APK
-    // via a QR Code.
-    try {
-      datastore.delete(datastore.query(NonceData.class)
-        .filter("timestamp <", new Date((new Date()).getTime() - 3600*3*1000L))
-        .limit(10).fetchKeys());
-    } catch (Exception ex) {
-        LOG.log(Level.WARNING, "Exception during cleanupNonces", ex);
-    }
-
-  }
-
   @Override
   public PWData createPWData(final String email) {
     Objectify datastore = ObjectifyService.begin();
@@ -2422,20 +3181,217 @@ public class ObjectifyStorageIo implements  StorageIo {
     return result.t;
   }
 
-  // Remove up to 10 expired PWData elements from the datastore
   @Override
-  public void cleanuppwdata() {
+  public MaintenanceBatch runMaintenance(MaintenanceJob job, @Nullable String cursor) {
+    switch (job) {
+      case NONCES:
+        // Nonces live for 2 hours. For one more hour they persist and
+        // return "link expired" instead of "link not found".
+        return deleteExpired(NonceData.class, "timestamp", 3600*3*1000L, cursor);
+      case PASSWORD_TOKENS:
+        return deleteExpired(PWData.class, "timestamp", TWENTYFOURHOURS, cursor);
+      case RENDEZVOUS:
+        return cleanupRendezvousData(cursor);
+      case GCS_BACKUPS:
+        return cleanupGcsBackups(cursor);
+      case BUILD_OUTPUTS:
+        return cleanupBuildOutputs(cursor);
+      default:
+        throw new IllegalArgumentException("Unknown maintenance job " + job);
+    }
+  }
+
+  /*
+   * Deletes the next batch of entities whose timestamp is older than age,
+   * with a single datastore call. We do not use runJobWithRetries: the
+   * entities are in different entity groups, and a batch that fails is
+   * retried by the task queue.
+   */
+  private <T> MaintenanceBatch deleteExpired(Class<T> kind, String timestampField, long age,
+      @Nullable String cursor) {
+    Objectify datastore = ObjectifyService.begin();
+    Query<T> query = datastore.query(kind)
+        .filter(timestampField + " <", new Date(System.currentTimeMillis() - age))
+        .limit(MAINTENANCE_BATCH);
+    if (cursor != null) {
+      query.startCursor(Cursor.fromWebSafeString(cursor));
+    }
+    QueryResultIterator<Key<T>> keys = query.fetchKeys().iterator();
+    List<Key<T>> expired = new ArrayList<Key<T>>();
+    while (keys.hasNext()) {
+      expired.add(keys.next());
+    }
+    datastore.delete(expired);
+    return new MaintenanceBatch(expired.size(), expired.size(),
+        nextCursor(expired.size(), MAINTENANCE_BATCH, keys));
+  }
+
+  /*
+   * Deletes the rendezvous keys of the next batch that weren't used for a
+   * day. When they were last used isn't indexed, so all of them are
+   * looked at.
+   */
+  private MaintenanceBatch cleanupRendezvousData(@Nullable String cursor) {
+    Objectify datastore = ObjectifyService.begin();
+    Query<RendezvousData> query = datastore.query(RendezvousData.class)
+        .limit(MAINTENANCE_BATCH);
+    if (cursor != null) {
+      query.startCursor(Cursor.fromWebSafeString(cursor));
+    }
+    Date cutoff = new Date(System.currentTimeMillis() - TWENTYFOURHOURS);
+    QueryResultIterator<RendezvousData> entries = query.iterator();
+    List<RendezvousData> unused = new ArrayList<RendezvousData>();
+    int scanned = 0;
+    while (entries.hasNext()) {
+      RendezvousData data = entries.next();
+      scanned++;
+      if (data.used == null || data.used.before(cutoff)) {
+        unused.add(data);
+      }
+    }
+    datastore.delete(unused);
+    return new MaintenanceBatch(scanned, unused.size(),
+        nextCursor(scanned, MAINTENANCE_BATCH, entries));
+  }
+
+  /*
+   * Deletes the GCS backups of the next batch of deleted projects.
+   * deleteProject deletes the files of a project, but no FileData points
+   * at backups, so they are left behind. It records the project in a
+   * DeletedProjectData instead, which goes once the backups under the
+   * project's "<projectId>/" directory are deleted.
+   */
+  private MaintenanceBatch cleanupGcsBackups(@Nullable String cursor) {
+    if (!useGcs || GCS_BUCKET_NAME.equals("")) {
+      return new MaintenanceBatch(0, 0, null);
+    }
+    Objectify datastore = ObjectifyService.begin();
+    Query<DeletedProjectData> query = datastore.query(DeletedProjectData.class)
+        .limit(MAINTENANCE_PROJECT_BATCH);
+    if (cursor != null) {
+      query.startCursor(Cursor.fromWebSafeString(cursor));
+    }
+    QueryResultIterator<Key<DeletedProjectData>> keys = query.fetchKeys().iterator();
+    List<Key<DeletedProjectData>> cleaned = new ArrayList<Key<DeletedProjectData>>();
+    int deleted = 0;
+    try {
+      while (keys.hasNext()) {
+        Key<DeletedProjectData> key = keys.next();
+        ListResult files = gcsService.list(GCS_BUCKET_NAME,
+            new ListOptions.Builder().setPrefix(key.getId() + "/").setRecursive(true).build());
+        while (files.hasNext()) {
+          ListItem file = files.next();
+          if (file.getName().endsWith(".backup")) {
+            gcsService.delete(new GcsFilename(GCS_BUCKET_NAME, file.getName()));
+            deleted++;
+          }
+        }
+        cleaned.add(key);
+      }
+    } catch (IOException e) {
+      throw CrashReport.createAndLogError(LOG, null,
+          "Unable to clean up GCS backups after " + cursor, e);
+    } finally {
+      datastore.delete(cleaned);
+    }
+    return new MaintenanceBatch(cleaned.size(), deleted,
+        nextCursor(cleaned.size(), MAINTENANCE_PROJECT_BATCH, keys));
+  }
+
+  /*
+   * Deletes the build outputs of the projects of the next batch that
+   * weren't changed for buildOutputDays days. Building a project updates
+   * its modification date, so their outputs are at least that old.
+   */
+  private MaintenanceBatch cleanupBuildOutputs(@Nullable String cursor) {
     Objectify datastore = ObjectifyService.begin();
-    // We do not use runJobWithRetries because if we fail here, we will be
-    // called again the next time someone attempts to set a password
-    // Note: we remove data after 24 hours.
+    Query<ProjectData> query = datastore.query(ProjectData.class)
+        .limit(MAINTENANCE_PROJECT_BATCH);
+    if (cursor != null) {
+      query.startCursor(Cursor.fromWebSafeString(cursor));
+    }
+    long cutoff = System.currentTimeMillis() - buildOutputDays * TWENTYFOURHOURS;
+    QueryResultIterator<ProjectData> projects = query.iterator();
+    int scanned = 0;
+    int deleted = 0;
+    while (projects.hasNext()) {
+      ProjectData pd = projects.next();
+      scanned++;
+      if (pd.dateModified < cutoff) {
+        deleted += deleteOutputFiles(pd.id);
+      }
+    }
+    return new MaintenanceBatch(scanned, deleted,
+        nextCursor(scanned, MAINTENANCE_PROJECT_BATCH, projects));
+  }
+
+  /*
+   * Deletes the output files of a project. Unlike deleteFile this leaves
+   * the project's modification date alone, the user didn't change
+   * anything.
+   *
+   * Returns the number of files deleted.
+   */
+  private int deleteOutputFiles(final long projectId) {
+    final Result<Integer> deleted = new Result<Integer>();
+    final List<String> gcsNames = new ArrayList<String>();
+    final List<String> blobKeys = new ArrayList<String>();
     try {
-      datastore.delete(datastore.query(PWData.class)
-        .filter("timestamp <", new Date((new Date()).getTime() - 3600*24*1000L))
-        .limit(10).fetchKeys());
-    } catch (Exception ex) {
-        LOG.log(Level.WARNING, "Exception during cleanupNonces", ex);
+      runJobWithRetries(new JobRetryHelper() {
+        @Override
+        public void run(Objectify datastore) {
+          deleted.t = 0;
+          gcsNames.clear();
+          blobKeys.clear();
+          ProjectManifest manifest = loadManifest(datastore, projectId);
+          List<String> outputFiles = manifest.getOutputFiles();
+          if (outputFiles.isEmpty()) {
+            return;
+          }
+          Key<ProjectData> projectKey = projectKey(projectId);
+          List<Key<FileData>> fileKeys = new ArrayList<Key<FileData>>();
+          for (String fileName : outputFiles) {
+            Key<FileData> fileKey = projectFileKey(projectKey, fileName);
+            memcache.delete(fileKey.getString());
+            fileKeys.add(fileKey);
+            manifest.remove(fileName);
+          }
+          for (FileData fd : datastore.get(fileKeys).values()) {
+            if (isTrue(fd.isGCS) && fd.gcsName != null) {
+              gcsNames.add(fd.gcsName);
+            }
+            if (fd.blobKey != null) {
+              blobKeys.add(fd.blobKey);
+            }
+          }
+          datastore.delete(fileKeys);
+          storeManifest(datastore, projectId, manifest);
+          deleted.t = fileKeys.size();
+        }
+      }, true);
+    } catch (ObjectifyException e) {
+      throw CrashReport.createAndLogError(LOG, null,
+          "Unable to delete the build outputs of project " + projectId, e);
+    }
+    for (String gcsName : gcsNames) {
+      releaseGcsFile(gcsName);
+    }
+    for (String blobKey : blobKeys) {
+      deleteBlobstoreFile(blobKey);
+    }
+    return deleted.t;
+  }
+
+  /*
+   * Returns where the batch after a batch of count results of a query
+   * limited to limit results starts, or null if there are no more.
+   */
+  private static String nextCursor(int count, int limit, QueryResultIterator<?> results) {
+    if (count < limit) {
+      return null;
     }
+    Cursor cursor = results.getCursor();
+    return (cursor == null) ? null : cursor.toWebSafeString();
   }
 
   private Key<StoredData.PWData> pwdataKey(String uid) {
@@ -2469,10 +3425,26 @@ public class ObjectifyStorageIo implements  StorageIo {
     return new Key<FileData>(projectKey, FileData.class, fileName);
   }
 
+  private Key<ProjectManifestData> manifestKey(long projectId) {
+    return new Key<ProjectManifestData>(projectKey(projectId), ProjectManifestData.class,
+        ProjectManifestData.MANIFEST_ID);
+  }
+
+  private Key<ProjectSummaryData> summaryKey(long projectId) {
+    return new Key<ProjectSummaryData>(projectKey(projectId), ProjectSummaryData.class,
+        ProjectSummaryData.SUMMARY_ID);
+  }
+
+  private Key<GcsRefData> gcsRefKey(String gcsName) {
+    return new Key<GcsRefData>(GcsRefData.class, gcsName);
+  }
+
   /**
    * Call job.run() if we get a {@link java.util.ConcurrentModificationException}
    * or {@link com.google.appinventor.server.storage.ObjectifyException}
-   * we will retry the job (at most {@code MAX_JOB_RETRIES times}).
+   * we will retry the job (at most {@code RetryPolicy.DATASTORE.getMaxRetries()}
+   * times), waiting a little longer before each retry. Jobs that name their
+   * entity group take turns while it is contended (see {@link RetryPolicy}).
    * Any other exception will cause the job to fail immediately.
    * If useTransaction is true, create a transaction and run the job in
    * that transaction. If the job terminates normally, commit the transaction.
@@ -2489,48 +3461,68 @@ public class ObjectifyStorageIo implements  StorageIo {
    */
   @VisibleForTesting
   void runJobWithRetries(JobRetryHelper job, boolean useTransaction) throws ObjectifyException {
-    int tries = 0;
-    while (tries <= MAX_JOB_RETRIES) {
-      Objectify datastore;
-      if (useTransaction) {
-        datastore = ObjectifyService.beginTransaction();
-      } else {
-        datastore = ObjectifyService.begin();
-      }
-      try {
-        job.run(datastore);
-        if (useTransaction) {
-          datastore.getTxn().commit();
-        }
-        break;
-      } catch (ConcurrentModificationException ex) {
-        job.onNonFatalError();
-        LOG.log(Level.WARNING, "Optimistic concurrency failure", ex);
-      } catch (ObjectifyException oe) {
-        String message = oe.getMessage();
-        if (message != null &&
-          (message.startsWith("Blocks") || message.startsWith("User Al"))) { // This one is fatal!
-          throw oe;
-        }
-        // maybe this should be a fatal error? I think only thing
-        // that creates this exception is this method.
-        job.onNonFatalError();
-      } catch (IOException e) {
-        job.onIOException(e);
-        break;
-      } finally {
-        if (useTransaction && datastore.getTxn().isActive()) {
-          try {
-            datastore.getTxn().rollback();
-          } catch (RuntimeException e) {
-            LOG.log(Level.WARNING, "Transaction rollback failed", e);
+    String operation = RetryPolicy.operationOf(job);
+    Lock turn = RetryPolicy.DATASTORE.admit(operation, job.entityGroup);
+    try {
+      int tries = 0;
+      while (true) {
+        boolean collided = false;
+        Objectify datastore;
+        if (useTransaction && job.isCrossGroup()) {
+          datastore = ObjectifyService.begin(new ObjectifyOpts().setBeginTransaction(true)
+              .setTransactionOptions(TransactionOptions.Builder.withXG(true)));
+        } else if (useTransaction) {
+          datastore = ObjectifyService.beginTransaction();
+        } else {
+          datastore = ObjectifyService.begin();
+        }
+        try {
+          job.run(datastore);
+          if (useTransaction) {
+            datastore.getTxn().commit();
+          }
+          return;
+        } catch (ConcurrentModificationException ex) {
+          job.onNonFatalError();
+          collided = true;
+          LOG.log(Level.WARNING, "Optimistic concurrency failure", ex);
+        } catch (ObjectifyException oe) {
+          String message = oe.getMessage();
+          if (message != null &&
+            (message.startsWith("Blocks") || message.startsWith("User Al"))) { // This one is fatal!
+            throw oe;
+          }
+          // maybe this should be a fatal error? I think only thing
+          // that creates this exception is this method.
+          job.onNonFatalError();
+        } catch (IOException e) {
+          job.onIOException(e);
+          return;
+        } finally {
+          if (useTransaction && datastore.getTxn().isActive()) {
+            try {
+              datastore.getTxn().rollback();
+            } catch (RuntimeException e) {
+              LOG.log(Level.WARNING, "Transaction rollback failed", e);
+            }
           }
         }
+        tries++;
+        if (tries > RetryPolicy.DATASTORE.getMaxRetries()) {
+          break;
+        }
+        RetryPolicy.DATASTORE.retried(operation, collided ? job.entityGroup : null);
+        StorageStats.recordRetry();
+        if (!RetryPolicy.DATASTORE.backOff(tries)) {
+          break;
+        }
       }
-      tries++;
-    }
-    if (tries > MAX_JOB_RETRIES) {
+      RetryPolicy.DATASTORE.gaveUp(operation);
       throw new ObjectifyException("Couldn't commit job after max retries.");
+    } finally {
+      if (turn != null) {
+        turn.unlock();
+      }
     }
   }
 
@@ -2566,6 +3558,7 @@ public class ObjectifyStorageIo implements  StorageIo {
     }
     GcsFilename gcsFileName = new GcsFilename(GCS_BUCKET_NAME, fileName);
     int fileSize = (int) gcsService.getMetadata(gcsFileName).getLength();
+    StorageStats.recordGcsBytes(fileSize);
     ByteBuffer resultBuffer = ByteBuffer.allocate(fileSize);
     GcsInputChannel readChannel = gcsService.openReadChannel(gcsFileName, 0);
     int bytesRead = 0;
@@ -2641,7 +3634,8 @@ public class ObjectifyStorageIo implements  StorageIo {
   // layer to the client code which will put up a dialog box for the user to review
   // See Ode.java for more information
   private void checkForBlocksTruncation(FileData fd) throws ObjectifyException {
-    if (fd.isBlob || isTrue(fd.isGCS) || fd.content.length > 120)
+    if (fd.isBlob || isTrue(fd.isGCS)
+        || FileCodec.decode(fd.compression, fd.content).length > 120)
       throw new ObjectifyException("BlocksTruncated"); // Hack
     // I'm avoiding having to modify every use of runJobWithRetries to handle a new
     // exception, so we use this dodge.
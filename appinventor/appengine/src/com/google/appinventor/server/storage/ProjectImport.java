@@ -0,0 +1,54 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server.storage;
+
+import com.google.appinventor.shared.rpc.project.Project;
+
+import java.io.IOException;
+
+/**
+ * A new project whose files are stored as they are added, see
+ * {@link StorageIo#beginProjectImport}. The project itself is only
+ * created once all its files are stored, when the import is committed;
+ * until then nobody can see it.
+ *
+ * <p>A StorageIo may store the files in the background while the caller
+ * goes on adding files. The content that waits to be stored is limited
+ * to what was given to beginProjectImport: addFile waits while the
+ * limit is reached.
+ *
+ * <p>Every import must be either committed or aborted.
+ */
+public interface ProjectImport {
+
+  /**
+   * Adds a file to the project. The content may not be stored yet when
+   * this returns, and must not be changed by the caller.
+   *
+   * @param fileName file name
+   * @param content file content
+   * @throws IOException if storing a file failed
+   */
+  void addFile(String fileName, byte[] content) throws IOException;
+
+  /**
+   * Waits for the files to be stored and creates the project with them
+   * and with the files of project.
+   *
+   * @param project project information, and any files that weren't added
+   * @param projectSettings project settings
+   * @return project id
+   * @throws IOException if storing a file failed; nothing of the import
+   *         is kept then
+   */
+  long commit(Project project, String projectSettings) throws IOException;
+
+  /**
+   * Gives up on the import and deletes the files stored so far. Does
+   * nothing once the import is committed.
+   */
+  void abort();
+}
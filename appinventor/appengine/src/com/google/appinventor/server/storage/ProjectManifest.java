@@ -0,0 +1,184 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server.storage;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import org.json.JSONObject;
+
+/**
+ * The list of files of a project, with the role, size, checksum and
+ * modification date of each, kept up to date by the StorageIo as files
+ * are added, removed and saved. Opening a project only needs the
+ * manifest, not a query over all of the project's files.
+ *
+ * A size of -1 or a null checksum means the StorageIo doesn't know them
+ * (yet), for instance for files that were last saved before the project
+ * had a manifest.
+ */
+public final class ProjectManifest {
+
+  /**
+   * One file of the project.
+   */
+  public static final class FileEntry {
+    private final String fileName;
+    private final boolean source;
+    private final long size;
+    private final String checksum;
+    private final long modified;
+
+    FileEntry(String fileName, boolean source, long size, String checksum, long modified) {
+      this.fileName = fileName;
+      this.source = source;
+      this.size = size;
+      this.checksum = checksum;
+      this.modified = modified;
+    }
+
+    public String getFileName() {
+      return fileName;
+    }
+
+    /**
+     * @return true for a source file, false for an output file
+     */
+    public boolean isSource() {
+      return source;
+    }
+
+    /**
+     * @return the size of the file's content in bytes, or -1 if unknown
+     */
+    public long getSize() {
+      return size;
+    }
+
+    /**
+     * @return the SHA-1 hash of the file's content, or null if unknown
+     */
+    public String getChecksum() {
+      return checksum;
+    }
+
+    /**
+     * @return when the file was last saved, or 0 if unknown
+     */
+    public long getModified() {
+      return modified;
+    }
+  }
+
+  private final String projectName;
+  private final SortedMap<String, FileEntry> files = new TreeMap<String, FileEntry>();
+
+  ProjectManifest(String projectName) {
+    this.projectName = projectName;
+  }
+
+  public String getProjectName() {
+    return projectName;
+  }
+
+  /**
+   * @return the names of the project's source files, in name order
+   */
+  public List<String> getSourceFiles() {
+    return getFiles(true);
+  }
+
+  /**
+   * @return the names of the project's output files, in name order
+   */
+  public List<String> getOutputFiles() {
+    return getFiles(false);
+  }
+
+  /**
+   * @return the entry of a file, or null if the project has no such file
+   */
+  public FileEntry getFile(String fileName) {
+    return files.get(fileName);
+  }
+
+  /**
+   * @return all the files of the project, in name order
+   */
+  public Collection<FileEntry> getFiles() {
+    return Collections.unmodifiableCollection(files.values());
+  }
+
+  /**
+   * @return the total size of the project's source files in bytes, or -1
+   *         if the size of some of them is unknown
+   */
+  public long getSourceSize() {
+    long total = 0;
+    for (FileEntry entry : files.values()) {
+      if (entry.source) {
+        if (entry.size < 0) {
+          return -1;
+        }
+        total += entry.size;
+      }
+    }
+    return total;
+  }
+
+  void put(FileEntry entry) {
+    files.put(entry.fileName, entry);
+  }
+
+  void remove(String fileName) {
+    files.remove(fileName);
+  }
+
+  private List<String> getFiles(boolean source) {
+    List<String> result = new ArrayList<String>();
+    for (FileEntry entry : files.values()) {
+      if (entry.source == source) {
+        result.add(entry.fileName);
+      }
+    }
+    return result;
+  }
+
+  String toJson() {
+    JSONObject fileObjects = new JSONObject();
+    for (FileEntry entry : files.values()) {
+      JSONObject file = new JSONObject();
+      file.put("source", entry.source);
+      file.put("size", entry.size);
+      if (entry.checksum != null) {
+        file.put("sha1", entry.checksum);
+      }
+      file.put("modified", entry.modified);
+      fileObjects.put(entry.fileName, file);
+    }
+    JSONObject manifest = new JSONObject();
+    manifest.put("name", projectName);
+    manifest.put("files", fileObjects);
+    return manifest.toString();
+  }
+
+  static ProjectManifest fromJson(String json) {
+    JSONObject manifest = new JSONObject(json);
+    ProjectManifest result = new ProjectManifest(manifest.getString("name"));
+    JSONObject fileObjects = manifest.getJSONObject("files");
+    for (Object key : fileObjects.keySet()) {
+      String fileName = (String) key;
+      JSONObject file = fileObjects.getJSONObject(fileName);
+      result.put(new FileEntry(fileName, file.getBoolean("source"), file.getLong("size"),
+          file.optString("sha1", null), file.getLong("modified")));
+    }
+    return result;
+  }
+}
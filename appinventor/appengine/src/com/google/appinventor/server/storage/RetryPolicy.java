@@ -0,0 +1,291 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server.storage;
+
+import java.lang.reflect.Method;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.json.JSONObject;
+
+/**
+ * How the datastore jobs of ObjectifyStorageIo and
+ * ObjectifyGalleryStorageIo are retried when they collide with other
+ * writes to the same entity group.
+ *
+ * <p>Instead of retrying right away, which makes colliding requests
+ * collide again, a job waits before each retry: a random time up to a
+ * limit that doubles with every retry (exponential backoff with full
+ * jitter).
+ *
+ * <p>The collisions are counted per entity group. An entity group that
+ * collided {@link #HOT_COLLISIONS} times within {@link #HOT_WINDOW_MILLIS}
+ * is hot: the jobs on it of this instance then take turns instead of
+ * running at the same time (see {@link #admit}). A job that can't get its
+ * turn in time is shed: it fails right away rather than adding to the
+ * contention. Entity groups cool off once they stop colliding. Instances
+ * don't know of each other's jobs, so this only removes the collisions
+ * between the requests an instance serves.
+ *
+ * <p>The retries, the jobs that gave up after the last retry and the
+ * jobs that were shed are counted by operation, the method that runs the
+ * job.
+ */
+final class RetryPolicy {
+
+  /** The policy shared by the datastore StorageIos. */
+  static final RetryPolicy DATASTORE = new RetryPolicy(10, 20, 1000, 5*1000, new Random());
+
+  /** Collisions within HOT_WINDOW_MILLIS that make an entity group hot. */
+  static final int HOT_COLLISIONS = 3;
+
+  /** How long collisions count towards making an entity group hot. */
+  static final long HOT_WINDOW_MILLIS = 10*1000;
+
+  // Entity groups we keep track of before forgetting the cool ones
+  private static final int MAX_TRACKED_GROUPS = 1000;
+
+  // The contention on one entity group
+  private static final class Group {
+    // Jobs on a hot entity group run one at a time. The turn is reentrant
+    // so a job can run another job on the same entity group.
+    final ReentrantLock turn = new ReentrantLock(true);
+    int collisions;
+    long windowStart;
+
+    synchronized void collided(long now) {
+      if (now - windowStart > HOT_WINDOW_MILLIS) {
+        windowStart = now;
+        collisions = 0;
+      }
+      collisions++;
+    }
+
+    synchronized boolean isHot(long now) {
+      return collisions >= HOT_COLLISIONS && now - windowStart <= HOT_WINDOW_MILLIS;
+    }
+  }
+
+  // The counters of one operation
+  private static final class Counters {
+    final AtomicLong retries = new AtomicLong();
+    final AtomicLong giveUps = new AtomicLong();
+    final AtomicLong shed = new AtomicLong();
+  }
+
+  private final int maxRetries;
+  private final long baseDelayMillis;
+  private final long maxDelayMillis;
+  private final long admitTimeoutMillis;
+  private final Random random;
+
+  private final Map<String, Group> groups = new ConcurrentHashMap<String, Group>();
+  private final Map<String, Counters> counters = new ConcurrentHashMap<String, Counters>();
+  private static final Map<Class<?>, String> OPERATIONS =
+      new ConcurrentHashMap<Class<?>, String>();
+
+  /**
+   * @param maxRetries how often a job is retried before giving up
+   * @param baseDelayMillis the longest wait before the first retry
+   * @param maxDelayMillis the longest wait before any retry
+   * @param admitTimeoutMillis how long a job on a hot entity group waits
+   *        for its turn before it is shed
+   * @param random where the waits come from
+   */
+  RetryPolicy(int maxRetries, long baseDelayMillis, long maxDelayMillis,
+      long admitTimeoutMillis, Random random) {
+    this.maxRetries = maxRetries;
+    this.baseDelayMillis = baseDelayMillis;
+    this.maxDelayMillis = maxDelayMillis;
+    this.admitTimeoutMillis = admitTimeoutMillis;
+    this.random = random;
+  }
+
+  /**
+   * @return how often a job is retried before giving up
+   */
+  int getMaxRetries() {
+    return maxRetries;
+  }
+
+  /**
+   * @param retry the retry about to be made, from 1
+   * @return how long to wait before it, in milliseconds
+   */
+  long backoffMillis(int retry) {
+    long limit = baseDelayMillis << Math.min(Math.max(retry - 1, 0), 20);
+    limit = Math.min(limit, maxDelayMillis);
+    synchronized (random) {
+      return (long) (random.nextDouble() * (limit + 1));
+    }
+  }
+
+  /**
+   * Waits before a retry.
+   *
+   * @return false if the thread was interrupted, and the job should give up
+   */
+  boolean backOff(int retry) {
+    try {
+      Thread.sleep(backoffMillis(retry));
+      return true;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+  }
+
+  /**
+   * Lets a job on an entity group run. If the entity group is hot, waits
+   * for the job's turn.
+   *
+   * @param operation the operation running the job
+   * @param group the entity group the job writes to, or null if it isn't
+   *        known
+   * @return the turn to unlock once the job is done, or null if the
+   *         entity group isn't hot
+   * @throws ObjectifyException if the job didn't get its turn in time
+   */
+  Lock admit(String operation, String group) throws ObjectifyException {
+    if (group == null) {
+      return null;
+    }
+    Group contention = groups.get(group);
+    if (contention == null || !contention.isHot(System.currentTimeMillis())) {
+      return null;
+    }
+    boolean admitted;
+    try {
+      admitted = contention.turn.tryLock(admitTimeoutMillis, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      admitted = false;
+    }
+    if (!admitted) {
+      counters(operation).shed.incrementAndGet();
+      throw new ObjectifyException("Too much contention on " + group);
+    }
+    return contention.turn;
+  }
+
+  /**
+   * Records that a job collided with another write and is retried.
+   *
+   * @param operation the operation running the job
+   * @param group the entity group the job writes to, or null if it isn't
+   *        known
+   */
+  void retried(String operation, String group) {
+    counters(operation).retries.incrementAndGet();
+    if (group == null) {
+      return;
+    }
+    long now = System.currentTimeMillis();
+    Group contention = groups.get(group);
+    if (contention == null) {
+      if (groups.size() >= MAX_TRACKED_GROUPS) {
+        forgetCoolGroups(now);
+      }
+      synchronized (groups) {
+        contention = groups.get(group);
+        if (contention == null) {
+          contention = new Group();
+          groups.put(group, contention);
+        }
+      }
+    }
+    contention.collided(now);
+  }
+
+  /**
+   * Records that a job gave up after its last retry.
+   */
+  void gaveUp(String operation) {
+    counters(operation).giveUps.incrementAndGet();
+  }
+
+  /**
+   * @return whether the entity group is hot
+   */
+  boolean isHot(String group) {
+    Group contention = groups.get(group);
+    return contention != null && contention.isHot(System.currentTimeMillis());
+  }
+
+  /**
+   * @return the retries, give-ups and shed jobs by operation, as JSON
+   */
+  JSONObject toJson() {
+    JSONObject operations = new JSONObject();
+    for (Map.Entry<String, Counters> entry
+        : new TreeMap<String, Counters>(counters).entrySet()) {
+      JSONObject json = new JSONObject();
+      json.put("retries", entry.getValue().retries.get());
+      json.put("giveUps", entry.getValue().giveUps.get());
+      json.put("shed", entry.getValue().shed.get());
+      operations.put(entry.getKey(), json);
+    }
+    int hot = 0;
+    long now = System.currentTimeMillis();
+    for (Group contention : groups.values()) {
+      if (contention.isHot(now)) {
+        hot++;
+      }
+    }
+    JSONObject json = new JSONObject();
+    json.put("operations", operations);
+    json.put("hotGroups", hot);
+    return json;
+  }
+
+  /**
+   * @return the operation a job belongs to: the method it was written in
+   *         for the anonymous classes the jobs usually are, else its class
+   */
+  static String operationOf(Object job) {
+    Class<?> type = job.getClass();
+    String operation = OPERATIONS.get(type);
+    if (operation == null) {
+      Method method = type.getEnclosingMethod();
+      operation = (method != null) ? method.getName() : type.getSimpleName();
+      OPERATIONS.put(type, operation);
+    }
+    return operation;
+  }
+
+  private Counters counters(String operation) {
+    Counters result = counters.get(operation);
+    if (result == null) {
+      synchronized (counters) {
+        result = counters.get(operation);
+        if (result == null) {
+          result = new Counters();
+          counters.put(operation, result);
+        }
+      }
+    }
+    return result;
+  }
+
+  private void forgetCoolGroups(long now) {
+    synchronized (groups) {
+      Iterator<Group> iterator = groups.values().iterator();
+      while (iterator.hasNext()) {
+        Group contention = iterator.next();
+        if (!contention.isHot(now) && !contention.turn.isLocked()) {
+          iterator.remove();
+        }
+      }
+    }
+  }
+}
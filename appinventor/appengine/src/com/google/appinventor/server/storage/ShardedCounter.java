@@ -0,0 +1,186 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server.storage;
+
+import com.google.appengine.api.memcache.ErrorHandlers;
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheService.SetPolicy;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.Objectify;
+import com.googlecode.objectify.ObjectifyService;
+
+import java.util.ArrayList;
+import java.util.ConcurrentModificationException;
+import java.util.List;
+import java.util.Random;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A counter for a gallery app that is spread over several
+ * {@link GalleryCounterShardData} entities.
+ *
+ * Updating a single counter field in {@link GalleryAppData} means every
+ * like or download of a popular app is a read-modify-write of the same
+ * entity group, and concurrent requests keep failing with
+ * {@link ConcurrentModificationException}. Instead, an increment goes to a
+ * randomly chosen shard (each shard is its own entity group) and a read
+ * sums all the shards.
+ *
+ * Shards are never reset. The running total of the shards is periodically
+ * folded into the indexed field of {@link GalleryAppData} (numLikes,
+ * numDownloads) so the gallery can still sort on it. The app entity
+ * remembers the shard total it has already folded in, so the current value
+ * of the counter is:
+ *
+ *   appData.numX + (shard total) - (shard total already folded in)
+ *
+ * The shard total is cached in memcache. Increments update the cached
+ * value in place, so a read normally costs one memcache get.
+ */
+final class ShardedCounter {
+
+  private static final Logger LOG = Logger.getLogger(ShardedCounter.class.getName());
+
+  static final int DEFAULT_NUM_SHARDS = 8;
+
+  private static final int MAX_SHARD_RETRIES = 10;
+
+  // How long we remember the sum of the shards. Increments keep the
+  // cached value up to date, this only bounds how long a value that
+  // missed an update (say memcache was flushed in between) can linger.
+  private static final int CACHE_SECONDS = 60;
+
+  private final MemcacheService memcache = MemcacheServiceFactory.getMemcacheService();
+  private final Random random = new Random();
+
+  private final String name;
+  private final int numShards;
+
+  ShardedCounter(String name) {
+    this(name, DEFAULT_NUM_SHARDS);
+  }
+
+  ShardedCounter(String name, int numShards) {
+    this.name = name;
+    this.numShards = numShards;
+    memcache.setErrorHandler(ErrorHandlers.getConsistentLogAndContinue(Level.INFO));
+  }
+
+  String getName() {
+    return name;
+  }
+
+  /**
+   * Adds delta (which may be negative) to the counter of a gallery app.
+   *
+   * Only a single shard is touched, in its own transaction. If the
+   * transaction collides with another increment we retry on a different
+   * (random) shard.
+   *
+   * @param galleryId the gallery app
+   * @param delta the amount to add
+   * @throws ObjectifyException if no shard could be updated
+   */
+  void increment(long galleryId, long delta) throws ObjectifyException {
+    int tries = 0;
+    while (true) {
+      int shard = random.nextInt(numShards);
+      Objectify datastore = ObjectifyService.beginTransaction();
+      try {
+        Key<GalleryCounterShardData> key = shardKey(galleryId, shard);
+        GalleryCounterShardData data = datastore.find(key);
+        if (data == null) {
+          data = new GalleryCounterShardData();
+          data.id = key.getName();
+          data.counterName = name;
+          data.galleryId = galleryId;
+        }
+        data.count += delta;
+        datastore.put(data);
+        datastore.getTxn().commit();
+        break;
+      } catch (ConcurrentModificationException e) {
+        if (++tries > MAX_SHARD_RETRIES) {
+          throw new ObjectifyException("Couldn't update counter " + name + " after max retries.");
+        }
+      } finally {
+        if (datastore.getTxn().isActive()) {
+          try {
+            datastore.getTxn().rollback();
+          } catch (RuntimeException e) {
+            LOG.log(Level.WARNING, "Transaction rollback failed", e);
+          }
+        }
+      }
+    }
+    // Memcache counters cannot go below zero, so for a decrement we just
+    // drop the cached value and let the next read recompute it.
+    if (delta >= 0) {
+      memcache.increment(cacheKey(galleryId), delta);
+    } else {
+      memcache.delete(cacheKey(galleryId));
+    }
+  }
+
+  /**
+   * Returns the sum of all the shards of a gallery app, from memcache
+   * when we have it, otherwise with one batch get of the shards.
+   *
+   * @param galleryId the gallery app
+   * @return the running total of the shards
+   */
+  long getShardTotal(long galleryId) {
+    String cacheKey = cacheKey(galleryId);
+    Object cached = memcache.get(cacheKey);
+    if (cached instanceof Long) {
+      return (Long) cached;
+    }
+    long total = sumShards(galleryId);
+    if (total >= 0) {
+      // Don't overwrite a value an increment put there while we were reading
+      memcache.put(cacheKey, total, Expiration.byDeltaSeconds(CACHE_SECONDS),
+          SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+    }
+    return total;
+  }
+
+  /**
+   * Sums the shards directly from the datastore, bypassing memcache.
+   *
+   * @param galleryId the gallery app
+   * @return the running total of the shards
+   */
+  long sumShards(long galleryId) {
+    Objectify datastore = ObjectifyService.begin();
+    long total = 0;
+    for (GalleryCounterShardData data : datastore.get(shardKeys(galleryId)).values()) {
+      total += data.count;
+    }
+    return total;
+  }
+
+  List<Key<GalleryCounterShardData>> shardKeys(long galleryId) {
+    List<Key<GalleryCounterShardData>> keys =
+        new ArrayList<Key<GalleryCounterShardData>>(numShards);
+    for (int i = 0; i < numShards; i++) {
+      keys.add(shardKey(galleryId, i));
+    }
+    return keys;
+  }
+
+  Key<GalleryCounterShardData> shardKey(long galleryId, int shard) {
+    return new Key<GalleryCounterShardData>(GalleryCounterShardData.class,
+        name + "|" + galleryId + "|" + shard);
+  }
+
+  private String cacheKey(long galleryId) {
+    return "ShardedCounter|" + name + "|" + galleryId;
+  }
+}
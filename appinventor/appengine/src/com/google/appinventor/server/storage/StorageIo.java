@@ -21,6 +21,7 @@ import java.io.InputStream;
 import java.io.IOException;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
 
 import javax.annotation.Nullable;
@@ -176,6 +177,42 @@ public interface StorageIo {
    */
   long createProject(String userId, Project project, String projectSettings);
 
+  /**
+   * Creates a new project with copies of files of another project of the
+   * same user. The copies share the stored content of the old project's
+   * files where possible, so it isn't read or written again; a file's
+   * content is only stored separately once one of the projects changes
+   * it.
+   *
+   * <p>
+   * This is an atomic operation.
+   *
+   * @param userId user id
+   * @param oldProjectId the project the files are copied from
+   * @param project project information, and any files that aren't copies
+   * @param projectSettings project settings
+   * @param copiedFiles maps the names of files in the new project to the
+   *        names of the files of the old project they are copies of
+   * @return project id
+   */
+  long copyProject(String userId, long oldProjectId, Project project, String projectSettings,
+      Map<String, String> copiedFiles);
+
+  /**
+   * Starts creating a new project whose files are stored as they are
+   * added, so the caller doesn't need all of them at once (see
+   * {@link ProjectImport}).
+   *
+   * <p>
+   * Like createProject this is atomic: the project is only created
+   * when the import is committed, after all its files are stored.
+   *
+   * @param userId user id
+   * @param maxBufferedBytes how much content may wait to be stored
+   * @return the import
+   */
+  ProjectImport beginProjectImport(String userId, long maxBufferedBytes);
+
   /**
    * Deletes a project and all its files.
    *
@@ -428,6 +465,16 @@ public interface StorageIo {
    */
   List<String> getProjectOutputFiles(String userId, long projectId);
 
+  /**
+   * Returns the manifest of a project: its name and files, with the role,
+   * size, checksum and modification date of each file.
+   * @param userId a user Id (the request is made on behalf of this user)
+   * @param projectId  project ID
+   *
+   * @return  the project's manifest
+   */
+  ProjectManifest getProjectManifest(String userId, long projectId);
+
   /**
    * Returns the gallery id for a project.
    * @param projectId  project ID
@@ -634,9 +681,6 @@ public interface StorageIo {
   Nonce getNoncebyValue(String nonceValue);
   void storeNonce(final String nonceValue, final String userId, final long projectId);
 
-  // Cleanup expired nonces
-  void cleanupNonces();
-
   // Check to see if user needs projects upgraded (moved to GCS)
   // if so, add task to task queue
   void checkUpgrade(String userId);
@@ -649,7 +693,19 @@ public interface StorageIo {
 
   StoredData.PWData createPWData(String email);
   StoredData.PWData findPWData(String uid);
-  void cleanuppwdata();
+
+  /**
+   * Runs one batch of a maintenance job, deleting at most a batch worth of
+   * the garbage the job is about. Called from the task queue (see
+   * MaintenanceServlet), never while serving a user.
+   *
+   * @param job the job
+   * @param cursor where the previous batch of the job stopped, or null to
+   *        start the job
+   * @return how much the batch scanned and deleted, and where the next
+   *         batch starts
+   */
+  MaintenanceBatch runMaintenance(MaintenanceJob job, @Nullable String cursor);
 
   // Routines for user admin interface
 
@@ -1,22 +1,112 @@
 // -*- mode: java; c-basic-offset: 2; -*-
 // Copyright 2009-2011 Google, All Rights reserved
-// Copyright 2011-2012 MIT, All rights reserved
+// Copyright 2011-2017 MIT, All rights reserved
 // Released under the Apache License, Version 2.0
 // http://www.apache.org/licenses/LICENSE-2.0
 
 package com.google.appinventor.server.storage;
 
+import com.google.appinventor.server.CrashReport;
+import com.google.appinventor.server.flags.Flag;
+
+import com.google.appengine.api.LifecycleManager;
+import com.google.appengine.api.ThreadManager;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
 /**
  * Holds the singleton StorageIo subclass object. We introduce this class
  * so that we can switch out the underlying StorageIo subclass without changing
  * the references in the code to the INSTANCE.
- * 
+ *
+ * The storage.backend flag selects the subclass: "objectify" (the default)
+ * for the App Engine datastore, "local" for {@link LocalStorageIo} in the
+ * directory named by storage.local.dir.
+ *
+ * If storage.coalesce.window.ms is set, the StorageIo is wrapped in a
+ * {@link CoalescingStorageIo} so repeated saves of a file within that
+ * many milliseconds are written once. The buffered saves are written when
+ * the server shuts down (on App Engine, by the LifecycleManager shutdown
+ * hook).
+ *
+ * If storage.instrument is true, the outermost StorageIo is wrapped in an
+ * {@link InstrumentedStorageIo} that measures every call (see
+ * StorageStatsServlet).
+ *
  * @author sharon@google.com (Sharon Perl)
  *
  */
 public class StorageIoInstanceHolder {
-  public static final StorageIo INSTANCE = new ObjectifyStorageIo();
-  
+  private static final Logger LOG = Logger.getLogger(StorageIoInstanceHolder.class.getName());
+
+  public static final StorageIo INSTANCE = createStorageIo();
+
   private StorageIoInstanceHolder() {} // not to be instantiated
-    
+
+  private static StorageIo createStorageIo() {
+    StorageIo storageIo = createUninstrumentedStorageIo();
+    if (Flag.createFlag("storage.instrument", false).get()) {
+      return new InstrumentedStorageIo(storageIo);
+    }
+    return storageIo;
+  }
+
+  private static StorageIo createUninstrumentedStorageIo() {
+    String backend = Flag.createFlag("storage.backend", "objectify").get();
+    StorageIo storageIo;
+    ThreadFactory threadFactory;
+    final boolean onAppEngine = !backend.equals("local");
+    if (!onAppEngine) {
+      String directory = Flag.createFlag("storage.local.dir", "appinventor-data").get();
+      try {
+        storageIo = new LocalStorageIo(new File(directory));
+      } catch (IOException e) {
+        throw CrashReport.createAndLogError(LOG, null, "Unable to open storage in " + directory,
+            e);
+      }
+      threadFactory = Executors.defaultThreadFactory();
+    } else {
+      storageIo = new ObjectifyStorageIo();
+      threadFactory = ThreadManager.backgroundThreadFactory();
+    }
+    int window = Flag.createFlag("storage.coalesce.window.ms", 0).get();
+    if (window > 0) {
+      final CoalescingStorageIo coalescing;
+      try {
+        coalescing = new CoalescingStorageIo(storageIo, window, threadFactory);
+      } catch (RuntimeException e) {
+        // No background threads here (App Engine with automatic scaling)
+        LOG.log(Level.WARNING, "Unable to coalesce saves, writing every save", e);
+        return storageIo;
+      }
+      // App Engine doesn't run JVM shutdown hooks when it stops an
+      // instance, it calls its own
+      if (onAppEngine) {
+        LifecycleManager.getInstance().setShutdownHook(new LifecycleManager.ShutdownHook() {
+          @Override
+          public void shutdown() {
+            coalescing.flushAll();
+          }
+        });
+      } else {
+        try {
+          Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+              coalescing.flushAll();
+            }
+          });
+        } catch (SecurityException e) {
+          LOG.warning("Unable to flush saves at shutdown: " + e);
+        }
+      }
+      return coalescing;
+    }
+    return storageIo;
+  }
 }
@@ -0,0 +1,408 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server.storage;
+
+import com.google.appinventor.shared.rpc.project.ProjectSourceZip;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Statistics of the StorageIo calls measured by an {@link InstrumentedStorageIo}:
+ * for each method a latency histogram, the payload bytes, and the
+ * datastore retries, memcache hits and misses and GCS bytes of its calls,
+ * plus the slowest calls with their user and project.
+ *
+ * The retries, memcache lookups and GCS bytes are reported by the
+ * StorageIo that does the work (see the record* methods) and are charged
+ * to the call in progress on the same thread. Work done on other threads
+ * isn't charged to anyone.
+ */
+public final class StorageStats {
+
+  /**
+   * One call being measured.
+   */
+  static final class Call {
+    private final String operation;
+    private final String userId;
+    private final long projectId;
+    private final long startNanos = System.nanoTime();
+    private final Call outer;
+    private boolean done;
+    private long bytes;
+    private int retries;
+    private int memcacheHits;
+    private int memcacheMisses;
+    private long gcsBytes;
+
+    private Call(String operation, String userId, long projectId, Call outer) {
+      this.operation = operation;
+      this.userId = userId;
+      this.projectId = projectId;
+      this.outer = outer;
+    }
+
+    /**
+     * Counts the content passed to the call.
+     */
+    void addBytes(byte[] content) {
+      if (content != null) {
+        bytes += content.length;
+      }
+    }
+
+    /**
+     * Counts the content passed to the call.
+     */
+    void addBytes(String content) {
+      if (content != null) {
+        bytes += content.length();
+      }
+    }
+
+    /**
+     * Marks the call as successful, counting the content it returns.
+     *
+     * @return result
+     */
+    <T> T done(T result) {
+      if (result instanceof byte[]) {
+        addBytes((byte[]) result);
+      } else if (result instanceof String) {
+        addBytes((String) result);
+      } else if (result instanceof ProjectSourceZip) {
+        addBytes(((ProjectSourceZip) result).getContent());
+      }
+      done = true;
+      return result;
+    }
+
+    /**
+     * Marks the call as successful.
+     */
+    void done() {
+      done = true;
+    }
+  }
+
+  // Bucket i of a histogram counts the calls that took less than 2^i ms,
+  // the last one the calls that took longer
+  private static final int BUCKETS = 18;
+
+  private static final int SLOW_CALLS = 20;
+
+  private static final ThreadLocal<Call> CURRENT = new ThreadLocal<Call>();
+
+  // The statistics of one method
+  private static final class Operation {
+    private final String name;
+    private final long[] histogram = new long[BUCKETS];
+    private long calls;
+    private long errors;
+    private long totalMicros;
+    private long maxMicros;
+    private long bytes;
+    private long retries;
+    private long memcacheHits;
+    private long memcacheMisses;
+    private long gcsBytes;
+
+    Operation(String name) {
+      this.name = name;
+    }
+
+    synchronized void record(Call call, long micros) {
+      calls++;
+      if (!call.done) {
+        errors++;
+      }
+      totalMicros += micros;
+      maxMicros = Math.max(maxMicros, micros);
+      histogram[bucket(micros / 1000)]++;
+      bytes += call.bytes;
+      retries += call.retries;
+      memcacheHits += call.memcacheHits;
+      memcacheMisses += call.memcacheMisses;
+      gcsBytes += call.gcsBytes;
+    }
+
+    synchronized long getTotalMicros() {
+      return totalMicros;
+    }
+
+    // The upper bound, in ms, of the bucket holding the given fraction of the calls
+    private long percentile(double fraction) {
+      long rank = (long) Math.ceil(calls * fraction);
+      long seen = 0;
+      for (int i = 0; i < BUCKETS; i++) {
+        seen += histogram[i];
+        if (seen >= rank) {
+          return (i == BUCKETS - 1) ? maxMicros / 1000 : 1L << i;
+        }
+      }
+      return maxMicros / 1000;
+    }
+
+    synchronized JSONObject toJson() {
+      JSONObject json = new JSONObject();
+      json.put("name", name);
+      json.put("calls", calls);
+      json.put("errors", errors);
+      json.put("totalMillis", totalMicros / 1000);
+      json.put("meanMillis", calls == 0 ? 0 : (double) totalMicros / calls / 1000);
+      json.put("p50Millis", percentile(0.5));
+      json.put("p90Millis", percentile(0.9));
+      json.put("p99Millis", percentile(0.99));
+      json.put("maxMillis", maxMicros / 1000);
+      JSONArray buckets = new JSONArray();
+      for (long count : histogram) {
+        buckets.put(count);
+      }
+      json.put("histogram", buckets);
+      json.put("bytes", bytes);
+      json.put("retries", retries);
+      json.put("memcacheHits", memcacheHits);
+      json.put("memcacheMisses", memcacheMisses);
+      json.put("gcsBytes", gcsBytes);
+      return json;
+    }
+  }
+
+  // A call that was among the slowest
+  private static final class SlowCall {
+    final String operation;
+    final String userId;
+    final long projectId;
+    final long micros;
+    final long when;
+
+    SlowCall(Call call, long micros) {
+      this.operation = call.operation;
+      this.userId = call.userId;
+      this.projectId = call.projectId;
+      this.micros = micros;
+      this.when = System.currentTimeMillis();
+    }
+  }
+
+  private static final Comparator<SlowCall> BY_DURATION = new Comparator<SlowCall>() {
+    @Override
+    public int compare(SlowCall a, SlowCall b) {
+      return (a.micros < b.micros) ? -1 : ((a.micros == b.micros) ? 0 : 1);
+    }
+  };
+
+  // The histogram bucket of a call that took millis ms
+  private static int bucket(long millis) {
+    int bucket = 0;
+    while (bucket < BUCKETS - 1 && millis >= (1L << bucket)) {
+      bucket++;
+    }
+    return bucket;
+  }
+
+  private final Map<String, Operation> operations = new ConcurrentHashMap<String, Operation>();
+  // The slowest calls, the fastest of them first
+  private final PriorityQueue<SlowCall> slowCalls =
+      new PriorityQueue<SlowCall>(SLOW_CALLS, BY_DURATION);
+  private volatile long since = System.currentTimeMillis();
+
+  /**
+   * Starts measuring a call.
+   *
+   * @param operation the StorageIo method called
+   * @param userId the user the call is for, or null
+   * @param projectId the project the call is about, or 0
+   */
+  Call begin(String operation, String userId, long projectId) {
+    Call call = new Call(operation, userId, projectId, CURRENT.get());
+    CURRENT.set(call);
+    return call;
+  }
+
+  /**
+   * Finishes measuring a call, a failed one unless it was marked done.
+   */
+  void end(Call call) {
+    long micros = (System.nanoTime() - call.startNanos) / 1000;
+    CURRENT.set(call.outer);
+    Operation operation = operations.get(call.operation);
+    if (operation == null) {
+      synchronized (operations) {
+        operation = operations.get(call.operation);
+        if (operation == null) {
+          operation = new Operation(call.operation);
+          operations.put(call.operation, operation);
+        }
+      }
+    }
+    operation.record(call, micros);
+    synchronized (slowCalls) {
+      if (slowCalls.size() < SLOW_CALLS) {
+        slowCalls.add(new SlowCall(call, micros));
+      } else if (slowCalls.peek().micros < micros) {
+        slowCalls.poll();
+        slowCalls.add(new SlowCall(call, micros));
+      }
+    }
+  }
+
+  /**
+   * Forgets everything measured so far.
+   */
+  public void reset() {
+    synchronized (operations) {
+      operations.clear();
+    }
+    synchronized (slowCalls) {
+      slowCalls.clear();
+    }
+    since = System.currentTimeMillis();
+  }
+
+  /**
+   * Records that a datastore job is retried.
+   */
+  static void recordRetry() {
+    Call call = CURRENT.get();
+    if (call != null) {
+      call.retries++;
+    }
+  }
+
+  /**
+   * Records a memcache lookup.
+   *
+   * @param hit whether the value was found
+   */
+  static void recordMemcache(boolean hit) {
+    Call call = CURRENT.get();
+    if (call != null) {
+      if (hit) {
+        call.memcacheHits++;
+      } else {
+        call.memcacheMisses++;
+      }
+    }
+  }
+
+  /**
+   * Records bytes read from or written to GCS.
+   */
+  static void recordGcsBytes(long bytes) {
+    Call call = CURRENT.get();
+    if (call != null) {
+      call.gcsBytes += bytes;
+    }
+  }
+
+  /**
+   * @return the statistics as JSON: the methods, the ones that took the
+   *         most time in all first, and the slowest calls, slowest first
+   */
+  public JSONObject toJson() {
+    List<Operation> byTotal = new ArrayList<Operation>(operations.values());
+    Collections.sort(byTotal, new Comparator<Operation>() {
+      @Override
+      public int compare(Operation a, Operation b) {
+        long ta = a.getTotalMicros();
+        long tb = b.getTotalMicros();
+        return (ta > tb) ? -1 : ((ta == tb) ? 0 : 1);
+      }
+    });
+    JSONArray operationsJson = new JSONArray();
+    for (Operation operation : byTotal) {
+      operationsJson.put(operation.toJson());
+    }
+
+    List<SlowCall> slowest;
+    synchronized (slowCalls) {
+      slowest = new ArrayList<SlowCall>(slowCalls);
+    }
+    Collections.sort(slowest, Collections.reverseOrder(BY_DURATION));
+    JSONArray slowCallsJson = new JSONArray();
+    for (SlowCall slowCall : slowest) {
+      JSONObject json = new JSONObject();
+      json.put("operation", slowCall.operation);
+      if (slowCall.userId != null) {
+        json.put("userId", slowCall.userId);
+      }
+      if (slowCall.projectId != 0) {
+        json.put("projectId", slowCall.projectId);
+      }
+      json.put("millis", slowCall.micros / 1000);
+      json.put("when", slowCall.when);
+      slowCallsJson.put(json);
+    }
+
+    JSONObject json = new JSONObject();
+    json.put("since", since);
+    json.put("operations", operationsJson);
+    json.put("slowCalls", slowCallsJson);
+    return json;
+  }
+
+  /**
+   * @param storageIo the StorageIo, as in StorageIoInstanceHolder
+   * @return the statistics of the InstrumentedStorageIo in the stack of
+   *         StorageIos, or null if there is none
+   */
+  public static StorageStats of(StorageIo storageIo) {
+    while (storageIo instanceof ForwardingStorageIo) {
+      if (storageIo instanceof InstrumentedStorageIo) {
+        return ((InstrumentedStorageIo) storageIo).getStats();
+      }
+      storageIo = ((ForwardingStorageIo) storageIo).delegate();
+    }
+    return null;
+  }
+
+  /**
+   * Reports on a stack of StorageIos: the statistics of the
+   * InstrumentedStorageIo, if there is one, the saves of the
+   * CoalescingStorageIo, if there is one, the compression of file
+   * content (see FileCodec) and the datastore retries (see RetryPolicy).
+   *
+   * @param storageIo the StorageIo, as in StorageIoInstanceHolder
+   * @return the report as JSON
+   */
+  public static JSONObject report(StorageIo storageIo) {
+    JSONObject report = new JSONObject();
+    while (storageIo instanceof ForwardingStorageIo) {
+      if (storageIo instanceof InstrumentedStorageIo) {
+        report.put("storage", ((InstrumentedStorageIo) storageIo).getStats().toJson());
+      } else if (storageIo instanceof CoalescingStorageIo) {
+        CoalescingStorageIo coalescing = (CoalescingStorageIo) storageIo;
+        JSONObject json = new JSONObject();
+        json.put("saves", coalescing.getSaveCount());
+        json.put("writes", coalescing.getWriteCount());
+        json.put("coalesced", coalescing.getCoalescedCount());
+        report.put("coalescing", json);
+      }
+      storageIo = ((ForwardingStorageIo) storageIo).delegate();
+    }
+    JSONObject codec = new JSONObject();
+    codec.put("encodedFiles", FileCodec.getEncodedFiles());
+    codec.put("rawBytes", FileCodec.getRawBytes());
+    codec.put("storedBytes", FileCodec.getStoredBytes());
+    codec.put("compressionRatio", FileCodec.getCompressionRatio());
+    codec.put("encodeMillis", FileCodec.getEncodeNanos() / 1000000);
+    codec.put("decodedFiles", FileCodec.getDecodedFiles());
+    codec.put("decodeMillis", FileCodec.getDecodeNanos() / 1000000);
+    report.put("codec", codec);
+    report.put("retries", RetryPolicy.DATASTORE.toJson());
+    return report;
+  }
+}
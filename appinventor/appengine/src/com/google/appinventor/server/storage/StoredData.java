@@ -188,17 +188,95 @@ public class StoredData {
     // The GCS filename, sans bucket name
     String gcsName;
 
+    // The codec the content (in the datastore or GCS) is compressed with,
+    // see FileCodec. Null if it is stored as is.
+    String compression;
+
     // File settings
     String settings;
 
     // DateTime of last backup only used if GCS is enabled
     long lastBackup;
 
+    // SHA-1 hash of the content of the last backup, so unchanged files
+    // aren't backed up again
+    String lastBackupHash;
+
     String userId;              // The userId which owns this file
                                 // if null or the empty string, we haven't initialized
                                 // it yet
   }
 
+  // The manifest of a project (see ProjectManifest): its files with their
+  // role, size and checksum. It is a child of the project, so it is kept
+  // up to date in the same transactions as the project's FileData.
+  // Projects created before manifests were kept don't have one until the
+  // first time they are opened.
+  @Cached
+  @Unindexed
+  static final class ProjectManifestData {
+    // Always MANIFEST_ID, there is one per project
+    @Id Long id;
+
+    // Key of the project (parent) the manifest is of
+    @Parent Key<ProjectData> projectKey;
+
+    // The manifest, as JSON (see ProjectManifest.toJson)
+    String manifest;
+
+    static final long MANIFEST_ID = 1;
+  }
+
+  // What the project list shows of a project, so listing a user's projects
+  // doesn't load their ProjectData with its settings and history. It is a
+  // child of the project, kept up to date in the same transactions as the
+  // ProjectData and the manifest. Projects last changed before summaries
+  // were kept get one the first time they are listed.
+  @Cached
+  @Unindexed
+  static final class ProjectSummaryData {
+    // Always SUMMARY_ID, there is one per project
+    @Id Long id;
+
+    // Key of the project (parent) the summary is of
+    @Parent Key<ProjectData> projectKey;
+
+    String name;
+    String type;
+    long dateCreated;
+    long dateModified;
+    long galleryId;
+    long attributionId;
+
+    // Total size of the project's source files in bytes, or -1 if the
+    // size of some of them isn't known (see ProjectManifest)
+    long size;
+
+    static final long SUMMARY_ID = 1;
+  }
+
+  // A project that was deleted while using GCS, kept until the backups of
+  // its files are deleted by the GCS_BACKUPS maintenance job. No FileData
+  // points at backups, so deleting the project leaves them behind.
+  @Unindexed
+  static final class DeletedProjectData {
+    // The id of the project
+    @Id Long id;
+  }
+
+  // The number of FileData objects pointing at a GCS file, for GCS files
+  // that are shared by the files of more than one project (a copied
+  // project shares the content of the files it was copied from). A GCS
+  // file without a GcsRefData belongs to the one FileData pointing at it.
+  @Unindexed
+  static final class GcsRefData {
+    // The GCS filename, sans bucket name
+    @Id String gcsName;
+
+    // Number of FileData objects pointing at the file
+    int refs;
+  }
+
   // MOTD data.
   @Unindexed
   static final class MotdData {
@@ -222,6 +222,18 @@ public class ServerLayout {
    */
   public static final String RECEIVE_BUILD_SERVLET = "receivebuild";
 
+  /**
+   * Relative path of the {@link com.google.appinventor.server.ReceiveBuildStatusServlet} within
+   * {@link #ODE_BASEURL_NOAUTH}
+   */
+  public static final String RECEIVE_BUILD_STATUS_SERVLET = "receivebuildstatus";
+
+  /**
+   * Relative path of the {@link com.google.appinventor.server.BuildStatusServlet} within the
+   * ODE GWT module.
+   */
+  public static final String BUILD_STATUS_SERVLET = "buildstatus";
+
   /**
    * Name of the form element to upload files.
    */
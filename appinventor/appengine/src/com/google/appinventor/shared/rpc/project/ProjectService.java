@@ -98,6 +98,19 @@ public interface ProjectService extends RemoteService {
    */
   List<UserProject> getProjectInfos();
 
+  /**
+   * Returns a page of the list of project infos, so that a long list can
+   * be shown while the rest of it is loading. The projects are listed in
+   * the order of their IDs.
+   *
+   * @param afterProjectId the ID of the last project of the previous page,
+   *                       or 0 for the first page
+   * @param count the most project infos to return
+   * @return list of project infos found by the back-end, fewer than count
+   *         on the last page
+   */
+  List<UserProject> getProjectInfosPage(long afterProjectId, int count);
+
   /**
    * Returns the root node for the given project.
    * @param projectId  project ID as received by
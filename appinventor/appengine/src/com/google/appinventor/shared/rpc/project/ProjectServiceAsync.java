@@ -66,6 +66,12 @@ public interface ProjectServiceAsync {
    */
   void getProjectInfos(AsyncCallback<List<UserProject>> callback);
 
+  /**
+   * @see ProjectService#getProjectInfosPage(long, int)
+   */
+  void getProjectInfosPage(long afterProjectId, int count,
+      AsyncCallback<List<UserProject>> callback);
+
   /**
    * @see ProjectService#getProject(long)
    */
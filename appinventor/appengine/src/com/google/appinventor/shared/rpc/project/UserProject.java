@@ -48,6 +48,12 @@ public class UserProject implements IsSerializable {
 
   private long galleryId;
 
+  /**
+   * The total size of the project's source files in bytes, or -1 if it
+   * isn't known.
+   */
+  private long size = -1;
+
   private static final String DELIM = "#DELIM#";
 
   public static final long NOTPUBLISHED = 0;
@@ -160,6 +166,19 @@ public class UserProject implements IsSerializable {
     this.galleryId = galleryId;
   }
 
+  /**
+   * Returns the total size of the project's source files.
+   *
+   * @return the size in bytes, or -1 if it isn't known
+   */
+  public long getSize() {
+    return size;
+  }
+
+  public void setSize(long size) {
+    this.size = size;
+  }
+
   @Override
   public boolean equals(Object other) {
     if (this == other) {
@@ -0,0 +1,69 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server;
+
+/**
+ * Tests for {@link BuildStatusCache}.
+ *
+ */
+public class BuildStatusCacheTest extends LocalDatastoreTestCase {
+
+  private static final String USER_ID = "1000";
+  private static final long PROJECT_ID = 1234;
+  private static final String TARGET = "Android";
+
+  private BuildStatusCache cache;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    cache = new BuildStatusCache();
+  }
+
+  public void testBuildProgress() throws Exception {
+    assertNull(cache.get(USER_ID, PROJECT_ID, TARGET));
+
+    cache.buildStarted(USER_ID, PROJECT_ID, TARGET, "b1");
+    BuildStatusCache.Status status = cache.get(USER_ID, PROJECT_ID, TARGET);
+    assertEquals(BuildStatusCache.STAGE_QUEUED, status.getStage());
+    assertEquals(0, status.getProgress());
+
+    assertTrue(cache.update(USER_ID, PROJECT_ID, TARGET, "b1", "manifest", 20));
+    status = cache.get(USER_ID, PROJECT_ID, TARGET);
+    assertEquals("manifest", status.getStage());
+    assertEquals(20, status.getProgress());
+
+    // Events that arrive out of order don't take the progress back
+    assertTrue(cache.update(USER_ID, PROJECT_ID, TARGET, "b1", "icon", 15));
+    assertEquals(20, cache.get(USER_ID, PROJECT_ID, TARGET).getProgress());
+
+    cache.buildFinished(USER_ID, PROJECT_ID, TARGET);
+    status = cache.get(USER_ID, PROJECT_ID, TARGET);
+    assertTrue(status.isDone());
+    assertEquals("b1", status.getBuildId());
+  }
+
+  public void testEventsOfEarlierBuildsAreIgnored() {
+    cache.buildStarted(USER_ID, PROJECT_ID, TARGET, "b1");
+    cache.buildStarted(USER_ID, PROJECT_ID, TARGET, "b2");
+    assertFalse(cache.update(USER_ID, PROJECT_ID, TARGET, "b1", "dx", 50));
+    assertEquals(0, cache.get(USER_ID, PROJECT_ID, TARGET).getProgress());
+    assertFalse(cache.update(USER_ID, PROJECT_ID + 1, TARGET, "b2", "dx", 50));
+  }
+
+  public void testAwaitReturnsOnChange() throws Exception {
+    cache.buildStarted(USER_ID, PROJECT_ID, TARGET, "b1");
+    cache.update(USER_ID, PROJECT_ID, TARGET, "b1", "classes", 35);
+    // The progress differs from what the caller knows, no waiting
+    long start = System.currentTimeMillis();
+    assertEquals(35, cache.await(USER_ID, PROJECT_ID, TARGET, 20, 10000).getProgress());
+    assertTrue(System.currentTimeMillis() - start < 5000);
+    // Nothing changes, wait until the time is up
+    assertEquals(35, cache.await(USER_ID, PROJECT_ID, TARGET, 35, 600).getProgress());
+    // Unknown builds aren't waited for
+    assertNull(cache.await(USER_ID, PROJECT_ID + 1, TARGET, 0, 10000));
+  }
+}
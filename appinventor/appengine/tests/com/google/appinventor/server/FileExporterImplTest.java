@@ -20,8 +20,10 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
@@ -167,5 +169,97 @@ public class FileExporterImplTest extends LocalDatastoreTestCase {
     }
   }
 
-  // TODO(user): Add test of exportAllProjectsSourceZip().
+  public void testExportAllProjectsSourceZipStreamed() throws IOException {
+    Project project = new Project("Project2");
+    project.setProjectType(FAKE_PROJECT_TYPE);
+    project.addTextFile(new TextFile(FORM1_QUALIFIED_NAME, FORM1_CONTENT));
+    long projectId2 = storageIo.createProject(USER_ID, project, SETTINGS);
+    assertTrue(projectId < projectId2);
+
+    final List<Long> exported = new ArrayList<Long>();
+    FileExporter.ExportListener listener = new FileExporter.ExportListener() {
+      @Override
+      public void projectExported(long projectId) {
+        exported.add(projectId);
+      }
+
+      @Override
+      public void exportStopped() {
+        fail();
+      }
+    };
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    assertEquals(2, exporter.exportAllProjectsSourceZip(USER_ID, 0, output, Long.MAX_VALUE,
+        listener));
+    assertEquals(Arrays.asList(projectId, projectId2), exported);
+    Map<String, byte[]> entries = unzip(output.toByteArray());
+    assertEquals(2, entries.size());
+    assertTrue(entries.containsKey(PROJECT_NAME + ".aia"));
+    assertTrue(entries.containsKey("Project2.aia"));
+
+    // Resume after the first project
+    exported.clear();
+    output = new ByteArrayOutputStream();
+    assertEquals(1, exporter.exportAllProjectsSourceZip(USER_ID, projectId, output,
+        Long.MAX_VALUE, listener));
+    assertEquals(Arrays.asList(projectId2), exported);
+    entries = unzip(output.toByteArray());
+    assertEquals(1, entries.size());
+    assertTrue(entries.containsKey("Project2.aia"));
+  }
+
+  public void testExportAllProjectsSourceZipStopsAtMaxBytes() throws IOException {
+    Project project = new Project("Project2");
+    project.setProjectType(FAKE_PROJECT_TYPE);
+    project.addTextFile(new TextFile(FORM1_QUALIFIED_NAME, FORM1_CONTENT));
+    long projectId2 = storageIo.createProject(USER_ID, project, SETTINGS);
+
+    final List<Long> exported = new ArrayList<Long>();
+    final boolean[] stopped = { false };
+    FileExporter.ExportListener listener = new FileExporter.ExportListener() {
+      @Override
+      public void projectExported(long projectId) {
+        exported.add(projectId);
+      }
+
+      @Override
+      public void exportStopped() {
+        stopped[0] = true;
+      }
+    };
+    // The first project is written even though it is over the limit
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    assertEquals(1, exporter.exportAllProjectsSourceZip(USER_ID, 0, output, 1, listener));
+    assertEquals(Arrays.asList(projectId), exported);
+    assertTrue(stopped[0]);
+    assertEquals(1, unzip(output.toByteArray()).size());
+
+    // Resuming gets the rest
+    stopped[0] = false;
+    output = new ByteArrayOutputStream();
+    assertEquals(1, exporter.exportAllProjectsSourceZip(USER_ID, projectId, output, 1,
+        listener));
+    assertEquals(Arrays.asList(projectId, projectId2), exported);
+    assertFalse(stopped[0]);
+  }
+
+  public void testExportAllProjectsSourceZipWithoutProjects() throws IOException {
+    try {
+      exporter.exportAllProjectsSourceZip("nobody", 0, new ByteArrayOutputStream(),
+          Long.MAX_VALUE, null);
+      fail();
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
+
+  private static Map<String, byte[]> unzip(byte[] zip) throws IOException {
+    Map<String, byte[]> entries = new HashMap<String, byte[]>();
+    ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(zip));
+    ZipEntry entry;
+    while ((entry = zis.getNextEntry()) != null) {
+      entries.put(entry.getName(), ByteStreams.toByteArray(zis));
+    }
+    return entries;
+  }
 }
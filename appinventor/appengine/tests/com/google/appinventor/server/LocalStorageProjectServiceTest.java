@@ -0,0 +1,24 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server;
+
+import com.google.common.io.Files;
+
+/**
+ * Runs the tests of {@link ProjectServiceImpl} with the project service
+ * storing projects in a {@link com.google.appinventor.server.storage.LocalStorageIo}.
+ *
+ * StorageIoInstanceHolder picks the StorageIo once, from the
+ * storage.backend flag, so the flags are set before it is loaded. Each
+ * test class runs in its own JVM, so this doesn't affect the other tests.
+ *
+ */
+public class LocalStorageProjectServiceTest extends ProjectServiceTest {
+  static {
+    System.setProperty("storage.backend", "local");
+    System.setProperty("storage.local.dir", Files.createTempDir().getPath());
+  }
+}
@@ -290,6 +290,10 @@ public class ProjectServiceTest {
     checkUserProjects(projectServiceImpl.getProjectInfos(),
         new UserProject(yaProject, PROJECT1_NAME,
             YoungAndroidProjectNode.YOUNG_ANDROID_PROJECT_TYPE, System.currentTimeMillis(), System.currentTimeMillis(), 0L, 0L));
+    checkUserProjects(projectServiceImpl.getProjectInfosPage(0, 10),
+        new UserProject(yaProject, PROJECT1_NAME,
+            YoungAndroidProjectNode.YOUNG_ANDROID_PROJECT_TYPE, System.currentTimeMillis(), System.currentTimeMillis(), 0L, 0L));
+    assertTrue(projectServiceImpl.getProjectInfosPage(yaProject, 10).isEmpty());
     PowerMock.verifyAll();
   }
 
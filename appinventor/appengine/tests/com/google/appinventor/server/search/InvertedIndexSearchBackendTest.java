@@ -0,0 +1,201 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server.search;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for {@link InvertedIndexSearchBackend}, including searches of a
+ * large set of synthetic apps.
+ *
+ */
+public class InvertedIndexSearchBackendTest extends TestCase {
+
+  private static final int LOAD_DOCUMENTS = 20000;
+  private static final int LOAD_QUERIES = 200;
+
+  private InvertedIndexSearchBackend index;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    index = new InvertedIndexSearchBackend();
+    index.put(1, "Ball Game A bouncing ball game alice");
+    index.put(2, "Camera Fun Take pictures with the camera bob");
+    index.put(3, "Calculator A simple calculator for math class alice");
+    index.put(4, "Math Quiz Practice math, math and more math! carol");
+  }
+
+  public void testTokenize() {
+    assertEquals(Arrays.asList("hello", "world", "42"),
+        InvertedIndexSearchBackend.tokenize("  Hello, WORLD!42 "));
+    assertTrue(InvertedIndexSearchBackend.tokenize(null).isEmpty());
+  }
+
+  public void testAllWordsMustMatch() {
+    assertEquals(Arrays.asList(1L, 3L), index.search("alice", 0, 10).getGalleryIds());
+    assertEquals(Arrays.asList(1L), index.search("alice ball", 0, 10).getGalleryIds());
+    assertTrue(index.search("alice camera", 0, 10).getGalleryIds().isEmpty());
+    assertEquals(0, index.search("", 0, 10).getNumberFound());
+  }
+
+  public void testPrefixMatch() {
+    assertEquals(Arrays.asList(2L), index.search("cam", 0, 10).getGalleryIds());
+    // An exact match ranks above a prefix match
+    index.put(5, "Cam the robot");
+    assertEquals(Arrays.asList(5L, 2L), index.search("cam", 0, 10).getGalleryIds());
+  }
+
+  public void testRanking() {
+    // "math" occurs four times in app 4, once in app 3
+    assertEquals(Arrays.asList(4L, 3L), index.search("math", 0, 10).getGalleryIds());
+  }
+
+  public void testPaging() {
+    GallerySearchBackend.Hits hits = index.search("a", 1, 1);
+    assertEquals(3, hits.getNumberFound());   // "a", "alice", "and"
+    assertEquals(1, hits.getGalleryIds().size());
+    assertTrue(index.search("a", 10, 10).getGalleryIds().isEmpty());
+  }
+
+  public void testUpdateAndDelete() {
+    index.put(2, "Photo Booth");
+    assertTrue(index.search("camera", 0, 10).getGalleryIds().isEmpty());
+    assertEquals(Arrays.asList(2L), index.search("photo", 0, 10).getGalleryIds());
+    index.delete(2);
+    assertTrue(index.search("photo", 0, 10).getGalleryIds().isEmpty());
+    assertEquals(3, index.size());
+    // Deleting twice is harmless
+    index.delete(2);
+    assertEquals(3, index.size());
+  }
+
+  public void testSnapshot() throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    index.saveSnapshot(out);
+    InvertedIndexSearchBackend copy = new InvertedIndexSearchBackend();
+    copy.loadSnapshot(new ByteArrayInputStream(out.toByteArray()));
+    assertEquals(index.size(), copy.size());
+    for (String query : new String[] { "alice", "cam", "math", "a" }) {
+      assertEquals(index.search(query, 0, 10).getGalleryIds(),
+          copy.search(query, 0, 10).getGalleryIds());
+    }
+  }
+
+  public void testSnapshotFileHasEveryChange() throws Exception {
+    File file = File.createTempFile("searchindex", ".snapshot");
+    try {
+      assertTrue(file.delete());
+      InvertedIndexSearchBackend persisted = new InvertedIndexSearchBackend(file);
+      persisted.put(1, "Ball Game");
+      persisted.put(2, "Camera Fun");
+      persisted.delete(1);
+      InvertedIndexSearchBackend restarted = new InvertedIndexSearchBackend(file);
+      assertEquals(1, restarted.size());
+      assertEquals(Arrays.asList(2L), restarted.search("camera", 0, 10).getGalleryIds());
+      assertEquals(0, restarted.search("ball", 0, 10).getNumberFound());
+    } finally {
+      file.delete();
+    }
+  }
+
+  public void testBulkUpdateSavesSnapshotOnce() throws Exception {
+    File file = File.createTempFile("searchindex", ".snapshot");
+    try {
+      assertTrue(file.delete());
+      InvertedIndexSearchBackend persisted = new InvertedIndexSearchBackend(file);
+      persisted.beginBulkUpdate();
+      persisted.put(1, "Ball Game");
+      persisted.put(2, "Camera Fun");
+      assertFalse(file.exists());
+      persisted.endBulkUpdate();
+      assertEquals(2, new InvertedIndexSearchBackend(file).size());
+    } finally {
+      file.delete();
+    }
+  }
+
+  /**
+   * Indexes synthetic apps and checks that searching them finds exactly the
+   * apps a scan of their text does.
+   */
+  public void testSearchOfManyAppsMatchesScan() {
+    Random random = new Random(42);
+    String[] vocabulary = new String[2000];
+    for (int i = 0; i < vocabulary.length; i++) {
+      vocabulary[i] = randomWord(random);
+    }
+    InvertedIndexSearchBackend load = new InvertedIndexSearchBackend();
+    List<Set<String>> terms = new ArrayList<Set<String>>();
+    for (int i = 0; i < LOAD_DOCUMENTS; i++) {
+      StringBuilder text = new StringBuilder();
+      int words = 10 + random.nextInt(40);
+      for (int j = 0; j < words; j++) {
+        // Skewed, so some words are common and most are rare
+        int word = (int) (vocabulary.length * Math.pow(random.nextDouble(), 3));
+        text.append(vocabulary[word]).append(' ');
+      }
+      load.put(i, text.toString());
+      terms.add(new HashSet<String>(InvertedIndexSearchBackend.tokenize(text.toString())));
+    }
+    assertEquals(LOAD_DOCUMENTS, load.size());
+
+    for (int i = 0; i < LOAD_QUERIES; i++) {
+      String query = vocabulary[random.nextInt(vocabulary.length)];
+      if (random.nextBoolean()) {
+        query = query.substring(0, 3);          // prefix query
+      }
+      if (random.nextBoolean()) {
+        query += " " + vocabulary[random.nextInt(100)];
+      }
+      Set<Long> expected = new HashSet<Long>();
+      for (int id = 0; id < LOAD_DOCUMENTS; id++) {
+        if (matchesAll(terms.get(id), InvertedIndexSearchBackend.tokenize(query))) {
+          expected.add((long) id);
+        }
+      }
+      GallerySearchBackend.Hits hits = load.search(query, 0, LOAD_DOCUMENTS);
+      assertEquals(query, expected.size(), hits.getNumberFound());
+      assertEquals(query, expected, new HashSet<Long>(hits.getGalleryIds()));
+    }
+  }
+
+  // Whether every query word is one of the terms or a prefix of one
+  private static boolean matchesAll(Set<String> terms, List<String> queryWords) {
+    for (String queryWord : queryWords) {
+      boolean found = false;
+      for (String term : terms) {
+        if (term.startsWith(queryWord)) {
+          found = true;
+          break;
+        }
+      }
+      if (!found) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static String randomWord(Random random) {
+    int length = 4 + random.nextInt(6);
+    StringBuilder word = new StringBuilder();
+    for (int i = 0; i < length; i++) {
+      word.append((char) ('a' + random.nextInt(26)));
+    }
+    return word.toString();
+  }
+}
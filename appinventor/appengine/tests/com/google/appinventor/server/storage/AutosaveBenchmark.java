@@ -0,0 +1,164 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2026 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server.storage;
+
+import com.google.appinventor.server.LocalDatastoreTestCase;
+import com.google.appinventor.shared.rpc.project.Project;
+import com.google.appinventor.shared.storage.StorageUtil;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Compares {@link LocalStorageIo} and {@link ObjectifyStorageIo} (on the
+ * local test datastore) when many editors autosave at once. Each thread
+ * stands for one screen being edited, and several screens belong to the
+ * same project, so saves contend for the same project's modification date.
+ *
+ * <p>This is a benchmark, not a unit test: its name doesn't end in "Test",
+ * so it is not run with the other tests. Run it with
+ * <pre>
+ *   ant -Dtest_name=com.google.appinventor.server.storage.AutosaveBenchmark AiServerLibTests
+ * </pre>
+ * It prints the throughput of each backend, and fails if a backend loses a
+ * save or LocalStorageIo fails one.
+ *
+ */
+public class AutosaveBenchmark extends LocalDatastoreTestCase {
+
+  private static final String SETTINGS = "{settings: \"none\"}";
+  private static final String FAKE_PROJECT_TYPE = "FakeProjectType";
+  private static final String PROJECT_NAME = "Project1";
+  private static final String FILE_CONTENT = "The quick onyx goblin jumps over the lazy dwarf";
+
+  private static final int THREADS = 8;
+  private static final int PROJECTS = 4;
+  private static final int SAVES = 50;
+
+  private File directory;
+  private LocalStorageIo localStorage;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    directory = File.createTempFile("AutosaveBenchmark", "");
+    directory.delete();
+    localStorage = new LocalStorageIo(directory);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    localStorage.close();
+    deleteRecursively(directory);
+    super.tearDown();
+  }
+
+  public void testAutosaves() throws Exception {
+    long localMillis = runAutosaves(localStorage, "local", false);
+    long objectifyMillis = runAutosaves(new ObjectifyStorageIo(), "objectify", true);
+    int saves = THREADS * SAVES;
+    System.out.println("Autosave benchmark, " + THREADS + " threads x " + SAVES
+        + " saves on " + PROJECTS + " projects:");
+    System.out.println("  LocalStorageIo:     " + localMillis + " ms, "
+        + (saves * 1000L / Math.max(localMillis, 1)) + " saves/s");
+    System.out.println("  ObjectifyStorageIo: " + objectifyMillis + " ms, "
+        + (saves * 1000L / Math.max(objectifyMillis, 1)) + " saves/s");
+  }
+
+  /**
+   * Runs the autosaves against storageIo and checks that each file ends up
+   * with the last save that succeeded.
+   *
+   * @param mayFail whether a save may fail (ObjectifyStorageIo gives up
+   *     after too many retries on a contended project)
+   * @return how long the saves took, in milliseconds
+   */
+  private long runAutosaves(final StorageIo storageIo, final String userId,
+      boolean mayFail) throws Exception {
+    storageIo.getUser(userId, userId + "@test.com");
+    Project project = new Project(PROJECT_NAME);
+    project.setProjectType(FAKE_PROJECT_TYPE);
+    final long[] projectIds = new long[PROJECTS];
+    for (int i = 0; i < PROJECTS; i++) {
+      projectIds[i] = storageIo.createProject(userId, project, SETTINGS);
+    }
+    final String[] fileNames = new String[THREADS];
+    for (int i = 0; i < THREADS; i++) {
+      fileNames[i] = "src/com/yourdomain/Screen" + i + ".bky";
+      storageIo.addSourceFilesToProject(userId, projectIds[i % PROJECTS], false, fileNames[i]);
+    }
+
+    final AtomicInteger failures = new AtomicInteger();
+    final AtomicInteger ready = new AtomicInteger();
+    // The content of the last save of each thread that succeeded
+    final String[] lastSaved = new String[THREADS];
+    final Object start = new Object();
+    List<Thread> threads = new ArrayList<Thread>();
+    for (int i = 0; i < THREADS; i++) {
+      final int thread = i;
+      Thread t = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          setUpThread();
+          synchronized (start) {
+            ready.incrementAndGet();
+            try {
+              start.wait();
+            } catch (InterruptedException e) {
+              // do nothing
+            }
+          }
+          for (int j = 0; j < SAVES; j++) {
+            String content = "<xml>" + FILE_CONTENT + " " + thread + " " + j + "</xml>";
+            try {
+              storageIo.uploadFileForce(projectIds[thread % PROJECTS], fileNames[thread],
+                  userId, content, StorageUtil.DEFAULT_CHARSET);
+              lastSaved[thread] = content;
+            } catch (RuntimeException e) {
+              failures.incrementAndGet();
+            }
+          }
+        }
+      });
+      threads.add(t);
+      t.start();
+    }
+    while (ready.get() < THREADS) {
+      Thread.sleep(100);
+    }
+    long startTime = System.currentTimeMillis();
+    synchronized (start) {
+      start.notifyAll();
+    }
+    for (Thread t : threads) {
+      t.join();
+    }
+    long millis = System.currentTimeMillis() - startTime;
+
+    if (!mayFail) {
+      assertEquals(0, failures.get());
+    }
+    for (int i = 0; i < THREADS; i++) {
+      if (lastSaved[i] != null) {
+        assertEquals(lastSaved[i], storageIo.downloadFile(userId, projectIds[i % PROJECTS],
+            fileNames[i], StorageUtil.DEFAULT_CHARSET));
+      }
+    }
+    return millis;
+  }
+
+  private static void deleteRecursively(File file) {
+    File[] children = file.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        deleteRecursively(child);
+      }
+    }
+    file.delete();
+  }
+}
@@ -0,0 +1,166 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server.storage;
+
+import com.google.appinventor.shared.rpc.BlocksTruncatedException;
+import com.google.appinventor.shared.rpc.project.Project;
+import com.google.appinventor.shared.rpc.project.TextFile;
+import com.google.appinventor.shared.storage.StorageUtil;
+
+import java.io.File;
+import java.util.concurrent.Executors;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for {@link CoalescingStorageIo}, over a {@link LocalStorageIo}.
+ *
+ */
+public class CoalescingStorageIoTest extends TestCase {
+
+  private static final String USER_ID = "500";
+  private static final String BLOCKS_FILE = "src/com/yourdomain/Screen1.bky";
+  private static final String ASSET_FILE = "assets/kitty.png";
+  private static final String BLOCKS_CONTENT = "<xml xmlns=\"http://www.w3.org/1999/xhtml\">"
+      + "<block type=\"component_event\" x=\"10\" y=\"10\">"
+      + "<mutation component_type=\"Button\" instance_name=\"Button1\" event_name=\"Click\">"
+      + "</mutation><field name=\"COMPONENT_SELECTOR\">Button1</field></block></xml>";
+
+  // Long enough that nothing is flushed behind the test's back
+  private static final long WINDOW = CoalescingStorageIo.MAX_FLUSH_DELAY;
+
+  private File directory;
+  private LocalStorageIo backend;
+  private CoalescingStorageIo storage;
+  private long projectId;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    directory = File.createTempFile("CoalescingStorageIoTest", "");
+    directory.delete();
+    backend = new LocalStorageIo(directory);
+    storage = new CoalescingStorageIo(backend, WINDOW, Executors.defaultThreadFactory());
+    storage.getUser(USER_ID, "user500@test.com");
+    Project project = new Project("Project1");
+    project.setProjectType("FakeProjectType");
+    project.addTextFile(new TextFile(BLOCKS_FILE, ""));
+    projectId = storage.createProject(USER_ID, project, "{}");
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    backend.close();
+    deleteRecursively(directory);
+    super.tearDown();
+  }
+
+  public void testRepeatedSavesAreCoalesced() throws Exception {
+    for (int i = 0; i < 10; i++) {
+      storage.uploadFile(projectId, BLOCKS_FILE, USER_ID, blocks(i), StorageUtil.DEFAULT_CHARSET);
+    }
+    assertEquals(10, storage.getSaveCount());
+    assertEquals(1, storage.getWriteCount());
+    assertEquals(8, storage.getCoalescedCount());
+
+    // Read your writes, others see what has been written
+    assertEquals(blocks(9),
+        storage.downloadFile(USER_ID, projectId, BLOCKS_FILE, StorageUtil.DEFAULT_CHARSET));
+    assertEquals(blocks(0),
+        backend.downloadFile(USER_ID, projectId, BLOCKS_FILE, StorageUtil.DEFAULT_CHARSET));
+
+    storage.flushAll();
+    assertEquals(2, storage.getWriteCount());
+    assertEquals(blocks(9),
+        backend.downloadFile(USER_ID, projectId, BLOCKS_FILE, StorageUtil.DEFAULT_CHARSET));
+  }
+
+  public void testExportFlushes() throws Exception {
+    storage.uploadFile(projectId, BLOCKS_FILE, USER_ID, blocks(0), StorageUtil.DEFAULT_CHARSET);
+    storage.uploadFile(projectId, BLOCKS_FILE, USER_ID, blocks(1), StorageUtil.DEFAULT_CHARSET);
+    storage.exportProjectSourceZip(USER_ID, projectId, false, false, null, false, false, false,
+        false);
+    assertEquals(blocks(1),
+        backend.downloadFile(USER_ID, projectId, BLOCKS_FILE, StorageUtil.DEFAULT_CHARSET));
+  }
+
+  public void testOtherFilesAreWrittenThrough() throws Exception {
+    byte[] content = { (byte) 0, (byte) 1, (byte) 32, (byte) 255};
+    storage.uploadRawFile(projectId, ASSET_FILE, USER_ID, true, content);
+    storage.uploadRawFile(projectId, ASSET_FILE, USER_ID, true, content);
+    assertEquals(0, storage.getWriteCount());
+    assertEquals(0, storage.getCoalescedCount());
+    assertEquals(4, backend.downloadRawFile(USER_ID, projectId, ASSET_FILE).length);
+  }
+
+  public void testDeleteDropsBufferedSave() throws Exception {
+    storage.uploadFile(projectId, BLOCKS_FILE, USER_ID, blocks(0), StorageUtil.DEFAULT_CHARSET);
+    storage.uploadFile(projectId, BLOCKS_FILE, USER_ID, blocks(1), StorageUtil.DEFAULT_CHARSET);
+    storage.deleteFile(USER_ID, projectId, BLOCKS_FILE);
+    storage.flushAll();
+    assertFalse(backend.getProjectSourceFiles(USER_ID, projectId).contains(BLOCKS_FILE));
+  }
+
+  public void testFailedFlushIsRetriedThenDropped() throws Exception {
+    FailingStorageIo failing = new FailingStorageIo(backend);
+    storage = new CoalescingStorageIo(failing, WINDOW, Executors.defaultThreadFactory());
+    storage.uploadFile(projectId, BLOCKS_FILE, USER_ID, blocks(0), StorageUtil.DEFAULT_CHARSET);
+    storage.uploadFile(projectId, BLOCKS_FILE, USER_ID, blocks(1), StorageUtil.DEFAULT_CHARSET);
+    failing.failure = new RuntimeException("Datastore unavailable");
+    for (int i = 0; i < CoalescingStorageIo.MAX_FLUSH_ATTEMPTS + 2; i++) {
+      storage.flushAll();
+    }
+    assertEquals(CoalescingStorageIo.MAX_FLUSH_ATTEMPTS, failing.attempts);
+    assertEquals(blocks(0),
+        storage.downloadFile(USER_ID, projectId, BLOCKS_FILE, StorageUtil.DEFAULT_CHARSET));
+  }
+
+  public void testPermanentFailureDropsBufferedSave() throws Exception {
+    FailingStorageIo failing = new FailingStorageIo(backend);
+    storage = new CoalescingStorageIo(failing, WINDOW, Executors.defaultThreadFactory());
+    storage.uploadFile(projectId, BLOCKS_FILE, USER_ID, blocks(0), StorageUtil.DEFAULT_CHARSET);
+    storage.uploadFile(projectId, BLOCKS_FILE, USER_ID, blocks(1), StorageUtil.DEFAULT_CHARSET);
+    failing.failure =
+        new RuntimeException(new UnauthorizedAccessException(USER_ID, projectId, null));
+    storage.flushAll();
+    storage.flushAll();
+    assertEquals(1, failing.attempts);
+  }
+
+  // Fails the writes of files once failure is set
+  private static class FailingStorageIo extends ForwardingStorageIo {
+    RuntimeException failure;
+    int attempts;
+
+    FailingStorageIo(StorageIo delegate) {
+      super(delegate);
+    }
+
+    @Override
+    public long uploadRawFile(long projectId, String fileId, String userId, boolean force,
+        byte[] content) throws BlocksTruncatedException {
+      if (failure != null) {
+        attempts++;
+        throw failure;
+      }
+      return super.uploadRawFile(projectId, fileId, userId, force, content);
+    }
+  }
+
+  private static String blocks(int i) {
+    return BLOCKS_CONTENT.replace("x=\"10\"", "x=\"" + i + "\"");
+  }
+
+  private static void deleteRecursively(File file) {
+    File[] children = file.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        deleteRecursively(child);
+      }
+    }
+    file.delete();
+  }
+}
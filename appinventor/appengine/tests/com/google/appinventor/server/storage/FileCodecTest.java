@@ -0,0 +1,58 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server.storage;
+
+import com.google.common.base.Charsets;
+
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for {@link FileCodec}.
+ *
+ */
+public class FileCodecTest extends TestCase {
+
+  private static byte[] blocks(int count) {
+    StringBuilder sb = new StringBuilder("<xml xmlns=\"http://www.w3.org/1999/xhtml\">");
+    for (int i = 0; i < count; i++) {
+      sb.append("<block type=\"text\" id=\"").append(i).append("\" x=\"10\" y=\"")
+          .append(i * 20).append("\"><field name=\"TEXT\">Hello</field></block>");
+    }
+    return sb.append("</xml>").toString().getBytes(Charsets.UTF_8);
+  }
+
+  public void testSourcesAreCompressed() {
+    byte[] content = blocks(100);
+    FileCodec.Encoded encoded = FileCodec.encode("src/com/yourdomain/Screen1.bky", content);
+    assertEquals(FileCodec.GZIP, encoded.codec);
+    assertTrue(encoded.bytes.length < content.length / 4);
+    assertTrue(Arrays.equals(content, FileCodec.decode(encoded.codec, encoded.bytes)));
+  }
+
+  public void testOtherFilesAreStoredAsIs() {
+    byte[] content = blocks(100);
+    FileCodec.Encoded encoded = FileCodec.encode("assets/blocks.xml", content);
+    assertNull(encoded.codec);
+    assertSame(content, encoded.bytes);
+    assertSame(content, FileCodec.decode(null, content));
+  }
+
+  public void testSmallFilesAreStoredAsIs() {
+    byte[] content = blocks(0);
+    FileCodec.Encoded encoded = FileCodec.encode("src/com/yourdomain/Screen1.bky", content);
+    assertNull(encoded.codec);
+    assertSame(content, encoded.bytes);
+  }
+
+  public void testUncompressedContentIsReadAsIs() {
+    // A missing GCS file reads as empty, and GCS may have decompressed it
+    byte[] content = blocks(100);
+    assertEquals(0, FileCodec.decode(FileCodec.GZIP, new byte[0]).length);
+    assertSame(content, FileCodec.decode(FileCodec.GZIP, content));
+  }
+}
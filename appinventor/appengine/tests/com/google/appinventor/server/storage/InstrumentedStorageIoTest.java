@@ -0,0 +1,139 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server.storage;
+
+import com.google.appinventor.shared.rpc.project.Project;
+import com.google.appinventor.shared.rpc.project.TextFile;
+
+import java.io.File;
+
+import junit.framework.TestCase;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Tests for {@link InstrumentedStorageIo} and {@link StorageStats}, over a
+ * {@link LocalStorageIo}.
+ *
+ */
+public class InstrumentedStorageIoTest extends TestCase {
+
+  private static final String USER_ID = "600";
+  private static final String ASSET_FILE = "assets/kitty.png";
+
+  private File directory;
+  private LocalStorageIo backend;
+  private InstrumentedStorageIo storage;
+  private long projectId;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    directory = File.createTempFile("InstrumentedStorageIoTest", "");
+    directory.delete();
+    backend = new LocalStorageIo(directory);
+    storage = new InstrumentedStorageIo(backend);
+    storage.getUser(USER_ID, "user600@test.com");
+    Project project = new Project("Project1");
+    project.setProjectType("FakeProjectType");
+    project.addTextFile(new TextFile("src/com/yourdomain/Screen1.bky", ""));
+    projectId = storage.createProject(USER_ID, project, "{}");
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    backend.close();
+    deleteRecursively(directory);
+    super.tearDown();
+  }
+
+  public void testCallsAreMeasured() throws Exception {
+    byte[] content = new byte[1000];
+    for (int i = 0; i < 3; i++) {
+      storage.uploadRawFileForce(projectId, ASSET_FILE, USER_ID, content);
+    }
+    assertEquals(1000, storage.downloadRawFile(USER_ID, projectId, ASSET_FILE).length);
+    try {
+      storage.downloadRawFile(USER_ID, projectId, "assets/missing.png");
+      fail();
+    } catch (RuntimeException e) {
+      // Expected, there is no such file
+    }
+
+    JSONObject json = storage.getStats().toJson();
+    JSONObject upload = operation(json, "uploadRawFileForce");
+    assertEquals(3, upload.getLong("calls"));
+    assertEquals(0, upload.getLong("errors"));
+    assertEquals(3000, upload.getLong("bytes"));
+    assertTrue(upload.getLong("p50Millis") <= upload.getLong("p99Millis"));
+    JSONObject download = operation(json, "downloadRawFile");
+    assertEquals(2, download.getLong("calls"));
+    assertEquals(1, download.getLong("errors"));
+    assertEquals(1000, download.getLong("bytes"));
+
+    JSONArray slowCalls = json.getJSONArray("slowCalls");
+    assertTrue(slowCalls.length() > 0);
+    for (int i = 1; i < slowCalls.length(); i++) {
+      assertTrue(slowCalls.getJSONObject(i - 1).getLong("millis")
+          >= slowCalls.getJSONObject(i).getLong("millis"));
+    }
+    assertEquals(USER_ID, slowCalls.getJSONObject(0).getString("userId"));
+  }
+
+  public void testRecordsAreChargedToTheCurrentCall() {
+    StorageStats stats = new StorageStats();
+    StorageStats.recordRetry();           // No call in progress, ignored
+    StorageStats.Call call = stats.begin("job", USER_ID, projectId);
+    StorageStats.recordRetry();
+    StorageStats.recordMemcache(true);
+    StorageStats.recordMemcache(false);
+    StorageStats.recordGcsBytes(42);
+    call.done();
+    stats.end(call);
+
+    JSONObject job = operation(stats.toJson(), "job");
+    assertEquals(1, job.getLong("retries"));
+    assertEquals(1, job.getLong("memcacheHits"));
+    assertEquals(1, job.getLong("memcacheMisses"));
+    assertEquals(42, job.getLong("gcsBytes"));
+
+    stats.reset();
+    assertEquals(0, stats.toJson().getJSONArray("operations").length());
+  }
+
+  public void testReport() {
+    storage.getProjects(USER_ID);
+    assertSame(storage.getStats(), StorageStats.of(storage));
+    assertNull(StorageStats.of(backend));
+    JSONObject report = StorageStats.report(storage);
+    assertTrue(report.has("storage"));
+    assertTrue(report.has("codec"));
+    assertTrue(report.has("retries"));
+    assertFalse(report.has("coalescing"));
+  }
+
+  private static JSONObject operation(JSONObject stats, String name) {
+    JSONArray operations = stats.getJSONArray("operations");
+    for (int i = 0; i < operations.length(); i++) {
+      if (operations.getJSONObject(i).getString("name").equals(name)) {
+        return operations.getJSONObject(i);
+      }
+    }
+    fail("No statistics for " + name);
+    return null;
+  }
+
+  private static void deleteRecursively(File file) {
+    File[] children = file.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        deleteRecursively(child);
+      }
+    }
+    file.delete();
+  }
+}
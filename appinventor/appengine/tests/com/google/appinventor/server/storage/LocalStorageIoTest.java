@@ -0,0 +1,244 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server.storage;
+
+import com.google.appinventor.shared.rpc.BlocksTruncatedException;
+import com.google.appinventor.shared.rpc.project.ProjectSourceZip;
+import com.google.appinventor.shared.rpc.user.User;
+import com.google.appinventor.shared.storage.StorageUtil;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Tests for {@link LocalStorageIo}. The {@link StorageIo} contract is
+ * tested by {@link StorageIoTestCase}, these are the tests of what is
+ * particular to LocalStorageIo and its {@link LocalKeyValueStore}.
+ *
+ */
+public class LocalStorageIoTest extends StorageIoTestCase {
+
+  private File directory;
+
+  @Override
+  protected StorageIo createStorageIo() throws IOException {
+    directory = File.createTempFile("LocalStorageIoTest", "");
+    directory.delete();
+    return new LocalStorageIo(directory);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    ((LocalStorageIo) storage).close();
+    deleteRecursively(directory);
+    super.tearDown();
+  }
+
+  public void testSetTosAccepted() {
+    final String USER_ID = "100";
+    final String USER_EMAIL = "newuser100@test.com";
+    LocalStorageIo.requireTos.setForTest(true);
+    User user = storage.getUser(USER_ID, USER_EMAIL);
+    assertEquals(false, user.getUserTosAccepted());
+    storage.setTosAccepted(USER_ID);
+    assertEquals(true, storage.getUser(USER_ID, USER_EMAIL).getUserTosAccepted());
+  }
+
+  public void testFindUserByEmail() {
+    final String USER_ID = "500";
+    final String USER_EMAIL = "user500@test.com";
+    storage.getUser(USER_ID, USER_EMAIL);
+    assertEquals(USER_ID, storage.findUserByEmail(USER_EMAIL));
+
+    // A user found by email keeps its id
+    assertEquals(USER_ID, storage.getUser("501", USER_EMAIL).getUserId());
+  }
+
+  public void testCreateDeleteProject() throws Exception {
+    final String USER_ID = "400";
+    final String USER_EMAIL = "newuser400@test.com";
+    storage.getUser(USER_ID, USER_EMAIL);
+    long projectId = storage.createProject(USER_ID, project, SETTINGS);
+    assertEquals(Arrays.asList(projectId), storage.getProjects(USER_ID));
+    assertEquals(PROJECT_NAME, storage.getProjectName(USER_ID, projectId));
+    assertEquals(SETTINGS, storage.loadProjectSettings(USER_ID, projectId));
+
+    storage.deleteProject(USER_ID, projectId);
+    assertTrue(storage.getProjects(USER_ID).isEmpty());
+    assertNull(storage.getUserProject(USER_ID, projectId));
+    assertTrue(storage.getProjectSourceFiles(USER_ID, projectId).isEmpty());
+  }
+
+  public void testBlocksTruncated() throws BlocksTruncatedException {
+    final String USER_ID = "1250";
+    final String BLOCKS_FILE = "src/com/yourdomain/Screen1.bky";
+    storage.getUser(USER_ID, "newuser1250@test.com");
+    long projectId = createProject(USER_ID, PROJECT_NAME, FAKE_PROJECT_TYPE,
+        FORM_QUALIFIED_NAME);
+    storage.addSourceFilesToProject(USER_ID, projectId, false, BLOCKS_FILE);
+    storage.uploadRawFile(projectId, BLOCKS_FILE, USER_ID, false, new byte[200]);
+    try {
+      storage.uploadRawFile(projectId, BLOCKS_FILE, USER_ID, false, new byte[10]);
+      fail("Blocks truncated");
+    } catch (BlocksTruncatedException ignored) {
+      // Expected
+    }
+    storage.uploadRawFileForce(projectId, BLOCKS_FILE, USER_ID, new byte[10]);
+    assertEquals(10, storage.downloadRawFile(USER_ID, projectId, BLOCKS_FILE).length);
+  }
+
+  public void testExport() throws Exception {
+    final String USER_ID = "1800";
+    storage.getUser(USER_ID, "newuser1800@test.com");
+    long projectId = storage.createProject(USER_ID, project, SETTINGS);
+    ProjectSourceZip zip = storage.exportProjectSourceZip(USER_ID, projectId, false, false,
+        null, false, false, false, false);
+    assertEquals(PROJECT_NAME + ".aia", zip.getFileName());
+    assertEquals(4, zip.getFileCount());
+  }
+
+  public void testMaintenanceBatches() throws Exception {
+    for (int i = 0; i < 600; i++) {
+      storage.storeIpAddressByKey("key" + i, "10.0.0.1");
+    }
+    MaintenanceBatch batch = storage.runMaintenance(MaintenanceJob.RENDEZVOUS, null);
+    assertEquals(500, batch.getScanned());
+    assertEquals(0, batch.getDeleted());
+    assertFalse(batch.isDone());
+    batch = storage.runMaintenance(MaintenanceJob.RENDEZVOUS, batch.getCursor());
+    assertEquals(100, batch.getScanned());
+    assertTrue(batch.isDone());
+    assertEquals("10.0.0.1", storage.findIpAddressByKey("key599"));
+    assertTrue(storage.runMaintenance(MaintenanceJob.GCS_BACKUPS, null).isDone());
+  }
+
+  public void testReopen() throws Exception {
+    final String USER_ID = "1900";
+    storage.getUser(USER_ID, "newuser1900@test.com");
+    storage.storeSettings(USER_ID, SETTINGS);
+    long projectId = storage.createProject(USER_ID, project, SETTINGS);
+    storage.deleteFile(USER_ID, projectId, FILE_NAME1);
+    ((LocalStorageIo) storage).close();
+
+    storage = new LocalStorageIo(directory);
+    assertEquals(SETTINGS, storage.loadSettings(USER_ID));
+    assertEquals(Arrays.asList(projectId), storage.getProjects(USER_ID));
+    assertEquals(Arrays.asList(RAW_FILE_NAME1, RAW_FILE_NAME2, FILE_NAME2),
+        storage.getProjectSourceFiles(USER_ID, projectId));
+    assertEquals(FILE_CONTENT2,
+        storage.downloadFile(USER_ID, projectId, FILE_NAME2, StorageUtil.DEFAULT_CHARSET));
+    // Project ids are not reused
+    assertTrue(storage.createProject(USER_ID, project, SETTINGS) > projectId);
+  }
+
+  public void testSnapshotIsolation() throws Exception {
+    LocalKeyValueStore store = new LocalKeyValueStore(new File(directory, "kv"), false);
+    store.write(new LocalKeyValueStore.Batch().put("a/1", "one").put("a/2", "two"));
+    LocalKeyValueStore.Snapshot snapshot = store.snapshot();
+    store.write(new LocalKeyValueStore.Batch().put("a/1", "uno").delete("a/2").put("a/3", "3"));
+    store.write(new LocalKeyValueStore.Batch().put("a/1", "eins"));
+
+    assertEquals("one", snapshot.get("a/1"));
+    assertEquals(Arrays.asList("one", "two"), new ArrayList<String>(snapshot.scan("a/").values()));
+    assertEquals("eins", store.get("a/1"));
+    assertEquals(Arrays.asList("eins", "3"), new ArrayList<String>(store.scan("a/").values()));
+    snapshot.close();
+
+    // Only the latest versions survive a reopen
+    store.close();
+    store = new LocalKeyValueStore(new File(directory, "kv"), false);
+    assertEquals(Arrays.asList("eins", "3"), new ArrayList<String>(store.scan("a/").values()));
+    store.close();
+  }
+
+  public void testLogIsCompactedWhileOpen() throws Exception {
+    File kv = new File(directory, "kv");
+    LocalKeyValueStore store = new LocalKeyValueStore(kv, false);
+    char[] chars = new char[10000];
+    for (int i = 0; i < 500; i++) {
+      Arrays.fill(chars, (char) ('a' + i % 26));
+      store.write(new LocalKeyValueStore.Batch().put("key", new String(chars)));
+    }
+    // Far fewer than the 500 values written are left in the log
+    assertTrue(new File(kv, "store.log").length() < 200 * chars.length);
+    assertEquals('f', store.get("key").charAt(0));
+    store.close();
+
+    store = new LocalKeyValueStore(kv, false);
+    assertEquals('f', store.get("key").charAt(0));
+    store.close();
+  }
+
+  public void testPartlyWrittenRecordIsIgnored() throws Exception {
+    File kv = new File(directory, "kv");
+    LocalKeyValueStore store = new LocalKeyValueStore(kv, false);
+    store.write(new LocalKeyValueStore.Batch().put("a", "1"));
+    store.close();
+    appendToFile(new File(kv, "store.log"), new byte[] { 0, 0, 0, 0, 0, 0, 0, 2, 127 });
+
+    store = new LocalKeyValueStore(kv, false);
+    assertEquals("1", store.get("a"));
+    store.write(new LocalKeyValueStore.Batch().put("b", "2"));
+    store.close();
+
+    // The records written after the broken one are still there
+    store = new LocalKeyValueStore(kv, false);
+    assertEquals("1", store.get("a"));
+    assertEquals("2", store.get("b"));
+    store.close();
+  }
+
+  public void testCorruptRecordInTheMiddleIsAnError() throws Exception {
+    File kv = new File(directory, "kv");
+    LocalKeyValueStore store = new LocalKeyValueStore(kv, false);
+    store.write(new LocalKeyValueStore.Batch().put("a", "1"));
+    store.write(new LocalKeyValueStore.Batch().put("b", "2"));
+    store.close();
+    // The log starts with the (empty) record written when the store was
+    // opened. Damage the body of the record after it.
+    RandomAccessFile log = new RandomAccessFile(new File(kv, "store.log"), "rw");
+    try {
+      log.seek(8);
+      long second = 8 + 4 + log.readInt() + 8;
+      log.seek(second + 8 + 4);
+      int b = log.read();
+      log.seek(second + 8 + 4);
+      log.write(b ^ 0xFF);
+    } finally {
+      log.close();
+    }
+    try {
+      new LocalKeyValueStore(kv, false);
+      fail("Opened a damaged log");
+    } catch (IOException expected) {
+      // The records after the damaged one would be lost
+    }
+  }
+
+  private static void appendToFile(File file, byte[] bytes) throws IOException {
+    OutputStream out = new FileOutputStream(file, true);
+    try {
+      out.write(bytes);
+    } finally {
+      out.close();
+    }
+  }
+
+  private static void deleteRecursively(File file) {
+    File[] children = file.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        deleteRecursively(child);
+      }
+    }
+    file.delete();
+  }
+}
@@ -0,0 +1,113 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server.storage;
+
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.Lock;
+
+import junit.framework.TestCase;
+
+import org.json.JSONObject;
+
+/**
+ * Tests for {@link RetryPolicy}.
+ *
+ */
+public class RetryPolicyTest extends TestCase {
+
+  private static final String GROUP = "project:1234";
+
+  private RetryPolicy policy;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    policy = new RetryPolicy(10, 20, 1000, 100, new Random(42));
+  }
+
+  public void testBackoffGrowsUpToTheLimit() {
+    long longest = 0;
+    for (int i = 0; i < 100; i++) {
+      long delay = policy.backoffMillis(1);
+      assertTrue(delay >= 0 && delay <= 20);
+      longest = Math.max(longest, policy.backoffMillis(4));
+      assertTrue(policy.backoffMillis(30) <= 1000);
+    }
+    // With jitter up to 160 ms, some waits take longer than the first one can
+    assertTrue(longest > 20 && longest <= 160);
+  }
+
+  public void testCollisionsMakeAGroupHot() throws Exception {
+    assertNull(policy.admit("uploadFile", GROUP));
+    for (int i = 0; i < RetryPolicy.HOT_COLLISIONS - 1; i++) {
+      policy.retried("uploadFile", GROUP);
+    }
+    assertFalse(policy.isHot(GROUP));
+    policy.retried("uploadFile", GROUP);
+    assertTrue(policy.isHot(GROUP));
+
+    // Jobs on a hot group take turns, a job can run another job on the group
+    Lock turn = policy.admit("uploadFile", GROUP);
+    assertNotNull(turn);
+    Lock nested = policy.admit("recordSave", GROUP);
+    assertSame(turn, nested);
+    nested.unlock();
+    turn.unlock();
+
+    // Retries without a known group don't heat anything up
+    policy.retried("storeSettings", null);
+    assertFalse(policy.isHot("other"));
+    assertNull(policy.admit("storeSettings", null));
+  }
+
+  public void testJobsAreShedWhenTheirTurnDoesNotCome() throws Exception {
+    for (int i = 0; i < RetryPolicy.HOT_COLLISIONS; i++) {
+      policy.retried("increaseLikes", GROUP);
+    }
+    Lock turn = policy.admit("increaseLikes", GROUP);
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      Future<Boolean> other = executor.submit(new Callable<Boolean>() {
+        @Override
+        public Boolean call() {
+          try {
+            policy.admit("increaseLikes", GROUP);
+            return true;
+          } catch (ObjectifyException e) {
+            return false;             // Expected, the first job still has the turn
+          }
+        }
+      });
+      assertFalse(other.get());
+    } finally {
+      turn.unlock();
+      executor.shutdown();
+    }
+    JSONObject counters = policy.toJson().getJSONObject("operations")
+        .getJSONObject("increaseLikes");
+    assertEquals(RetryPolicy.HOT_COLLISIONS, counters.getLong("retries"));
+    assertEquals(1, counters.getLong("shed"));
+    assertEquals(0, counters.getLong("giveUps"));
+    assertEquals(1, policy.toJson().getInt("hotGroups"));
+  }
+
+  public void testOperationOf() {
+    Runnable job = new Runnable() {
+      @Override
+      public void run() {
+      }
+    };
+    assertEquals("testOperationOf", RetryPolicy.operationOf(job));
+    assertEquals("RetryPolicyTest", RetryPolicy.operationOf(this));
+    policy.gaveUp(RetryPolicy.operationOf(job));
+    assertEquals(1, policy.toJson().getJSONObject("operations")
+        .getJSONObject("testOperationOf").getLong("giveUps"));
+  }
+}
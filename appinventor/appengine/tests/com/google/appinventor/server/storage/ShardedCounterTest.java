@@ -0,0 +1,229 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server.storage;
+
+import com.google.appinventor.server.LocalDatastoreTestCase;
+import com.google.appinventor.shared.rpc.project.GalleryApp;
+
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.Objectify;
+import com.googlecode.objectify.ObjectifyService;
+
+import java.util.ArrayList;
+import java.util.ConcurrentModificationException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests for {@link ShardedCounter} and the gallery like/download counting
+ * built on it.
+ *
+ */
+public class ShardedCounterTest extends LocalDatastoreTestCase {
+
+  private static final String USER_ID = "counteruser";
+  private static final String OTHER_USER_ID = "otheruser";
+
+  private static final int CONCURRENT_THREADS = 10;
+  private static final int CONCURRENT_INCREMENTS = 20;
+  private static final int SINGLE_ENTITY_MAX_RETRIES = 1000;
+
+  private ObjectifyGalleryStorageIo galleryStorage;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    // Also registers GalleryAppData and GalleryCounterShardData
+    galleryStorage = new ObjectifyGalleryStorageIo();
+  }
+
+  public void testIncrementAndTotal() throws Exception {
+    ShardedCounter counter = new ShardedCounter("test");
+    for (int i = 0; i < 5; i++) {
+      counter.increment(42, 1);
+    }
+    assertEquals(5, counter.getShardTotal(42));
+    counter.increment(42, -2);
+    assertEquals(3, counter.getShardTotal(42));
+    assertEquals(3, counter.sumShards(42));
+    // Other apps are not affected
+    assertEquals(0, counter.getShardTotal(43));
+  }
+
+  public void testNumLikesOfMissingApp() {
+    assertEquals(0, galleryStorage.getNumLikes(12345));
+  }
+
+  public void testRollupFoldsCountersIntoGalleryAppData() {
+    StorageIoInstanceHolder.INSTANCE.getUser(USER_ID, "counteruser@test.com");
+    StorageIoInstanceHolder.INSTANCE.getUser(OTHER_USER_ID, "otheruser@test.com");
+    long galleryId = galleryStorage.createGalleryApp("Title", "Project", "Description",
+        "", "", 1, USER_ID).getGalleryAppId();
+
+    galleryStorage.incrementDownloads(galleryId);
+    galleryStorage.incrementDownloads(galleryId);
+    galleryStorage.incrementDownloads(galleryId);
+    assertEquals(1, galleryStorage.increaseLikes(galleryId, USER_ID));
+    assertEquals(2, galleryStorage.increaseLikes(galleryId, OTHER_USER_ID));
+    // Liking twice doesn't count
+    assertEquals(2, galleryStorage.increaseLikes(galleryId, OTHER_USER_ID));
+
+    // Pending counts are visible before the rollup...
+    GalleryApp app = galleryStorage.getGalleryApp(galleryId);
+    assertEquals(3, app.getDownloads());
+    assertEquals(2, app.getLikes());
+    // ...but have not been written to the app entity yet
+    GalleryAppData appData = findApp(galleryId);
+    assertEquals(0, appData.numDownloads);
+    assertEquals(0, appData.numLikes);
+
+    galleryStorage.rollupCounters(galleryId);
+    appData = findApp(galleryId);
+    assertEquals(3, appData.numDownloads);
+    assertEquals(3, appData.unreadDownloads);
+    assertEquals(2, appData.numLikes);
+    assertEquals(2, appData.unreadLikes);
+
+    // Rolling up again changes nothing, and the totals are not counted twice
+    galleryStorage.rollupCounters(galleryId);
+    appData = findApp(galleryId);
+    assertEquals(3, appData.numDownloads);
+    assertEquals(2, appData.numLikes);
+    app = galleryStorage.getGalleryApp(galleryId);
+    assertEquals(3, app.getDownloads());
+    assertEquals(2, app.getLikes());
+
+    assertEquals(1, galleryStorage.decreaseLikes(galleryId, USER_ID));
+    galleryStorage.rollupCounters(galleryId);
+    appData = findApp(galleryId);
+    assertEquals(1, appData.numLikes);
+    assertEquals(1, appData.unreadLikes);
+    assertEquals(1, galleryStorage.getNumLikes(galleryId));
+  }
+
+  public void testRollupCountsLikesWithoutShardIncrement() {
+    StorageIoInstanceHolder.INSTANCE.getUser(USER_ID, "counteruser@test.com");
+    long galleryId = galleryStorage.createGalleryApp("Title", "Project", "Description",
+        "", "", 1, USER_ID).getGalleryAppId();
+    assertEquals(1, galleryStorage.increaseLikes(galleryId, USER_ID));
+
+    // A like whose row was stored, but whose shard increment failed
+    GalleryAppLikeData likeData = new GalleryAppLikeData();
+    likeData.galleryKey = new Key<GalleryAppData>(GalleryAppData.class, galleryId);
+    likeData.userId = OTHER_USER_ID;
+    ObjectifyService.begin().put(likeData);
+    assertEquals(1, galleryStorage.getNumLikes(galleryId));
+
+    galleryStorage.rollupCounters(galleryId);
+    GalleryAppData appData = findApp(galleryId);
+    assertEquals(2, appData.numLikes);
+    assertEquals(2, appData.unreadLikes);
+    assertEquals(2, galleryStorage.getNumLikes(galleryId));
+  }
+
+  /**
+   * Runs the same number of concurrent increments against a single entity
+   * (which is what incrementDownloads used to do with GalleryAppData) and
+   * against a {@link ShardedCounter}, and checks that none are lost.
+   */
+  public void testConcurrentIncrementsAreAllCounted() throws Exception {
+    final ShardedCounter counter = new ShardedCounter("concurrent");
+
+    int expected = CONCURRENT_THREADS * CONCURRENT_INCREMENTS;
+
+    runConcurrently(new Runnable() {
+      @Override
+      public void run() {
+        incrementSingleEntity();
+      }
+    });
+    // Check right away, the next run sets up the local services again
+    GalleryCounterShardData single = ObjectifyService.begin().find(singleEntityKey());
+    assertEquals(expected, single.count);
+
+    runConcurrently(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          counter.increment(1, 1);
+        } catch (ObjectifyException e) {
+          throw new RuntimeException(e);
+        }
+      }
+    });
+
+    assertEquals(expected, counter.sumShards(1));
+  }
+
+  private void runConcurrently(final Runnable increment) throws InterruptedException {
+    List<Thread> threads = new ArrayList<Thread>();
+    final AtomicInteger ready = new AtomicInteger();
+    final Object start = new Object();
+    for (int i = 0; i < CONCURRENT_THREADS; i++) {
+      Thread t = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          setUpThread();
+          synchronized (start) {
+            ready.incrementAndGet();
+            try {
+              start.wait();
+            } catch (InterruptedException e) {
+              // do nothing
+            }
+          }
+          for (int j = 0; j < CONCURRENT_INCREMENTS; j++) {
+            increment.run();
+          }
+        }
+      });
+      threads.add(t);
+      t.start();
+    }
+    while (ready.get() < CONCURRENT_THREADS) {
+      Thread.sleep(100);
+    }
+    synchronized (start) {
+      start.notifyAll();
+    }
+    for (Thread t : threads) {
+      t.join();
+    }
+  }
+
+  private void incrementSingleEntity() {
+    for (int tries = 0; tries < SINGLE_ENTITY_MAX_RETRIES; tries++) {
+      Objectify datastore = ObjectifyService.beginTransaction();
+      try {
+        GalleryCounterShardData data = datastore.find(singleEntityKey());
+        if (data == null) {
+          data = new GalleryCounterShardData();
+          data.id = singleEntityKey().getName();
+        }
+        data.count++;
+        datastore.put(data);
+        datastore.getTxn().commit();
+        return;
+      } catch (ConcurrentModificationException e) {
+        // Try again
+      } finally {
+        if (datastore.getTxn().isActive()) {
+          datastore.getTxn().rollback();
+        }
+      }
+    }
+    fail("Single entity increment did not commit after " + SINGLE_ENTITY_MAX_RETRIES + " tries");
+  }
+
+  private static Key<GalleryCounterShardData> singleEntityKey() {
+    return new Key<GalleryCounterShardData>(GalleryCounterShardData.class, "single");
+  }
+
+  private static GalleryAppData findApp(long galleryId) {
+    return ObjectifyService.begin().find(
+        new Key<GalleryAppData>(GalleryAppData.class, galleryId));
+  }
+}
@@ -516,6 +516,63 @@ Blockly.Yail.quote_ = function(string) {
   return string;
 };
 
+/**
+ * The types of the blocks whose code always evaluates to a number: number
+ * literals, and calls of arithmetic primitives.
+ */
+Blockly.Yail.NUMBER_BLOCKS = {
+  'math_number': true,
+  'math_add': true,
+  'math_subtract': true,
+  'math_multiply': true,
+  'math_division': true,
+  'math_power': true,
+  'math_single': true,
+  'math_abs': true,
+  'math_neg': true,
+  'math_round': true,
+  'math_ceiling': true,
+  'math_floor': true
+};
+
+/**
+ * Returns whether the values of the given inputs of a block are known to be
+ * numbers, so giving them to a primitive that takes numbers needs no
+ * coercion. An input that nothing (enabled) is plugged into counts as a
+ * number, since the math generators use a number literal for it.
+ *
+ * @param {Blockly.Block} block the block
+ * @param {Array.<string>} names the names of the inputs
+ * @returns {boolean}
+ */
+Blockly.Yail.areNumberInputs = function(block, names) {
+  for (var i = 0; i < names.length; i++) {
+    var target = block.getInputTargetBlock(names[i]);
+    if (target && !target.disabled && !target.isBadBlock() &&
+        !Blockly.Yail.NUMBER_BLOCKS[target.type]) {
+      return false;
+    }
+  }
+  return true;
+};
+
+/**
+ * Generates a plain call of a Yail primitive, for arguments that don't
+ * need coercion (see call-yail-primitive in runtime.scm for the call with
+ * coercion).
+ *
+ * @param {String} prim the primitive
+ * @param {Array.<String>} args code for the arguments
+ * @returns {String} code
+ */
+Blockly.Yail.directPrimitiveCall = function(prim, args) {
+  var code = Blockly.Yail.YAIL_OPEN_COMBINATION + prim;
+  for (var i = 0; i < args.length; i++) {
+    code += Blockly.Yail.YAIL_SPACER + args[i];
+  }
+  return code + Blockly.Yail.YAIL_CLOSE_COMBINATION;
+};
+
 /**
  * Naked values are top-level blocks with outputs that aren't plugged into
  * anything.  A trailing semicolon is needed to make this legal.
@@ -26,6 +26,10 @@ Blockly.Yail['math_compare'] = function() {
   var order = prim[2];
   var argument0 = Blockly.Yail.valueToCode(this, 'A', order) || 0;
   var argument1 = Blockly.Yail.valueToCode(this, 'B', order) || 0;
+  if (Blockly.Yail.areNumberInputs(this, ['A', 'B'])) {
+    return [Blockly.Yail.directPrimitiveCall(operator1, [argument0, argument1]),
+            Blockly.Yail.ORDER_ATOMIC];
+  }
   var code = Blockly.Yail.YAIL_CALL_YAIL_PRIMITIVE + operator1
       + Blockly.Yail.YAIL_SPACER;
   code = code + Blockly.Yail.YAIL_OPEN_COMBINATION
@@ -56,6 +60,10 @@ Blockly.Yail['math_arithmetic'] = function(mode,block) {
   var order = tuple[1];
   var argument0 = Blockly.Yail.valueToCode(block, 'A', order) || 0;
   var argument1 = Blockly.Yail.valueToCode(block, 'B', order) || 0;
+  if (Blockly.Yail.areNumberInputs(block, ['A', 'B'])) {
+    return [Blockly.Yail.directPrimitiveCall(operator, [argument0, argument1]),
+            Blockly.Yail.ORDER_ATOMIC];
+  }
   var code = Blockly.Yail.YAIL_CALL_YAIL_PRIMITIVE + operator
       + Blockly.Yail.YAIL_SPACER;
   code = code + Blockly.Yail.YAIL_OPEN_COMBINATION
@@ -98,13 +106,21 @@ Blockly.Yail['math_arithmetic_list'] = function(mode,block) {
   var operator = tuple[0];
   var order = tuple[1];
 
+  var args = [];
+  var names = [];
+  for(var i=0;i<block.itemCount_;i++) {
+    args.push(Blockly.Yail.valueToCode(block, 'NUM' + i, order) || 0);
+    names.push('NUM' + i);
+  }
+  if (Blockly.Yail.areNumberInputs(block, names)) {
+    return [Blockly.Yail.directPrimitiveCall(operator, args), Blockly.Yail.ORDER_ATOMIC];
+  }
   var code = Blockly.Yail.YAIL_CALL_YAIL_PRIMITIVE + operator
       + Blockly.Yail.YAIL_SPACER;
   code = code + Blockly.Yail.YAIL_OPEN_COMBINATION
       + Blockly.Yail.YAIL_LIST_CONSTRUCTOR + Blockly.Yail.YAIL_SPACER;
   for(var i=0;i<block.itemCount_;i++) {
-    var argument = Blockly.Yail.valueToCode(block, 'NUM' + i, order) || 0;
-    code += argument + Blockly.Yail.YAIL_SPACER;
+    code += args[i] + Blockly.Yail.YAIL_SPACER;
   }
   code += Blockly.Yail.YAIL_CLOSE_COMBINATION;
   code = code + Blockly.Yail.YAIL_SPACER + Blockly.Yail.YAIL_QUOTE
@@ -134,6 +150,9 @@ Blockly.Yail['math_single'] = function() {
   var operator2 = tuple[1];
   var order = tuple[2];
   var argument = Blockly.Yail.valueToCode(this, 'NUM', order) || 1;
+  if (Blockly.Yail.areNumberInputs(this, ['NUM'])) {
+    return [Blockly.Yail.directPrimitiveCall(operator1, [argument]), Blockly.Yail.ORDER_ATOMIC];
+  }
   var code = Blockly.Yail.YAIL_CALL_YAIL_PRIMITIVE + operator1
       + Blockly.Yail.YAIL_SPACER;
   code = code + Blockly.Yail.YAIL_OPEN_COMBINATION
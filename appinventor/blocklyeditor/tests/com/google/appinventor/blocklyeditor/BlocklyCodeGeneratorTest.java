@@ -74,6 +74,12 @@ public class BlocklyCodeGeneratorTest extends TestCase {
     assertEquals("true", result.toString());
   }
 
+  public void testMathSubtract() throws Exception {
+    String result = BlocklyTestUtils.generatorTest(
+        testpath + "/tests/com/google/appinventor/generators_unit/mathSubtractTest.js");
+    assertEquals("true", result.toString());
+  }
+
 
 
     // add more unit tests here
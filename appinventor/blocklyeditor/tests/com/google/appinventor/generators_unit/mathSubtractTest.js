@@ -0,0 +1,40 @@
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+/**
+ * Unit test for "-" block Yail generator. The empty sockets are numbers,
+ * so the primitive is called without coercing them.
+ */
+
+////////////////////////////////////////
+// These four variables are all you need to define to create a test
+////////////////////////////////////////
+
+var expected = "(- 0 0)";
+
+var delayedGenerator = function () { return Blockly.Yail.math_subtract ; } ;
+
+var blockName = 'math_subtract' ;
+
+var doesReturn = true ;
+
+var dropdownOp = false ;
+
+////////////////////////////////////////
+// The rest of this page is common to all tests.
+////////////////////////////////////////
+
+// PhantomJS page object to open and load an URL - unfortunately we need to fully load Blockly
+var page = require('webpage').create();
+// Some debugging from PhantomJS
+page.onConsoleMessage = function (msg) { console.log(msg); };
+page.onError = function (msg, trace) {
+  console.log(msg);
+  trace.forEach(function(item) {
+    console.log('  ', item.file, ':', item.line);
+  });
+};
+
+var mainTest = require('./generator_test_mainRoutine.js');
+mainTest.execute();
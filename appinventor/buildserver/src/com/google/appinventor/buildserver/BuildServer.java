@@ -298,7 +298,7 @@ public class BuildServer {
         .entity("Entry point unavailable unless debugging.").build();
 
     try {
-      build(userName, zipFile);
+      build(userName, zipFile, null);
       String attachedFilename = outputApk.getName();
       FileInputStream outputApkDeleteOnClose = new DeleteFileOnCloseFileInputStream(outputApk);
       // Set the outputApk field to null so that it won't be deleted in cleanUp().
@@ -341,7 +341,7 @@ public class BuildServer {
         .entity("Entry point unavailable unless debugging.").build();
 
     try {
-      buildAndCreateZip(userName, inputZipFile);
+      buildAndCreateZip(userName, inputZipFile, null);
       String attachedFilename = outputZip.getName();
       FileInputStream outputZipDeleteOnClose = new DeleteFileOnCloseFileInputStream(outputZip);
       // Set the outputZip field to null so that it won't be deleted in cleanUp().
@@ -378,6 +378,8 @@ public class BuildServer {
    * @param gitBuildVersion  The value of GitBuildId.getVersion() sent from
    *     YoungAndroidProjectService.build.
    * @param callbackUrlStr An url to send the build results back to.
+   * @param statusUrlStr An url to push the progress of the build to (optional). Servers that
+   *     don't pass one poll for the progress instead, by posting an empty zip file.
    * @param inputZipFile  The zip file representing the App Inventor source code.
    * @return a status response, typically OK (200) or SERVICE_UNAVAILABLE (503).
    */
@@ -388,6 +390,7 @@ public class BuildServer {
     @QueryParam("uname") final String userName,
     @QueryParam("callback") final String callbackUrlStr,
     @QueryParam("gitBuildVersion") final String gitBuildVersion,
+    @QueryParam("status") final String statusUrlStr,
     final File inputZipFile) throws IOException {
     // Set the inputZip field so we can delete the input zip file later in
     // cleanUp.
@@ -442,6 +445,8 @@ public class BuildServer {
         }
       }
 
+      final BuildStatusReporter statusReporter =
+        statusUrlStr == null || statusUrlStr.isEmpty() ? null : new BuildStatusReporter(statusUrlStr);
       Runnable buildTask = new Runnable() {
           @Override
           public void run() {
@@ -449,7 +454,10 @@ public class BuildServer {
             try {
               LOG.info("START NEW BUILD " + count);
               checkMemory();
-              buildAndCreateZip(userName, inputZipFile);
+              if (statusReporter != null) {
+                statusReporter.report("started", 10);
+              }
+              buildAndCreateZip(userName, inputZipFile, statusReporter);
               // Send zip back to the callbackUrl
               LOG.info("CallbackURL: " + callbackUrlStr);
               URL callbackUrl = new URL(callbackUrlStr);
@@ -508,9 +516,9 @@ public class BuildServer {
       .entity("" + projectBuilder.getProgress()).build();
   }
 
-  private void buildAndCreateZip(String userName, File inputZipFile)
-    throws IOException, JSONException {
-    Result buildResult = build(userName, inputZipFile);
+  private void buildAndCreateZip(String userName, File inputZipFile,
+    BuildStatusReporter statusReporter) throws IOException, JSONException {
+    Result buildResult = build(userName, inputZipFile, statusReporter);
     boolean buildSucceeded = buildResult.succeeded();
     outputZip = File.createTempFile(inputZipFile.getName(), ".zip");
     outputZip.deleteOnExit();  // In case build server is killed before cleanUp executes.
@@ -548,7 +556,8 @@ public class BuildServer {
     return buildOutputJsonObj.toString();
   }
 
-  private Result build(String userName, File zipFile) throws IOException {
+  private Result build(String userName, File zipFile, BuildStatusReporter statusReporter)
+    throws IOException {
     outputDir = Files.createTempDir();
     // We call outputDir.deleteOnExit() here, in case build server is killed before cleanUp
     // executes. However, it is likely that the directory won't be empty and therefore, won't
@@ -556,7 +565,7 @@ public class BuildServer {
     // is happening, so we should be careful about that.
     outputDir.deleteOnExit();
     Result buildResult = projectBuilder.build(userName, new ZipFile(zipFile), outputDir, false,
-      commandLineOptions.childProcessRamMb, commandLineOptions.dexCacheDir);
+      commandLineOptions.childProcessRamMb, commandLineOptions.dexCacheDir, statusReporter);
     String buildOutput = buildResult.getOutput();
     LOG.info("Build output: " + buildOutput);
     String buildError = buildResult.getError();
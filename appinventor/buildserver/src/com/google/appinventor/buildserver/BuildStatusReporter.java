@@ -0,0 +1,119 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Pushes the progress of one build to the App Inventor server that asked
+ * for it, so the server doesn't have to ask us.
+ *
+ * Events are posted in the background so a slow server doesn't slow the
+ * build down. If events come faster than they can be posted only the
+ * latest one is posted, and an event that can't be posted is dropped:
+ * the server still gets the result of the build through the build
+ * callback.
+ */
+class BuildStatusReporter {
+  private static final Logger LOG = Logger.getLogger(BuildStatusReporter.class.getName());
+
+  private static final int TIMEOUT_MILLIS = 10000;
+
+  // Shared by all builds. Posts are small and quick, a couple of threads
+  // keep up with all the builds a build server runs at once.
+  private static final ExecutorService POSTER = Executors.newFixedThreadPool(2,
+      new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+          Thread thread = new Thread(runnable, "BuildStatusReporter");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+
+  private final String statusUrl;
+
+  // The latest event that hasn't been posted yet, or null
+  private String pendingQuery;
+  // Whether a post is queued or in progress
+  private boolean posting;
+
+  /**
+   * @param statusUrl the URL to post the events to
+   */
+  BuildStatusReporter(String statusUrl) {
+    this.statusUrl = statusUrl;
+  }
+
+  /**
+   * Reports that the build reached a stage.
+   *
+   * @param stage short name of the stage
+   * @param progress how far along the build is, in percent
+   */
+  void report(String stage, int progress) {
+    String query;
+    try {
+      query = "stage=" + URLEncoder.encode(stage, "UTF-8") + "&progress=" + progress;
+    } catch (IOException e) {
+      // Can't happen, UTF-8 is always supported
+      throw new IllegalStateException(e);
+    }
+    synchronized (this) {
+      pendingQuery = query;
+      if (posting) {
+        return;                 // The running post picks it up
+      }
+      posting = true;
+    }
+    POSTER.execute(new Runnable() {
+      @Override
+      public void run() {
+        postPending();
+      }
+    });
+  }
+
+  private void postPending() {
+    while (true) {
+      String query;
+      synchronized (this) {
+        query = pendingQuery;
+        pendingQuery = null;
+        if (query == null) {
+          posting = false;
+          return;
+        }
+      }
+      post(query);
+    }
+  }
+
+  private void post(String query) {
+    try {
+      URL url = new URL(statusUrl + (statusUrl.contains("?") ? "&" : "?") + query);
+      HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+      connection.setRequestMethod("POST");
+      connection.setConnectTimeout(TIMEOUT_MILLIS);
+      connection.setReadTimeout(TIMEOUT_MILLIS);
+      int responseCode = connection.getResponseCode();
+      if (responseCode != HttpURLConnection.HTTP_OK) {
+        LOG.info("Build status not accepted, response code " + responseCode);
+      }
+      connection.disconnect();
+    } catch (IOException e) {
+      LOG.log(Level.INFO, "Unable to post build status to " + statusUrl, e);
+    }
+  }
+}
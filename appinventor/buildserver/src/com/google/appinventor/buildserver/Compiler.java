@@ -203,6 +203,7 @@ public final class Compiler {
   private File libsDir; // The directory that will contain any native libraries for packaging
   private String dexCacheDir;
   private boolean hasSecondDex = false; // True if classes2.dex should be added to the APK
+  private BuildStatusReporter statusReporter; // Where to push the build's progress, or null
 
   private JSONArray simpleCompsBuildInfo;
   private JSONArray extCompsBuildInfo;
@@ -631,6 +632,7 @@ public final class Compiler {
    * @param userErrors stream to write user-visible error messages
    * @param keystoreFilePath
    * @param childProcessRam   maximum RAM for child processes, in MBs.
+   * @param statusReporter  where to push the progress of the build, or null
    * @return  {@code true} if the compilation succeeds, {@code false} otherwise
    * @throws JSONException
    * @throws IOException
@@ -638,12 +640,15 @@ public final class Compiler {
   public static boolean compile(Project project, Set<String> compTypes,
                                 PrintStream out, PrintStream err, PrintStream userErrors,
                                 boolean isForCompanion, String keystoreFilePath,
-                                int childProcessRam, String dexCacheDir) throws IOException, JSONException {
+                                int childProcessRam, String dexCacheDir,
+                                BuildStatusReporter statusReporter)
+      throws IOException, JSONException {
     long start = System.currentTimeMillis();
 
     // Create a new compiler instance for the compilation
     Compiler compiler = new Compiler(project, compTypes, out, err, userErrors, isForCompanion,
                                      childProcessRam, dexCacheDir);
+    compiler.statusReporter = statusReporter;
 
     compiler.generateAssets();
     compiler.generateActivities();
@@ -668,7 +673,7 @@ public final class Compiler {
     if (!compiler.prepareApplicationIcon(new File(drawableDir, "ya.png"))) {
       return false;
     }
-    setProgress(15);
+    compiler.setProgress("icon", 15);
 
     // Create anim directory and animation xml files
     out.println("________Creating animation xml");
@@ -683,7 +688,7 @@ public final class Compiler {
     if (!compiler.writeAndroidManifest(manifestFile)) {
       return false;
     }
-    setProgress(20);
+    compiler.setProgress("manifest", 20);
 
     // Insert native libraries
     out.println("________Attaching native libraries");
@@ -703,7 +708,7 @@ public final class Compiler {
     if (!compiler.generateClasses(classesDir)) {
       return false;
     }
-    setProgress(35);
+    compiler.setProgress("classes", 35);
 
     // Invoke dx on class files
     out.println("________Invoking DX");
@@ -727,7 +732,7 @@ public final class Compiler {
     if (!compiler.runDx(classesDir, dexedClassesDir, false)) {
       return false;
     }
-    setProgress(85);
+    compiler.setProgress("dx", 85);
 
     // Invoke aapt to package everything up
     out.println("________Invoking AAPT");
@@ -737,7 +742,7 @@ public final class Compiler {
     if (!compiler.runAaptPackage(manifestFile, resDir, tmpPackageName)) {
       return false;
     }
-    setProgress(90);
+    compiler.setProgress("aapt", 90);
 
     // Seal the apk with ApkBuilder
     out.println("________Invoking ApkBuilder");
@@ -746,7 +751,7 @@ public final class Compiler {
     if (!compiler.runApkBuilder(apkAbsolutePath, tmpPackageName, dexedClassesDir)) {
       return false;
     }
-    setProgress(95);
+    compiler.setProgress("apk", 95);
 
     // Sign the apk file
     out.println("________Signing the apk file");
@@ -760,7 +765,7 @@ public final class Compiler {
       return false;
     }
 
-    setProgress(100);
+    compiler.setProgress("signed", 100);
 
     out.println("Build finished in " +
         ((System.currentTimeMillis() - start) / 1000.0) + " seconds");
@@ -1214,14 +1219,14 @@ public final class Compiler {
     // tools output
     boolean dxSuccess;
     synchronized (SYNC_KAWA_OR_DX) {
-      setProgress(50);
+      setProgress("dx", 50);
       dxSuccess = dexTask.execute(inputList);
       if (dxSuccess && (class2List.size() > 0)) {
-        setProgress(60);
+        setProgress("dx", 60);
         dexTask.setOutput(dexedClassesDir + File.separator + "classes2.dex");
         inputList = new ArrayList<File>();
         dxSuccess = dexTask.execute(class2List);
-        setProgress(75);
+        setProgress("dx", 75);
         hasSecondDex = true;
       } else if (!dxSuccess) {  // The initial dx blew out, try more conservative
         LOG.info("DX execution failed, trying with fewer libraries.");
@@ -1531,10 +1536,13 @@ public final class Compiler {
     return dir;
   }
 
-  private static int setProgress(int increments) {
+  private int setProgress(String stage, int increments) {
     Compiler.currentProgress = increments;
     LOG.info("The current progress is "
               + Compiler.currentProgress + "%");
+    if (statusReporter != null) {
+      statusReporter.report(stage, increments);
+    }
     return Compiler.currentProgress;
   }
 
@@ -119,7 +119,7 @@ public final class ProjectBuilder {
   }
 
   Result build(String userName, ZipFile inputZip, File outputDir, boolean isForCompanion,
-               int childProcessRam, String dexCachePath) {
+               int childProcessRam, String dexCachePath, BuildStatusReporter statusReporter) {
     try {
       // Download project files into a temporary directory
       File projectRoot = createNewTempDir();
@@ -169,7 +169,7 @@ public final class ProjectBuilder {
         // Invoke YoungAndroid compiler
         boolean success =
             Compiler.compile(project, componentTypes, console, console, userErrors, isForCompanion,
-                             keyStorePath, childProcessRam, dexCachePath);
+                             keyStorePath, childProcessRam, dexCachePath, statusReporter);
         console.close();
         userErrors.close();
 
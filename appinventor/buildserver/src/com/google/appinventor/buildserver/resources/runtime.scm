@@ -28,8 +28,47 @@
 ;;; inside a phone, so components are not defined
 (define *testing* #f)
 
-(define (android-log message)
-  (when *debug* (android.util.Log:i "YAIL" message)))
+;;; Tracing
+;;; (android-log message) logs the message when *debug* is set, and keeps
+;;; it in the trace buffer when there is one (see set-yail-trace-size!).
+;;; It is a macro rather than a procedure so the message, often a format
+;;; of a whole list or table, is only computed when it goes somewhere.
+(define-syntax android-log
+  (syntax-rules ()
+    ((_ message)
+     (when (or *debug* *yail-trace*)
+       (yail-trace message)))))
+
+;;; The last messages logged, as a ring: a vector the messages go in one
+;;; after the other, wrapping around, or #f if they aren't kept
+(define *yail-trace* #f)
+(define *yail-trace-count* 0)
+
+(define (yail-trace message)
+  (when *debug* (android.util.Log:i "YAIL" message))
+  (when *yail-trace*
+    (vector-set! *yail-trace*
+                 (remainder *yail-trace-count* (vector-length *yail-trace*))
+                 message)
+    (set! *yail-trace-count* (+ *yail-trace-count* 1))))
+
+;;; Keeps the last size messages logged with android-log, for the Companion
+;;; to fetch with yail-trace-messages.  A size of 0 stops keeping them.
+(define (set-yail-trace-size! size)
+  (set! *yail-trace* (if (> size 0) (make-vector size #f) #f))
+  (set! *yail-trace-count* 0))
+
+;;; Returns the messages in the trace buffer as a yail list, oldest first
+(define (yail-trace-messages)
+  (if (not *yail-trace*)
+      (make-yail-list)
+      (let* ((size (vector-length *yail-trace*))
+             (start (max 0 (- *yail-trace-count* size))))
+        (let loop ((i (- *yail-trace-count* 1)) (messages '()))
+          (if (< i start)
+              (apply make-yail-list messages)
+              (loop (- i 1)
+                    (cons (vector-ref *yail-trace* (remainder i size)) messages)))))))
 
 ;;;; add-component
 (define-constant simple-component-package-name "com.google.appinventor.components.runtime")
@@ -129,11 +168,16 @@
   (set! *init-thunk-environment* (gnu.mapping.Environment:make 'init-thunk-environment)))
 
 ;;; (get-component comp1)
-;;; ==> (lookup-in-current-form-environment 'comp1)
+;;; ==> (lookup-in-current-form-environment-slot 'comp1 <slot of comp1>)
+;;; See "Slots" below.
 (define-syntax get-component
-  (syntax-rules ()
-    ((_ component-name)
-     (lookup-in-current-form-environment 'component-name))))
+  (lambda (stx)
+    (syntax-case stx ()
+      ((_ component-name)
+       #`(lookup-in-current-form-environment-slot
+          'component-name
+          ,(com.google.appinventor.components.runtime.util.EnvironmentSlots:slotOf
+            (syntax-object->datum #`component-name)))))))
 
 ;; We'd like to do something like the following which could re-use existing components
 ;; and thereore avoid overriding property changes that the user might have made via
@@ -198,7 +242,7 @@
 ;;; (get-property 'Label1 'Text)
 (define (get-property component prop-name)
   (let ((component (coerce-to-component-and-verify component)))
-    (sanitize-component-data (invoke component prop-name))))
+    (sanitize-component-data (invoke-component-method component prop-name '()))))
 
 (define (coerce-to-component-and-verify possible-component)
   (let ((component (coerce-to-component possible-component)))
@@ -217,7 +261,7 @@
                  component-type
                  (*:getSimpleName (*:getClass possible-component)))
          "Problem with application")
-        (sanitize-component-data (invoke component prop-name)))))
+        (sanitize-component-data (invoke-component-method component prop-name '())))))
 
 (define (set-and-coerce-property-and-check! possible-component comp-type prop-sym property-value property-type)
   (let ((component (coerce-to-component-of-type possible-component comp-type)))
@@ -232,20 +276,29 @@
 ;;; Global variables
 
 ;;; (get-var var1)
-;;; ==> (lookup-global-var-in-current-form-environment 'var1)
+;;; ==> (lookup-global-var-in-current-form-environment-slot 'var1 <slot of var1>)
+;;; See "Slots" below.
 (define-syntax get-var
-  (syntax-rules ()
-    ((_ var-name)
-     ;; unbound global variables default to *the-null-value*
-     (lookup-global-var-in-current-form-environment 'var-name *the-null-value*))))
+  (lambda (stx)
+    (syntax-case stx ()
+      ((_ var-name)
+       #`(lookup-global-var-in-current-form-environment-slot
+          'var-name
+          ,(com.google.appinventor.components.runtime.util.EnvironmentSlots:slotOf
+            (syntax-object->datum #`var-name)))))))
 
 ;;; (set-var! var1 10)
-;;; ==> (add-global-var-to-current-form-environment 'var1 10)
+;;; ==> (add-global-var-to-current-form-environment-slot 'var1 <slot of var1> 10)
 ;;; note that set-var! will create the binding if it doesn't exist
 (define-syntax set-var!
-  (syntax-rules ()
-    ((_ var-name value)
-     (add-global-var-to-current-form-environment 'var-name value))))
+  (lambda (stx)
+    (syntax-case stx ()
+      ((_ var-name value)
+       #`(add-global-var-to-current-form-environment-slot
+          'var-name
+          ,(com.google.appinventor.components.runtime.util.EnvironmentSlots:slotOf
+            (syntax-object->datum #`var-name))
+          value)))))
 
 ;;; Lexical variables
 ;;; A lexical variable is looked up in the current environment
@@ -428,7 +481,8 @@
                                 ;; might get sent to the REPL!
                                 (try-catch
                                  (begin
-                                   (apply handler (gnu.lists.LList:makeList args 0))
+                                   (call-event-handler handler registeredComponentName eventName
+                                                       (gnu.lists.LList:makeList args 0))
                                    #t)
                                  (exception java.lang.Throwable
                                   (begin
@@ -661,6 +715,9 @@
 
 ;;; def
 ;;; (def var1 ...) ==> (define var1 ...)
+;;; Procedures defined in the Companion are wrapped so the profiler (see
+;;; YailProfiler) can count their calls.  Profiling is only turned on from
+;;; the Companion, so the procedures of compiled apps aren't wrapped.
 (define-syntax def
   (syntax-rules ()
     ;; There's some Kawa bug that gets exposed if you change the clause ordering here
@@ -668,8 +725,10 @@
     ((_ (func-name args ...) body ...)
      (begin
        (if *this-is-the-repl*
-           (add-global-var-to-current-form-environment 'func-name
-                                            (lambda (args ...) body ...))
+           (add-global-var-to-current-form-environment
+            'func-name
+            (com.google.appinventor.components.runtime.util.YailProfiler:wrap
+             'func-name (lambda (args ...) body ...)))
            (add-to-global-vars 'func-name
                                (lambda ()
                                  (lambda (args ...) body ...))))))
@@ -691,75 +750,131 @@
          (add-to-form-do-after-creation (delay (begin expr ...)))))))
 
 ;; The following environments are really just for testing.
-(define *test-environment* (gnu.mapping.Environment:make 'test-env))
-(define *test-global-var-environment* (gnu.mapping.Environment:make 'test-global-var-env))
+(define *test-environment* :: gnu.mapping.Environment
+  (gnu.mapping.Environment:make 'test-env))
+(define *test-global-var-environment* :: gnu.mapping.Environment
+  (gnu.mapping.Environment:make 'test-global-var-env))
+
+;;; The environments of *this-form*.  *this-form* isn't typed, so getting
+;;; its fields means looking them up by name; set-this-form and
+;;; reset-current-form-environment keep them here instead.
+(define *this-form-environment* :: gnu.mapping.Environment #!null)
+(define *this-form-global-var-environment* :: gnu.mapping.Environment #!null)
+
+(define (update-this-form-environments)
+  (if (not (eq? *this-form* #!null))
+      (begin
+        (set! *this-form-environment* (*:.form-environment *this-form*))
+        (set! *this-form-global-var-environment* (*:.global-var-environment *this-form*)))
+      (begin
+        (set! *this-form-environment* #!null)
+        (set! *this-form-global-var-environment* #!null))))
+
+(define (current-form-environment) :: gnu.mapping.Environment
+  (if (not (eq? *this-form* #!null))
+      *this-form-environment*
+      ;; The following is just for testing. In normal situations *this-form* should be non-null
+      *test-environment*))
+
+(define (current-global-var-environment) :: gnu.mapping.Environment
+  (if (not (eq? *this-form* #!null))
+      *this-form-global-var-environment*
+      ;; The following is just for testing. In normal situations *this-form* should be non-null
+      *test-global-var-environment*))
 
 (define (add-to-current-form-environment name :: gnu.mapping.Symbol object)
                     ;  (android-log (format #f "Adding ~A to env ~A with value ~A" name
-                    ;                                     (if (not (eq? *this-form* #!null)) (*:.form-environment *this-form*) 'null)
+                    ;                                     (current-form-environment)
                     ;                                     object))
-  (if (not (eq? *this-form* #!null))
-      (gnu.mapping.Environment:put (*:.form-environment *this-form*) name object)
-      ;; The following is really for testing.  In normal situations *this-form* should be non-null
-      (gnu.mapping.Environment:put *test-environment* name object)))
+  (let ((env :: gnu.mapping.Environment (current-form-environment)))
+    (env:put name object)))
 
 (define (lookup-in-current-form-environment name :: gnu.mapping.Symbol #!optional (default-value #f))
                     ;  (android-log (format #f "Looking up ~A in env ~A" name
-                    ;                                     (if (not (eq? *this-form* #!null)) (*:.form-environment *this-form*) 'null)))
-  (let ((env (if (not (eq? *this-form* #!null))
-                 (*:.form-environment *this-form*)
-                 ;; The following is just for testing. In normal situations *this-form* should be non-null
-                 *test-environment*)))
-    (if (gnu.mapping.Environment:isBound env name)
-        (gnu.mapping.Environment:get env name)
+                    ;                                     (current-form-environment)))
+  (let ((env :: gnu.mapping.Environment (current-form-environment)))
+    (if (env:isBound name)
+        (env:get name)
         default-value)))
 
 (define (delete-from-current-form-environment name :: gnu.mapping.Symbol)
-  (if (not (eq? *this-form* #!null))
-      (gnu.mapping.Environment:remove (*:.form-environment *this-form*) name)
-      ;; The following is really for testing.  In normal situations *this-form* should be non-null
-      (gnu.mapping.Environment:remove *test-environment* name)))
+  (let ((env :: gnu.mapping.Environment (current-form-environment)))
+    (env:remove name)))
 
 (define (rename-in-current-form-environment old-name :: gnu.mapping.Symbol new-name :: gnu.mapping.Symbol)
   (when (not (eqv? old-name new-name))
     (let ((old-value (lookup-in-current-form-environment old-name)))
-      (if (not (eq? *this-form* #!null))
-          (gnu.mapping.Environment:put (*:.form-environment *this-form*) new-name old-value)
-          ;; The following is really for testing.  In normal situations *this-form* should be non-null
-          (gnu.mapping.Environment:put *test-environment*  new-name old-value))
+      (add-to-current-form-environment new-name old-value)
       (delete-from-current-form-environment old-name))))
 
 (define (add-global-var-to-current-form-environment name :: gnu.mapping.Symbol object)
-  (begin
-    (if (not (eq? *this-form* #!null))
-        (gnu.mapping.Environment:put (*:.global-var-environment *this-form*) name object)
-        ;; The following is really for testing.  In normal situations *this-form* should be non-null
-        (gnu.mapping.Environment:put *test-global-var-environment* name object))
+  (let ((env :: gnu.mapping.Environment (current-global-var-environment)))
+    (env:put name object)
     ;; return *the-null-value* rather than #!void, which would show as a blank in the repl balloon
     *the-null-value*))
 
 (define (lookup-global-var-in-current-form-environment name :: gnu.mapping.Symbol #!optional (default-value #f))
-  (let ((env (if (not (eq? *this-form* #!null))
-                 (*:.global-var-environment *this-form*)
-                 ;; The following is just for testing. In normal situations *this-form* should be non-null
-                 *test-global-var-environment*)))
-    (if (gnu.mapping.Environment:isBound env name)
-        (gnu.mapping.Environment:get env name)
+  (let ((env :: gnu.mapping.Environment (current-global-var-environment)))
+    (if (env:isBound name)
+        (env:get name)
         default-value)))
 
+;;; Slots
+;;;
+;;; get-var, set-var! and get-component give the name they refer to a
+;;; slot number when they are compiled (see EnvironmentSlots).  The slot
+;;; keeps the Location of the name in the environment, so a global or a
+;;; component is got or set without looking its name up each time.  The
+;;; environments still hold the values: def, the REPL and the procedures
+;;; above see and change the same bindings, and a slot filled for another
+;;; environment (such as the one before the form was reset) or another
+;;; name is filled again.
+
+(define *form-environment-slots*
+  :: com.google.appinventor.components.runtime.util.EnvironmentSlots
+  (com.google.appinventor.components.runtime.util.EnvironmentSlots))
+
+(define *global-var-environment-slots*
+  :: com.google.appinventor.components.runtime.util.EnvironmentSlots
+  (com.google.appinventor.components.runtime.util.EnvironmentSlots))
+
+;;; Note: the macros call slotOf themselves rather than through a procedure
+;;; here, since they're expanded in code compiled separately from the runtime.
+
+(define (lookup-in-current-form-environment-slot name :: gnu.mapping.Symbol slot :: int)
+  (let ((location :: gnu.mapping.Location
+                  (*form-environment-slots*:locate (current-form-environment) name slot)))
+    (location:get #f)))
+
+(define (lookup-global-var-in-current-form-environment-slot name :: gnu.mapping.Symbol slot :: int)
+  (let ((location :: gnu.mapping.Location
+                  (*global-var-environment-slots*:locate (current-global-var-environment) name slot)))
+    ;; unbound global variables default to *the-null-value*
+    (location:get *the-null-value*)))
+
+(define (add-global-var-to-current-form-environment-slot name :: gnu.mapping.Symbol slot :: int object)
+  (let ((location :: gnu.mapping.Location
+                  (*global-var-environment-slots*:locate (current-global-var-environment) name slot)))
+    (location:set object)
+    *the-null-value*))
+
 (define (reset-current-form-environment)
+  ;; Don't keep the locations of the environments being replaced
+  (*form-environment-slots*:clear)
+  (*global-var-environment-slots*:clear)
   (if (not (eq? *this-form* #!null))
       (let ((form-name (*:.form-name-symbol *this-form*)))
         ;; Create a new environment
         (set! (*:.form-environment *this-form*)
               (gnu.mapping.Environment:make (symbol->string form-name)))
-        ;; Add a binding from the form name to the form object
-        (add-to-current-form-environment form-name *this-form*)
         ;; Create a new global variable environment
         (set! (*:.global-var-environment *this-form*)
               (gnu.mapping.Environment:make (string-append
                                              (symbol->string form-name)
-                                             "-global-vars"))))
+                                             "-global-vars")))
+        (update-this-form-environments)
+        ;; Add a binding from the form name to the form object
+        (add-to-current-form-environment form-name *this-form*))
       (begin
         ;; The following is just for testing. In normal situations *this-form* should be non-null
         (set! *test-environment* (gnu.mapping.Environment:make 'test-env))
@@ -805,8 +920,10 @@
 (define-alias Short <java.lang.Short>)
 (define-alias String <java.lang.String>)
 (define-alias Pattern <java.util.regex.Pattern>)
+(define-alias TextPrimitives <com.google.appinventor.components.runtime.util.TextPrimitives>)
 (define-alias YailList <com.google.appinventor.components.runtime.util.YailList>)
 (define-alias YailNumberToString <com.google.appinventor.components.runtime.util.YailNumberToString>)
+(define-alias YailProfiler <com.google.appinventor.components.runtime.util.YailProfiler>)
 (define-alias YailRuntimeError <com.google.appinventor.components.runtime.errors.YailRuntimeError>)
 
 (define-alias JavaCollection <java.util.Collection>)
@@ -843,6 +960,28 @@
 ;;;; Procedure call and method call
 
 
+;;; PROFILED
+;;; (profiled kind name expr) evaluates expr.  While the profiler is on, it
+;;; also records a run of the block of the given kind called name (see
+;;; YailProfiler).  Name is only evaluated then.  Expr is expanded twice, so
+;;; it should be a call.  This isn't for code the blocks editor generates,
+;;; since the Companion can't eval the try-finally without compiling it.
+
+(define-syntax profiled
+  (syntax-rules ()
+    ((_ kind name expr)
+     (if (YailProfiler:isEnabled)
+         (let ((frame (YailProfiler:enter kind name)))
+           (try-finally
+            expr
+            (YailProfiler:exit frame)))
+         expr))))
+
+;;; Called by the form's dispatchEvent to run an event handler
+(define (call-event-handler handler component-name event-name args)
+  (profiled YailProfiler:EVENT (string-append component-name "." event-name)
+            (apply handler args)))
+
 ;;; There are three kinds of calls:
 
 ;;; call-component-method
@@ -871,18 +1010,39 @@
 ;;; values they will receive.
 
 
+;;; The name of a component's method (or property or event) as the blocks
+;;; editor shows it, for instance Sound1.Vibrate
+(define (qualified-block-name component-name member-name)
+  (string-append (symbol->string component-name) "." (symbol->string member-name)))
+
 (define (call-component-method component-name method-name arglist typelist)
   (let ((coerced-args (coerce-args method-name arglist typelist)))
     (let ((result
            (if (all-coercible? coerced-args)
-               (apply invoke
-                      `(,(lookup-in-current-form-environment component-name)
-                        ,method-name
-                        ,@coerced-args))
+               (profiled YailProfiler:METHOD (qualified-block-name component-name method-name)
+                         (invoke-component-method
+                          (lookup-in-current-form-environment component-name)
+                          method-name
+                          coerced-args))
                (generate-runtime-type-error method-name arglist))))
       ;; TODO(markf): this should probably be generalized but for now this is OK, I think
       (sanitize-component-data result))))
 
+;;; INVOKE-COMPONENT-METHOD
+;;; Call a method of a component (or of any Java object) with a list of
+;;; args that are already coerced.  This is what (apply invoke ...) does,
+;;; but the method is looked up once per class, method name and number of
+;;; args, instead of on every call (see MethodDispatch).  Calls the
+;;; dispatch cache can't make, for overloaded methods for instance, are
+;;; left to invoke.
+
+(define (invoke-component-method component method-name args)
+  (let ((result (com.google.appinventor.components.runtime.util.MethodDispatch:invoke
+                 component method-name args)))
+    (if (eq? result com.google.appinventor.components.runtime.util.MethodDispatch:NOT_DISPATCHED)
+        (apply invoke component method-name args)
+        result)))
+
 ;;; CALL-COMPONENT-TYPE-METHOD
 ;;; Call the component method for the given component object with the given list of args,
 ;;; coercing to the given types.
@@ -903,10 +1063,8 @@
                                      (list (get-display-representation possible-component)))
         (let ((result
                (if (all-coercible? coerced-args)
-                   (apply invoke
-                          `(,component-value
-                            ,method-name
-                            ,@coerced-args))
+                   (profiled YailProfiler:METHOD (qualified-block-name component-type method-name)
+                             (invoke-component-method component-value method-name coerced-args))
                    (generate-runtime-type-error method-name arglist))))
           ;; TODO(markf): this should probably be generalized but for now this is OK, I think
           (sanitize-component-data result)))))
@@ -956,7 +1114,7 @@
   (let ((coerced-args (coerce-args codeblocks-name arglist typelist)))
     (if (all-coercible? coerced-args)
         ;; note that we don't need to sanitize because this is coming from a Yail primitive
-        (apply prim coerced-args)
+        (profiled YailProfiler:PRIMITIVE codeblocks-name (apply prim coerced-args))
         (generate-runtime-type-error codeblocks-name arglist))))
 
 
@@ -1077,7 +1235,7 @@
   (let ((coerced-arg (coerce-arg property-value property-type)))
     (android-log (format #f "coerced property value was: ~A " coerced-arg))
     (if (all-coercible? (list coerced-arg))
-        (invoke comp prop-name coerced-arg)
+        (invoke-component-method comp prop-name (list coerced-arg))
         (generate-runtime-type-error prop-name (list property-value)))))
 
 
@@ -1134,19 +1292,47 @@
           (string-append "The arguments " (show-arglist-no-parens arglist)
                          " are the wrong number of arguments for " (get-display-representation procedure-name))
           (string-append "Wrong number of arguments for" (get-display-representation procedure-name))))
-        (else (map coerce-arg arglist typelist))))
+        (else (map (lambda (arg coercer) (coercer (sanitize-atomic arg)))
+                   arglist
+                   (coercion-plan typelist)))))
 
 (define (coerce-arg arg type)
-  (let ((arg (sanitize-atomic arg)))
-    (cond
-     ((equal? type 'number) (coerce-to-number arg))
-     ((equal? type 'text) (coerce-to-text arg))
-     ((equal? type 'boolean) (coerce-to-boolean arg))
-     ((equal? type 'list) (coerce-to-yail-list arg))
-     ((equal? type 'InstantInTime) (coerce-to-instant arg))
-     ((equal? type 'component) (coerce-to-component arg))
-     ((equal? type 'any) arg)
-     (else (coerce-to-component-of-type arg type)))))
+  ((type->coercer type) (sanitize-atomic arg)))
+
+;;; Coercion plans
+;;; The typelist of a call in the generated code is a quoted constant, so
+;;; rather than comparing each of its types against all the known types on
+;;; every call, the coercers for a typelist are looked up once and kept in
+;;; *coercion-plans*, keyed by the typelist itself.  A plan is the list of
+;;; the coercers, one per argument.  The REPL makes new typelists each time
+;;; code is sent to it, so the table is cleared when it gets big.
+
+(define *coercion-plans* :: <java.util.Map>
+  (java.util.Collections:synchronizedMap (java.util.IdentityHashMap)))
+
+(define *max-coercion-plans* 1000)
+
+(define (coercion-plan typelist)
+  (let ((plan (*coercion-plans*:get typelist)))
+    (if (eq? plan #!null)
+        (let ((plan (map type->coercer typelist)))
+          (when (>= (*coercion-plans*:size) *max-coercion-plans*)
+            (*coercion-plans*:clear))
+          (*coercion-plans*:put typelist plan)
+          plan)
+        plan)))
+
+;;; The procedure that coerces a (sanitized) arg to type
+(define (type->coercer type)
+  (cond
+   ((eq? type 'number) coerce-to-number)
+   ((eq? type 'text) coerce-to-text)
+   ((eq? type 'boolean) coerce-to-boolean)
+   ((eq? type 'list) coerce-to-yail-list)
+   ((eq? type 'InstantInTime) coerce-to-instant)
+   ((eq? type 'component) coerce-to-component)
+   ((eq? type 'any) (lambda (arg) arg))
+   (else (lambda (arg) (coerce-to-component-of-type arg type)))))
 
 ;;; We can coerce *the-null-value* to a string for printing in error messages
 ;;; but we don't consider it to be a Yail text for use in
@@ -1326,14 +1512,47 @@
 
 ;;; converting string to numbers
 
+;;; The numbers read from Java strings by padded-string->number
+(define *string-numbers* :: <java.util.Map>
+  (java.util.Collections:synchronizedMap (java.util.WeakHashMap)))
+
 ;;; This is just Kawa's string->number, except that we trim the
 ;;; string because codeblocks can often return leading and trailing
 ;;; whitespace, e.g., as a result of the string split operations.
 ;;; To use Java's trim procedure we need to convert s from a Kawa string
 ;;; to a Java string; that's what the :toString somehow accomplishes.
 ;;; This returns #f if the string cannot be converted to a number
+;;;
+;;; yail-equal? converts strings to numbers whenever they aren't equal?,
+;;; so this is called a lot, mostly with the same strings.  Strings that
+;;; can't be numbers are told apart without parsing them, and the numbers
+;;; of Java strings (which, unlike Kawa strings, can't change) are kept in
+;;; *string-numbers*, which doesn't keep the strings from being collected.
 (define (padded-string->number s)
-  (string->number (*:trim (s:toString))))
+  (cond ((not (may-be-number? s)) #f)
+        ((instance? s java.lang.String)
+         (let ((n (*string-numbers*:get s)))
+           (if (eq? n #!null)
+               (let ((n (string->number (*:trim (s:toString)))))
+                 (*string-numbers*:put s n)
+                 n)
+               n)))
+        (else (string->number (*:trim (s:toString))))))
+
+;;; Kawa only reads a number from a string that starts with a digit, a sign,
+;;; a decimal point or # (after the padding that is trimmed)
+(define (may-be-number? s :: java.lang.CharSequence)
+  (let ((length (s:length)))
+    (let loop ((i 0))
+      (and (< i length)
+           (let ((c :: char (s:charAt i)))
+             (if (char<=? c #\space)
+                 (loop (+ i 1))
+                 (or (java.lang.Character:isDigit c)
+                     (char=? c #\+)
+                     (char=? c #\-)
+                     (char=? c #\.)
+                     (char=? c #\#))))))))
 
 ;;; converting numbers to strings
 
@@ -1354,7 +1573,7 @@
         ;; Note that we could have used *format* inexact here, too, since YailNumberToString
         ;; checks for integers EXCEPT FOR the fact that the integer n might be a bignum, in which case
         ;; the conversion to a java double will produce a wrong answer
-        ((integer? n) (call-with-output-string (lambda (port) (display (exact n) port))))
+        ((integer? n) (number->string (exact n)))
         ;; if it's a rational then format it as a decimal
         ;; Note that Kawa rationals are still exact rationals -- they just print
         ;; as decimals.  That is, 7*(1/7) equals 1 exactly
@@ -1371,9 +1590,21 @@
          (yail-atomic-equal? x1 x2))
         ((or (not (pair? x1)) (not (pair? x2)))
          #f)
+        ((and (yail-list? x1) (yail-list? x2))
+         (yail-list-equal? x1 x2))
         (else (and (yail-equal? (car x1) (car x2))
          (yail-equal? (cdr x1) (cdr x2))))))
 
+;;; Two yail lists are compared item by item, which doesn't recurse down
+;;; their chains and is done at once if their lengths differ
+(define (yail-list-equal? l1 :: YailList l2 :: YailList)
+  (let ((n (l1:size)))
+    (and (= n (l2:size))
+         (let loop ((i 1))
+           (or (> i n)
+               (and (yail-equal? (l1:get i) (l2:get i))
+                    (loop (+ i 1))))))))
+
 (define (yail-atomic-equal? x1 x2)
   (cond
    ;; equal? covers the case where x1 and x2 are equal objects or equal strings.
@@ -1411,6 +1642,16 @@
 (define (yail-not-equal? x1 x2)
   (not (yail-equal? x1 x2)))
 
+;;; Returns the procedure that compares values to object the way
+;;; yail-equal? does.  That is equal? when object is an atom that isn't
+;;; a number and can't be read as one, since nothing else is read as a
+;;; number equal to it; searching a list for such a value then doesn't
+;;; read any of the list's items as numbers.
+(define (yail-equality-for object)
+  (if (or (pair? object) (as-number object))
+      yail-equal?
+      equal?))
+
 ;;;; We would simply map and/or to Kawa's and/or, except that we need to
 ;;;; check that the argument types are boolean.
 ;;;; The delayed args here are thunks
@@ -1886,8 +2127,10 @@ list, use the make-yail-list constructor with no arguments.
 
 
 ;; Implements the Blocks length operation
+;; The YailList keeps track of its items, see YailList.java, so
+;; this and the operations on items by number below don't walk the list.
 (define (yail-list-length yail-list)
-  (length (yail-list-contents yail-list)))
+  ((as YailList yail-list):size))
 
 ;; These are removed, to simplify the API to lists
 ;; ;; Implements the Blocks first operation
@@ -1911,10 +2154,11 @@ list, use the make-yail-list constructor with no arguments.
 ;; returns the 1-based index of the object in the list
 ;; returns 0 if object not in list
 (define (yail-list-index object yail-list)
-  (let loop ((i 1) (list (yail-list-contents yail-list)))
-    (cond ((null? list) 0)
-          ((yail-equal? object (car list)) i)
-          (else (loop (+ i 1) (cdr list))))))
+  (let ((same? (yail-equality-for object)))
+    (let loop ((i 1) (list (yail-list-contents yail-list)))
+      (cond ((null? list) 0)
+            ((same? object (car list)) i)
+            (else (loop (+ i 1) (cdr list)))))))
 
 ;; Implements the Blocks get list item operation
 (define (yail-list-get-item yail-list index)
@@ -1932,7 +2176,7 @@ list, use the make-yail-list constructor with no arguments.
                  len
                  (get-display-representation yail-list))
          "Select list item: List index too large")
-    (list-ref (yail-list-contents yail-list) (- index 1)))))
+    ((as YailList yail-list):get index))))
 
 
 ;; Implements the Blocks set list item operation
@@ -1951,7 +2195,7 @@ list, use the make-yail-list constructor with no arguments.
                  len
                  (get-display-representation yail-list))
          "List index too large")))
-  (set-car! (list-tail (yail-list-contents yail-list) (- index 1)) value))
+  ((as YailList yail-list):setItem index value))
 
 
 
@@ -1982,8 +2226,7 @@ list, use the make-yail-list constructor with no arguments.
                    len
                    (get-display-representation yail-list))
            "List index too large"))
-      (let ((pair-pointing-to-deletion (list-tail yail-list (- index2 1))))
-        (set-cdr! pair-pointing-to-deletion (cddr pair-pointing-to-deletion))))))
+      ((as YailList yail-list):removeItem index2))))
 
 
 ;; Implements the Blocks insert list item operation
@@ -2012,11 +2255,7 @@ list, use the make-yail-list constructor with no arguments.
                    (get-display-representation yail-list)
                    len+1)
            "List index too large"))
-      (let ((contents (yail-list-contents yail-list)))
-        (if (= index2 1)
-            (set-yail-list-contents! yail-list (cons item contents))
-            (let ((at-item (list-tail contents (- index2 2))))
-              (set-cdr! at-item (cons item (cdr at-item)))))))))
+      ((as YailList yail-list):insertItem index2 item))))
 
 ;; Extends list A by appending the elements of list B to it
 ;; Modifies list A
@@ -2026,14 +2265,7 @@ list, use the make-yail-list constructor with no arguments.
   ;; between the augmented list and the source of the added elements.
   ;; But like Python, we do a shallow copy, so that substructure is
   ;; shared.
-  (define (list-copy l)
-    (if (null? l)
-    '()
-    (cons (car l) (list-copy (cdr l)))))
-  ;; We have to operate on the yail-list itself, not the contents, because
-  ;; the contents might be empty
-  (set-cdr! (list-tail yail-list-A (length (yail-list-contents yail-list-A)))
-        (list-copy (yail-list-contents yail-list-B))))
+  ((as YailList yail-list-A):appendItems (as YailList yail-list-B)))
 
 
 ;; Extend list A by appending the items to it
@@ -2048,7 +2280,8 @@ list, use the make-yail-list constructor with no arguments.
 ;; Implements the blocks member? operation
 ;; This returns true or false (unlike Scheme's member primitive)
 (define (yail-list-member? object yail-list)
-  (let ((result (member object (yail-list-contents yail-list) yail-equal?)))
+  (let ((result (member object (yail-list-contents yail-list)
+                        (yail-equality-for object))))
     (if result #t #f)))
 
 
@@ -2159,6 +2392,22 @@ list, use the make-yail-list constructor with no arguments.
 (define (yail-alist-lookup key yail-list-of-pairs default)
   (android-log
    (format #f "List alist lookup key is  ~A and table is ~A" key yail-list-of-pairs))
+  (let ((index (alist-index yail-list-of-pairs))
+        (index-key (alist-index-key key)))
+    (if (and index index-key)
+        (let ((position ((as java.util.HashMap index):get index-key)))
+          (if (eq? position #!null)
+              default
+              (let ((pair (yail-list-contents
+                           ((as YailList yail-list-of-pairs):get (as int position)))))
+                ;; Keys that aren't yail-equal? can have the same index key,
+                ;; (NaN does), the scan sorts those out
+                (if (yail-equal? key (car pair))
+                    (cadr pair)
+                    (yail-alist-scan key yail-list-of-pairs default)))))
+        (yail-alist-scan key yail-list-of-pairs default))))
+
+(define (yail-alist-scan key yail-list-of-pairs default)
   (let loop ((pairs-to-check (yail-list-contents yail-list-of-pairs)))
     (cond ((null? pairs-to-check) default)
           ((not (pair-ok? (car pairs-to-check)))
@@ -2170,11 +2419,76 @@ list, use the make-yail-list constructor with no arguments.
            (cadr (yail-list-contents (car pairs-to-check))))
           (else (loop (cdr pairs-to-check))))))
 
-
-
 (define (pair-ok? candidate-pair)
   (and (yail-list? candidate-pair)
-       (= (length (yail-list-contents candidate-pair)) 2)))
+       (= (yail-list-length candidate-pair) 2)))
+
+;;; Lookup indexes
+;;; A list of pairs that is looked up in again, with no list having changed
+;;; since the previous lookup, gets a hash index from the keys of its pairs
+;;; to the position of the first pair with each key (see YailList for how
+;;; changes drop the index).  The index key of a value is such that
+;;; yail-equal? values have the same index key: numbers, and strings that
+;;; are numbers, become the double they are equal to, other strings become
+;;; Java strings, and booleans stay as they are.  Other atoms don't have an
+;;; index key, and a list with pairs whose keys are such atoms isn't
+;;; indexed.  Keys that are lists can't be yail-equal? to any of these, so
+;;; the pairs with such keys are just left out.
+
+(define *alist-scanned* (list 'scanned))
+(define *alist-not-indexable* (list 'not-indexable))
+
+;;; Returns the index of a list of pairs, or #f if it doesn't have one
+(define (alist-index yail-list)
+  (if (not (yail-list? yail-list))
+      #f
+      (let* ((yail-list :: YailList yail-list)
+             (index (yail-list:getLookupIndex)))
+        (cond ((eq? index #!null)
+               ;; The first lookup since some list changed scans the list
+               (yail-list:setLookupIndex *alist-scanned*)
+               #f)
+              ((eq? index *alist-scanned*)
+               (let ((made (make-alist-index yail-list)))
+                 (yail-list:setLookupIndex (or made *alist-not-indexable*))
+                 made))
+              ((eq? index *alist-not-indexable*) #f)
+              (else index)))))
+
+(define (make-alist-index yail-list :: YailList)
+  (let ((index (java.util.HashMap)))
+    (and (yail-list:tracksChanges)
+         (let loop ((pairs (yail-list-contents yail-list)) (position 1))
+           (if (null? pairs)
+               index
+               (let ((pair (car pairs)))
+                 (and (pair-ok? pair)
+                      ((as YailList pair):tracksChanges)
+                      (let ((key (car (yail-list-contents pair))))
+                        (if (or (yail-list? key) (null? key))
+                            (loop (cdr pairs) (+ position 1))
+                            (let ((index-key (alist-index-key key)))
+                              (and index-key
+                                   (begin
+                                     (if (not (index:containsKey index-key))
+                                         (index:put index-key position))
+                                     (loop (cdr pairs) (+ position 1))))))))))))))
+
+;;; Returns the index key of a value, or #f if it has none
+(define (alist-index-key x)
+  (cond ((number? x) (and (real? x) (number-index-key x)))
+        ((string? x)
+         (let ((n (padded-string->number x)))
+           (cond ((not n) (x:toString))
+                 ((real? n) (number-index-key n))
+                 (else #f))))
+        ((boolean? x) x)
+        (else #f)))
+
+;;; Adding 0.0 turns -0.0, which is = to 0, into 0.0
+(define (number-index-key n)
+  (let ((d :: double (+ 0.0 (exact->inexact n))))
+    (java.lang.Double:valueOf d)))
 
 
 
@@ -2188,11 +2502,6 @@ list, use the make-yail-list constructor with no arguments.
 ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
 
 
-(define (make-disjunct x)
-  (cond ((null? (cdr x)) (Pattern:quote (car x)))
-        (#t (string-append (Pattern:quote (car x)) (string-append "|" (make-disjunct (cdr x)))))))
-
-
 (define (array->list arr) (insert-yail-list-header (gnu.lists.LList:makeList arr 0)))
 
 (define (string-starts-at text piece)
@@ -2205,7 +2514,7 @@ list, use the make-yail-list constructor with no arguments.
 
 (define (string-split-at-first text at)
   (array->list
-   ((text:toString):split (Pattern:quote at) 2)))
+   (TextPrimitives:split (text:toString) (at:toString) 2)))
 
 (define (string-split-at-first-of-any text at)
   (if (null? (yail-list-contents at))
@@ -2213,11 +2522,11 @@ list, use the make-yail-list constructor with no arguments.
        "split at first of any: The list of places to split at is empty."
        "Invalid text operation")
       (array->list
-       ((text:toString):split (make-disjunct (yail-list-contents at)) 2))))
+       (TextPrimitives:splitAtAny (text:toString) (yail-list-contents at) 2))))
 
 (define (string-split text at)
   (array->list
-   ((text:toString):split (Pattern:quote at))))
+   (TextPrimitives:split (text:toString) (at:toString) 0)))
 
 (define (string-split-at-any text at)
   (if (null? (yail-list-contents at))
@@ -2225,11 +2534,11 @@ list, use the make-yail-list constructor with no arguments.
        "split at any: The list of places to split at is empty."
        "Invalid text operation")
       (array->list
-       ((text:toString):split (make-disjunct (yail-list-contents at)) -1))))
+       (TextPrimitives:splitAtAny (text:toString) (yail-list-contents at) -1))))
 
 (define (string-split-at-spaces text)
   (array->list
-   (((text:toString):trim):split "\\s+" -1)))
+   (TextPrimitives:splitAtSpaces (text:toString))))
 
 (define (string-substring wholestring start length)
   (let ((len (string-length wholestring)))
@@ -2253,25 +2562,13 @@ list, use the make-yail-list constructor with no arguments.
 ;;; It seems simpler for users to not use regexp patterns here, even though
 ;;; some people might want that feature.
 (define (string-replace-all text substring replacement)
-  ((text:toString):replaceAll (Pattern:quote (substring:toString)) (replacement:toString)))
+  (TextPrimitives:replaceAll (text:toString) (substring:toString) (replacement:toString)))
 
 (define (string-empty? text)
   (= 0 (string-length text)))
 
 (define (text-deobfuscate text confounder)
-  (let ((lc confounder))
-    (while (< (string-length lc) (string-length text))
-           (set! lc (string-append lc lc)))
-    (do ((i 0 (+ 1 i))
-         (acc (list))
-         (len (string-length text)))
-        ((>= i (string-length text)) (list->string (map integer->char (reverse acc))))
-      (let* ((c (char->integer (string-ref text i)))
-             (b (bitwise-and (bitwise-xor c (- len i)) 255))
-             (b2 (bitwise-and (bitwise-xor (bitwise-arithmetic-shift-right c 8) i) 255))
-             (b3 (bitwise-and (bitwise-ior (bitwise-arithmetic-shift-left b2 8) b) 255))
-             (b4 (bitwise-and (bitwise-xor b3 (char->integer (string-ref lc i))) 255)))
-        (set! acc (cons b4 acc))))))
+  (TextPrimitives:deobfuscate (text:toString) (confounder:toString)))
 
 ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
 ;;;; End of Text implementation
@@ -2568,7 +2865,11 @@ list, use the make-yail-list constructor with no arguments.
 ;; event handler definition.
 
 (define (set-this-form)
-  (set! *this-form* (SimpleForm:getActiveForm)))
+  (let ((form (SimpleForm:getActiveForm)))
+    (when (or (not (eq? form *this-form*))
+              (eq? *this-form-environment* #!null))
+      (set! *this-form* form)
+      (update-this-form-environments))))
 
 
 ;; For Testing
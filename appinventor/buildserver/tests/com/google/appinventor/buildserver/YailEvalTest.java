@@ -8,6 +8,7 @@ package com.google.appinventor.buildserver;
 
 import com.google.appinventor.common.testutils.TestUtils;
 import com.google.appinventor.components.runtime.errors.YailRuntimeError;
+import com.google.appinventor.components.runtime.util.YailProfiler;
 
 import gnu.math.DFloNum;
 import gnu.math.IntNum;
@@ -15,6 +16,12 @@ import junit.framework.Assert;
 import junit.framework.TestCase;
 import kawa.standard.Scheme;
 
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.FormatterClosedException;
+
 /**
  * Tests the evaluation of various YAIL code.
  *
@@ -111,6 +118,59 @@ public class YailEvalTest extends TestCase {
      assertTrue((Boolean) scheme.eval("(testTailRecursion)"));
    }
 
+   public void testGlobalVarSlots() throws Throwable {
+     assertTrue((Boolean) scheme.eval("(testGlobalVarSlots)"));
+   }
+
+   public void testComponentSlots() throws Throwable {
+     assertTrue((Boolean) scheme.eval("(testComponentSlots)"));
+   }
+
+  public void testProfiler() throws Throwable {
+    // Only procedures defined in the Companion report their calls
+    scheme.eval("(set! *this-is-the-repl* #t)");
+    try {
+      scheme.eval("(def (p$square x) "
+          + "(call-yail-primitive * (*list-for-runtime* x x) '(number number) \"*\"))");
+    } finally {
+      scheme.eval("(set! *this-is-the-repl* #f)");
+    }
+    scheme.eval("(def (p$twice x) (+ x x))");
+    assertEquals("9", scheme.eval("((get-var p$square) 3)").toString());
+    assertFalse(YailProfiler.toJson().contains("p$square"));
+    YailProfiler.setEnabled(true);
+    try {
+      assertEquals("16", scheme.eval("((get-var p$square) 4)").toString());
+      assertEquals("25", scheme.eval("((get-var p$square) 5)").toString());
+      assertEquals("10", scheme.eval("((get-var p$twice) 5)").toString());
+      // The handler's name only matters to the profile
+      scheme.eval("(call-event-handler (lambda () ((get-var p$square) 6)) \"Button1\" \"Click\" '())");
+    } finally {
+      YailProfiler.setEnabled(false);
+    }
+    JSONObject profile = new JSONObject(YailProfiler.toJson());
+    YailProfiler.reset();
+    assertFalse(profile.getBoolean("enabled"));
+    assertEquals(3, profiledCount(profile, "procedure", "p$square"));
+    assertEquals(0, profiledCount(profile, "procedure", "p$twice"));
+    assertEquals(3, profiledCount(profile, "primitive", "*"));
+    assertEquals(1, profiledCount(profile, "event", "Button1.Click"));
+  }
+
+  // Returns how many times the profile says a block ran
+  private static int profiledCount(JSONObject profile, String kind, String name)
+      throws JSONException {
+    JSONArray entries = profile.getJSONArray("entries");
+    for (int i = 0; i < entries.length(); i++) {
+      JSONObject entry = entries.getJSONObject(i);
+      if (entry.getString("kind").equals(kind) && entry.getString("name").equals(name)) {
+        assertTrue(entry.getLong("selfTime") <= entry.getLong("totalTime"));
+        return entry.getInt("count");
+      }
+    }
+    return 0;
+  }
+
    public void testLookupInPairs1() throws Throwable {
      assertTrue((Boolean) scheme.eval("(testLookupInPairs1)"));
    }
@@ -219,6 +279,15 @@ public class YailEvalTest extends TestCase {
     "(yail-equal? (list (list (list '()))) (list (list (list #f))))"));
     assertTrue((Boolean) scheme.eval(
     "(yail-equal? ((Integer 5):doubleValue) 5)"));
+    assertTrue((Boolean) scheme.eval(
+    "(yail-equal? \" 12 \" 12)"));
+    assertFalse((Boolean) scheme.eval(
+    "(yail-equal? \"apple\" \"1\")"));
+    assertTrue((Boolean) scheme.eval(
+    "(yail-equal? (make-yail-list \"a\" (make-yail-list 1 \"2\")) " +
+    " (make-yail-list \"a\" (make-yail-list \"1.0\" 2)))"));
+    assertFalse((Boolean) scheme.eval(
+    "(yail-equal? (make-yail-list 1 2) (make-yail-list 1 2 3))"));
   }
 
 
@@ -246,9 +315,33 @@ public class YailEvalTest extends TestCase {
     "(yail-list-member? \"1\" '(3 2 1))"));
     assertTrue((Boolean) scheme.eval(
     "(yail-list-member? 1 '(3 2 \"1\"))"));
+    assertTrue((Boolean) scheme.eval(
+    "(yail-list-member? \"00\" (make-yail-list \"a\" 0))"));
+    assertFalse((Boolean) scheme.eval(
+    "(yail-list-member? \"b\" (make-yail-list \"a\" (make-yail-list \"b\")))"));
+    assertEquals("2", scheme.eval(
+    "(yail-list-index \"b\" (make-yail-list \"a\" \"b\"))").toString());
+  }
+
+
+  public void testYailIsInListOfWordsComparesWithEqual() throws Throwable {
+    // Words that can't be numbers aren't read as numbers to compare them:
+    // the search uses plain equal?, and the items aren't parsed
+    assertEquals("(true false false true true)", scheme.eval("(list " +
+        "(eq? (yail-equality-for \"missing\") equal?) " +
+        "(eq? (yail-equality-for \" 00\") equal?) " +
+        "(eq? (yail-equality-for 0) equal?) " +
+        "(eq? (yail-equality-for \" 00\") yail-equal?) " +
+        "(eq? (yail-equality-for (make-yail-list \"a\")) yail-equal?))").toString());
+    assertEquals("(false false true true true true)", scheme.eval("(list " +
+        "(may-be-number? \"word\") " +
+        "(may-be-number? \"  \") " +
+        "(may-be-number? \" -1\") " +
+        "(may-be-number? \".5\") " +
+        "(may-be-number? \"#x10\") " +
+        "(may-be-number? \"00\"))").toString());
   }
 
-
   public void testYailWhile() throws Throwable {
     String schemeString = "(define theList (list)) (define foo 5) (while (< foo 10) " +
         "(set! theList (append theList (list foo))) (set! foo (+ foo 1))) theList";
@@ -873,6 +966,201 @@ public class YailEvalTest extends TestCase {
     assertEquals("runtime-error", scheme.eval(schemeInputString).toString());
   }
 
+  public void testListOperationsAfterTheChainChanged() throws Throwable {
+    // Changing the pairs of a list directly must not confuse the
+    // operations on items by number
+    String schemeInputString = "(begin " +
+        "(define list1 (make-yail-list 1 2 3 4 5))" +
+        "(yail-list-get-item list1 2)" +
+        "(set-cdr! (yail-list-contents list1) (cddr (yail-list-contents list1)))" +
+        "(yail-list-insert-item! list1 4 \"foo\")" +
+        "(yail-list-remove-item! list1 1)" +
+        "(yail-list-add-to-list! list1 6 7)" +
+        "(yail-list-set-item! list1 2.0 \"bar\")" +
+        "(make-yail-list list1 (yail-list-length list1) (yail-list-get-item list1 5))" +
+        ")";
+    assertEquals("((3 bar foo 5 6 7) 6 6)", scheme.eval(schemeInputString).toString());
+
+    schemeInputString = "(begin " +
+        "(define list1 (make-yail-list \"a\" \"b\"))" +
+        "(yail-list-append! list1 list1)" +
+        "(yail-list-remove-item! list1 4)" +
+        "(make-yail-list list1 (yail-list-length list1))" +
+        ")";
+    assertEquals("((a b a) 3)", scheme.eval(schemeInputString).toString());
+  }
+
+  // Builds a list of n items one at a time, then adds them up by number
+  private static final String SUM_BY_INDEX =
+      "(lambda (n) " +
+      "  (let ((list1 (make-yail-list))) " +
+      "    (do ((i 1 (+ i 1))) ((> i n)) (yail-list-add-to-list! list1 i)) " +
+      "    (let loop ((i 1) (total 0)) " +
+      "      (if (> i (yail-list-length list1)) " +
+      "          total " +
+      "          (loop (+ i 1) (+ total (yail-list-get-item list1 i)))))))";
+
+  public void testListIndexingOfLongList() throws Throwable {
+    // Getting items by number from a list built one item at a time, long
+    // enough that the list's index of its items is grown many times
+    for (int n : new int[] { 1, 2000, 16000 }) {
+      Object total = scheme.eval("(" + SUM_BY_INDEX + " " + n + ")");
+      assertEquals((long) n * (n + 1) / 2, ((IntNum) total).longValue());
+    }
+  }
+
+  public void testAndroidLogIsLazy() throws Throwable {
+    String schemeInputString = "(begin " +
+        "(define evaluated #f)" +
+        "(android-log (begin (set! evaluated #t) \"message\"))" +
+        "evaluated" +
+        ")";
+    assertEquals(Boolean.FALSE, scheme.eval(schemeInputString));
+  }
+
+  public void testTraceBuffer() throws Throwable {
+    String schemeInputString = "(begin " +
+        "(set-yail-trace-size! 2)" +
+        "(android-log \"a\")" +
+        "(android-log \"b\")" +
+        "(android-log (string-append \"c\" \"d\"))" +
+        "(yail-trace-messages)" +
+        ")";
+    assertEquals("(b cd)", scheme.eval(schemeInputString).toString());
+    schemeInputString = "(begin " +
+        "(set-yail-trace-size! 0)" +
+        "(android-log \"e\")" +
+        "(yail-trace-messages)" +
+        ")";
+    assertEquals("()", scheme.eval(schemeInputString).toString());
+  }
+
+  // Looks a key up in a table whose value can't be turned into a string:
+  // a closed Formatter throws if its toString is called. The lookup logs
+  // the table.
+  private static final String LOOKUP_UNPRINTABLE =
+      "(let ((formatter (java.util.Formatter))) " +
+      "  (formatter:close) " +
+      "  (eq? (yail-alist-lookup 1 (make-yail-list (make-yail-list 1 formatter)) #f) " +
+      "       formatter))";
+
+  public void testLoggingDoesNotFormatWhenOff() throws Throwable {
+    // Unless it is traced, the table isn't formatted for the log
+    assertEquals(Boolean.TRUE, scheme.eval(LOOKUP_UNPRINTABLE));
+    scheme.eval("(set-yail-trace-size! 1)");
+    try {
+      scheme.eval(LOOKUP_UNPRINTABLE);
+      fail("The table wasn't formatted for the trace");
+    } catch (FormatterClosedException e) {
+      // expected
+    } finally {
+      scheme.eval("(set-yail-trace-size! 0)");
+    }
+  }
+
+  public void testLookupInPairsAfterChanges() throws Throwable {
+    // The first lookup scans the list, the next ones use the index
+    String schemeInputString = "(let ((pairs (make-yail-list " +
+        "  (make-yail-list \"a\" 1) (make-yail-list 2 \"two\") " +
+        "  (make-yail-list \"b\" 3) (make-yail-list \"a\" 4)))) " +
+        "(list (list (yail-alist-lookup \"a\" pairs #f) " +
+        "      (yail-alist-lookup \"a\" pairs #f) " +
+        "      (yail-alist-lookup \"2.0\" pairs #f) " +
+        "      (yail-alist-lookup \" 2\" pairs #f) " +
+        "      (yail-alist-lookup \"c\" pairs 0)) " +
+        "      (list (begin (yail-list-set-item! (yail-list-get-item pairs 1) 1 \"z\") " +
+        "             (yail-alist-lookup \"a\" pairs #f)) " +
+        "      (yail-alist-lookup \"a\" pairs #f) " +
+        "      (begin (yail-list-remove-item! pairs 4) " +
+        "             (yail-alist-lookup \"a\" pairs 0)) " +
+        "      (yail-alist-lookup \"a\" pairs 0) " +
+        "      (begin (set-car! (yail-list-contents (yail-list-get-item pairs 3)) \"c\") " +
+        "             (yail-alist-lookup \"c\" pairs #f)) " +
+        "      (yail-alist-lookup \"c\" pairs #f))))";
+    assertEquals("((1 1 two two 0) (4 4 0 0 3 3))", scheme.eval(schemeInputString).toString());
+  }
+
+  public void testLookupInPairsUsesIndex() throws Throwable {
+    // After the first lookup scanned the list, the second one indexes every
+    // key, and later lookups find their pair through the index
+    String schemeInputString = "(let ((table (make-yail-list))) " +
+        "  (do ((i 0 (+ i 1))) ((= i 8000)) " +
+        "    (yail-list-add-to-list! table (make-yail-list i (* i i)))) " +
+        "  (yail-alist-lookup 0 table #f) " +
+        "  (yail-alist-lookup 0 table #f) " +
+        "  (list ((invoke table 'getLookupIndex):size) " +
+        "        (yail-alist-lookup 7999 table #f)))";
+    assertEquals("(8000 63984001)", scheme.eval(schemeInputString).toString());
+  }
+
+  public void testInvokeComponentMethod() throws Throwable {
+    String schemeInputString = "(let ((sb (java.lang.StringBuilder \"abc\"))) " +
+        "(invoke-component-method sb 'setLength (list 2))" +       // void, int parameter
+        "(invoke-component-method sb 'append (list \"de\"))" +     // overloaded
+        "(list (invoke-component-method sb 'length '()) " +
+        "      (string (invoke-component-method sb 'charAt (list 3))) " +
+        "      (invoke-component-method sb 'toString '())))";
+    assertEquals("(4 e abde)", scheme.eval(schemeInputString).toString());
+  }
+
+  // Calls the length method of a StringBuilder n times with call, and
+  // returns the sum of the lengths
+  private static final String CALL_LENGTH =
+      "(lambda (call n) " +
+      "  (let ((sb (java.lang.StringBuilder \"abc\"))) " +
+      "    (do ((i 0 (+ i 1)) " +
+      "         (total 0 (+ total (call sb 'length '())))) " +
+      "        ((= i n) total))))";
+
+  public void testCachedDispatchMatchesInvoke() throws Throwable {
+    // Repeated calls, after the first the method comes from the cache
+    String reflective = "(lambda (object name args) (apply invoke object name args))";
+    for (String call : new String[] { reflective, "invoke-component-method" }) {
+      Object total = scheme.eval("(" + CALL_LENGTH + " " + call + " 1000)");
+      assertEquals(3000, ((IntNum) total).intValue());
+    }
+  }
+
+  public void testCoercionPlans() throws Throwable {
+    String schemeInputString = "(coerce-args \"f\" (list \"1\" 2 \"x\" \"y\") " +
+        "'(number any text boolean))";
+    assertEquals("(1 2 x (non-coercible))", scheme.eval(schemeInputString).toString());
+    schemeInputString = "(let ((types '(number text))) " +
+        "(eq? (coercion-plan types) (coercion-plan types)))";
+    assertEquals(Boolean.TRUE, scheme.eval(schemeInputString));
+  }
+
+  // Sums 2i + 1 for i below n the way the generated code did before
+  // arguments that are numbers already were left alone
+  private static final String COERCED_SUM =
+      "(lambda (n) " +
+      "  (do ((i 0 (+ i 1)) " +
+      "       (total 0 (call-yail-primitive + (*list-for-runtime* total " +
+      "                  (call-yail-primitive + (*list-for-runtime* " +
+      "                    (call-yail-primitive * (*list-for-runtime* i 2) " +
+      "                      '(number number) \"*\") 1) '(number number) \"+\")) " +
+      "                  '(number number) \"+\"))) " +
+      "      ((= i n) total)))";
+
+  // The same sum, as it is generated now: the inner + only gets numbers
+  private static final String DIRECT_SUM =
+      "(lambda (n) " +
+      "  (do ((i 0 (+ i 1)) " +
+      "       (total 0 (call-yail-primitive + (*list-for-runtime* total " +
+      "                  (+ (call-yail-primitive * (*list-for-runtime* i 2) " +
+      "                       '(number number) \"*\") 1)) " +
+      "                  '(number number) \"+\"))) " +
+      "      ((= i n) total)))";
+
+  public void testArithmeticWithoutCoercion() throws Throwable {
+    // Leaving out the coercion of arguments that are numbers already
+    // doesn't change the result
+    for (String sum : new String[] { COERCED_SUM, DIRECT_SUM }) {
+      Object total = scheme.eval("(" + sum + " 1000)");
+      assertEquals(1000000L, ((IntNum) total).longValue());
+    }
+  }
+
   /* error conditions */
 
   public void testListGroupErrorConditions() throws Throwable {
@@ -984,6 +1272,20 @@ public class YailEvalTest extends TestCase {
     } catch (YailRuntimeError e) {
       // this is expected
     }
+
+    // Separators are taken literally, and tried in order at each place
+    assertEquals("(a b c)", scheme.eval("(string-split \"a.b.c\" \".\")").toString());
+    assertEquals("(a b c)", scheme.eval("(string-split \"a12b12c\" 12)").toString());
+    assertEquals("(a b c)", scheme.eval("(string-split \"abc\" \"\")").toString());
+    assertEquals("(<empty> <empty> c)",
+        scheme.eval("(clarify (string-split \"aaaac\" \"aa\"))").toString());
+    assertEquals("(a <empty> b)", scheme.eval(
+        "(clarify (string-split-at-any \"a+*b\" (make-yail-list \"*\" \"+\")))").toString());
+    assertEquals("(a *b)", scheme.eval(
+        "(string-split-at-any \"a+*b\" (make-yail-list \"+\" \"+*\"))").toString());
+    assertEquals("(<empty> b&c&)",
+        scheme.eval("(clarify (string-split-at-first \"&b&c&\" \"&\"))").toString());
+    assertEquals("(<empty>)", scheme.eval("(clarify (string-split-at-spaces \"  \"))").toString());
   }
 
   public void testStringSubstring() throws Throwable {
@@ -1037,6 +1339,23 @@ public class YailEvalTest extends TestCase {
     /* this tests that we've quoted the dot so it's not special as a regexp */
     assertEquals("12x34x56x", scheme.eval("(string-replace-all \"12.34.56.\" \".\" \"x\")")
         .toString());
+    assertEquals("xa", scheme.eval("(string-replace-all \"aaa\" \"aa\" \"x\")").toString());
+    assertEquals("abc", scheme.eval("(string-replace-all \"abc\" \"d\" \"x\")").toString());
+    assertEquals("-a-b-", scheme.eval("(string-replace-all \"ab\" \"\" \"-\")").toString());
+    assertEquals("1.5", scheme.eval("(string-replace-all \"1,5\" \",\" \".\")").toString());
+    // The replacement can refer to the match, as it could when this used replaceAll
+    assertEquals("a[.]b", scheme.eval("(string-replace-all \"a.b\" \".\" \"[$0]\")").toString());
+  }
+
+  public void testTextDeobfuscate() throws Throwable {
+    // Obfuscated in the blocks editor (see obfuscated_text in text.js)
+    assertEquals("Hello, World!", scheme.eval("(text-deobfuscate (list->string (map integer->char "
+        + "'(#x2e #x5a #x1e #x0d #x55 #x5d #x4c #x62 #x13 #x1d #x5c #x1f #x4b))) \"k3y\")")
+        .toString());
+    assertEquals("api-key-1234", scheme.eval("(text-deobfuscate (list->string (map integer->char "
+        + "'(#x0e #x14 #x0d #x42 #x0c #x17 #x11 #x4c #x50 #x43 #x52 #x5a))) \"confounder\")")
+        .toString());
+    assertEquals("", scheme.eval("(text-deobfuscate \"\" \"k3y\")").toString());
   }
 
   public void testStringIsEmpty() throws Throwable {
@@ -54,6 +54,35 @@
 )
 
 
+;; get-var and set-var! keep where the variable is in its slot, but see
+;; (and make) the same changes as the procedures that go by the name
+(define (testGlobalVarSlots)
+  (def slotted 1)
+  (let ((first (get-var slotted)))
+    (add-global-var-to-current-form-environment 'slotted 2)
+    (let ((second (get-var slotted)))
+      (set-var! slotted 3)
+      (let ((third (lookup-global-var-in-current-form-environment 'slotted)))
+        ;; After a reset the slot is filled from the new environment
+        (reset-current-form-environment)
+        (and (= first 1)
+             (= second 2)
+             (= third 3)
+             (eq? (get-var slotted) *the-null-value*))))))
+
+;; Components removed or renamed in the REPL aren't got from their slots
+(define (testComponentSlots)
+  (add-to-current-form-environment 'SlottedButton "first")
+  (let ((first (get-component SlottedButton)))
+    (rename-in-current-form-environment 'SlottedButton 'RenamedButton)
+    (let ((renamed (get-component RenamedButton))
+          (removed (get-component SlottedButton)))
+      (add-to-current-form-environment 'SlottedButton "second")
+      (and (equal? first "first")
+           (equal? renamed "first")
+           (eq? removed #f)
+           (equal? (get-component SlottedButton) "second")))))
+
 ;; test that we can use keys that are themselves lists
 (define (testLookupInPairs1)
   (let* ((key-k '(a b c))
@@ -208,6 +208,20 @@ public class AppInvHTTPD extends NanoHTTPD {
       res.addHeader("Access-Control-Allow-Methods", "POST,OPTIONS,GET,HEAD,PUT");
       res.addHeader("Allow", "POST,OPTIONS,GET,HEAD,PUT");
       return(res);
+    } else if (uri.equals("/_profile")) { // Turn the blocks profiler on or off, and fetch the profile
+      String enable = parms.getProperty("enable");
+      if (parms.getProperty("reset") != null) {
+        YailProfiler.reset();
+      }
+      if (enable != null) {
+        YailProfiler.setEnabled(enable.equals("true"));
+      }
+      Response res = new Response(HTTP_OK, MIME_JSON, YailProfiler.toJson());
+      res.addHeader("Access-Control-Allow-Origin", "*");
+      res.addHeader("Access-Control-Allow-Headers", "origin, content-type");
+      res.addHeader("Access-Control-Allow-Methods", "POST,OPTIONS,GET,HEAD,PUT");
+      res.addHeader("Allow", "POST,OPTIONS,GET,HEAD,PUT");
+      return(res);
     } else if (uri.equals("/_getversion")) {
       Response res;
       try {
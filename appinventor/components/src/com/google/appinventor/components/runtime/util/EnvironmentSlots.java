@@ -0,0 +1,139 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2026 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.components.runtime.util;
+
+import gnu.mapping.Environment;
+import gnu.mapping.Location;
+import gnu.mapping.Symbol;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Keeps where names are bound in a Kawa environment, by a number given
+ * to each name, so YAIL can get and set global variables and components
+ * without looking their names up.
+ *
+ * <p>When YAIL is compiled, get-var, set-var! and get-component (see
+ * runtime.scm) give the name they refer to a slot number with
+ * {@link #slotOf}, and pass the number along with the name. The first
+ * time a slot is used its name's {@link Location} in the environment is
+ * kept there, and later uses get and set the value at that location.
+ *
+ * <p>The environment is still where the values are, so the REPL and code
+ * that refers to names without slots see the same values. A slot is
+ * filled again when it was filled for another environment (another form,
+ * or the form after it was reset), for another name (from code compiled
+ * separately), or when the name has been removed from the environment.
+ *
+ * <p>Slot numbers are given to at most {@link #MAX_SLOTS} names. Later
+ * names get {@link #NO_SLOT}, and are looked up in the environment every
+ * time, as they would be without slots.
+ *
+ */
+public final class EnvironmentSlots {
+
+  /**
+   * The most names that are given slot numbers.
+   */
+  public static final int MAX_SLOTS = 4096;
+
+  /**
+   * The slot number of names that don't have a slot.
+   */
+  public static final int NO_SLOT = -1;
+
+  private static final Location[] NO_LOCATIONS = new Location[0];
+
+  private static final Map<Symbol, Integer> slots = new HashMap<Symbol, Integer>();
+
+  // Replaced as a whole when the environment changes or the slots grow,
+  // so the environment and the locations read together go together
+  private volatile Table table = new Table(null, NO_LOCATIONS);
+
+  /**
+   * Returns the slot number of a name, giving it the next one if it
+   * hasn't got one.
+   *
+   * @param name the name
+   * @return the name's slot number, or {@link #NO_SLOT} if all the slots
+   *         have been given out
+   */
+  public static int slotOf(Symbol name) {
+    synchronized (slots) {
+      Integer slot = slots.get(name);
+      if (slot == null) {
+        if (slots.size() >= MAX_SLOTS) {
+          return NO_SLOT;
+        }
+        slot = slots.size();
+        slots.put(name, slot);
+      }
+      return slot;
+    }
+  }
+
+  /**
+   * Returns the location of a name in an environment. The location is
+   * made if the name isn't bound yet, as {@link Environment#put} would.
+   *
+   * @param environment the environment
+   * @param name the name
+   * @param slot the slot number of the name
+   * @return where the name is bound in the environment
+   */
+  public Location locate(Environment environment, Symbol name, int slot) {
+    Table current = table;
+    if (current.environment == environment && slot >= 0 && slot < current.locations.length) {
+      Location location = current.locations[slot];
+      if (location != null && location.getKeySymbol() == name && location.isBound()) {
+        return location;
+      }
+    }
+    return fill(environment, name, slot);
+  }
+
+  /**
+   * Forgets the locations kept for the environment, which is being
+   * replaced.
+   */
+  public void clear() {
+    table = new Table(null, NO_LOCATIONS);
+  }
+
+  private Location fill(Environment environment, Symbol name, int slot) {
+    Location location = environment.getLocation(name);
+    if (slot >= 0 && slot < MAX_SLOTS) {
+      synchronized (this) {
+        Table current = table;
+        if (current.environment != environment) {
+          current = new Table(environment, new Location[slot + 1]);
+        } else if (slot >= current.locations.length) {
+          Location[] locations = new Location[
+              Math.min(MAX_SLOTS, Math.max(slot + 1, 2 * current.locations.length))];
+          System.arraycopy(current.locations, 0, locations, 0, current.locations.length);
+          current = new Table(environment, locations);
+        }
+        current.locations[slot] = location;
+        table = current;
+      }
+    }
+    return location;
+  }
+
+  /**
+   * The locations kept for an environment.
+   */
+  private static final class Table {
+    final Environment environment;
+    final Location[] locations;
+
+    Table(Environment environment, Location[] locations) {
+      this.environment = environment;
+      this.locations = locations;
+    }
+  }
+}
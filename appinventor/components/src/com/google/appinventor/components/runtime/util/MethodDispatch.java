@@ -0,0 +1,275 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2026 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.components.runtime.util;
+
+import gnu.lists.Pair;
+import gnu.mapping.Values;
+import gnu.text.Char;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Calls the methods of components (and of other Java objects) from YAIL.
+ *
+ * <p>Kawa's invoke looks a method up by name and matches the arguments
+ * against its overloads on every call. Component methods and property
+ * getters and setters aren't overloaded for a given number of arguments,
+ * so the method for a class, name and number of arguments is looked up
+ * once here, together with how each argument has to be converted, and
+ * kept for later calls.
+ *
+ * <p>When the method isn't known this way (there is none, or more than
+ * one with that number of arguments), or an argument doesn't convert,
+ * {@link #invoke} returns {@link #NOT_DISPATCHED} and the caller should
+ * fall back to Kawa's invoke, which does the overload resolution and
+ * reports the errors.
+ *
+ */
+public final class MethodDispatch {
+
+  /**
+   * Returned by {@link #invoke} when the call has to be made by Kawa.
+   */
+  public static final Object NOT_DISPATCHED = new Object();
+
+  // How an argument is converted to a parameter, or a result to a YAIL value
+  private static final int OBJECT = 0;
+  private static final int STRING = 1;
+  private static final int BOOLEAN = 2;
+  private static final int INT = 3;
+  private static final int LONG = 4;
+  private static final int FLOAT = 5;
+  private static final int DOUBLE = 6;
+  private static final int SHORT = 7;
+  private static final int BYTE = 8;
+  private static final int CHAR = 9;
+  private static final int VOID = 10;
+
+  private static final Invoker[] NO_INVOKERS = new Invoker[0];
+
+  // The invokers of a class's methods by name, indexed by the number of
+  // arguments. An entry is null when Kawa has to make the call.
+  private static final ConcurrentHashMap<Class<?>, ConcurrentHashMap<String, Invoker[]>> cache =
+      new ConcurrentHashMap<Class<?>, ConcurrentHashMap<String, Invoker[]>>();
+
+  private MethodDispatch() {
+  }
+
+  /**
+   * Calls a public method of target.
+   *
+   * @param target the object whose method is called
+   * @param methodName the name of the method, a symbol or a string
+   * @param args the arguments, a Scheme list
+   * @return the result of the method, converted as Kawa's invoke does,
+   *         or {@link #NOT_DISPATCHED}
+   * @throws Throwable whatever the method throws
+   */
+  public static Object invoke(Object target, Object methodName, Object args) throws Throwable {
+    Object[] values = toArray(args);
+    Invoker invoker = lookup(target.getClass(), methodName.toString(), values.length);
+    if (invoker == null || !invoker.convert(values)) {
+      return NOT_DISPATCHED;
+    }
+    return invoker.invoke(target, values);
+  }
+
+  private static Object[] toArray(Object args) {
+    int count = 0;
+    for (Object rest = args; rest instanceof Pair; rest = ((Pair) rest).getCdr()) {
+      count++;
+    }
+    Object[] values = new Object[count];
+    int i = 0;
+    for (Object rest = args; rest instanceof Pair; rest = ((Pair) rest).getCdr()) {
+      values[i++] = ((Pair) rest).getCar();
+    }
+    return values;
+  }
+
+  // The method of cls named methodName with arity parameters, or null if
+  // Kawa has to make the call
+  // VisibleForTesting
+  static Invoker lookup(Class<?> cls, String methodName, int arity) {
+    ConcurrentHashMap<String, Invoker[]> methods = cache.get(cls);
+    if (methods == null) {
+      methods = new ConcurrentHashMap<String, Invoker[]>();
+      ConcurrentHashMap<String, Invoker[]> other = cache.putIfAbsent(cls, methods);
+      if (other != null) {
+        methods = other;
+      }
+    }
+    Invoker[] byArity = methods.get(methodName);
+    if (byArity == null) {
+      byArity = resolve(cls, methodName);
+      methods.put(methodName, byArity);
+    }
+    return arity < byArity.length ? byArity[arity] : null;
+  }
+
+  // Finds the public methods of cls named methodName, and keeps those that
+  // are the only one with their number of parameters
+  private static Invoker[] resolve(Class<?> cls, String methodName) {
+    List<Method> found = new ArrayList<Method>();
+    int maxArity = -1;
+    for (Method method : cls.getMethods()) {
+      if (method.getName().equals(methodName)
+          && Modifier.isPublic(method.getDeclaringClass().getModifiers())
+          && !method.isVarArgs()) {
+        found.add(method);
+        maxArity = Math.max(maxArity, method.getParameterTypes().length);
+      }
+    }
+    if (found.isEmpty()) {
+      return NO_INVOKERS;
+    }
+    Invoker[] byArity = new Invoker[maxArity + 1];
+    boolean[] ambiguous = new boolean[maxArity + 1];
+    for (Method method : found) {
+      int arity = method.getParameterTypes().length;
+      if (byArity[arity] == null) {
+        byArity[arity] = new Invoker(method);
+      } else if (!Arrays.equals(byArity[arity].types, method.getParameterTypes())) {
+        ambiguous[arity] = true;
+      }
+    }
+    for (int arity = 0; arity <= maxArity; arity++) {
+      if (ambiguous[arity]) {
+        byArity[arity] = null;
+      }
+    }
+    return byArity;
+  }
+
+  private static int kindOf(Class<?> type) {
+    if (type == String.class) {
+      return STRING;
+    } else if (type == boolean.class) {
+      return BOOLEAN;
+    } else if (type == int.class) {
+      return INT;
+    } else if (type == long.class) {
+      return LONG;
+    } else if (type == float.class) {
+      return FLOAT;
+    } else if (type == double.class) {
+      return DOUBLE;
+    } else if (type == short.class) {
+      return SHORT;
+    } else if (type == byte.class) {
+      return BYTE;
+    } else if (type == char.class) {
+      return CHAR;
+    } else if (type == void.class) {
+      return VOID;
+    }
+    return OBJECT;
+  }
+
+  /**
+   * A method, with how its arguments and result are converted.
+   */
+  static final class Invoker {
+    final Method method;
+    final Class<?>[] types;
+    final int[] kinds;
+    final int resultKind;
+
+    Invoker(Method method) {
+      this.method = method;
+      types = method.getParameterTypes();
+      kinds = new int[types.length];
+      for (int i = 0; i < types.length; i++) {
+        kinds[i] = kindOf(types[i]);
+      }
+      resultKind = kindOf(method.getReturnType());
+    }
+
+    // Converts the arguments in place, returns false if one doesn't convert
+    boolean convert(Object[] args) {
+      for (int i = 0; i < args.length; i++) {
+        Object arg = args[i];
+        switch (kinds[i]) {
+          case STRING:
+            if (arg instanceof CharSequence) {
+              args[i] = arg.toString();
+            } else if (arg != null) {
+              return false;
+            }
+            break;
+          case BOOLEAN:
+            if (!(arg instanceof Boolean)) {
+              return false;
+            }
+            break;
+          case INT:
+          case LONG:
+          case FLOAT:
+          case DOUBLE:
+          case SHORT:
+          case BYTE:
+            if (!(arg instanceof Number)) {
+              return false;
+            }
+            args[i] = toPrimitive((Number) arg, kinds[i]);
+            break;
+          case CHAR:
+            if (arg instanceof Char) {
+              args[i] = Character.valueOf((char) ((Char) arg).intValue());
+            } else if (!(arg instanceof Character)) {
+              return false;
+            }
+            break;
+          default:
+            if (arg != null && !types[i].isInstance(arg)) {
+              return false;
+            }
+        }
+      }
+      return true;
+    }
+
+    Object invoke(Object target, Object[] args) throws Throwable {
+      Object result;
+      try {
+        result = method.invoke(target, args);
+      } catch (InvocationTargetException e) {
+        throw e.getCause();
+      }
+      switch (resultKind) {
+        case VOID:
+          return Values.empty;
+        case CHAR:
+          return Char.make(((Character) result).charValue());
+        default:
+          return result;
+      }
+    }
+
+    private static Object toPrimitive(Number number, int kind) {
+      switch (kind) {
+        case INT:
+          return number instanceof Integer ? number : Integer.valueOf(number.intValue());
+        case LONG:
+          return number instanceof Long ? number : Long.valueOf(number.longValue());
+        case FLOAT:
+          return number instanceof Float ? number : Float.valueOf(number.floatValue());
+        case DOUBLE:
+          return number instanceof Double ? number : Double.valueOf(number.doubleValue());
+        case SHORT:
+          return Short.valueOf(number.shortValue());
+        default:
+          return Byte.valueOf(number.byteValue());
+      }
+    }
+  }
+}
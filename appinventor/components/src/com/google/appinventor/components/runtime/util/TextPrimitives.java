@@ -0,0 +1,180 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.components.runtime.util;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * The text primitives of YAIL (see runtime.scm) that are called in loops.
+ *
+ * <p>The split and replace blocks take their separators literally. They
+ * used to quote them into a regular expression that was compiled again
+ * on every call. Here a single separator is searched for with
+ * {@link String#indexOf}, and the patterns that are still needed (for
+ * several separators, or replacements that use {@code $} or {@code \})
+ * are compiled once and kept. The results are the same as those of
+ * {@link String#split} and {@link String#replaceAll} with the quoted
+ * patterns.
+ *
+ */
+public final class TextPrimitives {
+
+  // The most patterns kept, the least recently used is dropped
+  private static final int MAX_PATTERNS = 32;
+
+  private static final Pattern SPACES = Pattern.compile("\\s+");
+
+  private static final Map<String, Pattern> patterns =
+      new LinkedHashMap<String, Pattern>(MAX_PATTERNS, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Pattern> eldest) {
+          return size() > MAX_PATTERNS;
+        }
+      };
+
+  private TextPrimitives() {
+  }
+
+  /**
+   * Splits text at a separator, as
+   * {@code text.split(Pattern.quote(separator), limit)} does.
+   *
+   * @param text the text to split
+   * @param separator the separator, taken literally
+   * @param limit as for {@link String#split(String, int)}
+   * @return the pieces of text
+   */
+  public static String[] split(String text, String separator, int limit) {
+    if (separator.length() == 0) {
+      // The empty pattern's matches at the start differ between versions
+      // of Java, leave them to it
+      return compile(Pattern.quote(separator)).split(text, limit);
+    }
+    List<String> pieces = new ArrayList<String>();
+    int start = 0;
+    int index;
+    while ((limit <= 0 || pieces.size() < limit - 1)
+        && (index = text.indexOf(separator, start)) >= 0) {
+      pieces.add(text.substring(start, index));
+      start = index + separator.length();
+    }
+    if (pieces.isEmpty()) {
+      return new String[] { text };
+    }
+    pieces.add(text.substring(start));
+    int size = pieces.size();
+    if (limit == 0) {
+      while (size > 0 && pieces.get(size - 1).length() == 0) {
+        size--;
+      }
+    }
+    return pieces.subList(0, size).toArray(new String[size]);
+  }
+
+  /**
+   * Splits text at any of several separators, trying them in order at
+   * each place in the text, as {@link String#split(String, int)} does with
+   * the quoted separators joined by {@code |}.
+   *
+   * @param text the text to split
+   * @param separators the separators, taken literally
+   * @param limit as for {@link String#split(String, int)}
+   * @return the pieces of text
+   */
+  public static String[] splitAtAny(String text, List<?> separators, int limit) {
+    StringBuilder disjunction = new StringBuilder();
+    for (Object separator : separators) {
+      if (disjunction.length() > 0) {
+        disjunction.append('|');
+      }
+      disjunction.append(Pattern.quote(String.valueOf(separator)));
+    }
+    return compile(disjunction.toString()).split(text, limit);
+  }
+
+  /**
+   * Splits text, with the whitespace at its ends removed, at runs of
+   * whitespace.
+   *
+   * @param text the text to split
+   * @return the pieces of text
+   */
+  public static String[] splitAtSpaces(String text) {
+    return SPACES.split(text.trim(), -1);
+  }
+
+  /**
+   * Replaces all occurrences of a piece of text, as
+   * {@code text.replaceAll(Pattern.quote(piece), replacement)} does.
+   *
+   * @param text the text to replace in
+   * @param piece the text to replace, taken literally
+   * @param replacement what to replace it with, which may refer to the
+   *        match with {@code $0} as for {@link java.util.regex.Matcher#replaceAll}
+   * @return the text with the replacements
+   */
+  public static String replaceAll(String text, String piece, String replacement) {
+    if (piece.length() == 0
+        || replacement.indexOf('$') >= 0 || replacement.indexOf('\\') >= 0) {
+      return compile(Pattern.quote(piece)).matcher(text).replaceAll(replacement);
+    }
+    int index = text.indexOf(piece);
+    if (index < 0) {
+      return text;
+    }
+    StringBuilder result = new StringBuilder(text.length());
+    int start = 0;
+    do {
+      result.append(text, start, index).append(replacement);
+      start = index + piece.length();
+      index = text.indexOf(piece, start);
+    } while (index >= 0);
+    return result.append(text, start, text.length()).toString();
+  }
+
+  /**
+   * Reverses the obfuscation of text done by the blocks editor for the
+   * obfuscated text block.
+   *
+   * @param text the obfuscated text
+   * @param confounder the confounder it was obfuscated with, repeated as
+   *        often as needed to be as long as the text. An empty confounder is
+   *        taken as a NUL character.
+   * @return the original text
+   */
+  public static String deobfuscate(String text, String confounder) {
+    if (confounder.isEmpty()) {
+      // The blocks editor always makes one, but nothing stops YAIL from
+      // passing "", which used to loop forever doubling it
+      confounder = "\0";
+    }
+    int length = text.length();
+    char[] result = new char[length];
+    for (int i = 0; i < length; i++) {
+      int c = text.charAt(i);
+      int b = (c ^ (length - i)) & 0xFF;
+      int b2 = ((c >> 8) ^ i) & 0xFF;
+      int b3 = ((b2 << 8) | b) & 0xFF;
+      result[i] = (char) ((b3 ^ confounder.charAt(i % confounder.length())) & 0xFF);
+    }
+    return new String(result);
+  }
+
+  private static Pattern compile(String regex) {
+    synchronized (patterns) {
+      Pattern pattern = patterns.get(regex);
+      if (pattern == null) {
+        pattern = Pattern.compile(regex);
+        patterns.put(regex, pattern);
+      }
+      return pattern;
+    }
+  }
+}
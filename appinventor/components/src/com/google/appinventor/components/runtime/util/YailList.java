@@ -15,6 +15,7 @@ import org.json.JSONException;
 
 import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
 import android.util.Log;
 
@@ -23,11 +24,88 @@ import android.util.Log;
  * by the Kawa framework. YailList is the main list primitive used
  * by App Inventor components.
  *
+ * <p>The items of the list are a chain of pairs after the header, as
+ * in any Kawa list, so Scheme code can walk them. The list also keeps
+ * an array of the pairs of the chain with their number, so that
+ * getting, replacing, inserting and removing an item by number and
+ * taking the length don't walk the chain. The YAIL list primitives in
+ * runtime.scm use the methods of this class for that. Changing the
+ * chain in any other way (set-cdr! on a pair of the list, say) makes
+ * the list drop the array, which is rebuilt the next time it is needed.
+ *
+ * <p>YAIL primitives can also attach a lookup index to a list (see
+ * yail-alist-lookup in runtime.scm). An index of a list of pairs
+ * depends on the pairs as well as on the list, so changing the items
+ * of any YailList drops the lookup indexes of all of them.
+ *
  */
 public class YailList extends Pair {
 
   private static final String LOG_TAG = "YailList";
 
+  // The pairs of the chain of items. The array and the number of items
+  // in it are cleared when the chain is changed other than through this
+  // class, and rebuilt when next needed.
+  private transient Cell[] cells;
+  private transient int length;
+
+  // Changed whenever the items of some YailList change. An index of a
+  // list of pairs depends on the items of those pairs, so this is kept
+  // for all lists rather than for each. It is atomic because lists may
+  // be changed from more than one thread, and a lost increment would
+  // leave an index in use that is out of date.
+  private static final AtomicLong version = new AtomicLong();
+
+  // The lookup index attached to the list, and the version it is for
+  private transient Object lookupIndex;
+  private transient long lookupIndexVersion;
+
+  /**
+   * A pair of the chain of items of a YailList. Changing its cdr other
+   * than through the list makes the list drop its array of pairs.
+   */
+  private static final class Cell extends Pair {
+    private transient YailList owner;
+
+    // For deserialization, the list adopts the pair when it next needs it
+    public Cell() {
+    }
+
+    Cell(YailList owner, Object car, Object cdr) {
+      super(car, cdr);
+      this.owner = owner;
+    }
+
+    // Links the pair to the next one, for the owner
+    void link(Object next) {
+      cdr = next;
+    }
+
+    @Override
+    public void setCar(Object car) {
+      super.setCar(car);
+      version.incrementAndGet();
+    }
+
+    @Override
+    public void setCdr(Object cdr) {
+      super.setCdr(cdr);
+      if (owner != null) {
+        owner.cells = null;
+      }
+      version.incrementAndGet();
+    }
+
+    @Override
+    public void setCdrBackdoor(Object cdr) {
+      super.setCdrBackdoor(cdr);
+      if (owner != null) {
+        owner.cells = null;
+      }
+      version.incrementAndGet();
+    }
+  }
+
   // Component writers take note!
   // If you want to pass back a list to the blocks language, the
   // straightforward way to do this is simply to pass
@@ -45,8 +123,9 @@ public class YailList extends Pair {
     super(YailConstants.YAIL_HEADER, LList.Empty);
   }
 
-  private YailList(Object cdrval) {
-    super(YailConstants.YAIL_HEADER, cdrval);
+  private YailList(Object[] objects, int count) {
+    super(YailConstants.YAIL_HEADER, LList.Empty);
+    append(objects, count);
   }
 
   /**
@@ -60,24 +139,23 @@ public class YailList extends Pair {
    * Create a YailList from an array.
    */
   public static YailList makeList(Object[] objects) {
-    LList newCdr = Pair.makeList(objects, 0);
-    return new YailList(newCdr);
+    return new YailList(objects, objects.length);
   }
 
   /**
    * Create a YailList from a List.
    */
   public static YailList makeList(List vals) {
-    LList newCdr = Pair.makeList(vals);
-    return new YailList(newCdr);
+    Object[] objects = vals.toArray();
+    return new YailList(objects, objects.length);
   }
 
   /**
    * Create a YailList from a Collection.
    */
   public static YailList makeList(Collection vals) {
-    LList newCdr = Pair.makeList(vals.toArray(), 0);
-    return new YailList(newCdr);
+    Object[] objects = vals.toArray();
+    return new YailList(objects, objects.length);
   }
 
   /**
@@ -85,7 +163,13 @@ public class YailList extends Pair {
    */
   @Override
   public Object[] toArray() {
-    if (cdr instanceof Pair) {
+    if (indexed()) {
+      Object[] objects = new Object[length];
+      for (int i = 0; i < length; i++) {
+        objects[i] = cells[i].getCar();
+      }
+      return objects;
+    } else if (cdr instanceof Pair) {
       return ((Pair) cdr).toArray();
     } else if (cdr instanceof LList) {
       return ((LList) cdr).toArray();
@@ -156,7 +240,104 @@ public class YailList extends Pair {
    */
   @Override
   public int size() {
-    return super.size() - 1;
+    return indexed() ? length : super.size() - 1;
+  }
+
+  /**
+   * Return the Object at the given index. Index 0 is the list header,
+   * the items are numbered from 1.
+   */
+  @Override
+  public Object get(int index) {
+    if (index == 0) {
+      return car;
+    }
+    return cellAt(index).getCar();
+  }
+
+  /**
+   * Replace the item at the given index, from 1.
+   *
+   * @throws IndexOutOfBoundsException if there is no such item
+   */
+  public void setItem(int index, Object value) {
+    cellAt(index).setCar(value);
+    version.incrementAndGet();
+  }
+
+  /**
+   * Insert an item so that it is at the given index, from 1 through the
+   * size of the list plus 1.
+   *
+   * @throws IndexOutOfBoundsException if the index is out of that range
+   */
+  public void insertItem(int index, Object item) {
+    Pair previous = (index == 1) ? this : cellAt(index - 1);
+    version.incrementAndGet();
+    if (!indexed()) {
+      previous.setCdr(new Cell(this, item, previous.getCdr()));
+      return;
+    }
+    ensureCapacity(length + 1);
+    Cell cell = new Cell(this, item, previous.getCdr());
+    link(previous, cell);
+    System.arraycopy(cells, index - 1, cells, index, length - index + 1);
+    cells[index - 1] = cell;
+    length++;
+  }
+
+  /**
+   * Remove the item at the given index, from 1.
+   *
+   * @throws IndexOutOfBoundsException if there is no such item
+   */
+  public void removeItem(int index) {
+    Pair removed = cellAt(index);
+    Pair previous = (index == 1) ? this : cellAt(index - 1);
+    version.incrementAndGet();
+    if (!indexed()) {
+      previous.setCdr(removed.getCdr());
+      return;
+    }
+    link(previous, removed.getCdr());
+    System.arraycopy(cells, index, cells, index - 1, length - index);
+    cells[--length] = null;
+  }
+
+  /**
+   * Add the items of another list at the end of this one. The items
+   * themselves are shared, not copied.
+   */
+  public void appendItems(YailList items) {
+    // Copy the items first, items may be this list
+    Object[] objects = items.toArray();
+    append(objects, objects.length);
+    version.incrementAndGet();
+  }
+
+  /**
+   * Return the lookup index attached to this list, or null if there is
+   * none or the items of some YailList changed since it was attached.
+   */
+  public Object getLookupIndex() {
+    return lookupIndexVersion == version.get() ? lookupIndex : null;
+  }
+
+  /**
+   * Return whether every change to the items of this list is seen, so
+   * that a lookup index can be attached to it. That is the case unless
+   * its chain has pairs that weren't made by a YailList.
+   */
+  public boolean tracksChanges() {
+    return indexed();
+  }
+
+  /**
+   * Attach a lookup index to this list, replacing any other.
+   */
+  public void setLookupIndex(Object index) {
+    lookupIndex = index;
+    lookupIndexVersion = version.get();
   }
 
   /**
@@ -173,6 +354,132 @@ public class YailList extends Pair {
     }
   }
 
+  /**
+   * Return the pair holding the item at the given index, from 1.
+   */
+  private Pair cellAt(int index) {
+    if (index < 1) {
+      throw new IndexOutOfBoundsException("Index " + index + " of a YailList");
+    }
+    if (indexed()) {
+      if (index > length) {
+        throw new IndexOutOfBoundsException("Index " + index + " of a YailList of size "
+            + length);
+      }
+      return cells[index - 1];
+    }
+    Object pair = cdr;
+    for (int i = 1; i < index && pair instanceof Pair; i++) {
+      pair = ((Pair) pair).getCdr();
+    }
+    if (!(pair instanceof Pair)) {
+      throw new IndexOutOfBoundsException("Index " + index + " of a YailList");
+    }
+    return (Pair) pair;
+  }
+
+  /**
+   * Add items at the end of the list.
+   */
+  private void append(Object[] objects, int count) {
+    if (count == 0) {
+      return;
+    }
+    Object next = LList.Empty;
+    Cell[] added = new Cell[count];
+    for (int i = count - 1; i >= 0; i--) {
+      added[i] = new Cell(this, objects[i], next);
+      next = added[i];
+    }
+    if (!indexed()) {
+      // Walk to the end of the chain
+      Pair last = this;
+      while (last.getCdr() instanceof Pair) {
+        last = (Pair) last.getCdr();
+      }
+      last.setCdr(next);
+      return;
+    }
+    link(length == 0 ? this : cells[length - 1], next);
+    ensureCapacity(length + count);
+    System.arraycopy(added, 0, cells, length, count);
+    length += count;
+  }
+
+  /**
+   * Make a pair of the list point to the next one, keeping the array.
+   */
+  private void link(Pair previous, Object next) {
+    if (previous == this) {
+      cdr = next;
+    } else {
+      ((Cell) previous).link(next);
+    }
+  }
+
+  private void ensureCapacity(int capacity) {
+    if (cells.length < capacity) {
+      cells = grow(cells, Math.max(capacity, cells.length * 2));
+    }
+  }
+
+  // Arrays.copyOf isn't available on all the Android versions we run on
+  private static Cell[] grow(Cell[] array, int capacity) {
+    Cell[] grown = new Cell[capacity];
+    System.arraycopy(array, 0, grown, 0, array.length);
+    return grown;
+  }
+
+  /**
+   * Make sure the array of pairs is up to date, rebuilding it if the
+   * chain was changed other than through this class.
+   *
+   * @return false if the chain has pairs this list can't keep track of
+   *         (pairs that weren't made by it), and the array can't be used
+   */
+  private boolean indexed() {
+    if (cells != null) {
+      return true;
+    }
+    Cell[] rebuilt = new Cell[8];
+    int count = 0;
+    Object pair = cdr;
+    while (pair instanceof Cell) {
+      Cell cell = (Cell) pair;
+      if (cell.owner != null && cell.owner != this) {
+        return false;
+      }
+      if (count == rebuilt.length) {
+        rebuilt = grow(rebuilt, count * 2);
+      }
+      rebuilt[count++] = cell;
+      pair = cell.getCdr();
+    }
+    if (pair != LList.Empty) {
+      return false;
+    }
+    for (int i = 0; i < count; i++) {
+      rebuilt[i].owner = this;
+    }
+    cells = rebuilt;
+    length = count;
+    return true;
+  }
+
+  @Override
+  public void setCdr(Object cdr) {
+    super.setCdr(cdr);
+    cells = null;
+    version.incrementAndGet();
+  }
+
+  @Override
+  public void setCdrBackdoor(Object cdr) {
+    super.setCdrBackdoor(cdr);
+    cells = null;
+    version.incrementAndGet();
+  }
+
   /**
    * Return the String at the given index.
    */
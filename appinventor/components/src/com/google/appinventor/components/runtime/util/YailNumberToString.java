@@ -6,16 +6,24 @@
 
 package com.google.appinventor.components.runtime.util;
 
-import android.util.Log;
-
-
-import java.text.*;
-import java.util.Locale;
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.math.RoundingMode;
 
 /**
  * Convert inexact numbers to strings for printing in App Inventor.
  * Kawa's default shows too many decimal places.
  *
+ * <p>Numbers are shown as DecimalFormat shows them with the patterns
+ * "#####0.0####" (between 10^-6 and 10^6) and "0.####E0" (otherwise),
+ * rounding the exact value of the double half to even, but without a
+ * shared DecimalFormat: those aren't thread-safe, and make several
+ * objects for each number. The digits are worked out with long
+ * arithmetic into a small char array, except for magnitudes below 10^-6,
+ * which are rare enough to be rounded with BigDecimal. NaN is always shown
+ * as "NaN", where DecimalFormat shows the NaN of its symbols (U+FFFD on
+ * older JDKs).
+ *
  * @author halabelson@google.com (Hal Abelson)
  */
 public final class YailNumberToString {
@@ -27,31 +35,36 @@ public final class YailNumberToString {
   // format magnitudes smaller than SMALLBOUND in scientific notation
   private static final double SMALLBOUND = 1.e-6;
 
-
-  // TODO(halabelson): The Java documentation warns that formatters are
-  // not thread-safe.  Is there any way that this can bite us?
-  // format for decimal notation
-  private static final String decPattern = "#####0.0####";
-  // format for scientific notation
-  private static final String sciPattern = "0.####E0";
-
   // TODO(hal): We are making the decimal separator be a period, regardless of
   // the locale of the phone.   We need to think about how to allow comma as decimal separator,
   // which will require updating number parsing and other places that transform numbers to strings,
   // such as FormatAsDecimal
 
-  static Locale locale = Locale.US;
-  static DecimalFormatSymbols symbols = new DecimalFormatSymbols(locale);
+  // The most digits after the decimal point in decimal notation
+  private static final int DECIMAL_PLACES = 5;
+  private static final long DECIMAL_SCALE = 100000L;  // 10^DECIMAL_PLACES
 
-  static DecimalFormat decimalFormat = new DecimalFormat(decPattern, symbols);
-  static DecimalFormat sciFormat = new DecimalFormat(sciPattern, symbols);
+  // The most significant digits of the mantissa in scientific notation
+  private static final int MANTISSA_DIGITS = 5;
+  private static final long MANTISSA_SCALE = 10000L;  // 10^(MANTISSA_DIGITS - 1)
 
+  private static final MathContext MANTISSA_CONTEXT =
+      new MathContext(MANTISSA_DIGITS, RoundingMode.HALF_EVEN);
 
-  // TODO(halabelson): DecimalFormat scientific notation apparently does not provide a
-  // way to specify the maximum number of digits in the mantissa. One consequence is that this
-  // formatting method, when given floats of very large magnitude, will produce too many
-  // places in the mantissa.  Consider post-processing the result of
-  // DecimalFormat to remove these extra digits.
+  // A sign, 7 digits, a decimal point and 5 decimal places, or a sign,
+  // 5 digits, a decimal point, E, and a signed exponent of up to 3 digits
+  private static final int MAX_LENGTH = 16;
+
+  private static final long[] POWERS_OF_TEN = new long[19];
+  static {
+    POWERS_OF_TEN[0] = 1;
+    for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+      POWERS_OF_TEN[i] = 10 * POWERS_OF_TEN[i - 1];
+    }
+  }
+
+  private YailNumberToString() {
+  }
 
   // This implementation assumes that Kawa inexact numbers are passed to this routine
   // as doubles.
@@ -59,13 +72,156 @@ public final class YailNumberToString {
     // We will print integer values without a decimal point.
     if (number == Math.rint(number)) {
       return String.valueOf((int) number);
+    } else if (Double.isNaN(number)) {
+      return "NaN";
+    }
+    char[] chars = new char[MAX_LENGTH];
+    int length = 0;
+    if (number < 0) {
+      chars[length++] = '-';
+    }
+    double mag = Math.abs(number);
+    if (mag < BIGBOUND && mag > SMALLBOUND) {
+      length = formatDecimal(mag, chars, length);
+    } else if (mag >= BIGBOUND) {
+      length = formatLarge(mag, chars, length);
     } else {
-      double mag = Math.abs(number);
-      if (mag < BIGBOUND && mag > SMALLBOUND) {
-        return decimalFormat.format(number);
+      length = formatSmall(mag, chars, length);
+    }
+    return new String(chars, 0, length);
+  }
+
+  // Formats mag, which isn't a whole number, between SMALLBOUND and
+  // BIGBOUND, rounded to DECIMAL_PLACES
+  private static int formatDecimal(double mag, char[] chars, int length) {
+    // mag is m * 2^-shift exactly, with a 53 bit m. Since mag is less than
+    // 2^20 and more than 2^-20, and not whole, shift is between 33 and 73.
+    long bits = Double.doubleToRawLongBits(mag);
+    long m = (bits & 0xFFFFFFFFFFFFFL) | 0x10000000000000L;
+    int shift = 1075 - (int) (bits >>> 52);
+
+    // m * DECIMAL_SCALE, as the 128 bit number high:low
+    long a = (m & 0xFFFFFFFFL) * DECIMAL_SCALE;
+    long b = (m >>> 32) * DECIMAL_SCALE;
+    long low = (b << 32) + a;
+    long high = (b >>> 32) + (unsignedLess(low, a) ? 1 : 0);
+
+    // Divide by 2^shift, and round the quotient half to even
+    long quotient;
+    int compareToHalf;
+    if (shift < 64) {
+      quotient = (low >>> shift) | (high << (64 - shift));
+      long remainder = low & ((1L << shift) - 1);
+      long half = 1L << (shift - 1);
+      compareToHalf = remainder < half ? -1 : (remainder == half ? 0 : 1);
+    } else {
+      quotient = high >>> (shift - 64);
+      long remainderHigh = high & ((1L << (shift - 64)) - 1);
+      if (shift == 64) {
+        compareToHalf = unsignedLess(low, Long.MIN_VALUE) ? -1 : (low == Long.MIN_VALUE ? 0 : 1);
       } else {
-        return sciFormat.format(number);
+        long halfHigh = 1L << (shift - 65);
+        compareToHalf = remainderHigh < halfHigh ? -1
+            : (remainderHigh > halfHigh || low != 0 ? 1 : 0);
       }
     }
+    if (compareToHalf > 0 || (compareToHalf == 0 && (quotient & 1) != 0)) {
+      quotient++;
+    }
+
+    length = appendDigits(quotient / DECIMAL_SCALE, chars, length);
+    chars[length++] = '.';
+    long fraction = quotient % DECIMAL_SCALE;
+    int places = DECIMAL_PLACES;
+    while (places > 1 && fraction % 10 == 0) {
+      fraction /= 10;
+      places--;
+    }
+    return appendDigits(fraction, places, chars, length);
+  }
+
+  // Formats mag, which isn't a whole number and so is less than 2^52, and
+  // is at least BIGBOUND
+  private static int formatLarge(double mag, char[] chars, int length) {
+    long whole = (long) mag;
+    int exponent = countDigits(whole) - 1;
+    long unit = POWERS_OF_TEN[exponent - (MANTISSA_DIGITS - 1)];
+    long mantissa = whole / unit;
+    // The part of mag after the mantissa's digits is at least
+    // whole % unit, and more than that since mag isn't whole, so it is
+    // never exactly half a unit
+    if (2 * (whole % unit) >= unit) {
+      mantissa++;
+    }
+    return appendScientific(mantissa, exponent, chars, length);
+  }
+
+  // Formats mag, which isn't 0, and is at most SMALLBOUND. The shortest
+  // digits that read back as mag are shown when there are few enough of
+  // them, as they can differ from the exact value for subnormal numbers.
+  private static int formatSmall(double mag, char[] chars, int length) {
+    BigDecimal rounded = new BigDecimal(Double.toString(mag));
+    if (rounded.precision() > MANTISSA_DIGITS) {
+      rounded = new BigDecimal(mag).round(MANTISSA_CONTEXT);
+    }
+    long mantissa = rounded.unscaledValue().longValue();
+    int digits = countDigits(mantissa);
+    int exponent = digits - 1 - rounded.scale();
+    // Make the mantissa MANTISSA_DIGITS long
+    mantissa *= POWERS_OF_TEN[MANTISSA_DIGITS - digits];
+    return appendScientific(mantissa, exponent, chars, length);
+  }
+
+  // Appends a mantissa of MANTISSA_DIGITS digits (or one more, if it was
+  // rounded up to the next power of ten) and an exponent as DecimalFormat
+  // does for "0.####E0"
+  private static int appendScientific(long mantissa, int exponent, char[] chars, int length) {
+    if (mantissa >= 10 * MANTISSA_SCALE) {
+      mantissa /= 10;
+      exponent++;
+    }
+    chars[length++] = (char) ('0' + mantissa / MANTISSA_SCALE);
+    long fraction = mantissa % MANTISSA_SCALE;
+    if (fraction != 0) {
+      int places = MANTISSA_DIGITS - 1;
+      while (fraction % 10 == 0) {
+        fraction /= 10;
+        places--;
+      }
+      chars[length++] = '.';
+      length = appendDigits(fraction, places, chars, length);
+    }
+    chars[length++] = 'E';
+    if (exponent < 0) {
+      chars[length++] = '-';
+      exponent = -exponent;
+    }
+    return appendDigits(exponent, chars, length);
+  }
+
+  private static int appendDigits(long value, char[] chars, int length) {
+    return appendDigits(value, countDigits(value), chars, length);
+  }
+
+  // Appends value as count digits, with leading zeros
+  private static int appendDigits(long value, int count, char[] chars, int length) {
+    for (int i = length + count - 1; i >= length; i--) {
+      chars[i] = (char) ('0' + value % 10);
+      value /= 10;
+    }
+    return length + count;
+  }
+
+  // The number of digits of value, which isn't negative; 1 for 0
+  private static int countDigits(long value) {
+    int digits = 1;
+    while (digits < POWERS_OF_TEN.length && value >= POWERS_OF_TEN[digits]) {
+      digits++;
+    }
+    return digits;
+  }
+
+  private static boolean unsignedLess(long x, long y) {
+    return (x ^ Long.MIN_VALUE) < (y ^ Long.MIN_VALUE);
   }
 }
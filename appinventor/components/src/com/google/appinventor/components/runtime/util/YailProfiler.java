@@ -0,0 +1,312 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.components.runtime.util;
+
+import gnu.mapping.Procedure;
+import gnu.mapping.ProcedureN;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Counts and times what the blocks of an app run, so the blocks editor can
+ * show which ones an app spends its time in.
+ *
+ * <p>The profiler is off until the blocks editor turns it on through the
+ * Companion (see {@link AppInvHTTPD}). While it is on, runtime.scm reports
+ * each event handler, component method, YAIL primitive and user procedure
+ * (of those defined in the Companion, see {@link #wrap}) it runs with
+ * {@link #enter} and {@link #exit}, and for each of them the
+ * profiler keeps how many times it ran, the time spent in it (all of it,
+ * and without what it called that was also reported), and an estimate of
+ * the memory it allocated. While it is off, all that is done is to check
+ * {@link #isEnabled}.
+ *
+ * <p>The allocation estimate is how much the memory in use grew while the
+ * block ran, so it is low when the garbage collector ran meanwhile, and
+ * includes what other threads allocated.
+ *
+ */
+public final class YailProfiler {
+
+  /**
+   * The kinds of blocks that are profiled.
+   */
+  public static final String EVENT = "event";
+  public static final String METHOD = "method";
+  public static final String PRIMITIVE = "primitive";
+  public static final String PROCEDURE = "procedure";
+
+  private static volatile boolean enabled;
+
+  // The statistics by kind, and by name within the kind
+  private static final Map<String, Map<String, Stats>> stats =
+      new LinkedHashMap<String, Map<String, Stats>>();
+
+  // The block each thread is running, the top of a stack of frames
+  private static final ThreadLocal<Frame> current = new ThreadLocal<Frame>();
+
+  private YailProfiler() {
+  }
+
+  /**
+   * Returns whether blocks are being profiled.
+   */
+  public static boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * Starts or stops profiling. What has been recorded is kept.
+   *
+   * @param enable whether to profile
+   */
+  public static void setEnabled(boolean enable) {
+    enabled = enable;
+  }
+
+  /**
+   * Forgets what has been recorded.
+   */
+  public static void reset() {
+    synchronized (stats) {
+      stats.clear();
+    }
+  }
+
+  /**
+   * Records that a block starts running on this thread.
+   *
+   * @param kind the kind of block, one of {@link #EVENT}, {@link #METHOD},
+   *        {@link #PRIMITIVE} and {@link #PROCEDURE}
+   * @param name the name of the block, as the blocks editor shows it
+   * @return the frame to pass to {@link #exit} when the block returns
+   */
+  public static Frame enter(String kind, String name) {
+    Frame frame = new Frame(kind, name, current.get());
+    current.set(frame);
+    frame.start = System.nanoTime();
+    return frame;
+  }
+
+  /**
+   * Records that the block of a frame has returned, or thrown.
+   *
+   * @param frame the frame {@link #enter} returned
+   */
+  public static void exit(Frame frame) {
+    long elapsed = System.nanoTime() - frame.start;
+    long allocated = Math.max(0, usedMemory() - frame.startMemory);
+    current.set(frame.parent);
+    if (frame.parent != null) {
+      frame.parent.childTime += elapsed;
+    }
+    synchronized (stats) {
+      Map<String, Stats> byName = stats.get(frame.kind);
+      if (byName == null) {
+        byName = new LinkedHashMap<String, Stats>();
+        stats.put(frame.kind, byName);
+      }
+      Stats entry = byName.get(frame.name);
+      if (entry == null) {
+        entry = new Stats();
+        byName.put(frame.name, entry);
+      }
+      entry.count++;
+      entry.totalTime += elapsed;
+      entry.selfTime += elapsed - frame.childTime;
+      entry.allocated += allocated;
+    }
+  }
+
+  /**
+   * Makes a user procedure defined in the Companion (the REPL) report its
+   * calls when profiling is on. The procedures of compiled apps aren't
+   * wrapped, profiling can only be turned on from the Companion.
+   *
+   * @param name the name of the procedure
+   * @param procedure the procedure
+   * @return a procedure that calls procedure
+   */
+  public static Procedure wrap(Object name, Procedure procedure) {
+    return new ProfiledProcedure(name.toString(), procedure);
+  }
+
+  /**
+   * Returns what has been recorded as JSON, an object with whether
+   * profiling is on and a list of entries with the kind and name of each
+   * block that ran, how many times it ran ("count"), the nanoseconds spent
+   * in it ("totalTime") and in it but not in the blocks it called
+   * ("selfTime"), and the bytes it allocated ("allocated").
+   *
+   * @return the profile
+   */
+  public static String toJson() {
+    try {
+      JSONArray entries = new JSONArray();
+      synchronized (stats) {
+        for (Map.Entry<String, Map<String, Stats>> byKind : stats.entrySet()) {
+          for (Map.Entry<String, Stats> byName : byKind.getValue().entrySet()) {
+            Stats entry = byName.getValue();
+            JSONObject json = new JSONObject();
+            json.put("kind", byKind.getKey());
+            json.put("name", byName.getKey());
+            json.put("count", entry.count);
+            json.put("totalTime", entry.totalTime);
+            json.put("selfTime", entry.selfTime);
+            json.put("allocated", entry.allocated);
+            entries.put(json);
+          }
+        }
+      }
+      JSONObject profile = new JSONObject();
+      profile.put("enabled", enabled);
+      profile.put("entries", entries);
+      return profile.toString();
+    } catch (JSONException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static long usedMemory() {
+    Runtime runtime = Runtime.getRuntime();
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+
+  /**
+   * A block that is running.
+   */
+  public static final class Frame {
+    final String kind;
+    final String name;
+    final Frame parent;
+    final long startMemory;
+    long start;
+    long childTime;
+
+    Frame(String kind, String name, Frame parent) {
+      this.kind = kind;
+      this.name = name;
+      this.parent = parent;
+      startMemory = usedMemory();
+    }
+  }
+
+  /**
+   * What has been recorded for a block.
+   */
+  private static final class Stats {
+    long count;
+    long totalTime;
+    long selfTime;
+    long allocated;
+  }
+
+  /**
+   * A user procedure that reports its calls when profiling is on, and
+   * otherwise just calls the procedure.
+   */
+  private static final class ProfiledProcedure extends ProcedureN {
+    private final Procedure procedure;
+
+    ProfiledProcedure(String name, Procedure procedure) {
+      super(name);
+      this.procedure = procedure;
+    }
+
+    @Override
+    public int numArgs() {
+      return procedure.numArgs();
+    }
+
+    @Override
+    public Object apply0() throws Throwable {
+      if (!enabled) {
+        return procedure.apply0();
+      }
+      Frame frame = enter(PROCEDURE, getName());
+      try {
+        return procedure.apply0();
+      } finally {
+        exit(frame);
+      }
+    }
+
+    @Override
+    public Object apply1(Object arg1) throws Throwable {
+      if (!enabled) {
+        return procedure.apply1(arg1);
+      }
+      Frame frame = enter(PROCEDURE, getName());
+      try {
+        return procedure.apply1(arg1);
+      } finally {
+        exit(frame);
+      }
+    }
+
+    @Override
+    public Object apply2(Object arg1, Object arg2) throws Throwable {
+      if (!enabled) {
+        return procedure.apply2(arg1, arg2);
+      }
+      Frame frame = enter(PROCEDURE, getName());
+      try {
+        return procedure.apply2(arg1, arg2);
+      } finally {
+        exit(frame);
+      }
+    }
+
+    @Override
+    public Object apply3(Object arg1, Object arg2, Object arg3) throws Throwable {
+      if (!enabled) {
+        return procedure.apply3(arg1, arg2, arg3);
+      }
+      Frame frame = enter(PROCEDURE, getName());
+      try {
+        return procedure.apply3(arg1, arg2, arg3);
+      } finally {
+        exit(frame);
+      }
+    }
+
+    @Override
+    public Object apply4(Object arg1, Object arg2, Object arg3, Object arg4) throws Throwable {
+      if (!enabled) {
+        return procedure.apply4(arg1, arg2, arg3, arg4);
+      }
+      Frame frame = enter(PROCEDURE, getName());
+      try {
+        return procedure.apply4(arg1, arg2, arg3, arg4);
+      } finally {
+        exit(frame);
+      }
+    }
+
+    @Override
+    public Object applyN(Object[] args) throws Throwable {
+      if (!enabled) {
+        return procedure.applyN(args);
+      }
+      Frame frame = enter(PROCEDURE, getName());
+      try {
+        return procedure.applyN(args);
+      } finally {
+        exit(frame);
+      }
+    }
+
+    @Override
+    public String toString() {
+      return procedure.toString();
+    }
+  }
+}
@@ -0,0 +1,58 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2026 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.components.runtime.util;
+
+import gnu.mapping.Environment;
+import gnu.mapping.Location;
+import gnu.mapping.Symbol;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests EnvironmentSlots.
+ *
+ */
+public class EnvironmentSlotsTest extends TestCase {
+
+  public void testLocate() {
+    Environment environment = Environment.make("test");
+    Symbol name = Symbol.makeUninterned("x");
+    environment.put(name, "one");
+    EnvironmentSlots slots = new EnvironmentSlots();
+    Location location = slots.locate(environment, name, EnvironmentSlots.slotOf(name));
+    assertEquals("one", location.get());
+    assertSame(location, slots.locate(environment, name, EnvironmentSlots.slotOf(name)));
+
+    // After the environment is replaced, the slot is filled from the new one
+    slots.clear();
+    Environment replacement = Environment.make("replacement");
+    replacement.put(name, "two");
+    assertEquals("two", slots.locate(replacement, name, EnvironmentSlots.slotOf(name)).get());
+  }
+
+  public void testSlotOf() {
+    Symbol a = Symbol.makeUninterned("a");
+    Symbol b = Symbol.makeUninterned("b");
+    int slot = EnvironmentSlots.slotOf(a);
+    assertTrue(slot >= 0);
+    assertEquals(slot, EnvironmentSlots.slotOf(a));
+    assertTrue(EnvironmentSlots.slotOf(b) != slot);
+
+    // Names beyond the last slot are looked up
+    for (int i = 0; i < EnvironmentSlots.MAX_SLOTS; i++) {
+      EnvironmentSlots.slotOf(Symbol.makeUninterned("name" + i));
+    }
+    Symbol name = Symbol.makeUninterned("late");
+    assertEquals(EnvironmentSlots.NO_SLOT, EnvironmentSlots.slotOf(name));
+
+    Environment environment = Environment.make("test");
+    environment.put(name, "value");
+    EnvironmentSlots slots = new EnvironmentSlots();
+    assertEquals("value", slots.locate(environment, name, EnvironmentSlots.NO_SLOT).get());
+    environment.put(name, "changed");
+    assertEquals("changed", slots.locate(environment, name, EnvironmentSlots.NO_SLOT).get());
+  }
+}
@@ -0,0 +1,61 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2026 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.components.runtime.util;
+
+import gnu.lists.LList;
+import gnu.mapping.Values;
+import gnu.math.IntNum;
+import gnu.text.Char;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests MethodDispatch.
+ *
+ */
+public class MethodDispatchTest extends TestCase {
+
+  public void testInvoke() throws Throwable {
+    StringBuilder sb = new StringBuilder("abc");
+    assertEquals(3, MethodDispatch.invoke(sb, "length", LList.Empty));
+    assertSame(Values.empty, MethodDispatch.invoke(sb, "setLength", LList.list1(IntNum.make(2))));
+    assertEquals("ab", sb.toString());
+    assertEquals(Char.make('b'), MethodDispatch.invoke(sb, "charAt", LList.list1(IntNum.make(1))));
+  }
+
+  public void testOverloadedMethodIsNotDispatched() throws Throwable {
+    // StringBuilder has many one argument append methods
+    StringBuilder sb = new StringBuilder("abc");
+    assertSame(MethodDispatch.NOT_DISPATCHED,
+        MethodDispatch.invoke(sb, "append", LList.list1("de")));
+    assertEquals("abc", sb.toString());
+    assertNull(MethodDispatch.lookup(StringBuilder.class, "append", 1));
+  }
+
+  public void testUnknownMethodIsNotDispatched() throws Throwable {
+    StringBuilder sb = new StringBuilder("abc");
+    assertSame(MethodDispatch.NOT_DISPATCHED,
+        MethodDispatch.invoke(sb, "noSuchMethod", LList.Empty));
+    // Wrong number of arguments
+    assertSame(MethodDispatch.NOT_DISPATCHED,
+        MethodDispatch.invoke(sb, "length", LList.list1(IntNum.make(1))));
+  }
+
+  public void testUnconvertibleArgumentIsNotDispatched() throws Throwable {
+    StringBuilder sb = new StringBuilder("abc");
+    assertSame(MethodDispatch.NOT_DISPATCHED,
+        MethodDispatch.invoke(sb, "setLength", LList.list1("two")));
+    assertSame(MethodDispatch.NOT_DISPATCHED,
+        MethodDispatch.invoke(sb, "charAt", LList.list1(Boolean.TRUE)));
+    assertEquals("abc", sb.toString());
+  }
+
+  public void testLookupIsCached() {
+    MethodDispatch.Invoker invoker = MethodDispatch.lookup(StringBuilder.class, "charAt", 1);
+    assertNotNull(invoker);
+    assertSame(invoker, MethodDispatch.lookup(StringBuilder.class, "charAt", 1));
+  }
+}
@@ -0,0 +1,103 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.components.runtime.util;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.regex.Pattern;
+
+/**
+ * Tests TextPrimitives against the quoted regular expressions it replaces.
+ *
+ */
+public class TextPrimitivesTest extends TestCase {
+
+  private static final String[] SEPARATORS = { "", "a", "aa", "ab", ".", "$", "\\", "\\E", "*+" };
+
+  private static final int[] LIMITS = { -1, 0, 1, 2, 3 };
+
+  private final Random random = new Random(49);
+
+  // Random text made of the characters of the separators
+  private String randomText() {
+    char[] chars = new char[random.nextInt(12)];
+    for (int i = 0; i < chars.length; i++) {
+      chars[i] = "ab.$\\E*+ \t".charAt(random.nextInt(10));
+    }
+    return new String(chars);
+  }
+
+  public void testSplit() {
+    for (int i = 0; i < 5000; i++) {
+      String text = randomText();
+      for (String separator : SEPARATORS) {
+        for (int limit : LIMITS) {
+          String message = "split of \"" + text + "\" at \"" + separator + "\", " + limit;
+          assertEquals(message, Arrays.asList(text.split(Pattern.quote(separator), limit)),
+              Arrays.asList(TextPrimitives.split(text, separator, limit)));
+        }
+      }
+    }
+  }
+
+  public void testSplitAtAny() {
+    for (int i = 0; i < 5000; i++) {
+      String text = randomText();
+      String first = SEPARATORS[random.nextInt(SEPARATORS.length)];
+      String second = SEPARATORS[random.nextInt(SEPARATORS.length)];
+      String regex = Pattern.quote(first) + "|" + Pattern.quote(second);
+      for (int limit : LIMITS) {
+        assertEquals(Arrays.asList(text.split(regex, limit)),
+            Arrays.asList(TextPrimitives.splitAtAny(text, Arrays.asList(first, second), limit)));
+      }
+    }
+  }
+
+  public void testSplitAtSpaces() {
+    for (int i = 0; i < 5000; i++) {
+      String text = randomText();
+      assertEquals(Arrays.asList(text.trim().split("\\s+", -1)),
+          Arrays.asList(TextPrimitives.splitAtSpaces(text)));
+    }
+  }
+
+  public void testReplaceAll() {
+    String[] replacements = { "", "x", "yy", "$0", "\\$", "[$0]" };
+    for (int i = 0; i < 5000; i++) {
+      String text = randomText();
+      for (String piece : SEPARATORS) {
+        for (String replacement : replacements) {
+          assertEquals(text.replaceAll(Pattern.quote(piece), replacement),
+              TextPrimitives.replaceAll(text, piece, replacement));
+        }
+      }
+    }
+  }
+
+  public void testReplaceAllWithBadReplacement() {
+    try {
+      TextPrimitives.replaceAll("a.b", ".", "$1");
+      fail();
+    } catch (IndexOutOfBoundsException e) {
+      // as with replaceAll, there is no group 1
+    }
+  }
+
+  public void testDeobfuscate() {
+    assertEquals("Hello, World!", TextPrimitives.deobfuscate(
+        ".Z\u001e\rU]Lb\u0013\u001d\\\u001fK", "k3y"));
+    assertEquals("", TextPrimitives.deobfuscate("", "k3y"));
+  }
+
+  public void testDeobfuscateWithEmptyConfounder() {
+    assertEquals("", TextPrimitives.deobfuscate("", ""));
+    // The same as a confounder of NULs
+    String text = ".Z\u001e\rU]Lb\u0013\u001d\\\u001fK";
+    assertEquals(TextPrimitives.deobfuscate(text, "\0"), TextPrimitives.deobfuscate(text, ""));
+  }
+}
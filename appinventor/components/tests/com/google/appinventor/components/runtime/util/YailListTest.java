@@ -7,6 +7,8 @@
 package com.google.appinventor.components.runtime.util;
 
 import gnu.lists.FString;
+import gnu.lists.LList;
+import gnu.lists.Pair;
 
 import junit.framework.TestCase;
 
@@ -203,4 +205,62 @@ public class YailListTest extends TestCase {
       // this is the intended behavior
     }
   }
+
+  public void testItemsByNumber() {
+    YailList yailList = YailList.makeList(new Object[] {"a", "b", "c"});
+    yailList.setItem(2, "B");
+    yailList.insertItem(1, "first");
+    yailList.insertItem(5, "last");
+    yailList.removeItem(3);
+    assertEquals("(first a c last)", yailList.toString());
+    assertEquals(4, yailList.size());
+    assertEquals("last", yailList.getObject(3));
+    yailList.appendItems(yailList);
+    assertEquals("(first a c last first a c last)", yailList.toString());
+    assertEquals(8, yailList.size());
+    try {
+      yailList.insertItem(10, "x");
+      fail();
+    } catch (IndexOutOfBoundsException e) {
+      // this is the intended behavior
+    }
+  }
+
+  public void testChainChangedDirectly() {
+    YailList yailList = YailList.makeList(new Object[] {"a", "b", "c", "d"});
+    assertEquals(4, yailList.size());
+    // Drop "b" by changing the pairs themselves
+    Pair first = (Pair) yailList.getCdr();
+    first.setCdr(((Pair) first.getCdr()).getCdr());
+    assertEquals(3, yailList.size());
+    assertEquals("c", yailList.getObject(1));
+    // Pairs the list didn't make are followed, but not indexed
+    yailList.setCdr(new Pair("x", new Pair("y", LList.Empty)));
+    assertEquals(2, yailList.size());
+    yailList.insertItem(2, "z");
+    assertEquals("(x z y)", yailList.toString());
+    assertFalse(yailList.tracksChanges());
+  }
+
+  public void testLookupIndexDroppedByChanges() {
+    YailList pair = YailList.makeList(new Object[] {"a", 1});
+    YailList pairs = YailList.makeList(new Object[] {pair});
+    Object index = new Object();
+    assertTrue(pairs.tracksChanges());
+    pairs.setLookupIndex(index);
+    assertSame(index, pairs.getLookupIndex());
+    // A change to any list drops the index, the pairs are lists too
+    pair.setItem(1, "b");
+    assertNull(pairs.getLookupIndex());
+    pairs.setLookupIndex(index);
+    ((Pair) pair.getCdr()).setCar("c");
+    assertNull(pairs.getLookupIndex());
+    pairs.setLookupIndex(index);
+    pairs.appendItems(YailList.makeList(new Object[] {pair}));
+    assertNull(pairs.getLookupIndex());
+    // Making a list doesn't
+    pairs.setLookupIndex(index);
+    YailList.makeList(new Object[] {"d"});
+    assertSame(index, pairs.getLookupIndex());
+  }
 }
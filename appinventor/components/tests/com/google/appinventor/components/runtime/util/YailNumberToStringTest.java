@@ -0,0 +1,124 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.components.runtime.util;
+
+import junit.framework.TestCase;
+
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Tests YailNumberToString against the DecimalFormat patterns it replaces.
+ *
+ */
+public class YailNumberToStringTest extends TestCase {
+
+  private final DecimalFormatSymbols symbols = new DecimalFormatSymbols(Locale.US);
+  private final DecimalFormat decimalFormat = new DecimalFormat("#####0.0####", symbols);
+  private final DecimalFormat sciFormat = new DecimalFormat("0.####E0", symbols);
+
+  // How numbers were formatted with DecimalFormat, except for NaN
+  private String expected(double number) {
+    if (Double.isNaN(number)) {
+      return "NaN";
+    } else if (number == Math.rint(number)) {
+      return String.valueOf((int) number);
+    }
+    double mag = Math.abs(number);
+    if (mag < 1.e6 && mag > 1.e-6) {
+      return decimalFormat.format(number);
+    } else {
+      return sciFormat.format(number);
+    }
+  }
+
+  private void assertFormat(double number) {
+    assertEquals("format of " + number, expected(number), YailNumberToString.format(number));
+  }
+
+  public void testWholeNumbers() {
+    assertEquals("0", YailNumberToString.format(0.0));
+    assertEquals("0", YailNumberToString.format(-0.0));
+    assertEquals("42", YailNumberToString.format(42.0));
+    assertEquals("-7", YailNumberToString.format(-7.0));
+    assertEquals("1000000", YailNumberToString.format(1.e6));
+  }
+
+  public void testDecimalNotation() {
+    assertEquals("0.5", YailNumberToString.format(0.5));
+    assertEquals("-3.25", YailNumberToString.format(-3.25));
+    assertEquals("0.33333", YailNumberToString.format(1.0 / 3));
+    assertEquals("0.66667", YailNumberToString.format(2.0 / 3));
+    assertEquals("3.14159", YailNumberToString.format(Math.PI));
+    assertEquals("0.1", YailNumberToString.format(0.1));
+    assertEquals("999999.5", YailNumberToString.format(999999.5));
+  }
+
+  public void testScientificNotation() {
+    assertEquals("1.2346E6", YailNumberToString.format(1234567.5));
+    assertEquals("1E-7", YailNumberToString.format(1.e-7));
+    assertEquals("-4.1E-7", YailNumberToString.format(-0.00000041));
+    assertEquals("4.9E-324", YailNumberToString.format(Double.MIN_VALUE));
+    assertEquals("1.2346E-300", YailNumberToString.format(1.23456e-300));
+  }
+
+  public void testNaN() {
+    // DecimalFormat shows NaN as it is in the DecimalFormatSymbols, which
+    // is "\uFFFD" on older JDKs. We always show "NaN".
+    assertEquals("NaN", YailNumberToString.format(Double.NaN));
+    assertEquals("NaN", YailNumberToString.format(Double.longBitsToDouble(0x7ff8000000000123L)));
+  }
+
+  public void testRounding() {
+    // The exact values of these doubles are just below or above the ties
+    assertEquals("0.00003", YailNumberToString.format(0.000035));
+    assertEquals("1.00001", YailNumberToString.format(1.000005));
+    assertEquals("999999.99999", YailNumberToString.format(999999.999995));
+    assertEquals("-1000000.0", YailNumberToString.format(-999999.999996));
+    assertEquals("123456.0", YailNumberToString.format(123456.000001));
+    assertEquals("-0.0", YailNumberToString.format(-0.000001000001));
+    assertEquals("1E6", YailNumberToString.format(1.e6 + 0.5));
+    // The double nearest 0.000005 is a little more than it. The JDK's
+    // DecimalFormat rounds that to 0.0 when the 5 is the first digit, but
+    // the other ties are rounded by their exact value.
+    assertEquals("0.00001", YailNumberToString.format(0.000005));
+  }
+
+  public void testSameAsDecimalFormat() {
+    double[] numbers = {
+        1.e-6, 1.0000001e-6, 9.99999e-7, 0.0000049999, 0.0000050001, -0.0000041,
+        0.125, 0.00001, 0.000015, 0.000025, 2.5e-5, 1.5, 2.5, 0.1 + 0.2,
+        524287.75, 524288.5, 999999.4, 999999.99999, 999999.999994,
+        1.e6 + 0.25, 1.e6 + 0.1, 9999949.5, 9999950.5, 12345650.5, 4503599627370495.5,
+        Double.MIN_NORMAL, Double.MIN_VALUE * 3, 1.00005e-7, 1.00015e-7, 9.99995e-7
+    };
+    for (double number : numbers) {
+      assertFormat(number);
+      assertFormat(-number);
+    }
+  }
+
+  public void testSameAsDecimalFormatNearTies() {
+    Random random = new Random(48);
+    for (int i = 0; i < 20000; i++) {
+      double tie = (random.nextInt(2000000) + 0.5) / 100000 * Math.pow(10, random.nextInt(7) - 1);
+      assertFormat(tie);
+      assertFormat(Math.nextUp(tie));
+      assertFormat(Math.nextAfter(tie, 0));
+    }
+  }
+
+  public void testSameAsDecimalFormatRandom() {
+    Random random = new Random(48);
+    for (int i = 0; i < 100000; i++) {
+      double number = random.nextDouble() * Math.pow(10, random.nextInt(40) - 20);
+      assertFormat(random.nextBoolean() ? number : -number);
+      assertFormat(Double.longBitsToDouble(random.nextLong()));
+    }
+  }
+}
@@ -0,0 +1,114 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2017 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.components.runtime.util;
+
+import gnu.mapping.Procedure;
+import gnu.mapping.Procedure1;
+
+import junit.framework.TestCase;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Tests YailProfiler.
+ *
+ */
+public class YailProfilerTest extends TestCase {
+
+  // Sleeps for the number of milliseconds it is given
+  private static final Procedure SLEEP = new Procedure1("sleep") {
+    @Override
+    public Object apply1(Object millis) throws Throwable {
+      Thread.sleep(((Number) millis).longValue());
+      return millis;
+    }
+  };
+
+  // Returns the length of the string it is given
+  private static final Procedure LENGTH = new Procedure1("length") {
+    @Override
+    public Object apply1(Object text) {
+      return text.toString().length();
+    }
+  };
+
+  @Override
+  protected void tearDown() {
+    YailProfiler.setEnabled(false);
+    YailProfiler.reset();
+  }
+
+  // Returns the entry of a block in the profile, or null
+  private static JSONObject entry(String kind, String name) throws JSONException {
+    JSONArray entries = new JSONObject(YailProfiler.toJson()).getJSONArray("entries");
+    for (int i = 0; i < entries.length(); i++) {
+      JSONObject entry = entries.getJSONObject(i);
+      if (entry.getString("kind").equals(kind) && entry.getString("name").equals(name)) {
+        return entry;
+      }
+    }
+    return null;
+  }
+
+  public void testNothingIsRecordedWhenDisabled() throws Throwable {
+    Procedure sleep = YailProfiler.wrap("p$sleep", SLEEP);
+    assertEquals(0, sleep.apply1(0));
+    assertFalse(new JSONObject(YailProfiler.toJson()).getBoolean("enabled"));
+    assertEquals(0, new JSONObject(YailProfiler.toJson()).getJSONArray("entries").length());
+  }
+
+  public void testCountsAndTimes() throws Throwable {
+    Procedure sleep = YailProfiler.wrap("p$sleep", SLEEP);
+    YailProfiler.setEnabled(true);
+    assertTrue(new JSONObject(YailProfiler.toJson()).getBoolean("enabled"));
+    YailProfiler.Frame event = YailProfiler.enter(YailProfiler.EVENT, "Clock1.Timer");
+    try {
+      sleep.apply1(20);
+      sleep.apply1(20);
+      Thread.sleep(20);
+    } finally {
+      YailProfiler.exit(event);
+    }
+
+    JSONObject procedure = entry(YailProfiler.PROCEDURE, "p$sleep");
+    assertEquals(2, procedure.getInt("count"));
+    assertTrue(procedure.getLong("totalTime") >= 40000000L);
+    assertEquals(procedure.getLong("totalTime"), procedure.getLong("selfTime"));
+
+    JSONObject handler = entry(YailProfiler.EVENT, "Clock1.Timer");
+    assertEquals(1, handler.getInt("count"));
+    assertTrue(handler.getLong("totalTime") >= 60000000L);
+    // The time in the procedure is the handler's, but not its own
+    assertTrue(handler.getLong("selfTime") >= 20000000L);
+    assertEquals(handler.getLong("totalTime") - procedure.getLong("totalTime"),
+        handler.getLong("selfTime"));
+
+    YailProfiler.reset();
+    assertNull(entry(YailProfiler.PROCEDURE, "p$sleep"));
+  }
+
+  public void testCallsThatThrowAreRecorded() throws Throwable {
+    Procedure length = YailProfiler.wrap("p$length", LENGTH);
+    YailProfiler.setEnabled(true);
+    try {
+      length.apply1(null);
+      fail();
+    } catch (NullPointerException e) {
+      // this is expected
+    }
+    assertEquals(4, length.apply1("text"));
+    assertEquals(2, entry(YailProfiler.PROCEDURE, "p$length").getInt("count"));
+  }
+
+  public void testWrappedProcedureLooksLikeTheProcedure() {
+    Procedure length = YailProfiler.wrap("p$length", LENGTH);
+    assertEquals(1, length.minArgs());
+    assertEquals(1, length.maxArgs());
+    assertEquals(LENGTH.toString(), length.toString());
+  }
+}